@@ -51,6 +51,9 @@ public class Account implements BaseAccount {
     private static final QuoteStyle DEFAULT_QUOTE_STYLE = QuoteStyle.PREFIX;
     private static final String DEFAULT_QUOTE_PREFIX = ">";
     private static final boolean DEFAULT_REPLY_AFTER_QUOTE = false;
+    private static final int DEFAULT_MAX_CONCURRENT_FOLDER_SYNCS = 3;
+    private static final int DEFAULT_PREFETCH_BUDGET = 2 * 1024 * 1024;
+    private static final int DEFAULT_MAX_ATTACHMENT_CONNECTIONS = 3;
 
     /**
      * <pre>
@@ -103,6 +106,12 @@ public class Account implements BaseAccount {
     private boolean mIsSignatureBeforeQuotedText;
     private String mExpungePolicy = EXPUNGE_IMMEDIATELY;
     private int mMaxPushFolders;
+    private int mMaxConcurrentFolderSyncs;
+    private int mPrefetchBudget;
+    private int mMaxAttachmentConnections;
+    private int mRetentionMaxAgeDays;
+    private int mRetentionMaxMessages;
+    private long mRetentionMaxBytes;
     private int mIdleRefreshMinutes;
     private boolean goToUnreadMessageSearch;
     private boolean mNotificationShowsUnreadCount;
@@ -185,6 +194,12 @@ public class Account implements BaseAccount {
         mAutoExpandFolderName = K9.INBOX;
         mInboxFolderName = K9.INBOX;
         mMaxPushFolders = 10;
+        mMaxConcurrentFolderSyncs = DEFAULT_MAX_CONCURRENT_FOLDER_SYNCS;
+        mPrefetchBudget = DEFAULT_PREFETCH_BUDGET;
+        mMaxAttachmentConnections = DEFAULT_MAX_ATTACHMENT_CONNECTIONS;
+        mRetentionMaxAgeDays = 0;
+        mRetentionMaxMessages = 0;
+        mRetentionMaxBytes = 0;
         mChipColor = (new Random()).nextInt(0xffffff) + 0xff000000;
         goToUnreadMessageSearch = false;
         mNotificationShowsUnreadCount = true;
@@ -260,6 +275,12 @@ public class Account implements BaseAccount {
         mSyncRemoteDeletions = prefs.getBoolean(mUuid  + ".syncRemoteDeletions", true);
 
         mMaxPushFolders = prefs.getInt(mUuid + ".maxPushFolders", 10);
+        mMaxConcurrentFolderSyncs = prefs.getInt(mUuid + ".maxConcurrentFolderSyncs", DEFAULT_MAX_CONCURRENT_FOLDER_SYNCS);
+        mPrefetchBudget = prefs.getInt(mUuid + ".prefetchBudget", DEFAULT_PREFETCH_BUDGET);
+        mMaxAttachmentConnections = prefs.getInt(mUuid + ".maxAttachmentConnections", DEFAULT_MAX_ATTACHMENT_CONNECTIONS);
+        mRetentionMaxAgeDays = prefs.getInt(mUuid + ".retentionMaxAgeDays", 0);
+        mRetentionMaxMessages = prefs.getInt(mUuid + ".retentionMaxMessages", 0);
+        mRetentionMaxBytes = prefs.getLong(mUuid + ".retentionMaxBytes", 0);
         goToUnreadMessageSearch = prefs.getBoolean(mUuid + ".goToUnreadMessageSearch", false);
         mNotificationShowsUnreadCount = prefs.getBoolean(mUuid + ".notificationUnreadCount", true);
         subscribedFoldersOnly = prefs.getBoolean(mUuid + ".subscribedFoldersOnly", false);
@@ -416,6 +437,12 @@ public class Account implements BaseAccount {
         editor.remove(mUuid + ".expungePolicy");
         editor.remove(mUuid + ".syncRemoteDeletions");
         editor.remove(mUuid + ".maxPushFolders");
+        editor.remove(mUuid + ".maxConcurrentFolderSyncs");
+        editor.remove(mUuid + ".prefetchBudget");
+        editor.remove(mUuid + ".maxAttachmentConnections");
+        editor.remove(mUuid + ".retentionMaxAgeDays");
+        editor.remove(mUuid + ".retentionMaxMessages");
+        editor.remove(mUuid + ".retentionMaxBytes");
         editor.remove(mUuid + ".searchableFolders");
         editor.remove(mUuid + ".chipColor");
         editor.remove(mUuid + ".led");
@@ -511,6 +538,12 @@ public class Account implements BaseAccount {
         editor.putString(mUuid + ".expungePolicy", mExpungePolicy);
         editor.putBoolean(mUuid + ".syncRemoteDeletions", mSyncRemoteDeletions);
         editor.putInt(mUuid + ".maxPushFolders", mMaxPushFolders);
+        editor.putInt(mUuid + ".maxConcurrentFolderSyncs", mMaxConcurrentFolderSyncs);
+        editor.putInt(mUuid + ".prefetchBudget", mPrefetchBudget);
+        editor.putInt(mUuid + ".maxAttachmentConnections", mMaxAttachmentConnections);
+        editor.putInt(mUuid + ".retentionMaxAgeDays", mRetentionMaxAgeDays);
+        editor.putInt(mUuid + ".retentionMaxMessages", mRetentionMaxMessages);
+        editor.putLong(mUuid + ".retentionMaxBytes", mRetentionMaxBytes);
         editor.putString(mUuid + ".searchableFolders", searchableFolders.name());
         editor.putInt(mUuid + ".chipColor", mChipColor);
         editor.putBoolean(mUuid + ".goToUnreadMessageSearch", goToUnreadMessageSearch);
@@ -962,6 +995,99 @@ public class Account implements BaseAccount {
         return oldMaxPushFolders != maxPushFolders;
     }
 
+    /**
+     * @return Maximum number of folders synchronized at the same time during a
+     *         mail check. The remote store may impose a lower limit.
+     */
+    public synchronized int getMaxConcurrentFolderSyncs() {
+        return mMaxConcurrentFolderSyncs;
+    }
+
+    public synchronized boolean setMaxConcurrentFolderSyncs(int maxConcurrentFolderSyncs) {
+        int oldMaxConcurrentFolderSyncs = mMaxConcurrentFolderSyncs;
+        mMaxConcurrentFolderSyncs = maxConcurrentFolderSyncs;
+        return oldMaxConcurrentFolderSyncs != maxConcurrentFolderSyncs;
+    }
+
+    /**
+     * @return Maximum number of bytes taken by message bodies downloaded
+     *         ahead of time and not read yet, 0 if bodies aren't prefetched.
+     */
+    public synchronized int getPrefetchBudget() {
+        return mPrefetchBudget;
+    }
+
+    public synchronized boolean setPrefetchBudget(int prefetchBudget) {
+        int oldPrefetchBudget = mPrefetchBudget;
+        mPrefetchBudget = prefetchBudget;
+        return oldPrefetchBudget != prefetchBudget;
+    }
+
+    /**
+     * @return Maximum number of connections used at the same time to download
+     *         the attachments of a message, further limited by the store.
+     */
+    public synchronized int getMaxAttachmentConnections() {
+        return mMaxAttachmentConnections;
+    }
+
+    public synchronized boolean setMaxAttachmentConnections(int maxAttachmentConnections) {
+        int oldMaxAttachmentConnections = mMaxAttachmentConnections;
+        mMaxAttachmentConnections = maxAttachmentConnections;
+        return oldMaxAttachmentConnections != maxAttachmentConnections;
+    }
+
+    /**
+     * @return Age (days) after which local copies of messages are deleted, 0
+     *         to keep them regardless of their age.
+     */
+    public synchronized int getRetentionMaxAgeDays() {
+        return mRetentionMaxAgeDays;
+    }
+
+    public synchronized boolean setRetentionMaxAgeDays(int retentionMaxAgeDays) {
+        int oldRetentionMaxAgeDays = mRetentionMaxAgeDays;
+        mRetentionMaxAgeDays = retentionMaxAgeDays;
+        return oldRetentionMaxAgeDays != retentionMaxAgeDays;
+    }
+
+    /**
+     * @return Number of messages kept locally per folder, the oldest ones
+     *         beyond that are deleted. 0 for no limit.
+     */
+    public synchronized int getRetentionMaxMessages() {
+        return mRetentionMaxMessages;
+    }
+
+    public synchronized boolean setRetentionMaxMessages(int retentionMaxMessages) {
+        int oldRetentionMaxMessages = mRetentionMaxMessages;
+        mRetentionMaxMessages = retentionMaxMessages;
+        return oldRetentionMaxMessages != retentionMaxMessages;
+    }
+
+    /**
+     * @return Number of bytes of message contents and attachments kept
+     *         locally, the oldest messages beyond that are deleted. 0 for no
+     *         limit.
+     */
+    public synchronized long getRetentionMaxBytes() {
+        return mRetentionMaxBytes;
+    }
+
+    public synchronized boolean setRetentionMaxBytes(long retentionMaxBytes) {
+        long oldRetentionMaxBytes = mRetentionMaxBytes;
+        mRetentionMaxBytes = retentionMaxBytes;
+        return oldRetentionMaxBytes != retentionMaxBytes;
+    }
+
+    /**
+     * @return Whether local copies of messages are deleted according to a
+     *         retention policy.
+     */
+    public synchronized boolean hasRetentionPolicy() {
+        return mRetentionMaxAgeDays > 0 || mRetentionMaxMessages > 0 || mRetentionMaxBytes > 0;
+    }
+
     public LocalStore getLocalStore() throws MessagingException {
         return Store.getLocalInstance(this, K9.app);
     }
@@ -758,6 +758,7 @@ public class MessageList
 
         if (mAccount != null && mFolderName != null) {
             mController.getFolderUnreadMessageCount(mAccount, mFolderName, mAdapter.mListener);
+            mController.folderOpened(mAccount, mFolderName);
         }
         mHandler.refreshTitle();
 
@@ -0,0 +1,66 @@
+package com.fsck.k9.controller;
+
+/**
+ * Asks a running command to stop at the next point where it can safely do so,
+ * e.g. between two folders or between two fetch windows of a synchronization.
+ *
+ * <p>
+ * A cancelled command is dropped. A preempted command is put back in its lane
+ * and started again once the foreground commands that preempted it are done.
+ * </p>
+ *
+ * @see MessagingController.Command#token
+ */
+class CancellationToken {
+    private volatile boolean mCancelled = false;
+    private volatile boolean mPreempted = false;
+
+    /**
+     * Stop the command for good.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Stop the command so that a foreground command can run, the command is
+     * executed again afterwards.
+     */
+    void preempt() {
+        mPreempted = true;
+    }
+
+    /**
+     * Called when a preempted command is queued again.
+     */
+    void clearPreemption() {
+        mPreempted = false;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    boolean isPreempted() {
+        return mPreempted;
+    }
+
+    /**
+     * @return Whether the command should stop at the next opportunity.
+     */
+    boolean isStopRequested() {
+        return mCancelled || mPreempted;
+    }
+
+    /**
+     * @throws CommandCancelledException
+     *             If the command should stop.
+     */
+    void throwIfStopRequested() {
+        if (mCancelled) {
+            throw new CommandCancelledException(false);
+        } else if (mPreempted) {
+            throw new CommandCancelledException(true);
+        }
+    }
+}
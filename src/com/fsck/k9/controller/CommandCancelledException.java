@@ -0,0 +1,29 @@
+package com.fsck.k9.controller;
+
+/**
+ * Thrown by a command that stopped because its {@link CancellationToken} asked
+ * it to.
+ */
+class CommandCancelledException extends RuntimeException {
+
+    private static final long serialVersionUID = 2304829615538732212L;
+
+    private final boolean mPreempted;
+
+    /**
+     * @param preempted
+     *            Whether the command is to be executed again later.
+     */
+    CommandCancelledException(boolean preempted) {
+        super(preempted ? "preempted by a foreground command" : "cancelled");
+        mPreempted = preempted;
+    }
+
+    /**
+     * @return Whether the command stopped to make room for a foreground command
+     *         and is to be executed again.
+     */
+    boolean isPreempted() {
+        return mPreempted;
+    }
+}
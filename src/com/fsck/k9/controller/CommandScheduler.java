@@ -0,0 +1,632 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.controller.MessagingController.Command;
+
+/**
+ * Executes {@link Command}s on a bounded pool of worker threads.
+ *
+ * <p>
+ * Every account gets its own lane. The commands of a lane are run one at a time
+ * and in order (foreground commands before background ones, then in submission
+ * order), so the per-account ordering the controller relies on is preserved.
+ * Lanes with pending work are serviced round-robin by the workers, so a slow
+ * account only ever occupies one worker and can't stall the other accounts.
+ * </p>
+ *
+ * <p>
+ * Commands with a coalescing key (see {@link Command#key}) are merged into an
+ * equivalent command that is still waiting in the same lane instead of being
+ * queued again.
+ * </p>
+ *
+ * <p>
+ * A lane whose command couldn't be run because the account was unavailable is
+ * suspended (see {@link #retryLater(Command)}) and resumed with exponential
+ * backoff, or earlier by {@link #resume(String)}.
+ * </p>
+ *
+ * <p>
+ * A preempting command (see {@link Command#preempting}) asks the background
+ * command running in its lane to stop at its next safe point. The stopped
+ * command is put back in the lane by {@link #requeue(Command)} and runs again
+ * after the foreground commands.
+ * </p>
+ */
+public class CommandScheduler {
+
+    /**
+     * Lane used for commands that aren't bound to a single account.
+     */
+    static final String GLOBAL_LANE = "*";
+
+    /**
+     * Delay (ms) before the first retry of a suspended lane.
+     */
+    private static final long RETRY_BASE_DELAY = 30 * 1000;
+
+    /**
+     * Upper bound (ms) of the delay between retries of a suspended lane.
+     */
+    private static final long RETRY_MAX_DELAY = 30 * 60 * 1000;
+
+    /**
+     * How many times a single command may be preempted. Keeps a steady stream
+     * of foreground commands from starving a synchronization.
+     */
+    private static final int MAX_PREEMPTIONS = 3;
+
+    /**
+     * Executes a command taken from a lane.
+     */
+    interface CommandRunner {
+        void runCommand(Command command);
+    }
+
+    /**
+     * Snapshot of the state of a lane.
+     */
+    public static class LaneStats {
+        /**
+         * Account UUID of the lane or {@link CommandScheduler#GLOBAL_LANE}.
+         */
+        public String laneId;
+        /**
+         * Number of commands waiting to be executed.
+         */
+        public int queueDepth;
+        /**
+         * Whether a command of this lane is currently being executed.
+         */
+        public boolean running;
+        /**
+         * Number of commands taken from this lane so far.
+         */
+        public long executedCount;
+        /**
+         * Average time (ms) commands spent waiting in this lane.
+         */
+        public long averageWaitTime;
+        /**
+         * Longest time (ms) a command spent waiting in this lane.
+         */
+        public long maxWaitTime;
+        /**
+         * How long (ms) the oldest pending command has been waiting so far.
+         */
+        public long oldestPendingTime;
+        /**
+         * Number of commands that were merged into an already queued one.
+         */
+        public long mergedCount;
+        /**
+         * Whether the lane is waiting for its account to become available.
+         */
+        public boolean suspended;
+        /**
+         * Number of consecutive failed attempts while suspended.
+         */
+        public int retryCount;
+        /**
+         * Number of foreground commands taken from this lane so far.
+         */
+        public long foregroundCount;
+        /**
+         * Average time (ms) from queueing a foreground command (i.e. the user
+         * action) to the start of its execution.
+         */
+        public long averageForegroundWaitTime;
+        /**
+         * Longest time (ms) from queueing a foreground command to the start of
+         * its execution.
+         */
+        public long maxForegroundWaitTime;
+        /**
+         * Number of background commands stopped to make room for a foreground
+         * command.
+         */
+        public long preemptedCount;
+
+        @Override
+        public String toString() {
+            return "Lane " + laneId + ": depth = " + queueDepth + ", running = " + running
+                   + ", executed = " + executedCount + ", avgWait = " + averageWaitTime
+                   + "ms, maxWait = " + maxWaitTime + "ms, oldestPending = " + oldestPendingTime + "ms"
+                   + ", merged = " + mergedCount + ", suspended = " + suspended + ", retries = " + retryCount
+                   + ", foreground = " + foregroundCount + ", avgForegroundWait = " + averageForegroundWaitTime
+                   + "ms, maxForegroundWait = " + maxForegroundWaitTime + "ms, preempted = " + preemptedCount;
+        }
+    }
+
+    private static class Lane {
+        final String id;
+        final PriorityQueue<Command> queue = new PriorityQueue<Command>();
+        /**
+         * Queued commands that have a coalescing key, by key.
+         */
+        final Map<String, Command> keyed = new HashMap<String, Command>();
+        /**
+         * Command of this lane being executed, <code>null</code> if idle.
+         */
+        Command running = null;
+        /**
+         * Whether this lane is currently in {@link CommandScheduler#mReadyLanes}.
+         */
+        boolean ready = false;
+
+        long executedCount = 0;
+        long totalWaitTime = 0;
+        long maxWaitTime = 0;
+        long mergedCount = 0;
+        long foregroundCount = 0;
+        long totalForegroundWaitTime = 0;
+        long maxForegroundWaitTime = 0;
+        long preemptedCount = 0;
+
+        /**
+         * Whether the lane waits for its account to become available.
+         */
+        boolean suspended = false;
+        /**
+         * Number of consecutive attempts that found the account unavailable.
+         */
+        int retryCount = 0;
+        /**
+         * Incremented on every suspension so stale retries can be recognized.
+         */
+        int suspension = 0;
+
+        Lane(String id) {
+            this.id = id;
+        }
+    }
+
+    private final Map<String, Lane> mLanes = new HashMap<String, Lane>();
+
+    /**
+     * Idle lanes that have pending commands, in the order they'll be serviced.
+     */
+    private final LinkedList<Lane> mReadyLanes = new LinkedList<Lane>();
+
+    private final CommandRunner mRunner;
+
+    private int mRunningCount = 0;
+
+    private final DelayQueue<Retry> mRetries = new DelayQueue<Retry>();
+
+    /**
+     * @param workerCount
+     *            Maximum number of commands executed concurrently.
+     * @param runner
+     *            Never <code>null</code>.
+     */
+    CommandScheduler(int workerCount, CommandRunner runner) {
+        mRunner = runner;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(new Worker());
+            worker.setName("MessagingController-" + i);
+            worker.start();
+        }
+        Thread retrier = new Thread(new Retrier());
+        retrier.setName("MessagingController-retry");
+        retrier.start();
+    }
+
+    /**
+     * Add a command to the end of its lane.
+     *
+     * <p>
+     * If the command has a coalescing key and the lane already holds a waiting
+     * command with the same key, the new command isn't queued. Instead its
+     * listeners are added to the waiting command, which is promoted to a
+     * foreground command if the new one is one.
+     * </p>
+     *
+     * @param laneId
+     *            Account UUID, or <code>null</code> for the global lane.
+     * @param command
+     *            Never <code>null</code>.
+     * @return <code>false</code> if the command was merged into a queued one.
+     */
+    synchronized boolean put(String laneId, Command command) {
+        Lane lane = getLane(laneId == null ? GLOBAL_LANE : laneId);
+
+        if (command.preempting) {
+            preemptRunning(lane);
+        }
+
+        if (command.key != null) {
+            Command queued = lane.keyed.get(command.key);
+            if (queued != null) {
+                merge(lane, queued, command);
+                return false;
+            }
+            lane.keyed.put(command.key, command);
+        }
+
+        command.laneId = lane.id;
+        command.enqueueTime = System.currentTimeMillis();
+        lane.queue.add(command);
+        markReady(lane);
+        return true;
+    }
+
+    /**
+     * Ask the background command running in the lane, if any, to make room.
+     */
+    private void preemptRunning(Lane lane) {
+        Command running = lane.running;
+        if (running == null || running.isForeground || running.preemptions >= MAX_PREEMPTIONS
+                || running.token.isStopRequested()) {
+            return;
+        }
+        running.token.preempt();
+
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "Preempting command '" + running.description + "', seq = " + running.sequence
+                  + ", lane = " + lane.id);
+    }
+
+    private void merge(Lane lane, Command queued, Command command) {
+        if (command.listener != null && command.listener != queued.listener) {
+            addMergedListener(queued, command.listener);
+        }
+        if (command.mergedListeners != null) {
+            for (MessagingListener listener : command.mergedListeners) {
+                if (listener != queued.listener) {
+                    addMergedListener(queued, listener);
+                }
+            }
+        }
+
+        queued.preempting |= command.preempting;
+        if (command.isForeground && !queued.isForeground) {
+            // re-insert to get the position of a foreground command
+            lane.queue.remove(queued);
+            queued.isForeground = true;
+            lane.queue.add(queued);
+        }
+        lane.mergedCount++;
+
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "Merged command '" + command.description + "' into queued command, seq = "
+                  + queued.sequence + ", lane = " + lane.id);
+    }
+
+    private static void addMergedListener(Command command, MessagingListener listener) {
+        if (command.mergedListeners == null) {
+            command.mergedListeners = new LinkedHashSet<MessagingListener>();
+        }
+        command.mergedListeners.add(listener);
+    }
+
+    /**
+     * Put a command that failed because its account was unavailable back at the
+     * front of its lane and suspend the lane. The lane is resumed after a delay
+     * that doubles with every consecutive failure, or by {@link #resume(String)}.
+     *
+     * @param command
+     *            Command currently being executed. Never <code>null</code>.
+     */
+    synchronized void retryLater(Command command) {
+        Lane lane = mLanes.get(command.laneId);
+        putBack(lane, command);
+
+        long delay = Math.min(RETRY_BASE_DELAY << Math.min(lane.retryCount, 16), RETRY_MAX_DELAY);
+        lane.retryCount++;
+        lane.suspended = true;
+        lane.suspension++;
+        mRetries.put(new Retry(lane, lane.suspension, System.currentTimeMillis() + delay));
+
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, "Lane " + lane.id + " suspended, retrying in " + delay + "ms (attempt "
+                  + lane.retryCount + ")");
+    }
+
+    /**
+     * Put a command that stopped because it was preempted back in its lane. It
+     * runs again once the foreground commands of the lane are done.
+     *
+     * @param command
+     *            Command currently being executed. Never <code>null</code>.
+     */
+    synchronized void requeue(Command command) {
+        Lane lane = mLanes.get(command.laneId);
+        command.token.clearPreemption();
+        command.preemptions++;
+        command.enqueueTime = System.currentTimeMillis();
+        lane.preemptedCount++;
+        putBack(lane, command);
+
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, "Command '" + command.description + "' was preempted, queued again in lane "
+                  + lane.id);
+    }
+
+    private void putBack(Lane lane, Command command) {
+        Command queued = (command.key == null) ? null : lane.keyed.get(command.key);
+        if (queued != null) {
+            // an equivalent command was queued in the meantime
+            merge(lane, queued, command);
+        } else {
+            if (command.key != null) {
+                lane.keyed.put(command.key, command);
+            }
+            // keeps its sequence number, so it is still ahead of newer commands
+            lane.queue.add(command);
+        }
+    }
+
+    /**
+     * Cancel the background command running in a lane, if any. It stops at its
+     * next safe point and isn't executed again.
+     *
+     * @param laneId
+     *            Account UUID, or <code>null</code> for the global lane.
+     * @return Whether a command was asked to stop.
+     */
+    public synchronized boolean cancelRunning(String laneId) {
+        Lane lane = mLanes.get(laneId == null ? GLOBAL_LANE : laneId);
+        if (lane == null || lane.running == null || lane.running.isForeground) {
+            return false;
+        }
+        lane.running.token.cancel();
+        return true;
+    }
+
+    /**
+     * Resume a suspended lane right away, e.g. because the storage of the
+     * account was mounted.
+     *
+     * @param laneId
+     *            Account UUID, or <code>null</code> for the global lane.
+     */
+    public synchronized void resume(String laneId) {
+        Lane lane = mLanes.get(laneId == null ? GLOBAL_LANE : laneId);
+        if (lane != null && lane.suspended) {
+            lane.retryCount = 0;
+            resume(lane);
+        }
+    }
+
+    private void resume(Lane lane) {
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, "Resuming lane " + lane.id);
+
+        lane.suspended = false;
+        markReady(lane);
+    }
+
+    private synchronized void resume(Retry retry) {
+        // ignore retries of an earlier suspension
+        if (retry.lane.suspended && retry.lane.suspension == retry.suspension) {
+            resume(retry.lane);
+        }
+    }
+
+    /**
+     * @return Total number of commands that were merged into already queued
+     *         ones.
+     */
+    public synchronized long getMergedCount() {
+        long count = 0;
+        for (Lane lane : mLanes.values()) {
+            count += lane.mergedCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return Whether any lane has commands waiting to be executed.
+     */
+    public synchronized boolean hasPendingCommands() {
+        for (Lane lane : mLanes.values()) {
+            if (!lane.queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether a command is currently being executed.
+     */
+    public synchronized boolean isBusy() {
+        return mRunningCount > 0;
+    }
+
+    /**
+     * @param laneId
+     *            Account UUID, or <code>null</code> for the global lane.
+     * @return Number of commands waiting in the lane.
+     */
+    public synchronized int getQueueDepth(String laneId) {
+        Lane lane = mLanes.get(laneId == null ? GLOBAL_LANE : laneId);
+        return (lane == null) ? 0 : lane.queue.size();
+    }
+
+    /**
+     * @return A snapshot of every lane known to the scheduler. Never <code>null</code>.
+     */
+    public synchronized List<LaneStats> getLaneStats() {
+        long now = System.currentTimeMillis();
+        List<LaneStats> result = new ArrayList<LaneStats>(mLanes.size());
+        for (Lane lane : mLanes.values()) {
+            LaneStats stats = new LaneStats();
+            stats.laneId = lane.id;
+            stats.queueDepth = lane.queue.size();
+            stats.running = (lane.running != null);
+            stats.executedCount = lane.executedCount;
+            stats.averageWaitTime = (lane.executedCount == 0) ? 0 : lane.totalWaitTime / lane.executedCount;
+            stats.maxWaitTime = lane.maxWaitTime;
+            stats.mergedCount = lane.mergedCount;
+            stats.suspended = lane.suspended;
+            stats.retryCount = lane.retryCount;
+            stats.foregroundCount = lane.foregroundCount;
+            stats.averageForegroundWaitTime = (lane.foregroundCount == 0) ? 0 :
+                                              lane.totalForegroundWaitTime / lane.foregroundCount;
+            stats.maxForegroundWaitTime = lane.maxForegroundWaitTime;
+            stats.preemptedCount = lane.preemptedCount;
+            long oldest = now;
+            for (Command command : lane.queue) {
+                oldest = Math.min(oldest, command.enqueueTime);
+            }
+            stats.oldestPendingTime = now - oldest;
+            result.add(stats);
+        }
+        return result;
+    }
+
+    private Lane getLane(String laneId) {
+        Lane lane = mLanes.get(laneId);
+        if (lane == null) {
+            lane = new Lane(laneId);
+            mLanes.put(laneId, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Queue the lane for execution if it is idle, not suspended and has pending
+     * commands.
+     */
+    private void markReady(Lane lane) {
+        if (lane.running == null && !lane.ready && !lane.suspended && !lane.queue.isEmpty()) {
+            lane.ready = true;
+            mReadyLanes.addLast(lane);
+            notify();
+        }
+    }
+
+    /**
+     * Pick the next command to run. Lanes are serviced round-robin, except that
+     * a lane whose next command is a foreground one is preferred.
+     */
+    private synchronized Command takeNext() throws InterruptedException {
+        while (mReadyLanes.isEmpty()) {
+            wait();
+        }
+
+        Lane lane = null;
+        for (Iterator<Lane> it = mReadyLanes.iterator(); it.hasNext();) {
+            Lane candidate = it.next();
+            if (candidate.queue.peek().isForeground) {
+                lane = candidate;
+                it.remove();
+                break;
+            }
+        }
+        if (lane == null) {
+            lane = mReadyLanes.removeFirst();
+        }
+        lane.ready = false;
+
+        Command command = lane.queue.poll();
+        if (command.key != null) {
+            // from now on equivalent commands have to be queued again
+            lane.keyed.remove(command.key);
+        }
+        lane.running = command;
+        mRunningCount++;
+
+        long waitTime = System.currentTimeMillis() - command.enqueueTime;
+        lane.executedCount++;
+        lane.totalWaitTime += waitTime;
+        lane.maxWaitTime = Math.max(lane.maxWaitTime, waitTime);
+        if (command.isForeground) {
+            lane.foregroundCount++;
+            lane.totalForegroundWaitTime += waitTime;
+            lane.maxForegroundWaitTime = Math.max(lane.maxForegroundWaitTime, waitTime);
+        }
+        command.waitTime = waitTime;
+        return command;
+    }
+
+    private synchronized void complete(Command command) {
+        Lane lane = mLanes.get(command.laneId);
+        lane.running = null;
+        mRunningCount--;
+        if (!lane.suspended) {
+            lane.retryCount = 0;
+        }
+        // goes to the back of the ready list so the other lanes get their turn
+        markReady(lane);
+    }
+
+    private static class Retry implements Delayed {
+        final Lane lane;
+        final int suspension;
+        final long due;
+
+        Retry(Lane lane, int suspension, long due) {
+            this.lane = lane;
+            this.suspension = suspension;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+        }
+    }
+
+    /**
+     * Resumes suspended lanes once their retry delay has expired.
+     */
+    private class Retrier implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    resume(mRetries.take());
+                } catch (InterruptedException e) {
+                    Log.e(K9.LOG_TAG, "Interrupted while waiting for a lane to retry", e);
+                }
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                Command command;
+                try {
+                    command = takeNext();
+                } catch (InterruptedException e) {
+                    Log.e(K9.LOG_TAG, "Interrupted while waiting for a command", e);
+                    continue;
+                }
+                try {
+                    mRunner.runCommand(command);
+                } catch (Exception e) {
+                    Log.e(K9.LOG_TAG, "Error running command '" + command.description + "'", e);
+                } finally {
+                    complete(command);
+                }
+            }
+        }
+    }
+}
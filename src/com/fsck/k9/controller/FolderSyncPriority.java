@@ -0,0 +1,63 @@
+package com.fsck.k9.controller;
+
+import com.fsck.k9.mail.Folder;
+
+/**
+ * Order in which the folders of an account are synchronized when checking
+ * mail, so that new messages show up first where the user looks for them.
+ *
+ * <p>
+ * The inbox comes first, then the folders of the top group, then all others.
+ * Within each of these tiers, folders the user opened recently and folders
+ * receiving many messages come first. How much a past open counts halves with
+ * every {@link #OPEN_HALF_LIFE}, the arrival rate counts fully from
+ * {@link #BUSY_RATE} messages per hour on.
+ * </p>
+ */
+class FolderSyncPriority implements Comparable<FolderSyncPriority> {
+    static final int TIER_INBOX = 0;
+    static final int TIER_TOP_GROUP = 1;
+    static final int TIER_OTHER = 2;
+
+    static final long OPEN_HALF_LIFE = 24 * 60 * 60 * 1000;
+    static final double OPEN_WEIGHT = 2.0;
+
+    static final double BUSY_RATE = 10.0;
+    static final double RATE_WEIGHT = 1.0;
+
+    final Folder folder;
+    final int tier;
+    final double score;
+
+    /**
+     * @param lastOpened
+     *            Time the user last opened the folder, 0 if never.
+     * @param arrivalRate
+     *            New messages per hour, negative if unknown.
+     */
+    FolderSyncPriority(Folder folder, boolean inbox, boolean inTopGroup, long lastOpened, double arrivalRate,
+                       long now) {
+        this.folder = folder;
+        this.tier = inbox ? TIER_INBOX : (inTopGroup ? TIER_TOP_GROUP : TIER_OTHER);
+        this.score = getScore(lastOpened, arrivalRate, now);
+    }
+
+    static double getScore(long lastOpened, double arrivalRate, long now) {
+        double score = 0;
+        if (lastOpened > 0) {
+            double halfLives = Math.max(0, now - lastOpened) / (double) OPEN_HALF_LIFE;
+            score += OPEN_WEIGHT * Math.pow(0.5, halfLives);
+        }
+        if (arrivalRate > 0) {
+            score += RATE_WEIGHT * Math.min(arrivalRate, BUSY_RATE) / BUSY_RATE;
+        }
+        return score;
+    }
+
+    public int compareTo(FolderSyncPriority other) {
+        if (tier != other.tier) {
+            return (tier < other.tier) ? -1 : 1;
+        }
+        return Double.compare(other.score, score);
+    }
+}
@@ -0,0 +1,143 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.LocalStore;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+
+/**
+ * Stores the envelopes of many new messages at once, typically when a big
+ * folder is synchronized for the first time.
+ *
+ * <p>
+ * Envelopes are fetched in windows of {@link #WINDOW_SIZE} messages, newest
+ * first, and each window is written in a single transaction by
+ * {@link LocalFolder#importEnvelopes(List)}. The newest
+ * {@link #FIRST_PAGE} messages are stored before anything else, with all
+ * indexes in place, so they can be shown right away. The indexes that aren't
+ * needed to store messages are then dropped until the import is done, and
+ * rebuilt once instead of being updated with every row.
+ * </p>
+ *
+ * <p>
+ * Bodies are left to the rest of the synchronization.
+ * </p>
+ */
+class InitialImport {
+    /**
+     * Minimum number of new messages for a synchronization to import them
+     * this way.
+     */
+    static final int THRESHOLD = 500;
+
+    static final int WINDOW_SIZE = 500;
+
+    static final int FIRST_PAGE = K9.DEFAULT_VISIBLE_LIMIT;
+
+    private static final Message[] EMPTY_MESSAGE_ARRAY = new Message[0];
+
+    interface Callback {
+        /**
+         * @return Whether the fetched envelope is to be stored.
+         */
+        boolean shouldStore(Message message);
+
+        /**
+         * Called after every window.
+         *
+         * @param localMessages
+         *            Local versions of the messages stored from the window.
+         * @param done
+         *            Number of messages handled so far.
+         */
+        void windowStored(List<Message> localMessages, int done, int total);
+    }
+
+    private final Folder mRemoteFolder;
+    private final LocalStore mLocalStore;
+    private final LocalFolder mLocalFolder;
+    private final Callback mCallback;
+
+    InitialImport(Folder remoteFolder, LocalStore localStore, LocalFolder localFolder, Callback callback) {
+        mRemoteFolder = remoteFolder;
+        mLocalStore = localStore;
+        mLocalFolder = localFolder;
+        mCallback = callback;
+    }
+
+    /**
+     * @param messages
+     *            Remote messages not stored yet, oldest first.
+     * @return Number of stored messages.
+     */
+    int run(List<Message> messages) throws MessagingException {
+        long start = System.currentTimeMillis();
+        int windowStart = Math.max(0, messages.size() - FIRST_PAGE);
+        int stored = importWindow(messages, windowStart, messages.size());
+
+        mLocalStore.beginBulkImport();
+        try {
+            while (windowStart > 0) {
+                int windowEnd = windowStart;
+                windowStart = Math.max(0, windowEnd - WINDOW_SIZE);
+                stored += importWindow(messages, windowStart, windowEnd);
+            }
+        } finally {
+            mLocalStore.endBulkImport();
+        }
+
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "Imported " + stored + " of " + messages.size() + " envelopes of folder "
+                  + mLocalFolder.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+        return stored;
+    }
+
+    private int importWindow(List<Message> messages, int start, int end) throws MessagingException {
+        FetchProfile fp = new FetchProfile();
+        if (mRemoteFolder.supportsFetchingFlags()) {
+            fp.add(FetchProfile.Item.FLAGS);
+        }
+        fp.add(FetchProfile.Item.ENVELOPE);
+
+        final List<Message> envelopes = new ArrayList<Message>(end - start);
+        mRemoteFolder.fetch(messages.subList(start, end).toArray(EMPTY_MESSAGE_ARRAY), fp,
+        new MessageRetrievalListener() {
+            @Override
+            public void messageFinished(Message message, int number, int ofTotal) {
+                /*
+                 * Same as a regular synchronization: without subject and
+                 * sender (POP) there is nothing worth showing yet.
+                 */
+                if (!message.isSet(Flag.DELETED) && message.getSubject() != null && message.getFrom() != null
+                        && mCallback.shouldStore(message)) {
+                    envelopes.add(message);
+                }
+            }
+
+            @Override
+            public void messageStarted(String uid, int number, int ofTotal) {}
+
+            @Override
+            public void messagesFinished(int total) {}
+        });
+
+        List<Message> localMessages = envelopes.isEmpty() ? envelopes : mLocalFolder.importEnvelopes(envelopes);
+        for (Message message : envelopes) {
+            String newPushState = mRemoteFolder.getNewPushState(mLocalFolder.getPushState(), message);
+            if (newPushState != null) {
+                mLocalFolder.setPushState(newPushState);
+            }
+        }
+        mCallback.windowStored(localMessages, messages.size() - start, messages.size());
+        return localMessages.size();
+    }
+}
@@ -0,0 +1,74 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+
+import com.fsck.k9.mail.Message;
+
+/**
+ * Groups messages that are found one at a time (e.g. while listing or searching
+ * local messages) into chunks, so that listeners get one event per chunk
+ * instead of one per message.
+ *
+ * <p>
+ * A chunk is delivered once it is full or once it is older than the maximum
+ * delay, so that the first results still show up quickly. Every delivered list
+ * is a new one that isn't touched anymore afterwards, listeners may keep it.
+ * </p>
+ *
+ * <p>
+ * Not thread-safe, meant to be used from a single retrieval callback. Don't
+ * forget to call {@link #flush()} at the end.
+ * </p>
+ */
+abstract class MessageBatcher {
+    static final int DEFAULT_CHUNK_SIZE = 25;
+    static final long DEFAULT_MAX_DELAY = 250;
+
+    private final int mChunkSize;
+    private final long mMaxDelay;
+    private List<Message> mPending;
+    private long mFirstPending;
+
+    MessageBatcher() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_DELAY);
+    }
+
+    MessageBatcher(int chunkSize, long maxDelay) {
+        mChunkSize = chunkSize;
+        mMaxDelay = maxDelay;
+    }
+
+    /**
+     * Deliver a chunk of messages to the listeners.
+     *
+     * @param messages
+     *            Never <code>null</code> nor empty.
+     */
+    protected abstract void deliver(List<Message> messages);
+
+    void add(Message message) {
+        long now = SystemClock.uptimeMillis();
+        if (mPending == null) {
+            mPending = new ArrayList<Message>(mChunkSize);
+            mFirstPending = now;
+        }
+        mPending.add(message);
+        if (mPending.size() >= mChunkSize || now - mFirstPending >= mMaxDelay) {
+            flush();
+        }
+    }
+
+    /**
+     * Deliver the pending messages, if any.
+     */
+    void flush() {
+        if (mPending != null) {
+            List<Message> messages = mPending;
+            mPending = null;
+            deliver(messages);
+        }
+    }
+}
@@ -2,15 +2,14 @@
 package com.fsck.k9.controller;
 
 import java.io.CharArrayWriter;
+import java.io.File;
 import java.io.PrintWriter;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -22,6 +21,8 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.media.AudioManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.PowerManager;
 import android.os.Process;
@@ -47,6 +48,8 @@ import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Folder.FolderType;
 import com.fsck.k9.mail.Folder.OpenMode;
+import com.fsck.k9.mail.MailboxChanges;
+import com.fsck.k9.mail.MailboxState;
 import com.fsck.k9.mail.Message.RecipientType;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
@@ -55,21 +58,32 @@ import com.fsck.k9.mail.PushReceiver;
 import com.fsck.k9.mail.Pusher;
 import com.fsck.k9.mail.Store;
 import com.fsck.k9.mail.Transport;
+import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.provider.AttachmentProvider;
 import com.fsck.k9.mail.store.UnavailableAccountException;
 import com.fsck.k9.mail.store.LocalStore;
 import com.fsck.k9.mail.store.UnavailableStorageException;
+import com.fsck.k9.mail.store.StorageManager;
+import com.fsck.k9.mail.store.SyncCheckpoint;
+import com.fsck.k9.mail.store.SyncWindow;
+import com.fsck.k9.mail.store.UidIndex;
+import com.fsck.k9.mail.store.UidSet;
+import com.fsck.k9.mail.store.LocalStore.LocalAttachmentBody;
+import com.fsck.k9.mail.store.LocalStore.LocalAttachmentBodyPart;
 import com.fsck.k9.mail.store.LocalStore.LocalFolder;
 import com.fsck.k9.mail.store.LocalStore.LocalMessage;
 import com.fsck.k9.mail.store.LocalStore.PendingCommand;
+import com.fsck.k9.mail.store.LocalStore.PrefetchCandidate;
 
 
 /**
- * Starts a long running (application) Thread that will run through commands
+ * Starts long running (application) Threads that will run through commands
  * that require remote mailbox access. This class is used to serialize and
- * prioritize these commands. Each method that will submit a command requires a
+ * prioritize these commands per account (see {@link CommandScheduler}). Each
+ * method that will submit a command requires a
  * MessagingListener instance to be provided. It is expected that that listener
  * has also been added as a registered listener using addListener(). When a
  * command is to be executed, if the listener that was provided with the command
@@ -78,7 +92,7 @@ import com.fsck.k9.mail.store.LocalStore.PendingCommand;
  * it removes itself. Thus, any commands that that activity submitted are
  * removed from the queue once the activity is no longer active.
  */
-public class MessagingController implements Runnable {
+public class MessagingController {
 
     /**
      * Immutable empty {@link String} array
@@ -115,25 +129,85 @@ public class MessagingController implements Runnable {
      */
 
     private static final String PENDING_COMMAND_MOVE_OR_COPY = "com.fsck.k9.MessagingController.moveOrCopy";
-    private static final String PENDING_COMMAND_MOVE_OR_COPY_BULK = "com.fsck.k9.MessagingController.moveOrCopyBulk";
+    static final String PENDING_COMMAND_MOVE_OR_COPY_BULK = "com.fsck.k9.MessagingController.moveOrCopyBulk";
+    static final String PENDING_COMMAND_MOVE_OR_COPY_SET = "com.fsck.k9.MessagingController.moveOrCopySet";
     private static final String PENDING_COMMAND_EMPTY_TRASH = "com.fsck.k9.MessagingController.emptyTrash";
-    private static final String PENDING_COMMAND_SET_FLAG_BULK = "com.fsck.k9.MessagingController.setFlagBulk";
+    static final String PENDING_COMMAND_SET_FLAG_BULK = "com.fsck.k9.MessagingController.setFlagBulk";
+    static final String PENDING_COMMAND_SET_FLAGS = "com.fsck.k9.MessagingController.setFlags";
     private static final String PENDING_COMMAND_SET_FLAG = "com.fsck.k9.MessagingController.setFlag";
-    private static final String PENDING_COMMAND_APPEND = "com.fsck.k9.MessagingController.append";
-    private static final String PENDING_COMMAND_MARK_ALL_AS_READ = "com.fsck.k9.MessagingController.markAllAsRead";
-    private static final String PENDING_COMMAND_EXPUNGE = "com.fsck.k9.MessagingController.expunge";
+    static final String PENDING_COMMAND_APPEND = "com.fsck.k9.MessagingController.append";
+    static final String PENDING_COMMAND_MARK_ALL_AS_READ = "com.fsck.k9.MessagingController.markAllAsRead";
+    static final String PENDING_COMMAND_EXPUNGE = "com.fsck.k9.MessagingController.expunge";
 
     /**
      * Maximum number of unsynced messages to store at once
      */
     private static final int UNSYNC_CHUNK_SIZE = 5;
 
+    /**
+     * Maximum number of downloaded messages stored in one transaction
+     */
+    private static final int STORE_BATCH_SIZE = 10;
+
+    /**
+     * Maximum number of downloaded messages waiting to be stored. Downloading
+     * pauses when the database falls that far behind.
+     */
+    private static final int STORE_QUEUE_CAPACITY = 2 * STORE_BATCH_SIZE;
+
+    /**
+     * Number of small messages downloaded per fetch. The synchronization can be
+     * preempted between two of them.
+     */
+    private static final int FETCH_WINDOW_SIZE = 50;
+
+    /**
+     * Foreground commands that had to wait longer than that (ms) to start are
+     * logged.
+     */
+    private static final long SLOW_FOREGROUND_WAIT = 1000;
+
+    /**
+     * Number of threads executing queued commands. Commands of a single account
+     * are still executed one at a time.
+     */
+    private static final int COMMAND_WORKER_COUNT = 3;
+
+    /**
+     * Number of partially downloaded messages considered for prefetching.
+     */
+    private static final int PREFETCH_CANDIDATES = 50;
+
+    /**
+     * Number of senders considered frequent correspondents when ranking
+     * prefetch candidates.
+     */
+    private static final int PREFETCH_FREQUENT_SENDERS = 20;
+
     private static MessagingController inst = null;
-    private BlockingQueue<Command> mCommands = new PriorityBlockingQueue<Command>();
 
-    private Thread mThread;
+    private final CommandScheduler mScheduler;
+
+    /**
+     * Command being executed by the current thread, if any.
+     */
+    private final ThreadLocal<Command> mCurrentCommand = new ThreadLocal<Command>();
+
     private Set<MessagingListener> mListeners = new CopyOnWriteArraySet<MessagingListener>();
 
+    /**
+     * Cached results of {@link #getListeners(MessagingListener)}, by additional
+     * listener. Cleared whenever {@link #mListeners} changes. Also used as lock
+     * for modifications of {@link #mListeners}.
+     */
+    private final Map<MessagingListener, Set<MessagingListener>> mListenerSnapshots =
+        new HashMap<MessagingListener, Set<MessagingListener>>();
+
+    /**
+     * Maximum number of entries of {@link #mListenerSnapshots}.
+     */
+    private static final int MAX_LISTENER_SNAPSHOTS = 16;
+
     private HashMap<SORT_TYPE, Boolean> sortAscending = new HashMap<SORT_TYPE, Boolean>();
 
     private final ConcurrentHashMap<String, AtomicInteger> sendCount = new ConcurrentHashMap<String, AtomicInteger>();
@@ -142,6 +216,21 @@ public class MessagingController implements Runnable {
 
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
 
+    /**
+     * Per-account locks serializing {@link #processPendingCommandsSynchronous(Account)}.
+     */
+    private final ConcurrentHashMap<String, Object> pendingCommandsLocks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Result of {@link #getNextPollTime(Account)} by account UUID.
+     */
+    private final ConcurrentHashMap<String, NextPollTime> nextPollTimes = new ConcurrentHashMap<String, NextPollTime>();
+
+    /**
+     * Prefetch counters, by account UUID.
+     */
+    private final ConcurrentHashMap<String, PrefetchStats> prefetchStats = new ConcurrentHashMap<String, PrefetchStats>();
+
     public enum SORT_TYPE {
         SORT_DATE(R.string.sort_earliest_first, R.string.sort_latest_first, false),
         SORT_SUBJECT(R.string.sort_subject_alpha, R.string.sort_subject_re_alpha, true),
@@ -178,22 +267,22 @@ public class MessagingController implements Runnable {
 
     private MemorizingListener memorizingListener = new MemorizingListener();
 
-    private boolean mBusy;
-
     /**
      *  {@link K9}
      */
     private Application mApplication;
 
-    // Key is accountUuid:folderName:messageUid   ,   value is unimportant
-    private ConcurrentHashMap<String, String> deletedUids = new ConcurrentHashMap<String, String>();
-
-    private String createMessageKey(Account account, String folder, Message message) {
-        return createMessageKey(account, folder, message.getUid());
-    }
+    /**
+     * UIDs of the messages that are being deleted or moved, and thus hidden
+     * from message lists, by account UUID and folder name (see
+     * {@link #getSuppressedUidsKey(Account, String)}). Each set is
+     * synchronized on itself, so that folders don't wait for each other. Sets
+     * aren't removed once empty, there is at most one per folder.
+     */
+    private final ConcurrentHashMap<String, UidSet> suppressedUids = new ConcurrentHashMap<String, UidSet>();
 
-    private String createMessageKey(Account account, String folder, String uid) {
-        return account.getUuid() + ":" + folder + ":" + uid;
+    private static String getSuppressedUidsKey(Account account, String folder) {
+        return account.getUuid() + ":" + folder;
     }
 
     private void suppressMessage(Account account, String folder, Message message) {
@@ -201,16 +290,27 @@ public class MessagingController implements Runnable {
         if (account == null || folder == null || message == null) {
             return;
         }
-        String messKey = createMessageKey(account, folder, message);
-        deletedUids.put(messKey, "true");
+        String key = getSuppressedUidsKey(account, folder);
+        UidSet uids = suppressedUids.get(key);
+        if (uids == null) {
+            suppressedUids.putIfAbsent(key, new UidSet());
+            uids = suppressedUids.get(key);
+        }
+        synchronized (uids) {
+            uids.add(message.getUid());
+        }
     }
 
     private void unsuppressMessage(Account account, String folder, String uid) {
         if (account == null || folder == null || uid == null) {
             return;
         }
-        String messKey = createMessageKey(account, folder, uid);
-        deletedUids.remove(messKey);
+        UidSet uids = suppressedUids.get(getSuppressedUidsKey(account, folder));
+        if (uids != null) {
+            synchronized (uids) {
+                uids.remove(uid);
+            }
+        }
     }
 
 
@@ -218,13 +318,13 @@ public class MessagingController implements Runnable {
         if (account == null || folder == null || message == null) {
             return false;
         }
-        String messKey = createMessageKey(account, folder, message);
-
-        if (deletedUids.containsKey(messKey)) {
-            return true;
+        UidSet uids = suppressedUids.get(getSuppressedUidsKey(account, folder));
+        if (uids == null) {
+            return false;
+        }
+        synchronized (uids) {
+            return uids.contains(message.getUid());
         }
-
-        return false;
     }
 
     /**
@@ -232,9 +332,30 @@ public class MessagingController implements Runnable {
      */
     private MessagingController(Application application) {
         mApplication = application;
-        mThread = new Thread(this);
-        mThread.setName("MessagingController");
-        mThread.start();
+        mScheduler = new CommandScheduler(COMMAND_WORKER_COUNT, new CommandScheduler.CommandRunner() {
+            @Override
+            public void runCommand(Command command) {
+                MessagingController.this.runCommand(command);
+            }
+        });
+        StorageManager.getInstance(application).addListener(new StorageManager.StorageListener() {
+            @Override
+            public void onMount(String providerId) {
+                // don't wait for the retry delay of the accounts stored there
+                for (Account account : Preferences.getPreferences(mApplication).getAccounts()) {
+                    if (providerId.equals(account.getLocalStorageProviderId())) {
+                        mScheduler.resume(account.getUuid());
+                    }
+                }
+                // commands spanning accounts may have suspended it too
+                mScheduler.resume(null);
+            }
+
+            @Override
+            public void onUnmount(String providerId) {
+                // commands fail with UnavailableAccountException and get retried
+            }
+        });
         if (memorizingListener != null) {
             addListener(memorizingListener);
         }
@@ -254,92 +375,176 @@ public class MessagingController implements Runnable {
     }
 
     public boolean isBusy() {
-        return mBusy;
+        return mScheduler.isBusy();
     }
 
-    @Override
-    public void run() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        while (true) {
-            String commandDescription = null;
-            try {
-                final Command command = mCommands.take();
+    /**
+     * @return Queue depth and wait times of the per-account command lanes.
+     */
+    public List<CommandScheduler.LaneStats> getCommandLaneStats() {
+        return mScheduler.getLaneStats();
+    }
 
-                if (command != null) {
-                    commandDescription = command.description;
+    /**
+     * @param account
+     *            <code>null</code> for commands not bound to an account.
+     * @return Number of commands waiting to be executed for the given account.
+     */
+    public int getCommandQueueDepth(Account account) {
+        return mScheduler.getQueueDepth(account == null ? null : account.getUuid());
+    }
 
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") + " command '" + command.description + "', seq = " + command.sequence);
+    /**
+     * @return Number of commands that weren't queued because an equivalent
+     *         command was already waiting to be executed.
+     */
+    public long getMergedCommandCount() {
+        return mScheduler.getMergedCount();
+    }
 
-                    mBusy = true;
-                    try {
-                        command.runnable.run();
-                    } catch (UnavailableAccountException e) {
-                        // retry later
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                try {
-                                    sleep(30 * 1000);
-                                    mCommands.put(command);
-                                } catch (InterruptedException e) {
-                                    Log.e(K9.LOG_TAG, "interrupted while putting a pending command for"
-                                          + " an unavailable account back into the queue."
-                                          + " THIS SHOULD NEVER HAPPEN.");
-                                }
-                            }
-                        } .start();
-                    }
+    /**
+     * @return Prefetch counters of the account since the application was
+     *         started. Never <code>null</code>.
+     */
+    public PrefetchStats getPrefetchStats(Account account) {
+        PrefetchStats stats = prefetchStats.get(account.getUuid());
+        if (stats == null) {
+            prefetchStats.putIfAbsent(account.getUuid(), new PrefetchStats());
+            stats = prefetchStats.get(account.getUuid());
+        }
+        return stats;
+    }
 
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, (command.isForeground ? "Foreground" : "Background") +
-                              " Command '" + command.description + "' completed");
+    private void runCommand(final Command command) {
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") + " command '" + command.description
+                  + "', seq = " + command.sequence + ", lane = " + command.laneId + ", waited " + command.waitTime + "ms");
 
-                    for (MessagingListener l : getListeners(command.listener)) {
-                        l.controllerCommandCompleted(mCommands.size() > 0);
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(K9.LOG_TAG, "Error running command '" + commandDescription + "'", e);
+        if (command.isForeground && command.waitTime > SLOW_FOREGROUND_WAIT) {
+            Log.w(K9.LOG_TAG, "Foreground command '" + command.description + "' started "
+                  + command.waitTime + "ms after it was requested, lane = " + command.laneId);
+        }
+
+        mCurrentCommand.set(command);
+        try {
+            command.runnable.run();
+        } catch (UnavailableAccountException e) {
+            // retry later
+            mScheduler.retryLater(command);
+        } catch (CommandCancelledException e) {
+            if (e.isPreempted()) {
+                // runs again after the foreground commands
+                mScheduler.requeue(command);
+            } else if (K9.DEBUG) {
+                Log.i(K9.LOG_TAG, "Command '" + command.description + "' was cancelled");
             }
-            mBusy = false;
+        } finally {
+            mCurrentCommand.set(null);
+        }
+
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, (command.isForeground ? "Foreground" : "Background") +
+                  " Command '" + command.description + "' completed");
+
+        for (MessagingListener l : getListeners(command.listener)) {
+            l.controllerCommandCompleted(mScheduler.hasPendingCommands());
         }
     }
 
-    private void put(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, true);
+    private void put(String description, Account account, MessagingListener listener, Runnable runnable) {
+        putCommand(description, null, account, listener, runnable, true);
     }
 
-    private void putBackground(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, false);
+    private void putBackground(String description, Account account, MessagingListener listener, Runnable runnable) {
+        putCommand(description, null, account, listener, runnable, false);
     }
 
-    private void putCommand(BlockingQueue<Command> queue, String description, MessagingListener listener, Runnable runnable, boolean isForeground) {
-        int retries = 10;
-        Exception e = null;
-        while (retries-- > 0) {
-            try {
-                Command command = new Command();
-                command.listener = listener;
-                command.runnable = runnable;
-                command.description = description;
-                command.isForeground = isForeground;
-                queue.put(command);
-                return;
-            } catch (InterruptedException ie) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ne) {
-                }
-                e = ie;
-            }
+    /**
+     * Queue a foreground command the user is waiting for. A background command
+     * running for the same account is asked to make room, and is executed
+     * again afterwards.
+     */
+    private void putPreempting(String description, Account account, MessagingListener listener, Runnable runnable) {
+        Command command = new Command();
+        command.listener = listener;
+        command.runnable = runnable;
+        command.description = description;
+        command.isForeground = true;
+        command.preempting = true;
+        mScheduler.put(account == null ? null : account.getUuid(), command);
+    }
+
+    /**
+     * Stop the background command (e.g. a synchronization) running for the
+     * given account at its next safe point.
+     *
+     * @return Whether a command was asked to stop.
+     */
+    public boolean cancelBackgroundCommand(Account account) {
+        return mScheduler.cancelRunning(account.getUuid());
+    }
+
+    /**
+     * @return Whether the command executed by the current thread should stop
+     *         at the next safe point.
+     */
+    private boolean isStopRequested() {
+        Command command = mCurrentCommand.get();
+        return command != null && command.token.isStopRequested();
+    }
+
+    /**
+     * Stop the command executed by the current thread if it was cancelled or
+     * preempted. Only call this where the command can be stopped and executed
+     * again from the start.
+     *
+     * @throws CommandCancelledException
+     */
+    private void checkStopRequested() {
+        Command command = mCurrentCommand.get();
+        if (command != null) {
+            command.token.throwIfStopRequested();
         }
-        throw new Error(e);
+    }
+
+    /**
+     * Queue a command that is merged with an equivalent command still waiting
+     * to be executed. The listener of the merged command is notified by the
+     * one that is executed.
+     *
+     * @param folderName
+     *            Folder the command operates on, <code>null</code> if none.
+     */
+    private void putCoalescing(String operation, Account account, String folderName,
+                               MessagingListener listener, Runnable runnable, boolean isForeground) {
+        String key = operation + ":" + (account == null ? null : account.getUuid()) + ":" + folderName;
+        putCommand(operation, key, account, listener, runnable, isForeground);
+    }
+
+    /**
+     * @param key
+     *            Coalescing key, <code>null</code> if the command must not be
+     *            merged with other commands.
+     * @param account
+     *            Account whose lane the command is queued in, <code>null</code>
+     *            for commands that aren't bound to a single account.
+     */
+    private void putCommand(String description, String key, Account account, MessagingListener listener, Runnable runnable, boolean isForeground) {
+        Command command = new Command();
+        command.listener = listener;
+        command.runnable = runnable;
+        command.description = description;
+        command.isForeground = isForeground;
+        command.key = key;
+        mScheduler.put(account == null ? null : account.getUuid(), command);
     }
 
 
     public void addListener(MessagingListener listener) {
-        mListeners.add(listener);
+        synchronized (mListenerSnapshots) {
+            mListeners.add(listener);
+            mListenerSnapshots.clear();
+        }
         refreshListener(listener);
     }
 
@@ -350,7 +555,10 @@ public class MessagingController implements Runnable {
     }
 
     public void removeListener(MessagingListener listener) {
-        mListeners.remove(listener);
+        synchronized (mListenerSnapshots) {
+            mListeners.remove(listener);
+            mListenerSnapshots.clear();
+        }
     }
 
     public Set<MessagingListener> getListeners() {
@@ -359,14 +567,66 @@ public class MessagingController implements Runnable {
 
 
     public Set<MessagingListener> getListeners(MessagingListener listener) {
-        if (listener == null) {
+        Set<MessagingListener> merged = getMergedListeners(listener);
+        if (listener == null && merged == null) {
             return mListeners;
         }
 
+        if (merged == null) {
+            // Called for every event, don't build the same set over and over
+            synchronized (mListenerSnapshots) {
+                Set<MessagingListener> snapshot = mListenerSnapshots.get(listener);
+                if (snapshot == null) {
+                    snapshot = new HashSet<MessagingListener>(mListeners);
+                    snapshot.add(listener);
+                    snapshot = Collections.unmodifiableSet(snapshot);
+                    if (mListenerSnapshots.size() >= MAX_LISTENER_SNAPSHOTS) {
+                        mListenerSnapshots.clear();
+                    }
+                    mListenerSnapshots.put(listener, snapshot);
+                }
+                return snapshot;
+            }
+        }
+
         Set<MessagingListener> listeners = new HashSet<MessagingListener>(mListeners);
-        listeners.add(listener);
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        if (merged != null) {
+            listeners.addAll(merged);
+        }
+        return listeners;
+
+    }
+
+    /**
+     * @return The given listener plus the listeners of commands that were merged
+     *         into the currently executing command. Never <code>null</code>.
+     */
+    private Set<MessagingListener> getCommandListeners(MessagingListener listener) {
+        Set<MessagingListener> listeners = new HashSet<MessagingListener>();
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        Set<MessagingListener> merged = getMergedListeners(listener);
+        if (merged != null) {
+            listeners.addAll(merged);
+        }
         return listeners;
+    }
 
+    /**
+     * @return Listeners of the commands merged into the command the current
+     *         thread executes, if that command was queued with the given
+     *         listener. <code>null</code> otherwise.
+     */
+    private Set<MessagingListener> getMergedListeners(MessagingListener listener) {
+        Command command = mCurrentCommand.get();
+        if (command == null || command.listener != listener) {
+            return null;
+        }
+        return command.mergedListeners;
     }
 
 
@@ -447,7 +707,7 @@ public class MessagingController implements Runnable {
     }
 
     private void doRefreshRemote(final Account account, MessagingListener listener) {
-        put("doRefreshRemote", listener, new Runnable() {
+        putCoalescing("doRefreshRemote", account, null, listener, new Runnable() {
             @Override
             public void run() {
                 List <? extends Folder > localFolders = null;
@@ -508,7 +768,7 @@ public class MessagingController implements Runnable {
                     }
                 }
             }
-        });
+        }, true);
     }
 
 
@@ -546,26 +806,23 @@ public class MessagingController implements Runnable {
         }
 
         Folder localFolder = null;
+        final MessageBatcher batcher = new MessageBatcher() {
+            @Override
+            protected void deliver(List<Message> messages) {
+                for (MessagingListener l : getListeners(listener)) {
+                    l.listLocalMessagesAddMessages(account, folder, messages);
+                }
+            }
+        };
         MessageRetrievalListener retrievalListener =
         new MessageRetrievalListener() {
-            List<Message> pendingMessages = new ArrayList<Message>();
-
-
-            int totalDone = 0;
-
-
             @Override
             public void messageStarted(String message, int number, int ofTotal) {}
             @Override
             public void messageFinished(Message message, int number, int ofTotal) {
 
                 if (!isMessageSuppressed(account, folder, message)) {
-                    pendingMessages.add(message);
-                    totalDone++;
-                    if (pendingMessages.size() > 10) {
-                        addPendingMessages();
-                    }
-
+                    batcher.add(message);
                 } else {
                     for (MessagingListener l : getListeners(listener)) {
                         l.listLocalMessagesRemoveMessage(account, folder, message);
@@ -574,13 +831,7 @@ public class MessagingController implements Runnable {
             }
             @Override
             public void messagesFinished(int number) {
-                addPendingMessages();
-            }
-            private void addPendingMessages() {
-                for (MessagingListener l : getListeners(listener)) {
-                    l.listLocalMessagesAddMessages(account, folder, pendingMessages);
-                }
-                pendingMessages.clear();
+                batcher.flush();
             }
         };
 
@@ -595,6 +846,7 @@ public class MessagingController implements Runnable {
                 retrievalListener,
                 false // Skip deleted messages
             );
+            batcher.flush();
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "Got ack that callbackRunner finished");
 
@@ -742,20 +994,23 @@ public class MessagingController implements Runnable {
 
             }
 
+            final MessageBatcher batcher = new MessageBatcher() {
+                @Override
+                protected void deliver(List<Message> messages) {
+                    if (listener != null) {
+                        listener.listLocalMessagesAddMessages(account, null, messages);
+                    }
+                }
+            };
             MessageRetrievalListener retrievalListener = new MessageRetrievalListener() {
                 @Override
                 public void messageStarted(String message, int number, int ofTotal) {}
                 @Override
                 public void messageFinished(Message message, int number, int ofTotal) {
                     if (!isMessageSuppressed(message.getFolder().getAccount(), message.getFolder().getName(), message)) {
-                        List<Message> messages = new ArrayList<Message>();
-
-                        messages.add(message);
                         stats.unreadMessageCount += (!message.isSet(Flag.SEEN)) ? 1 : 0;
                         stats.flaggedMessageCount += (message.isSet(Flag.FLAGGED)) ? 1 : 0;
-                        if (listener != null) {
-                            listener.listLocalMessagesAddMessages(account, null, messages);
-                        }
+                        batcher.add(message);
                     }
 
                 }
@@ -779,6 +1034,7 @@ public class MessagingController implements Runnable {
                 }
                 addErrorMessage(account, null, e);
             } finally {
+                batcher.flush();
                 if (listener != null) {
                     listener.listLocalMessagesFinished(account, null);
                 }
@@ -817,12 +1073,18 @@ public class MessagingController implements Runnable {
      * @param providedRemoteFolder TODO
      */
     public void synchronizeMailbox(final Account account, final String folder, final MessagingListener listener, final Folder providedRemoteFolder) {
-        putBackground("synchronizeMailbox", listener, new Runnable() {
+        Runnable runnable = new Runnable() {
             @Override
             public void run() {
                 synchronizeMailboxSynchronous(account, folder, listener, providedRemoteFolder);
             }
-        });
+        };
+        if (providedRemoteFolder == null) {
+            putCoalescing("synchronizeMailbox", account, folder, listener, runnable, false);
+        } else {
+            // a specific remote folder instance (e.g. a pushing one) is to be used
+            putBackground("synchronizeMailbox", account, listener, runnable);
+        }
     }
 
     /**
@@ -881,11 +1143,25 @@ public class MessagingController implements Runnable {
             final LocalFolder localFolder = tLocalFolder;
             localFolder.open(OpenMode.READ_WRITE);
             localFolder.updateLastUid();
-            Message[] localMessages = localFolder.getMessages(null);
-            HashMap<String, Message> localUidMap = new HashMap<String, Message>();
-            for (Message message : localMessages) {
-                localUidMap.put(message.getUid(), message);
+            UidIndex localIndex = localFolder.getUidIndex();
+            // remote messages we didn't know about yet
+            int arrivals = 0;
+            // left by a synchronization of this folder that didn't complete
+            SyncCheckpoint interrupted = localFolder.getSyncCheckpoint();
+            SyncCheckpointTracker checkpoints = null;
+            // state of the remote folder as of the last synchronization
+            MailboxState knownState = localFolder.getRemoteMailboxState();
+            SyncWindow knownWindow = localFolder.getRemoteSyncWindow();
+
+            int visibleLimit = localFolder.getVisibleLimit();
+
+            if (visibleLimit < 0) {
+                visibleLimit = K9.DEFAULT_VISIBLE_LIMIT;
             }
+            final Date earliestDate = account.getEarliestPollDate();
+            SyncWindow window = new SyncWindow(visibleLimit, earliestDate);
+            // reported by the server when opening the folder, if it can
+            MailboxChanges changes = null;
 
             if (providedRemoteFolder != null) {
                 if (K9.DEBUG)
@@ -927,7 +1203,14 @@ public class MessagingController implements Runnable {
                 if (K9.DEBUG)
                     Log.v(K9.LOG_TAG, "SYNC: About to open remote folder " + folder);
 
-                remoteFolder.open(OpenMode.READ_WRITE);
+                /*
+                 * Only ask for the changes since the last synchronization if
+                 * it looked at all the messages this one has to (e.g. more
+                 * messages weren't requested since). Older messages wouldn't
+                 * be listed otherwise.
+                 */
+                boolean quickResync = interrupted == null && knownWindow != null && knownWindow.contains(window);
+                changes = remoteFolder.open(OpenMode.READ_WRITE, quickResync ? knownState : null);
                 if (Account.EXPUNGE_ON_POLL.equals(account.getExpungePolicy())) {
                     if (K9.DEBUG)
                         Log.d(K9.LOG_TAG, "SYNC: Expunging folder " + account.getDescription() + ":" + folder);
@@ -936,24 +1219,22 @@ public class MessagingController implements Runnable {
 
             }
 
+            if (remoteFolder.getUidValidity() >= 0) {
+                // part downloads started before the UIDs changed can't be resumed
+                account.getLocalStore().deleteStalePartialDownloadFiles(folder, remoteFolder.getUidValidity());
+            }
+
             /*
              * Get the remote message count.
              */
             int remoteMessageCount = remoteFolder.getMessageCount();
 
-            int visibleLimit = localFolder.getVisibleLimit();
-
-            if (visibleLimit < 0) {
-                visibleLimit = K9.DEFAULT_VISIBLE_LIMIT;
-            }
-
             Message[] remoteMessageArray = EMPTY_MESSAGE_ARRAY;
             final ArrayList<Message> remoteMessages = new ArrayList<Message>();
-            HashMap<String, Message> remoteUidMap = new HashMap<String, Message>();
+            UidSet remoteUids = new UidSet();
 
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "SYNC: Remote message count for folder " + folder + " is " + remoteMessageCount);
-            final Date earliestDate = account.getEarliestPollDate();
 
 
             if (remoteMessageCount > 0) {
@@ -975,46 +1256,111 @@ public class MessagingController implements Runnable {
                 }
 
 
-                remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteEnd, earliestDate, null);
+                /*
+                 * If the server reported what changed since the last
+                 * synchronization, only the messages that arrived since need
+                 * to be listed. Not after the highest local UID: messages
+                 * appended or moved by us get theirs out of order.
+                 */
+                long lastKnownUid = (knownState == null) ? -1 : knownState.getUidNext() - 1;
+                Message[] arrivedMessages = (changes != null && lastKnownUid >= 0) ?
+                                            remoteFolder.getMessagesAfterUid(lastKnownUid, earliestDate) : null;
+                if (arrivedMessages != null) {
+                    if (visibleLimit > 0 && arrivedMessages.length > visibleLimit) {
+                        Message[] newest = new Message[visibleLimit];
+                        System.arraycopy(arrivedMessages, arrivedMessages.length - visibleLimit, newest, 0, visibleLimit);
+                        arrivedMessages = newest;
+                    }
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "SYNC: Quick resynchronization of folder " + folder + ", "
+                              + arrivedMessages.length + " messages after UID " + lastKnownUid);
+                    remoteMessageArray = arrivedMessages;
+                    remoteStart = Math.min(remoteEnd, Math.max(remoteStart, remoteEnd - arrivedMessages.length + 1));
+                } else {
+                    changes = null;
+                    remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteEnd, earliestDate, null);
+                }
 
                 int messageCount = remoteMessageArray.length;
 
+                boolean lastStoredFound = false;
+                ProgressThrottle headerThrottle = new ProgressThrottle();
                 for (Message thisMess : remoteMessageArray) {
                     headerProgress.incrementAndGet();
-                    for (MessagingListener l : getListeners(listener)) {
-                        l.synchronizeMailboxHeadersProgress(account, folder, headerProgress.get(), messageCount);
+                    if (headerThrottle.shouldReport(headerProgress.get(), messageCount)) {
+                        for (MessagingListener l : getListeners(listener)) {
+                            l.synchronizeMailboxHeadersProgress(account, folder, headerProgress.get(), messageCount);
+                        }
+                    }
+                    int localPosition = localIndex.indexOf(thisMess.getUid());
+                    if (localPosition < 0) {
+                        arrivals++;
                     }
-                    Message localMessage = localUidMap.get(thisMess.getUid());
-                    if (localMessage == null || !localMessage.olderThan(earliestDate)) {
+                    if (interrupted != null && thisMess.getUid().equals(interrupted.getLastUid())) {
+                        lastStoredFound = true;
+                    }
+                    if (localPosition < 0 || !localIndex.olderThan(localPosition, earliestDate)) {
                         remoteMessages.add(thisMess);
-                        remoteUidMap.put(thisMess.getUid(), thisMess);
+                        remoteUids.add(thisMess.getUid());
                     }
                 }
                 if (K9.DEBUG)
-                    Log.v(K9.LOG_TAG, "SYNC: Got " + remoteUidMap.size() + " messages for folder " + folder);
+                    Log.v(K9.LOG_TAG, "SYNC: Got " + remoteUids.size() + " messages for folder " + folder);
 
                 remoteMessageArray = null;
                 for (MessagingListener l : getListeners(listener)) {
-                    l.synchronizeMailboxHeadersFinished(account, folder, headerProgress.get(), remoteUidMap.size());
+                    l.synchronizeMailboxHeadersFinished(account, folder, headerProgress.get(), remoteUids.size());
+                }
+
+                /*
+                 * The checkpoint of an interrupted synchronization is only
+                 * trusted if its window is still part of the listed messages
+                 * (the folder didn't shrink and fewer messages weren't
+                 * requested since) and the last message stored back then is
+                 * still there.
+                 */
+                boolean resume = interrupted != null && interrupted.isWindowWithin(remoteStart, remoteEnd)
+                                 && (interrupted.getLastUid() == null || lastStoredFound);
+                if (K9.DEBUG && interrupted != null)
+                    Log.d(K9.LOG_TAG, "SYNC: " + (resume ? "Resuming" : "Restarting") + " interrupted synchronization of folder "
+                          + folder + " (" + interrupted + ")");
+                checkpoints = new SyncCheckpointTracker(localFolder, resume ? interrupted : null, remoteStart, remoteEnd);
+                checkpoints.start();
+
+                if (arrivals >= InitialImport.THRESHOLD) {
+                    importEnvelopes(account, folder, remoteFolder, localStore, localFolder, localIndex, remoteMessages);
+                    localIndex = localFolder.getUidIndex();
+                    checkpoints.envelopesImported();
                 }
 
             } else if (remoteMessageCount < 0) {
                 throw new Exception("Message count " + remoteMessageCount + " for folder " + folder);
+            } else {
+                changes = null;
             }
 
             /*
              * Remove any messages that are in the local store but no longer on the remote store or are too old
              */
             if (account.syncRemoteDeletions()) {
-                ArrayList<Message> destroyMessages = new ArrayList<Message>();
-                for (Message localMessage : localMessages) {
-                    if (remoteUidMap.get(localMessage.getUid()) == null) {
-                        destroyMessages.add(localMessage);
+                ArrayList<String> destroyUids = new ArrayList<String>();
+                for (int i = 0, count = localIndex.size(); i < count; i++) {
+                    String uid = localIndex.getUid(i);
+                    boolean removed = (changes != null) ? changes.isVanished(uid) || localIndex.olderThan(i, earliestDate)
+                                      : !remoteUids.contains(uid);
+                    if (removed) {
+                        destroyUids.add(uid);
                     }
                 }
+                if (changes != null && visibleLimit > 0) {
+                    // arrivals push the oldest messages out of the window, as with a full listing
+                    destroyUids.addAll(getUidsBeyondVisibleLimit(localIndex, destroyUids, remoteMessages, visibleLimit));
+                }
 
-
-                localFolder.destroyMessages(destroyMessages.toArray(EMPTY_MESSAGE_ARRAY));
+                // Only the messages that go away need to be loaded
+                Message[] destroyMessages = destroyUids.isEmpty() ? EMPTY_MESSAGE_ARRAY :
+                                            localFolder.getMessages(destroyUids.toArray(EMPTY_STRING_ARRAY), null);
+                localFolder.destroyMessages(destroyMessages);
 
                 for (Message destroyMessage : destroyMessages) {
                     for (MessagingListener l : getListeners(listener)) {
@@ -1022,15 +1368,34 @@ public class MessagingController implements Runnable {
                     }
                 }
             }
-            localMessages = null;
+
+            // good time to make room for a foreground command
+            checkStopRequested();
+
+            /*
+             * As of now, flags only need to be checked again for changes
+             * since the last synchronization, if the server can tell.
+             */
+            MailboxState remoteState = remoteFolder.getMailboxState();
+            if (changes != null) {
+                List<Message> changedMessages = changes.getChangedMessages();
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "SYNC: Server reported " + changedMessages.size() + " messages with changed flags for folder " + folder);
+                for (Message remoteMessage : changedMessages) {
+                    syncRemoteFlags(account, localFolder, remoteMessage);
+                }
+            }
 
             /*
              * Now we download the actual content of messages.
              */
-            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false);
+            int newMessages = downloadMessages(account, remoteFolder, localFolder, localIndex, remoteMessages, false, checkpoints,
+                                               (changes == null && remoteState != null && remoteState.isSameMailbox(knownState)) ?
+                                               knownState : null);
 
-            int unreadMessageCount = setLocalUnreadCountToRemote(localFolder, remoteFolder,  newMessages);
-            setLocalFlaggedCountToRemote(localFolder, remoteFolder);
+            int[] remoteCounts = remoteFolder.getUnreadAndFlaggedMessageCounts();
+            int unreadMessageCount = setLocalUnreadCountToRemote(localFolder, remoteCounts[0],  newMessages);
+            setLocalFlaggedCountToRemote(localFolder, remoteCounts[1]);
 
 
             for (MessagingListener l : getListeners()) {
@@ -1039,7 +1404,26 @@ public class MessagingController implements Runnable {
 
             /* Notify listeners that we're finally done. */
 
-            localFolder.setLastChecked(System.currentTimeMillis());
+            /*
+             * Feed the poll scheduler. Everything is new to the first
+             * synchronization of a folder, that says nothing about its arrival rate.
+             */
+            long now = System.currentTimeMillis();
+            long previousCheck = localFolder.getLastChecked();
+            if (previousCheck > 0 && localIndex.size() > 0) {
+                localFolder.setArrivalRate(PollScheduler.updateArrivalRate(localFolder.getArrivalRate(),
+                                           arrivals, now - previousCheck));
+            }
+
+            if (checkpoints != null) {
+                checkpoints.complete();
+            } else if (interrupted != null) {
+                localFolder.setSyncCheckpoint(null);
+            }
+            if (remoteState != null || knownState != null) {
+                localFolder.setRemoteMailboxState(remoteState, window);
+            }
+            localFolder.setLastChecked(now);
             localFolder.setStatus(null);
 
             if (K9.DEBUG)
@@ -1064,6 +1448,19 @@ public class MessagingController implements Runnable {
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Done synchronizing folder " + account.getDescription() + ":" + folder);
 
+        } catch (CommandCancelledException e) {
+            if (K9.DEBUG)
+                Log.i(K9.LOG_TAG, "Stopped synchronizing folder " + account.getDescription() + ":" + folder
+                      + ", " + e.getMessage());
+            /*
+             * A preempted synchronization starts over later, with a new
+             * synchronizeMailboxStarted(). Until then listeners must not wait
+             * for it.
+             */
+            for (MessagingListener l : getListeners(listener)) {
+                l.synchronizeMailboxFailed(account, folder, e.getMessage());
+            }
+            throw e;
         } catch (Exception e) {
             Log.e(K9.LOG_TAG, "synchronizeMailbox", e);
             // If we don't set the last checked, it can try too often during
@@ -1128,8 +1525,7 @@ public class MessagingController implements Runnable {
         }
         return true;
     }
-    private int setLocalUnreadCountToRemote(LocalFolder localFolder, Folder remoteFolder, int newMessageCount) throws MessagingException {
-        int remoteUnreadMessageCount = remoteFolder.getUnreadMessageCount();
+    private int setLocalUnreadCountToRemote(LocalFolder localFolder, int remoteUnreadMessageCount, int newMessageCount) throws MessagingException {
         if (remoteUnreadMessageCount != -1) {
             localFolder.setUnreadMessageCount(remoteUnreadMessageCount);
         } else {
@@ -1145,8 +1541,7 @@ public class MessagingController implements Runnable {
         return localFolder.getUnreadMessageCount();
     }
 
-    private void setLocalFlaggedCountToRemote(LocalFolder localFolder, Folder remoteFolder) throws MessagingException {
-        int remoteFlaggedMessageCount = remoteFolder.getFlaggedMessageCount();
+    private void setLocalFlaggedCountToRemote(LocalFolder localFolder, int remoteFlaggedMessageCount) throws MessagingException {
         if (remoteFlaggedMessageCount != -1) {
             localFolder.setFlaggedMessageCount(remoteFlaggedMessageCount);
         } else {
@@ -1161,8 +1556,21 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * @param localIndex
+     *            Index of the local folder, <code>null</code> to load it here.
+     * @param checkpoints
+     *            Progress of the folder synchronization, <code>null</code> if
+     *            the download isn't part of one.
+     * @param knownState
+     *            State of the remote folder as of the last synchronization,
+     *            so that only the flags changed since are fetched.
+     *            <code>null</code> to fetch the flags of all local messages.
+     */
     private int downloadMessages(final Account account, final Folder remoteFolder,
-                                 final LocalFolder localFolder, List<Message> inputMessages, boolean flagSyncOnly) throws MessagingException {
+                                 final LocalFolder localFolder, UidIndex localIndex, List<Message> inputMessages,
+                                 boolean flagSyncOnly, final SyncCheckpointTracker checkpoints,
+                                 MailboxState knownState) throws MessagingException {
         final Date earliestDate = account.getEarliestPollDate();
         Date downloadStarted = new Date(); // now
 
@@ -1185,16 +1593,27 @@ public class MessagingController implements Runnable {
 
         ArrayList<Message> syncFlagMessages = new ArrayList<Message>();
         List<Message> unsyncedMessages = new ArrayList<Message>();
+        /*
+         * Messages whose envelope was stored by the interrupted synchronization
+         * being resumed or by an initial import; only their bodies are missing.
+         */
+        List<Message> resumedMessages = (checkpoints != null && checkpoints.hasStoredEnvelopes()) ?
+                                        new ArrayList<Message>() : null;
         final AtomicInteger newMessages = new AtomicInteger(0);
 
         List<Message> messages = new ArrayList<Message>(inputMessages);
 
+        if (localIndex == null) {
+            localIndex = localFolder.getUidIndex();
+        }
         for (Message message : messages) {
-            evaluateMessageForDownload(message, folder, localFolder, remoteFolder, account, unsyncedMessages, syncFlagMessages , flagSyncOnly);
+            evaluateMessageForDownload(message, folder, localFolder, localIndex, remoteFolder, account, unsyncedMessages, resumedMessages, syncFlagMessages , flagSyncOnly);
         }
 
         final AtomicInteger progress = new AtomicInteger(0);
-        final int todo = unsyncedMessages.size() + syncFlagMessages.size();
+        final int todo = unsyncedMessages.size() + syncFlagMessages.size()
+                         + (resumedMessages == null ? 0 : resumedMessages.size());
+        final ProgressThrottle throttle = new ProgressThrottle();
         for (MessagingListener l : getListeners()) {
             l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
         }
@@ -1229,7 +1648,7 @@ public class MessagingController implements Runnable {
                 Log.d(K9.LOG_TAG, "SYNC: About to fetch " + unsyncedMessages.size() + " unsynced messages for folder " + folder);
 
 
-            fetchUnsyncedMessages(account, remoteFolder, localFolder, unsyncedMessages, smallMessages, largeMessages, progress, todo, fp);
+            fetchUnsyncedMessages(account, remoteFolder, localFolder, unsyncedMessages, smallMessages, largeMessages, progress, throttle, todo, fp);
 
             // If a message didn't exist, messageFinished won't be called, but we shouldn't try again
             // If we got here, nothing failed
@@ -1246,6 +1665,26 @@ public class MessagingController implements Runnable {
 
         }
 
+        if (resumedMessages != null && !resumedMessages.isEmpty()) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "SYNC: Resuming body download of " + resumedMessages.size() + " messages for folder " + folder);
+
+            // Flags may have changed since the envelopes were fetched
+            if (remoteFolder.supportsFetchingFlags()) {
+                FetchProfile fp = new FetchProfile();
+                fp.add(FetchProfile.Item.FLAGS);
+                remoteFolder.fetch(resumedMessages.toArray(EMPTY_MESSAGE_ARRAY), fp, null);
+            }
+            for (Message message : resumedMessages) {
+                if (message.isSet(Flag.DELETED)) {
+                    progress.incrementAndGet();
+                } else {
+                    smallMessages.add(message);
+                }
+            }
+            resumedMessages.clear();
+        }
+
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Have "
                   + largeMessages.size() + " large messages and "
@@ -1264,7 +1703,10 @@ public class MessagingController implements Runnable {
         //        fp.add(FetchProfile.Item.FLAGS);
         //        fp.add(FetchProfile.Item.ENVELOPE);
 
-        downloadSmallMessages(account, remoteFolder, localFolder, smallMessages, progress, unreadBeforeStart, newMessages, todo, fp);
+        if (checkpoints != null) {
+            checkpoints.enterPhase(SyncCheckpoint.Phase.SMALL_BODIES);
+        }
+        downloadSmallMessages(account, remoteFolder, localFolder, smallMessages, progress, throttle, unreadBeforeStart, newMessages, todo, fp, checkpoints);
         smallMessages.clear();
 
         /*
@@ -1272,7 +1714,10 @@ public class MessagingController implements Runnable {
          */
         fp.clear();
         fp.add(FetchProfile.Item.STRUCTURE);
-        downloadLargeMessages(account, remoteFolder, localFolder, largeMessages, progress, unreadBeforeStart,  newMessages, todo, fp);
+        if (checkpoints != null) {
+            checkpoints.enterPhase(SyncCheckpoint.Phase.LARGE_BODIES);
+        }
+        downloadLargeMessages(account, remoteFolder, localFolder, largeMessages, progress, throttle, unreadBeforeStart, newMessages, todo, fp, checkpoints);
         largeMessages.clear();
 
         /*
@@ -1280,12 +1725,17 @@ public class MessagingController implements Runnable {
          * download.
          */
 
-        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, progress, todo);
+        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, knownState, progress, throttle, todo);
 
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Synced remote messages for folder " + folder + ", " + newMessages.get() + " new messages");
 
-        localFolder.purgeToVisibleLimit(new MessageRemovalListener() {
+        // Intermediate updates may have been dropped by the throttle
+        for (MessagingListener l : getListeners()) {
+            l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+        }
+
+        localFolder.purgeToVisibleLimit(new MessageRemovalListener() {
             @Override
             public void messageRemoved(Message message) {
                 for (MessagingListener l : getListeners()) {
@@ -1314,11 +1764,66 @@ public class MessagingController implements Runnable {
         }
         return newMessages.get();
     }
+    /**
+     * @param removedUids
+     *            Local messages that are going away anyway.
+     * @param arrivedMessages
+     *            Messages that arrived since the last synchronization.
+     * @return UIDs of the local messages that aren't among the newest
+     *         <code>visibleLimit</code> messages of the folder any longer.
+     *         Messages without a numeric UID are never part of them.
+     */
+    private static List<String> getUidsBeyondVisibleLimit(UidIndex localIndex, List<String> removedUids,
+            List<Message> arrivedMessages, int visibleLimit) {
+        Set<String> removed = new HashSet<String>(removedUids);
+        List<Long> remaining = new ArrayList<Long>();
+        Map<Long, String> localUids = new HashMap<Long, String>();
+        for (int i = 0, count = localIndex.size(); i < count; i++) {
+            String uid = localIndex.getUid(i);
+            if (removed.contains(uid)) {
+                continue;
+            }
+            try {
+                long number = Long.parseLong(uid);
+                remaining.add(number);
+                localUids.put(number, uid);
+            } catch (NumberFormatException e) {
+                // not on the server yet
+            }
+        }
+        for (Message message : arrivedMessages) {
+            try {
+                long number = Long.parseLong(message.getUid());
+                if (!localUids.containsKey(number)) {
+                    remaining.add(number);
+                }
+            } catch (NumberFormatException e) {
+                // ignore
+            }
+        }
+
+        List<String> beyond = new ArrayList<String>();
+        if (remaining.size() <= visibleLimit) {
+            return beyond;
+        }
+        // UIDs are ascending, the newest messages have the highest ones
+        Collections.sort(remaining, Collections.reverseOrder());
+        for (Long number : remaining.subList(visibleLimit, remaining.size())) {
+            String uid = localUids.get(number);
+            if (uid != null) {
+                beyond.add(uid);
+            }
+        }
+        return beyond;
+    }
+
     private void evaluateMessageForDownload(final Message message, final String folder,
                                             final LocalFolder localFolder,
+                                            final UidIndex localIndex,
                                             final Folder remoteFolder,
                                             final Account account,
                                             final List<Message> unsyncedMessages,
+                                            final List<Message> resumedMessages,
                                             final ArrayList<Message> syncFlagMessages,
                                             boolean flagSyncOnly) throws MessagingException {
         if (message.isSet(Flag.DELETED)) {
@@ -1328,9 +1833,9 @@ public class MessagingController implements Runnable {
             return;
         }
 
-        Message localMessage = localFolder.getMessage(message.getUid());
+        int localPosition = localIndex.indexOf(message.getUid());
 
-        if (localMessage == null) {
+        if (localPosition < 0) {
             if (!flagSyncOnly) {
                 if (!message.isSet(Flag.X_DOWNLOADED_FULL) && !message.isSet(Flag.X_DOWNLOADED_PARTIAL)) {
                     if (K9.DEBUG)
@@ -1344,7 +1849,7 @@ public class MessagingController implements Runnable {
                     // Store the updated message locally
                     localFolder.appendMessages(new Message[] { message });
 
-                    localMessage = localFolder.getMessage(message.getUid());
+                    Message localMessage = localFolder.getMessage(message.getUid());
 
                     localMessage.setFlag(Flag.X_DOWNLOADED_FULL, message.isSet(Flag.X_DOWNLOADED_FULL));
                     localMessage.setFlag(Flag.X_DOWNLOADED_PARTIAL, message.isSet(Flag.X_DOWNLOADED_PARTIAL));
@@ -1357,16 +1862,31 @@ public class MessagingController implements Runnable {
                     }
                 }
             }
-        } else if (!localMessage.isSet(Flag.DELETED)) {
+        } else if (!localIndex.isSet(localPosition, Flag.DELETED)) {
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "Message with uid " + message.getUid() + " is present in the local store");
 
-            if (!localMessage.isSet(Flag.X_DOWNLOADED_FULL) && !localMessage.isSet(Flag.X_DOWNLOADED_PARTIAL)) {
-                if (K9.DEBUG)
-                    Log.v(K9.LOG_TAG, "Message with uid " + message.getUid()
-                          + " is not downloaded, even partially; trying again");
+            if (!localIndex.isSet(localPosition, Flag.X_DOWNLOADED_FULL)
+                    && !localIndex.isSet(localPosition, Flag.X_DOWNLOADED_PARTIAL)) {
+                int size = localIndex.getSize(localPosition);
+                if (resumedMessages != null && size > 0 && size <= account.getMaximumAutoDownloadMessageSize()) {
+                    /*
+                     * The envelope is stored and small messages are downloaded
+                     * in full, no need to fetch the envelope again. Large ones
+                     * still need it: how they are downloaded depends on it.
+                     */
+                    if (K9.DEBUG)
+                        Log.v(K9.LOG_TAG, "Message with uid " + message.getUid()
+                              + " has its envelope stored; resuming with its body");
 
-                unsyncedMessages.add(message);
+                    resumedMessages.add(message);
+                } else {
+                    if (K9.DEBUG)
+                        Log.v(K9.LOG_TAG, "Message with uid " + message.getUid()
+                              + " is not downloaded, even partially; trying again");
+
+                    unsyncedMessages.add(message);
+                }
             } else {
                 String newPushState = remoteFolder.getNewPushState(localFolder.getPushState(), message);
                 if (newPushState != null) {
@@ -1383,6 +1903,7 @@ public class MessagingController implements Runnable {
                                        final ArrayList<Message> smallMessages,
                                        final ArrayList<Message> largeMessages,
                                        final AtomicInteger progress,
+                                       final ProgressThrottle throttle,
                                        final int todo,
                                        FetchProfile fp) throws MessagingException {
         final String folder = remoteFolder.getName();
@@ -1414,9 +1935,11 @@ public class MessagingController implements Runnable {
                                       + earliestDate + ", skipping");
                             }
                         }
-                        progress.incrementAndGet();
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+                        int completed = progress.incrementAndGet();
+                        if (throttle.shouldReport(completed, todo)) {
+                            for (MessagingListener l : getListeners()) {
+                                l.synchronizeMailboxProgress(account, folder, completed, todo);
+                            }
                         }
                         return;
                     }
@@ -1482,11 +2005,12 @@ public class MessagingController implements Runnable {
             Log.v(K9.LOG_TAG, "Batch writing " + Integer.toString(messages.size()) + " messages");
         }
         try {
-            // Store the new message locally
-            localFolder.appendMessages(messages.toArray(new Message[messages.size()]));
+            // Store the new messages locally
+            List<Message> localMessages = localFolder.storeMessages(messages, null);
 
-            for (final Message message : messages) {
-                final Message localMessage = localFolder.getMessage(message.getUid());
+            for (int i = 0, count = messages.size(); i < count; i++) {
+                final Message message = messages.get(i);
+                final Message localMessage = localMessages.get(i);
                 syncFlags(localMessage, message);
                 if (K9.DEBUG)
                     Log.v(K9.LOG_TAG, "About to notify listeners that we got a new unsynced message "
@@ -1501,6 +2025,41 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Store the envelopes of the new messages among <code>remoteMessages</code>
+     * with an {@link InitialImport}. Listeners get the stored messages a window
+     * at a time.
+     */
+    private void importEnvelopes(final Account account, final String folder, final Folder remoteFolder,
+                                 final LocalStore localStore, final LocalFolder localFolder, final UidIndex localIndex,
+                                 final List<Message> remoteMessages) throws MessagingException {
+        final Date earliestDate = account.getEarliestPollDate();
+        List<Message> newMessages = new ArrayList<Message>();
+        for (Message message : remoteMessages) {
+            if (localIndex.indexOf(message.getUid()) < 0) {
+                newMessages.add(message);
+            }
+        }
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, "SYNC: Importing envelopes of " + newMessages.size() + " new messages of folder " + folder);
+
+        new InitialImport(remoteFolder, localStore, localFolder, new InitialImport.Callback() {
+            public boolean shouldStore(Message message) {
+                return !message.olderThan(earliestDate) && !isMessageSuppressed(account, folder, message);
+            }
+
+            public void windowStored(List<Message> localMessages, int done, int total) {
+                for (MessagingListener l : getListeners()) {
+                    if (!localMessages.isEmpty()) {
+                        l.listLocalMessagesAddMessages(account, folder, localMessages);
+                    }
+                    l.synchronizeMailboxProgress(account, folder, done, total);
+                }
+                checkStopRequested();
+            }
+        }).run(newMessages);
+    }
+
 
     private boolean shouldImportMessage(final Account account, final String folder, final Message message, final AtomicInteger progress, final Date earliestDate) {
 
@@ -1527,10 +2086,12 @@ public class MessagingController implements Runnable {
                                        final LocalFolder localFolder,
                                        ArrayList<Message> smallMessages,
                                        final AtomicInteger progress,
+                                       final ProgressThrottle throttle,
                                        final int unreadBeforeStart,
                                        final AtomicInteger newMessages,
                                        final int todo,
-                                       FetchProfile fp) throws MessagingException {
+                                       FetchProfile fp,
+                                       final SyncCheckpointTracker checkpoints) throws MessagingException {
         final String folder = remoteFolder.getName();
 
         final Date earliestDate = account.getEarliestPollDate();
@@ -1538,8 +2099,22 @@ public class MessagingController implements Runnable {
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Fetching small messages for folder " + folder);
 
-        remoteFolder.fetch(smallMessages.toArray(new Message[smallMessages.size()]),
-        fp, new MessageRetrievalListener() {
+        /*
+         * Parsed messages are stored by another thread while the next ones are
+         * being downloaded.
+         */
+        final StoragePipeline<Message> pipeline = new StoragePipeline<Message>("SYNC store " + folder,
+                STORE_QUEUE_CAPACITY, STORE_BATCH_SIZE, new StoragePipeline.BatchHandler<Message>() {
+            @Override
+            public void handle(List<Message> batch) throws MessagingException {
+                storeSmallMessages(account, localFolder, batch, progress, throttle, unreadBeforeStart, newMessages, todo);
+                if (checkpoints != null) {
+                    checkpoints.messagesStored(batch);
+                }
+            }
+        });
+
+        final MessageRetrievalListener retrievalListener = new MessageRetrievalListener() {
             @Override
             public void messageFinished(Message message, int number, int ofTotal) {
                 try {
@@ -1550,31 +2125,7 @@ public class MessagingController implements Runnable {
                         return;
                     }
 
-                    // Store the updated message locally
-                    final Message localMessage = localFolder.storeSmallMessage(message, new Runnable() {
-                        @Override
-                        public void run() {
-                            progress.incrementAndGet();
-                        }
-                    });
-                    if (K9.DEBUG)
-                        Log.v(K9.LOG_TAG, "About to notify listeners that we got a new small message "
-                              + account + ":" + folder + ":" + message.getUid());
-
-                    // Update the listener with what we've found
-                    for (MessagingListener l : getListeners()) {
-                        l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
-                        l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
-                        if (!localMessage.isSet(Flag.SEEN)) {
-                            l.synchronizeMailboxNewMessage(account, folder, localMessage);
-                        }
-                    }
-                    // Send a notification of this message
-
-                    if (shouldNotifyForMessage(account, localFolder, message)) {
-                        newMessages.incrementAndGet();
-                        notifyAccount(mApplication, account, message, unreadBeforeStart, newMessages);
-                    }
+                    pipeline.put(message);
 
                 } catch (MessagingException me) {
                     addErrorMessage(account, null, me);
@@ -1587,22 +2138,103 @@ public class MessagingController implements Runnable {
 
             @Override
             public void messagesFinished(int total) {}
-        });
+        };
+
+        pipeline.start(threadPool);
+        try {
+            for (int start = 0, count = smallMessages.size(); start < count; start += FETCH_WINDOW_SIZE) {
+                if (isStopRequested()) {
+                    break;
+                }
+                List<Message> window = smallMessages.subList(start, Math.min(start + FETCH_WINDOW_SIZE, count));
+                remoteFolder.fetch(window.toArray(new Message[window.size()]), fp, retrievalListener);
+            }
+        } catch (MessagingException e) {
+            pipeline.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            pipeline.abort();
+            throw e;
+        }
+        // whatever was downloaded is stored before stopping
+        pipeline.finish();
+        checkStopRequested();
 
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Done fetching small messages for folder " + folder);
     }
 
+    /**
+     * Storage stage of {@link #downloadSmallMessages}: store a batch of
+     * downloaded messages in one transaction, then notify listeners.
+     */
+    private void storeSmallMessages(final Account account, final LocalFolder localFolder,
+                                    final List<Message> messages,
+                                    final AtomicInteger progress,
+                                    final ProgressThrottle throttle,
+                                    final int unreadBeforeStart,
+                                    final AtomicInteger newMessages,
+                                    final int todo) {
+        List<Message> localMessages;
+        try {
+            localMessages = localFolder.storeSmallMessages(messages);
+        } catch (MessagingException me) {
+            if (messages.size() == 1) {
+                addErrorMessage(account, null, me);
+                Log.e(K9.LOG_TAG, "SYNC: fetch small messages", me);
+                return;
+            }
+            // Don't let a single message fail the whole batch
+            Log.w(K9.LOG_TAG, "SYNC: Unable to store " + messages.size() + " messages at once, storing them one by one", me);
+            for (Message message : messages) {
+                storeSmallMessages(account, localFolder, Collections.singletonList(message),
+                                   progress, throttle, unreadBeforeStart, newMessages, todo);
+            }
+            return;
+        }
+
+        final String folder = localFolder.getName();
+        for (int i = 0, count = messages.size(); i < count; i++) {
+            Message message = messages.get(i);
+            Message localMessage = localMessages.get(i);
+            int completed = progress.incrementAndGet();
+            boolean reportProgress = throttle.shouldReport(completed, todo);
+
+            if (K9.DEBUG)
+                Log.v(K9.LOG_TAG, "About to notify listeners that we got a new small message "
+                      + account + ":" + folder + ":" + message.getUid());
+
+            // Update the listener with what we've found
+            for (MessagingListener l : getListeners()) {
+                l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
+                if (reportProgress) {
+                    l.synchronizeMailboxProgress(account, folder, completed, todo);
+                }
+                if (!localMessage.isSet(Flag.SEEN)) {
+                    l.synchronizeMailboxNewMessage(account, folder, localMessage);
+                }
+            }
+            // Send a notification of this message
+
+            if (shouldNotifyForMessage(account, localFolder, message)) {
+                newMessages.incrementAndGet();
+                notifyAccount(mApplication, account, message, unreadBeforeStart, newMessages);
+            }
+        }
+    }
+
 
 
     private void downloadLargeMessages(final Account account, final Folder remoteFolder,
                                        final LocalFolder localFolder,
                                        ArrayList<Message> largeMessages,
                                        final AtomicInteger progress,
+                                       final ProgressThrottle throttle,
                                        final int unreadBeforeStart,
                                        final AtomicInteger newMessages,
                                        final int todo,
-                                       FetchProfile fp) throws MessagingException {
+                                       FetchProfile fp,
+                                       final SyncCheckpointTracker checkpoints) throws MessagingException {
         final String folder = remoteFolder.getName();
 
         final Date earliestDate = account.getEarliestPollDate();
@@ -1611,89 +2243,166 @@ public class MessagingController implements Runnable {
             Log.d(K9.LOG_TAG, "SYNC: Fetching large messages for folder " + folder);
 
         remoteFolder.fetch(largeMessages.toArray(new Message[largeMessages.size()]), fp, null);
-        for (Message message : largeMessages) {
 
-            if (!shouldImportMessage(account, folder, message, progress, earliestDate)) {
-                progress.incrementAndGet();
-                continue;
+        /*
+         * Downloaded messages are stored by another thread while the parts of
+         * the next ones are being fetched.
+         */
+        final StoragePipeline<DownloadedMessage> pipeline = new StoragePipeline<DownloadedMessage>("SYNC store " + folder,
+                STORE_QUEUE_CAPACITY, STORE_BATCH_SIZE, new StoragePipeline.BatchHandler<DownloadedMessage>() {
+            @Override
+            public void handle(List<DownloadedMessage> batch) throws MessagingException {
+                storeLargeMessages(account, localFolder, batch, progress, throttle, unreadBeforeStart, newMessages, todo);
+                if (checkpoints != null) {
+                    List<Message> stored = new ArrayList<Message>(batch.size());
+                    for (DownloadedMessage downloaded : batch) {
+                        stored.add(downloaded.message);
+                    }
+                    checkpoints.messagesStored(stored);
+                }
             }
+        });
+        pipeline.start(threadPool);
+        try {
+            for (Message message : largeMessages) {
+                if (isStopRequested()) {
+                    break;
+                }
 
-            if (message.getBody() == null) {
-                /*
-                 * The provider was unable to get the structure of the message, so
-                 * we'll download a reasonable portion of the messge and mark it as
-                 * incomplete so the entire thing can be downloaded later if the user
-                 * wishes to download it.
-                 */
-                fp.clear();
-                fp.add(FetchProfile.Item.BODY_SANE);
-                /*
-                 *  TODO a good optimization here would be to make sure that all Stores set
-                 *  the proper size after this fetch and compare the before and after size. If
-                 *  they equal we can mark this SYNCHRONIZED instead of PARTIALLY_SYNCHRONIZED
-                 */
+                if (!shouldImportMessage(account, folder, message, progress, earliestDate)) {
+                    progress.incrementAndGet();
+                    continue;
+                }
 
-                remoteFolder.fetch(new Message[] { message }, fp, null);
+                Flag downloadFlag;
+                if (message.getBody() == null) {
+                    /*
+                     * The provider was unable to get the structure of the message, so
+                     * we'll download a reasonable portion of the messge and mark it as
+                     * incomplete so the entire thing can be downloaded later if the user
+                     * wishes to download it.
+                     */
+                    fp.clear();
+                    fp.add(FetchProfile.Item.BODY_SANE);
+                    /*
+                     *  TODO a good optimization here would be to make sure that all Stores set
+                     *  the proper size after this fetch and compare the before and after size. If
+                     *  they equal we can mark this SYNCHRONIZED instead of PARTIALLY_SYNCHRONIZED
+                     */
 
-                // Store the updated message locally
-                localFolder.appendMessages(new Message[] { message });
+                    remoteFolder.fetch(new Message[] { message }, fp, null);
 
-                Message localMessage = localFolder.getMessage(message.getUid());
+                    // Certain (POP3) servers give you the whole message even when you ask for only the first x Kb
+                    if (message.isSet(Flag.X_DOWNLOADED_FULL)) {
+                        downloadFlag = null;
+                    } else if (message.getSize() < account.getMaximumAutoDownloadMessageSize()) {
+                        /*
+                         * Mark the message as fully downloaded if the message size is smaller than
+                         * the account's autodownload size limit, otherwise mark as only a partial
+                         * download.  This will prevent the system from downloading the same message
+                         * twice.
+                         */
+                        downloadFlag = Flag.X_DOWNLOADED_FULL;
+                    } else {
+                        // Set a flag indicating that the message has been partially downloaded and
+                        // is ready for view.
+                        downloadFlag = Flag.X_DOWNLOADED_PARTIAL;
+                    }
+                } else {
+                    /*
+                     * We have a structure to deal with, from which
+                     * we can pull down the parts we want to actually store.
+                     * Build a list of parts we are interested in. Text parts will be downloaded
+                     * right now, attachments will be left for later.
+                     */
 
+                    ArrayList<Part> viewables = new ArrayList<Part>();
+                    ArrayList<Part> attachments = new ArrayList<Part>();
+                    MimeUtility.collectParts(message, viewables, attachments);
 
-                // Certain (POP3) servers give you the whole message even when you ask for only the first x Kb
-                if (!message.isSet(Flag.X_DOWNLOADED_FULL)) {
                     /*
-                     * Mark the message as fully downloaded if the message size is smaller than
-                     * the account's autodownload size limit, otherwise mark as only a partial
-                     * download.  This will prevent the system from downloading the same message
-                     * twice.
+                     * Now download the parts we're interested in storing.
                      */
-                    if (message.getSize() < account.getMaximumAutoDownloadMessageSize()) {
-                        localMessage.setFlag(Flag.X_DOWNLOADED_FULL, true);
-                    } else {
-                        // Set a flag indicating that the message has been partially downloaded and
-                        // is ready for view.
-                        localMessage.setFlag(Flag.X_DOWNLOADED_PARTIAL, true);
+                    for (Part part : viewables) {
+                        fetchPart(account, remoteFolder, message, part, null);
                     }
+
+                    // Set a flag indicating this message has been fully downloaded and can be
+                    // viewed.
+                    downloadFlag = Flag.X_DOWNLOADED_PARTIAL;
                 }
-            } else {
-                /*
-                 * We have a structure to deal with, from which
-                 * we can pull down the parts we want to actually store.
-                 * Build a list of parts we are interested in. Text parts will be downloaded
-                 * right now, attachments will be left for later.
-                 */
 
-                ArrayList<Part> viewables = new ArrayList<Part>();
-                ArrayList<Part> attachments = new ArrayList<Part>();
-                MimeUtility.collectParts(message, viewables, attachments);
+                pipeline.put(new DownloadedMessage(message, downloadFlag));
+            }//for large messsages
+        } catch (MessagingException e) {
+            pipeline.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            pipeline.abort();
+            throw e;
+        }
+        pipeline.finish();
+        checkStopRequested();
 
-                /*
-                 * Now download the parts we're interested in storing.
-                 */
-                for (Part part : viewables) {
-                    remoteFolder.fetchPart(message, part, null);
-                }
-                // Store the updated message locally
-                localFolder.appendMessages(new Message[] { message });
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "SYNC: Done fetching large messages for folder " + folder);
 
-                Message localMessage = localFolder.getMessage(message.getUid());
+    }
 
-                // Set a flag indicating this message has been fully downloaded and can be
-                // viewed.
-                localMessage.setFlag(Flag.X_DOWNLOADED_PARTIAL, true);
+    /**
+     * Storage stage of {@link #downloadLargeMessages}: store a batch of
+     * downloaded messages in one transaction, then notify listeners.
+     */
+    private void storeLargeMessages(final Account account, final LocalFolder localFolder,
+                                    final List<DownloadedMessage> downloaded,
+                                    final AtomicInteger progress,
+                                    final ProgressThrottle throttle,
+                                    final int unreadBeforeStart,
+                                    final AtomicInteger newMessages,
+                                    final int todo) throws MessagingException {
+        final String folder = localFolder.getName();
+
+        // Store the updated messages locally
+        List<Message> messages = new ArrayList<Message>(downloaded.size());
+        Flag[] downloadFlags = new Flag[downloaded.size()];
+        for (int i = 0, count = downloaded.size(); i < count; i++) {
+            messages.add(downloaded.get(i).message);
+            downloadFlags[i] = downloaded.get(i).downloadFlag;
+        }
+        List<Message> localMessages;
+        try {
+            localMessages = localFolder.storeMessages(messages, downloadFlags);
+        } catch (MessagingException me) {
+            if (downloaded.size() == 1) {
+                addErrorMessage(account, null, me);
+                Log.e(K9.LOG_TAG, "SYNC: fetch large messages", me);
+                return;
             }
+            // Don't let a single message fail the whole batch
+            Log.w(K9.LOG_TAG, "SYNC: Unable to store " + downloaded.size() + " messages at once, storing them one by one", me);
+            for (DownloadedMessage message : downloaded) {
+                storeLargeMessages(account, localFolder, Collections.singletonList(message),
+                                   progress, throttle, unreadBeforeStart, newMessages, todo);
+            }
+            return;
+        }
+
+        for (int i = 0, count = messages.size(); i < count; i++) {
+            Message message = messages.get(i);
+            Message localMessage = localMessages.get(i);
+
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "About to notify listeners that we got a new large message "
                       + account + ":" + folder + ":" + message.getUid());
 
             // Update the listener with what we've found
-            progress.incrementAndGet();
-            Message localMessage = localFolder.getMessage(message.getUid());
+            int completed = progress.incrementAndGet();
+            boolean reportProgress = throttle.shouldReport(completed, todo);
             for (MessagingListener l : getListeners()) {
                 l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
-                l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+                if (reportProgress) {
+                    l.synchronizeMailboxProgress(account, folder, completed, todo);
+                }
                 if (!localMessage.isSet(Flag.SEEN)) {
                     l.synchronizeMailboxNewMessage(account, folder, localMessage);
                 }
@@ -1704,58 +2413,119 @@ public class MessagingController implements Runnable {
                 newMessages.incrementAndGet();
                 notifyAccount(mApplication, account, message, unreadBeforeStart, newMessages);
             }
+        }
+    }
 
-        }//for large messsages
-        if (K9.DEBUG)
-            Log.d(K9.LOG_TAG, "SYNC: Done fetching large messages for folder " + folder);
+    /**
+     * A large message whose parts were downloaded by
+     * {@link MessagingController#downloadLargeMessages}, waiting to be stored.
+     */
+    private static class DownloadedMessage {
+        final Message message;
+
+        /**
+         * Flag to set on the stored message, <code>null</code> if none.
+         */
+        final Flag downloadFlag;
 
+        DownloadedMessage(Message message, Flag downloadFlag) {
+            this.message = message;
+            this.downloadFlag = downloadFlag;
+        }
     }
 
     private void refreshLocalMessageFlags(final Account account, final Folder remoteFolder,
                                           final LocalFolder localFolder,
                                           ArrayList<Message> syncFlagMessages,
+                                          MailboxState knownState,
                                           final AtomicInteger progress,
+                                          final ProgressThrottle throttle,
                                           final int todo
                                          ) throws MessagingException {
 
         final String folder = remoteFolder.getName();
         if (remoteFolder.supportsFetchingFlags()) {
+            Map<String, Message> changedMessages = getMessagesChangedSince(remoteFolder, knownState);
             if (K9.DEBUG)
-                Log.d(K9.LOG_TAG, "SYNC: About to sync flags for "
-                      + syncFlagMessages.size() + " remote messages for folder " + folder);
+                Log.d(K9.LOG_TAG, "SYNC: About to sync flags for " + syncFlagMessages.size() + " remote messages for folder "
+                      + folder + ((changedMessages != null) ? ", " + changedMessages.size() + " changed on the server" : ""));
 
-            FetchProfile fp = new FetchProfile();
-            fp.add(FetchProfile.Item.FLAGS);
+            if (changedMessages == null) {
+                FetchProfile fp = new FetchProfile();
+                fp.add(FetchProfile.Item.FLAGS);
 
-            List<Message> undeletedMessages = new LinkedList<Message>();
-            for (Message message : syncFlagMessages) {
-                if (!message.isSet(Flag.DELETED)) {
-                    undeletedMessages.add(message);
+                List<Message> undeletedMessages = new LinkedList<Message>();
+                for (Message message : syncFlagMessages) {
+                    if (!message.isSet(Flag.DELETED)) {
+                        undeletedMessages.add(message);
+                    }
                 }
-            }
 
-            remoteFolder.fetch(undeletedMessages.toArray(EMPTY_MESSAGE_ARRAY), fp, null);
-            for (Message remoteMessage : syncFlagMessages) {
-                Message localMessage = localFolder.getMessage(remoteMessage.getUid());
-                boolean messageChanged = syncFlags(localMessage, remoteMessage);
-                if (messageChanged) {
-                    if (localMessage.isSet(Flag.DELETED) || isMessageSuppressed(account, folder, localMessage)) {
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxRemovedMessage(account, folder, localMessage);
-                        }
-                    } else {
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
-                        }
+                remoteFolder.fetch(undeletedMessages.toArray(EMPTY_MESSAGE_ARRAY), fp, null);
+            }
+            for (Message message : syncFlagMessages) {
+                Message remoteMessage = (changedMessages != null) ? changedMessages.get(message.getUid()) : message;
+                if (remoteMessage != null) {
+                    syncRemoteFlags(account, localFolder, remoteMessage);
+                }
+                int completed = progress.incrementAndGet();
+                if (throttle.shouldReport(completed, todo)) {
+                    for (MessagingListener l : getListeners()) {
+                        l.synchronizeMailboxProgress(account, folder, completed, todo);
                     }
+                }
+            }
+        }
+    }
 
+    /**
+     * Apply the flags of a remote message to its local copy, if there is one.
+     */
+    private void syncRemoteFlags(Account account, LocalFolder localFolder, Message remoteMessage)
+    throws MessagingException {
+        final String folder = localFolder.getName();
+        Message localMessage = localFolder.getMessage(remoteMessage.getUid());
+        boolean messageChanged = syncFlags(localMessage, remoteMessage);
+        if (messageChanged) {
+            if (localMessage.isSet(Flag.DELETED) || isMessageSuppressed(account, folder, localMessage)) {
+                for (MessagingListener l : getListeners()) {
+                    l.synchronizeMailboxRemovedMessage(account, folder, localMessage);
                 }
-                progress.incrementAndGet();
+            } else {
                 for (MessagingListener l : getListeners()) {
-                    l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+                    l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
                 }
             }
+
+        }
+    }
+
+    /**
+     * @param knownState
+     *            State of the remote folder the changes are relative to.
+     * @return Messages whose flags changed on the server, by UID,
+     *         <code>null</code> if the flags of all messages are to be fetched.
+     */
+    private Map<String, Message> getMessagesChangedSince(Folder remoteFolder, MailboxState knownState)
+    throws MessagingException {
+        if (knownState == null) {
+            return null;
+        }
+        MailboxState remoteState = remoteFolder.getMailboxState();
+        Message[] changed;
+        if (remoteState != null && remoteState.getHighestModSeq() == knownState.getHighestModSeq()) {
+            changed = EMPTY_MESSAGE_ARRAY;
+        } else {
+            changed = remoteFolder.getMessagesChangedSince(knownState.getHighestModSeq());
+            if (changed == null) {
+                return null;
+            }
+        }
+        Map<String, Message> changedMessages = new HashMap<String, Message>(changed.length);
+        for (Message message : changed) {
+            changedMessages.put(message.getUid(), message);
         }
+        return changedMessages;
     }
 
     private boolean syncFlags(Message localMessage, Message remoteMessage) throws MessagingException {
@@ -1806,7 +2576,7 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommands(final Account account) {
-        putBackground("processPendingCommands", null, new Runnable() {
+        putCoalescing("processPendingCommands", account, null, null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -1825,12 +2595,73 @@ public class MessagingController implements Runnable {
                      */
                 }
             }
-        });
+        }, false);
     }
 
+    /**
+     * Process the pending commands of an account. Folders of an account may be
+     * synchronized concurrently, so only one thread per account processes the
+     * pending commands at a time; the others wait for it to finish.
+     */
     private void processPendingCommandsSynchronous(Account account) throws MessagingException {
+        synchronized (getPendingCommandsLock(account)) {
+            processPendingCommandsLocked(account);
+        }
+    }
+
+    private Object getPendingCommandsLock(Account account) {
+        Object lock = pendingCommandsLocks.get(account.getUuid());
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = pendingCommandsLocks.putIfAbsent(account.getUuid(), newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Give messages that were moved back to their folder before the moves
+     * were replayed their server UID again.
+     */
+    private void restoreUids(Account account, List<PendingCommandJournal.RestoredUid> restoredUids)
+    throws MessagingException {
+        LocalStore localStore = account.getLocalStore();
+        for (PendingCommandJournal.RestoredUid restoredUid : restoredUids) {
+            LocalFolder localFolder = localStore.getFolder(restoredUid.folder);
+            try {
+                LocalMessage localMessage = (LocalMessage) localFolder.getMessage(restoredUid.localUid);
+                if (localMessage == null || localFolder.getMessage(restoredUid.uid) != null) {
+                    // deleted meanwhile, or already downloaded again
+                    continue;
+                }
+                localMessage.setUid(restoredUid.uid);
+                localFolder.changeUid(localMessage);
+                for (MessagingListener l : getListeners()) {
+                    l.messageUidChanged(account, restoredUid.folder, restoredUid.localUid, restoredUid.uid);
+                }
+            } finally {
+                closeFolder(localFolder);
+            }
+        }
+    }
+
+    private void processPendingCommandsLocked(Account account) throws MessagingException {
         LocalStore localStore = account.getLocalStore();
-        ArrayList<PendingCommand> commands = localStore.getPendingCommands();
+        List<PendingCommand> commands = localStore.getPendingCommands();
+
+        List<PendingCommandJournal.RestoredUid> restoredUids = new ArrayList<PendingCommandJournal.RestoredUid>();
+        List<PendingCommand> coalesced = PendingCommandJournal.coalesce(commands, restoredUids);
+        if (coalesced != null) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "Coalesced " + commands.size() + " pending commands of account "
+                      + account.getDescription() + " into " + coalesced.size());
+
+            localStore.replacePendingCommands(commands, coalesced);
+            commands = coalesced;
+            restoreUids(account, restoredUids);
+        }
 
         int progress = 0;
         int todo = commands.size();
@@ -1845,8 +2676,11 @@ public class MessagingController implements Runnable {
 
         PendingCommand processingCommand = null;
         try {
-            for (PendingCommand command : commands) {
+            for (int i = 0; i < commands.size(); i++) {
+                PendingCommand command = commands.get(i);
                 processingCommand = command;
+                // commands processed along with this one
+                List<PendingCommand> processed = Collections.singletonList(command);
                 if (K9.DEBUG)
                     Log.d(K9.LOG_TAG, "Processing pending command '" + command + "'");
 
@@ -1863,13 +2697,15 @@ public class MessagingController implements Runnable {
                 try {
                     if (PENDING_COMMAND_APPEND.equals(command.command)) {
                         processPendingAppend(command, account);
-                    } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
-                        processPendingSetFlag(command, account);
+                    } else if (isPendingSetFlags(command)) {
+                        processed = getPendingSetFlagsRun(commands, i);
+                        processPendingSetFlags(processed, account);
                     } else if (PENDING_COMMAND_SET_FLAG.equals(command.command)) {
                         processPendingSetFlagOld(command, account);
                     } else if (PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command)) {
                         processPendingMarkAllAsRead(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command)) {
+                    } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command)
+                               || PENDING_COMMAND_MOVE_OR_COPY_SET.equals(command.command)) {
                         processPendingMoveOrCopy(command, account);
                     } else if (PENDING_COMMAND_MOVE_OR_COPY.equals(command.command)) {
                         processPendingMoveOrCopyOld(command, account);
@@ -1878,19 +2714,26 @@ public class MessagingController implements Runnable {
                     } else if (PENDING_COMMAND_EXPUNGE.equals(command.command)) {
                         processPendingExpunge(command, account);
                     }
-                    localStore.removePendingCommand(command);
+                    for (PendingCommand processedCommand : processed) {
+                        localStore.removePendingCommand(processedCommand);
+                    }
                     if (K9.DEBUG)
-                        Log.d(K9.LOG_TAG, "Done processing pending command '" + command + "'");
+                        Log.d(K9.LOG_TAG, "Done processing pending command '" + command + "'"
+                              + (processed.size() > 1 ? " and " + (processed.size() - 1) + " following ones" : ""));
                 } catch (MessagingException me) {
-                    if (me.isPermanentFailure()) {
+                    if (me.isPermanentFailure() && processed.size() > 1) {
+                        // don't know which command of the run failed
+                        processPendingSetFlagsSeparately(processed, account);
+                    } else if (me.isPermanentFailure()) {
                         addErrorMessage(account, null, me);
                         Log.e(K9.LOG_TAG, "Failure of command '" + command + "' was permanent, removing command from queue");
-                        localStore.removePendingCommand(processingCommand);
+                        localStore.removePendingCommand(command);
                     } else {
                         throw me;
                     }
                 } finally {
-                    progress++;
+                    i += processed.size() - 1;
+                    progress += processed.size();
                     for (MessagingListener l : getListeners()) {
                         l.synchronizeMailboxProgress(account, null, progress, todo);
                         l.pendingCommandCompleted(account, commandTitle);
@@ -2044,20 +2887,21 @@ public class MessagingController implements Runnable {
             closeFolder(localFolder);
         }
     }
-    private void queueMoveOrCopy(Account account, String srcFolder, String destFolder, boolean isCopy, String uids[]) {
+    /**
+     * @param newUids
+     *            Local UIDs of the moved messages in the destination folder, in
+     *            the order of <code>uids</code>. <code>null</code> if unknown.
+     */
+    private void queueMoveOrCopy(Account account, String srcFolder, String destFolder, boolean isCopy, String uids[],
+                                 String newUids[]) {
         if (account.getErrorFolderName().equals(srcFolder)) {
             return;
         }
-        PendingCommand command = new PendingCommand();
-        command.command = PENDING_COMMAND_MOVE_OR_COPY_BULK;
-
-        int length = 3 + uids.length;
-        command.arguments = new String[length];
-        command.arguments[0] = srcFolder;
-        command.arguments[1] = destFolder;
-        command.arguments[2] = Boolean.toString(isCopy);
-        System.arraycopy(uids, 0, command.arguments, 3, uids.length);
-        queuePendingCommand(account, command);
+        PendingCommandJournal.MoveOrCopy moveOrCopy = new PendingCommandJournal.MoveOrCopy(srcFolder, destFolder, isCopy);
+        for (int i = 0; i < uids.length; i++) {
+            moveOrCopy.add(uids[i], (newUids == null) ? null : newUids[i]);
+        }
+        queuePendingCommand(account, moveOrCopy.toCommand());
     }
     /**
      * Process a pending trash message command.
@@ -2071,27 +2915,23 @@ public class MessagingController implements Runnable {
         Folder remoteSrcFolder = null;
         Folder remoteDestFolder = null;
         try {
-            String srcFolder = command.arguments[0];
+            PendingCommandJournal.MoveOrCopy moveOrCopy = PendingCommandJournal.parseMoveOrCopy(command);
+            String srcFolder = moveOrCopy.srcFolder;
             if (account.getErrorFolderName().equals(srcFolder)) {
                 return;
             }
-            String destFolder = command.arguments[1];
-            String isCopyS = command.arguments[2];
+            String destFolder = moveOrCopy.destFolder;
             Store remoteStore = account.getRemoteStore();
             remoteSrcFolder = remoteStore.getFolder(srcFolder);
 
             List<Message> messages = new ArrayList<Message>();
-            for (int i = 3; i < command.arguments.length; i++) {
-                String uid = command.arguments[i];
+            for (String uid : moveOrCopy.uids) {
                 if (!uid.startsWith(K9.LOCAL_UID_PREFIX)) {
                     messages.add(remoteSrcFolder.getMessage(uid));
                 }
             }
 
-            boolean isCopy = false;
-            if (isCopyS != null) {
-                isCopy = Boolean.parseBoolean(isCopyS);
-            }
+            boolean isCopy = moveOrCopy.isCopy;
 
             if (!remoteSrcFolder.exists()) {
                 throw new MessagingException("processingPendingMoveOrCopy: remoteFolder " + srcFolder + " does not exist", true);
@@ -2138,70 +2978,147 @@ public class MessagingController implements Runnable {
     }
 
     private void queueSetFlag(final Account account, final String folderName, final String newState, final String flag, final String[] uids) {
-        putBackground("queueSetFlag " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground("queueSetFlag " + account.getDescription() + ":" + folderName, account, null, new Runnable() {
             @Override
             public void run() {
-                PendingCommand command = new PendingCommand();
-                command.command = PENDING_COMMAND_SET_FLAG_BULK;
-                int length = 3 + uids.length;
-                command.arguments = new String[length];
-                command.arguments[0] = folderName;
-                command.arguments[1] = newState;
-                command.arguments[2] = flag;
-                System.arraycopy(uids, 0, command.arguments, 3, uids.length);
-                queuePendingCommand(account, command);
+                PendingCommandJournal.SetFlags setFlags = new PendingCommandJournal.SetFlags(folderName,
+                        Flag.valueOf(flag), Boolean.parseBoolean(newState));
+                setFlags.uids.addAll(Arrays.asList(uids));
+                /*
+                 * Not while the journal is coalesced and UIDs are restored,
+                 * the command would be coalesced with the local UIDs being
+                 * replaced.
+                 */
+                synchronized (getPendingCommandsLock(account)) {
+                    queuePendingCommand(account, setFlags.toCommand());
+                }
                 processPendingCommands(account);
             }
         });
     }
+
+    private static boolean isPendingSetFlags(PendingCommand command) {
+        return PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)
+               || PENDING_COMMAND_SET_FLAGS.equals(command.command);
+    }
+
+    /**
+     * @return The flag change command at <code>start</code> and the ones
+     *         directly following it that target the same folder. The run
+     *         stops before a command changing a flag of a message that an
+     *         earlier command of the run changes too: pipelined commands may
+     *         be applied in any order.
+     */
+    private static List<PendingCommand> getPendingSetFlagsRun(List<PendingCommand> commands, int start) {
+        PendingCommandJournal.SetFlags first = PendingCommandJournal.parseSetFlags(commands.get(start));
+        Map<Flag, Set<String>> changedUids = new HashMap<Flag, Set<String>>();
+        changedUids.put(first.flag, new HashSet<String>(first.uids));
+        int end = start + 1;
+        while (end < commands.size() && isPendingSetFlags(commands.get(end))) {
+            PendingCommandJournal.SetFlags setFlags = PendingCommandJournal.parseSetFlags(commands.get(end));
+            if (!first.folder.equals(setFlags.folder)) {
+                break;
+            }
+            Set<String> uids = changedUids.get(setFlags.flag);
+            if (uids == null) {
+                uids = new HashSet<String>();
+                changedUids.put(setFlags.flag, uids);
+            } else if (!Collections.disjoint(uids, setFlags.uids)) {
+                break;
+            }
+            uids.addAll(setFlags.uids);
+            end++;
+        }
+        return commands.subList(start, end);
+    }
+
     /**
-     * Processes a pending mark read or unread command.
+     * Sends flag change commands one at a time, after the run they were
+     * pipelined in failed, so that only the failing ones are dropped.
+     */
+    private void processPendingSetFlagsSeparately(List<PendingCommand> commands, Account account)
+    throws MessagingException {
+        LocalStore localStore = account.getLocalStore();
+        for (PendingCommand command : commands) {
+            try {
+                processPendingSetFlags(Collections.singletonList(command), account);
+            } catch (MessagingException me) {
+                if (!me.isPermanentFailure()) {
+                    throw me;
+                }
+                addErrorMessage(account, null, me);
+                Log.e(K9.LOG_TAG, "Failure of command '" + command + "' was permanent, removing command from queue");
+            }
+            localStore.removePendingCommand(command);
+        }
+    }
+
+    /**
+     * Processes pending mark read or unread commands of a single folder. The
+     * changes are sent at once, for servers able to pipeline them.
      *
-     * @param command arguments = (String folder, String uid, boolean read)
+     * @param commands see {@link PendingCommandJournal#parseSetFlags(PendingCommand)}
      * @param account
      */
-    private void processPendingSetFlag(PendingCommand command, Account account)
+    private void processPendingSetFlags(List<PendingCommand> commands, Account account)
     throws MessagingException {
-        String folder = command.arguments[0];
+        List<PendingCommandJournal.SetFlags> setFlagsList = new ArrayList<PendingCommandJournal.SetFlags>(commands.size());
+        for (PendingCommand command : commands) {
+            setFlagsList.add(PendingCommandJournal.parseSetFlags(command));
+        }
+        String folder = setFlagsList.get(0).folder;
 
         if (account.getErrorFolderName().equals(folder)) {
             return;
         }
 
-        boolean newState = Boolean.parseBoolean(command.arguments[1]);
-
-        Flag flag = Flag.valueOf(command.arguments[2]);
-
         Store remoteStore = account.getRemoteStore();
         Folder remoteFolder = remoteStore.getFolder(folder);
-        if (!remoteFolder.exists() ||
-                /*
-                 * Don't proceed if the remote folder doesn't support flags and
-                 * the flag to be changed isn't the deleted flag. This avoids
-                 * unnecessary connections to POP3 servers.
-                 */
-                // TODO: This should actually call a supportsSettingFlag(flag) method.
-                (!remoteFolder.supportsFetchingFlags() && !Flag.DELETED.equals(flag))) {
+        if (!remoteFolder.exists()) {
             return;
         }
 
+        /*
+         * Skip the changes if the remote folder doesn't support flags and
+         * the flag to be changed isn't the deleted flag. This avoids
+         * unnecessary connections to POP3 servers.
+         */
+        // TODO: This should actually call a supportsSettingFlag(flag) method.
+        if (!remoteFolder.supportsFetchingFlags()) {
+            Iterator<PendingCommandJournal.SetFlags> iterator = setFlagsList.iterator();
+            while (iterator.hasNext()) {
+                if (!Flag.DELETED.equals(iterator.next().flag)) {
+                    iterator.remove();
+                }
+            }
+            if (setFlagsList.isEmpty()) {
+                return;
+            }
+        }
+
         try {
             remoteFolder.open(OpenMode.READ_WRITE);
             if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
                 return;
             }
-            List<Message> messages = new ArrayList<Message>();
-            for (int i = 3; i < command.arguments.length; i++) {
-                String uid = command.arguments[i];
-                if (!uid.startsWith(K9.LOCAL_UID_PREFIX)) {
-                    messages.add(remoteFolder.getMessage(uid));
+            List<Folder.FlagChange> changes = new ArrayList<Folder.FlagChange>(setFlagsList.size());
+            for (PendingCommandJournal.SetFlags setFlags : setFlagsList) {
+                List<Message> messages = new ArrayList<Message>();
+                for (String uid : setFlags.uids) {
+                    if (!uid.startsWith(K9.LOCAL_UID_PREFIX)) {
+                        messages.add(remoteFolder.getMessage(uid));
+                    }
+                }
+                if (messages.size() > 0) {
+                    changes.add(new Folder.FlagChange(messages.toArray(EMPTY_MESSAGE_ARRAY),
+                                                      new Flag[] { setFlags.flag }, setFlags.state));
                 }
             }
 
-            if (messages.size() == 0) {
+            if (changes.isEmpty()) {
                 return;
             }
-            remoteFolder.setFlags(messages.toArray(EMPTY_MESSAGE_ARRAY), new Flag[] { flag }, newState);
+            remoteFolder.setFlags(changes);
         } finally {
             closeFolder(remoteFolder);
         }
@@ -2247,7 +3164,7 @@ public class MessagingController implements Runnable {
         }
     }
     private void queueExpunge(final Account account, final String folderName) {
-        putBackground("queueExpunge " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground("queueExpunge " + account.getDescription() + ":" + folderName, account, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = new PendingCommand();
@@ -2363,19 +3280,12 @@ public class MessagingController implements Runnable {
             Store localStore = account.getLocalStore();
             localFolder = (LocalFolder) localStore.getFolder(folder);
             localFolder.open(OpenMode.READ_WRITE);
-            Message[] messages = localFolder.getMessages(null, false);
-            for (Message message : messages) {
-                if (!message.isSet(Flag.SEEN)) {
-                    message.setFlag(Flag.SEEN, true);
-                    for (MessagingListener l : getListeners()) {
-                        l.listLocalMessagesUpdateMessage(account, folder, message);
-                    }
+            // usually done already when the command was queued
+            if (localFolder.markAllMessagesRead() > 0) {
+                for (MessagingListener l : getListeners()) {
+                    l.folderStatusChanged(account, folder, 0);
                 }
             }
-            localFolder.setUnreadMessageCount(0);
-            for (MessagingListener l : getListeners()) {
-                l.folderStatusChanged(account, folder, 0);
-            }
 
 
             if (account.getErrorFolderName().equals(folder)) {
@@ -2477,13 +3387,33 @@ public class MessagingController implements Runnable {
 
         if (K9.DEBUG)
             Log.i(K9.LOG_TAG, "Marking all messages in " + account.getDescription() + ":" + folder + " as read");
-        List<String> args = new ArrayList<String>();
-        args.add(folder);
-        PendingCommand command = new PendingCommand();
-        command.command = PENDING_COMMAND_MARK_ALL_AS_READ;
-        command.arguments = args.toArray(EMPTY_STRING_ARRAY);
-        queuePendingCommand(account, command);
-        processPendingCommands(account);
+        putBackground("markAllMessagesRead", account, null, new Runnable() {
+            @Override
+            public void run() {
+                LocalFolder localFolder = null;
+                try {
+                    localFolder = account.getLocalStore().getFolder(folder);
+                    localFolder.markAllMessagesRead();
+                    for (MessagingListener l : getListeners()) {
+                        l.folderStatusChanged(account, folder, 0);
+                    }
+                } catch (MessagingException e) {
+                    Log.e(K9.LOG_TAG, "Unable to mark all messages in " + folder + " as read", e);
+                    addErrorMessage(account, null, e);
+                } finally {
+                    closeFolder(localFolder);
+                }
+
+                // the server side is a single command for the whole folder
+                List<String> args = new ArrayList<String>();
+                args.add(folder);
+                PendingCommand command = new PendingCommand();
+                command.command = PENDING_COMMAND_MARK_ALL_AS_READ;
+                command.arguments = args.toArray(EMPTY_STRING_ARRAY);
+                queuePendingCommand(account, command);
+                processPendingCommands(account);
+            }
+        });
     }
 
     public void setFlag(
@@ -2567,7 +3497,7 @@ public class MessagingController implements Runnable {
 
     public void loadMessageForViewRemote(final Account account, final String folder,
                                          final String uid, final MessagingListener listener) {
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        putPreempting("loadMessageForViewRemote", account, listener, new Runnable() {
             @Override
             public void run() {
                 Folder remoteFolder = null;
@@ -2658,8 +3588,17 @@ public class MessagingController implements Runnable {
                     || message.getId() == 0) {
                         throw new IllegalArgumentException("Message not found: folder=" + folder + ", uid=" + uid);
                     }
-                    if (!message.isSet(Flag.SEEN)) {
-                        message.setFlag(Flag.SEEN, true);
+                    boolean unseen = !message.isSet(Flag.SEEN);
+                    boolean prefetched = message.isSet(Flag.X_PREFETCHED);
+                    getPrefetchStats(account).addOpen(message.isSet(Flag.X_DOWNLOADED_FULL), prefetched);
+                    if (unseen || prefetched) {
+                        // only the first open counts as a prefetch hit
+                        Set<Flag> flags = new HashSet<Flag>(Arrays.asList(message.getFlags()));
+                        flags.add(Flag.SEEN);
+                        flags.remove(Flag.X_PREFETCHED);
+                        message.replaceFlags(flags);
+                    }
+                    if (unseen) {
                         setFlag(new Message[] { message }, Flag.SEEN, true);
                     }
 
@@ -2707,12 +3646,31 @@ public class MessagingController implements Runnable {
         final Part part,
         final Object tag,
         final MessagingListener listener) {
+        loadAttachments(account, message, Collections.singletonList(part), tag, listener);
+    }
+
+    /**
+     * Attempts to load the given attachments of a message at once. They are
+     * downloaded over several connections if the remote store allows it, see
+     * {@link Account#getMaxAttachmentConnections()}. Listeners are notified
+     * for each attachment.
+     */
+    public void loadAttachments(
+        final Account account,
+        final Message message,
+        final List<Part> parts,
+        final Object tag,
+        final MessagingListener listener) {
         /*
          * Check if the attachment has already been downloaded. If it has there's no reason to
          * download it, so we just tell the listener that it's ready to go.
          */
-
-        if (part.getBody() != null) {
+        final List<Part> missingParts = new ArrayList<Part>(parts.size());
+        for (Part part : parts) {
+            if (part.getBody() == null) {
+                missingParts.add(part);
+                continue;
+            }
             for (MessagingListener l : getListeners()) {
                 l.loadAttachmentStarted(account, message, part, tag, false);
             }
@@ -2727,19 +3685,21 @@ public class MessagingController implements Runnable {
             if (listener != null) {
                 listener.loadAttachmentFinished(account, message, part, tag);
             }
+        }
+        if (missingParts.isEmpty()) {
             return;
         }
 
-
-
-        for (MessagingListener l : getListeners()) {
-            l.loadAttachmentStarted(account, message, part, tag, true);
-        }
-        if (listener != null) {
-            listener.loadAttachmentStarted(account, message, part, tag, false);
+        for (Part part : missingParts) {
+            for (MessagingListener l : getListeners()) {
+                l.loadAttachmentStarted(account, message, part, tag, true);
+            }
+            if (listener != null) {
+                listener.loadAttachmentStarted(account, message, part, tag, false);
+            }
         }
 
-        put("loadAttachment", listener, new Runnable() {
+        putPreempting("loadAttachment", account, listener, new Runnable() {
             @Override
             public void run() {
                 Folder remoteFolder = null;
@@ -2761,24 +3721,59 @@ public class MessagingController implements Runnable {
                     //FIXME: This is an ugly hack that won't be needed once the Message objects have been united.
                     Message remoteMessage = remoteFolder.getMessage(message.getUid());
                     remoteMessage.setBody(message.getBody());
-                    remoteFolder.fetchPart(remoteMessage, part, null);
 
-                    localFolder.updateMessage((LocalMessage)message);
-                    for (MessagingListener l : getListeners()) {
-                        l.loadAttachmentFinished(account, message, part, tag);
+                    List<ParallelPartDownload.Job> jobs = new ArrayList<ParallelPartDownload.Job>(missingParts.size());
+                    for (final Part part : missingParts) {
+                        String[] storeData = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+                        File partialFile = localStore.getPartialDownloadFile(remoteFolder.getName(), remoteFolder.getUidValidity(),
+                                           message.getUid(), (storeData == null) ? "" : storeData[0]);
+                        File target = null;
+                        if (part instanceof LocalAttachmentBodyPart
+                                && ((LocalAttachmentBodyPart) part).getAttachmentId() > 0) {
+                            // decode straight into the file the local store keeps the attachment in
+                            target = localStore.getAttachmentFile(((LocalAttachmentBodyPart) part).getAttachmentId());
+                        }
+                        jobs.add(new ParallelPartDownload.Job(part, partialFile, target,
+                        new ResumablePartDownload.ProgressListener() {
+                            @Override
+                            public void bytesDownloaded(long downloaded, long total) {
+                                for (MessagingListener l : getListeners(listener)) {
+                                    l.loadAttachmentProgress(account, message, part, tag, downloaded, total);
+                                }
+                            }
+                        }));
                     }
-                    if (listener != null) {
-                        listener.loadAttachmentFinished(account, message, part, tag);
+                    new ParallelPartDownload(remoteStore, remoteFolder, remoteMessage,
+                                             account.getMaxAttachmentConnections(), threadPool).download(jobs);
+
+                    for (ParallelPartDownload.Job job : jobs) {
+                        if (job.isAssembledToTarget()) {
+                            long attachmentId = ((LocalAttachmentBodyPart) job.part).getAttachmentId();
+                            job.part.setBody(new LocalAttachmentBody(
+                                                 AttachmentProvider.getAttachmentUri(account, attachmentId), mApplication));
+                        }
+                    }
+
+                    localFolder.updateMessage((LocalMessage)message);
+                    for (Part part : missingParts) {
+                        for (MessagingListener l : getListeners()) {
+                            l.loadAttachmentFinished(account, message, part, tag);
+                        }
+                        if (listener != null) {
+                            listener.loadAttachmentFinished(account, message, part, tag);
+                        }
                     }
                 } catch (MessagingException me) {
                     if (K9.DEBUG)
                         Log.v(K9.LOG_TAG, "Exception loading attachment", me);
 
-                    for (MessagingListener l : getListeners()) {
-                        l.loadAttachmentFailed(account, message, part, tag, me.getMessage());
-                    }
-                    if (listener != null) {
-                        listener.loadAttachmentFailed(account, message, part, tag, me.getMessage());
+                    for (Part part : missingParts) {
+                        for (MessagingListener l : getListeners()) {
+                            l.loadAttachmentFailed(account, message, part, tag, me.getMessage());
+                        }
+                        if (listener != null) {
+                            listener.loadAttachmentFailed(account, message, part, tag, me.getMessage());
+                        }
                     }
                     addErrorMessage(account, null, me);
 
@@ -2790,6 +3785,26 @@ public class MessagingController implements Runnable {
         });
     }
 
+    /**
+     * Fetch the content of a part. Big parts are fetched in chunks that are
+     * kept across attempts, if the remote store supports it.
+     *
+     * @param listener
+     *            Notified of the progress of chunked downloads, may be
+     *            <code>null</code>.
+     */
+    private void fetchPart(Account account, Folder remoteFolder, Message message, Part part,
+                           ResumablePartDownload.ProgressListener listener) throws MessagingException {
+        if (ResumablePartDownload.isApplicable(remoteFolder, part)) {
+            String partId = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA)[0];
+            File partialFile = account.getLocalStore().getPartialDownloadFile(remoteFolder.getName(), remoteFolder.getUidValidity(),
+                               message.getUid(), partId);
+            ResumablePartDownload.download(remoteFolder, message, part, partialFile, listener);
+        } else {
+            remoteFolder.fetchPart(message, part, null);
+        }
+    }
+
     /**
      * Stores the given message in the Outbox and starts a sendPendingMessages command to
      * attempt to send the message.
@@ -2838,7 +3853,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessages(final Account account,
                                     MessagingListener listener) {
-        putBackground("sendPendingMessages", listener, new Runnable() {
+        putCoalescing("sendPendingMessages", account, null, listener, new Runnable() {
             @Override
             public void run() {
                 if (!account.isAvailable(mApplication)) {
@@ -2856,7 +3871,7 @@ public class MessagingController implements Runnable {
                     }
                 }
             }
-        });
+        }, false);
     }
 
     private void cancelNotification(int id) {
@@ -3125,7 +4140,9 @@ public class MessagingController implements Runnable {
             public void run() {
                 try {
                     AccountStats stats = account.getStats(context);
-                    l.accountStatusChanged(account, stats);
+                    for (MessagingListener listener : getCommandListeners(l)) {
+                        listener.accountStatusChanged(account, stats);
+                    }
                 } catch (MessagingException me) {
                     Log.e(K9.LOG_TAG, "Count not get unread count for account " + account.getDescription(),
                           me);
@@ -3134,7 +4151,7 @@ public class MessagingController implements Runnable {
             }
         };
 
-        put("getAccountStats:" + account.getDescription(), l, unreadRunnable);
+        putCoalescing("getAccountStats", account, null, l, unreadRunnable, true);
     }
 
     public void getFolderUnreadMessageCount(final Account account, final String folderName,
@@ -3150,12 +4167,32 @@ public class MessagingController implements Runnable {
                 } catch (MessagingException me) {
                     Log.e(K9.LOG_TAG, "Count not get unread count for account " + account.getDescription(), me);
                 }
-                l.folderStatusChanged(account, folderName, unreadMessageCount);
+                for (MessagingListener listener : getCommandListeners(l)) {
+                    listener.folderStatusChanged(account, folderName, unreadMessageCount);
+                }
             }
         };
 
 
-        put("getFolderUnread:" + account.getDescription() + ":" + folderName, l, unreadRunnable);
+        putCoalescing("getFolderUnread", account, folderName, l, unreadRunnable, true);
+    }
+
+    /**
+     * Remember that the user opened the folder, so that it's synchronized
+     * early when checking mail.
+     */
+    public void folderOpened(final Account account, final String folderName) {
+        putCoalescing("folderOpened", account, folderName, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LocalFolder localFolder = account.getLocalStore().getFolder(folderName);
+                    localFolder.setLastOpened(System.currentTimeMillis());
+                } catch (MessagingException e) {
+                    Log.w(K9.LOG_TAG, "Unable to record opening of folder " + folderName, e);
+                }
+            }
+        }, false);
     }
 
 
@@ -3193,7 +4230,7 @@ public class MessagingController implements Runnable {
         for (Message message : messages) {
             suppressMessage(account, srcFolder, message);
         }
-        putBackground("moveMessages", null, new Runnable() {
+        putBackground("moveMessages", account, null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, false, listener);
@@ -3208,7 +4245,7 @@ public class MessagingController implements Runnable {
 
     public void copyMessages(final Account account, final String srcFolder, final Message[] messages, final String destFolder,
                              final MessagingListener listener) {
-        putBackground("copyMessages", null, new Runnable() {
+        putBackground("copyMessages", account, null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, true, listener);
@@ -3235,12 +4272,30 @@ public class MessagingController implements Runnable {
             Folder localSrcFolder = localStore.getFolder(srcFolder);
             Folder localDestFolder = localStore.getFolder(destFolder);
 
+            /*
+             * Messages that only exist locally can't be moved on the server. The
+             * exception are messages that are still waiting for a pending move to
+             * this folder: that move is redirected when the journal is replayed.
+             */
+            Set<String> pendingMoveTargets = null;
             List<String> uids = new LinkedList<String>();
             for (Message message : inMessages) {
                 String uid = message.getUid();
-                if (!uid.startsWith(K9.LOCAL_UID_PREFIX)) {
-                    uids.add(uid);
+                if (uid.startsWith(K9.LOCAL_UID_PREFIX)) {
+                    if (isCopy) {
+                        continue;
+                    }
+                    if (pendingMoveTargets == null) {
+                        synchronized (getPendingCommandsLock(account)) {
+                            pendingMoveTargets = PendingCommandJournal.getPendingMoveTargets(
+                                                     account.getLocalStore().getPendingCommands(), srcFolder);
+                        }
+                    }
+                    if (!pendingMoveTargets.contains(uid)) {
+                        continue;
+                    }
                 }
+                uids.add(uid);
             }
 
             Message[] messages = localSrcFolder.getMessages(uids.toArray(EMPTY_STRING_ARRAY), null);
@@ -3263,15 +4318,25 @@ public class MessagingController implements Runnable {
                     localSrcFolder.copyMessages(messages, localDestFolder);
                 } else {
                     localSrcFolder.moveMessages(messages, localDestFolder);
+                    Map<String, String> newUidMap = new HashMap<String, String>();
                     for (String origUid : origUidMap.keySet()) {
-                        for (MessagingListener l : getListeners()) {
-                            l.messageUidChanged(account, srcFolder, origUid, origUidMap.get(origUid).getUid());
-                        }
+                        newUidMap.put(origUid, origUidMap.get(origUid).getUid());
                         unsuppressMessage(account, srcFolder, origUid);
                     }
+                    for (MessagingListener l : getListeners()) {
+                        l.messageUidsChanged(account, srcFolder, newUidMap);
+                    }
                 }
 
-                queueMoveOrCopy(account, srcFolder, destFolder, isCopy, origUidMap.keySet().toArray(EMPTY_STRING_ARRAY));
+                String[] origUids = origUidMap.keySet().toArray(EMPTY_STRING_ARRAY);
+                String[] newUids = null;
+                if (!isCopy) {
+                    newUids = new String[origUids.length];
+                    for (int i = 0; i < origUids.length; i++) {
+                        newUids[i] = origUidMap.get(origUids[i]).getUid();
+                    }
+                }
+                queueMoveOrCopy(account, srcFolder, destFolder, isCopy, origUids, newUids);
             }
 
             processPendingCommands(account);
@@ -3286,7 +4351,7 @@ public class MessagingController implements Runnable {
     }
 
     public void expunge(final Account account, final String folder, final MessagingListener listener) {
-        putBackground("expunge", null, new Runnable() {
+        putBackground("expunge", account, null, new Runnable() {
             @Override
             public void run() {
                 queueExpunge(account, folder);
@@ -3321,7 +4386,7 @@ public class MessagingController implements Runnable {
                     suppressMessage(account, folder.getName(), message);
                 }
 
-                putBackground("deleteMessages", null, new Runnable() {
+                putBackground("deleteMessages", account, null, new Runnable() {
                     @Override
                     public void run() {
                         deleteMessagesSynchronous(account, folder.getName(), messages.toArray(EMPTY_MESSAGE_ARRAY), listener);
@@ -3338,6 +4403,7 @@ public class MessagingController implements Runnable {
         Folder localFolder = null;
         Folder localTrashFolder = null;
         String[] uids = getUidsFromMessages(messages);
+        String[] newUids = null;
         try {
             //We need to make these callbacks before moving the messages to the trash
             //as messages get a new UID after being moved
@@ -3366,6 +4432,7 @@ public class MessagingController implements Runnable {
                         Log.d(K9.LOG_TAG, "Deleting messages in normal folder, moving");
 
                     localFolder.moveMessages(messages, localTrashFolder);
+                    newUids = getUidsFromMessages(messages);
 
                 }
             }
@@ -3398,7 +4465,7 @@ public class MessagingController implements Runnable {
                 if (folder.equals(account.getTrashFolderName())) {
                     queueSetFlag(account, folder, Boolean.toString(true), Flag.DELETED.toString(), uids);
                 } else {
-                    queueMoveOrCopy(account, folder, account.getTrashFolderName(), false, uids);
+                    queueMoveOrCopy(account, folder, account.getTrashFolderName(), false, uids, newUids);
                 }
                 processPendingCommands(account);
             } else if (account.getDeletePolicy() == Account.DELETE_POLICY_MARK_AS_READ) {
@@ -3457,15 +4524,15 @@ public class MessagingController implements Runnable {
     }
 
     public void emptyTrash(final Account account, MessagingListener listener) {
-        putBackground("emptyTrash", listener, new Runnable() {
+        putBackground("emptyTrash", account, listener, new Runnable() {
             @Override
             public void run() {
-                Folder localFolder = null;
+                LocalFolder localFolder = null;
                 try {
-                    Store localStore = account.getLocalStore();
+                    LocalStore localStore = account.getLocalStore();
                     localFolder = localStore.getFolder(account.getTrashFolderName());
                     localFolder.open(OpenMode.READ_WRITE);
-                    localFolder.setFlags(new Flag[] { Flag.DELETED }, true);
+                    localFolder.markAllMessagesDeleted();
 
                     for (MessagingListener l : getListeners()) {
                         l.emptyTrashCompleted(account);
@@ -3577,16 +4644,17 @@ public class MessagingController implements Runnable {
         for (MessagingListener l : getListeners()) {
             l.checkMailStarted(context, account);
         }
-        putBackground("checkMail", listener, new Runnable() {
+        putBackground("checkMail", account, listener, new Runnable() {
             @Override
             public void run() {
 
+                Account[] accounts = null;
+                final Set<String> synchronizedAccounts = new HashSet<String>();
                 try {
                     if (K9.DEBUG)
                         Log.i(K9.LOG_TAG, "Starting mail check");
                     Preferences prefs = Preferences.getPreferences(context);
 
-                    Account[] accounts;
                     if (account != null) {
                         accounts = new Account[] {
                             account
@@ -3596,14 +4664,17 @@ public class MessagingController implements Runnable {
                     }
 
                     for (final Account account : accounts) {
-                        checkMailForAccount(context, account, ignoreLastCheckedTime, prefs, listener);
+                        if (checkMailForAccount(context, account, ignoreLastCheckedTime, prefs, listener)) {
+                            synchronizedAccounts.add(account.getUuid());
+                        }
                     }
 
                 } catch (Exception e) {
                     Log.e(K9.LOG_TAG, "Unable to synchronize mail", e);
                     addErrorMessage(account, null, e);
                 }
-                putBackground("finalize sync", null, new Runnable() {
+
+                final Runnable finalizer = new Runnable() {
                     @Override
                     public void run() {
 
@@ -3618,29 +4689,102 @@ public class MessagingController implements Runnable {
                         }
 
                     }
+                };
+
+                if (accounts == null || accounts.length == 0) {
+                    finalizer.run();
+                    return;
+                }
+
+                /*
+                 * The synchronization commands were queued in the lanes of the
+                 * individual accounts. Queue a marker behind them in every lane
+                 * and finish once the last of them has been run.
+                 */
+                final AtomicInteger remaining = new AtomicInteger(accounts.length);
+                for (Account acct : accounts) {
+                    final Account finalAccount = acct;
+                    putBackground("finalize sync", acct, null, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (remaining.decrementAndGet() == 0) {
+                                finalizer.run();
+                            }
+                            // nothing new to prefetch or expire in skipped accounts
+                            if (synchronizedAccounts.contains(finalAccount.getUuid())) {
+                                prefetchBodies(finalAccount);
+                                applyRetentionPolicy(finalAccount);
+                            }
+                        }
+                    });
                 }
-                             );
             }
         });
     }
 
 
 
-    private void checkMailForAccount(final Context context, final Account account,
-                                     final boolean ignoreLastCheckedTime,
-                                     final Preferences prefs,
-                                     final MessagingListener listener) {
+    /**
+     * @return The local folders of the account that are synchronized when
+     *         checking mail, opened and refreshed. Never <code>null</code>.
+     */
+    private List<Folder> getFoldersToSync(Account account, Preferences prefs) throws MessagingException {
+        Account.FolderMode aDisplayMode = account.getFolderDisplayMode();
+        Account.FolderMode aSyncMode = account.getFolderSyncMode();
+
+        Store localStore = account.getLocalStore();
+        List<Folder> foldersToSync = new ArrayList<Folder>();
+        for (final Folder folder : localStore.getPersonalNamespaces(false)) {
+            folder.open(Folder.OpenMode.READ_WRITE);
+            folder.refresh(prefs);
+
+            Folder.FolderClass fDisplayClass = folder.getDisplayClass();
+            Folder.FolderClass fSyncClass = folder.getSyncClass();
+
+            if (modeMismatch(aDisplayMode, fDisplayClass)) {
+                // Never sync a folder that isn't displayed
+                /*
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName() +
+                          " which is in display mode " + fDisplayClass + " while account is in display mode " + aDisplayMode);
+                */
+
+                continue;
+            }
+
+            if (modeMismatch(aSyncMode, fSyncClass)) {
+                // Do not sync folders in the wrong class
+                /*
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName() +
+                          " which is in sync mode " + fSyncClass + " while account is in sync mode " + aSyncMode);
+                */
+
+                continue;
+            }
+            foldersToSync.add(folder);
+        }
+        return foldersToSync;
+    }
+
+    /**
+     * @return Whether the synchronization of at least one folder was queued.
+     */
+    private boolean checkMailForAccount(final Context context, final Account account,
+                                        final boolean ignoreLastCheckedTime,
+                                        final Preferences prefs,
+                                        final MessagingListener listener) {
         if (!account.isAvailable(context)) {
             if (K9.DEBUG) {
                 Log.i(K9.LOG_TAG, "Skipping synchronizing unavailable account " + account.getDescription());
             }
-            return;
+            return false;
         }
         final long accountInterval = account.getAutomaticCheckIntervalMinutes() * 60 * 1000;
         if (!ignoreLastCheckedTime && accountInterval <= 0) {
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Skipping synchronizing account " + account.getDescription());
-            return;
+            return false;
         }
 
         if (K9.DEBUG)
@@ -3650,46 +4794,15 @@ public class MessagingController implements Runnable {
 
         sendPendingMessages(account, listener);
 
+        boolean synchronizing = false;
         try {
-            Account.FolderMode aDisplayMode = account.getFolderDisplayMode();
-            Account.FolderMode aSyncMode = account.getFolderSyncMode();
-
-            Store localStore = account.getLocalStore();
-            for (final Folder folder : localStore.getPersonalNamespaces(false)) {
-                folder.open(Folder.OpenMode.READ_WRITE);
-                folder.refresh(prefs);
-
-                Folder.FolderClass fDisplayClass = folder.getDisplayClass();
-                Folder.FolderClass fSyncClass = folder.getSyncClass();
-
-                if (modeMismatch(aDisplayMode, fDisplayClass)) {
-                    // Never sync a folder that isn't displayed
-                    /*
-                    if (K9.DEBUG)
-                        Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName() +
-                              " which is in display mode " + fDisplayClass + " while account is in display mode " + aDisplayMode);
-                    */
-
-                    continue;
-                }
-
-                if (modeMismatch(aSyncMode, fSyncClass)) {
-                    // Do not sync folders in the wrong class
-                    /*
-                    if (K9.DEBUG)
-                        Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName() +
-                              " which is in sync mode " + fSyncClass + " while account is in sync mode " + aSyncMode);
-                    */
-
-                    continue;
-                }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
-            }
+            List<Folder> foldersToSync = getFoldersToSync(account, prefs);
+            synchronizing = synchronizeFolders(account, foldersToSync, ignoreLastCheckedTime, accountInterval, listener);
         } catch (MessagingException e) {
             Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
             addErrorMessage(account, null, e);
         } finally {
-            putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
+            putBackground("clear notification flag for " + account.getDescription(), account, null, new Runnable() {
                 @Override
                 public void run() {
                     if (K9.DEBUG)
@@ -3707,10 +4820,271 @@ public class MessagingController implements Runnable {
             }
                          );
         }
+        return synchronizing;
+    }
 
 
+    /**
+     * Download the bodies of partially downloaded messages the user is likely
+     * to read soon, so that they can be opened without waiting for the
+     * network. Nothing is done unless the device is on an unmetered connection
+     * and no other command is waiting for the account. Prefetched bodies
+     * that weren't read yet take at most {@link Account#getPrefetchBudget()}
+     * bytes altogether.
+     */
+    public void prefetchBodies(final Account account) {
+        if (account.getPrefetchBudget() <= 0) {
+            return;
+        }
+        putCoalescing("prefetchBodies", account, null, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefetchBodiesSynchronous(account);
+                } catch (MessagingException e) {
+                    Log.e(K9.LOG_TAG, "Unable to prefetch message bodies for " + account.getDescription(), e);
+                }
+            }
+        }, false);
     }
 
+    /**
+     * Delete local copies of messages according to the retention policy of
+     * the account, see {@link RetentionEngine}. Runs while no other command
+     * is waiting for the account, the next run continues where it stopped.
+     */
+    public void applyRetentionPolicy(final Account account) {
+        if (!account.hasRetentionPolicy()) {
+            return;
+        }
+        putCoalescing("applyRetentionPolicy", account, null, null, new Runnable() {
+            @Override
+            public void run() {
+                if (!account.isAvailable(mApplication)) {
+                    return;
+                }
+                // unread and flagged counts of these changed
+                final Set<String> folders = new HashSet<String>();
+                try {
+                    RetentionEngine engine = new RetentionEngine(account.getLocalStore(), threadPool,
+                    new RetentionEngine.IdleCheck() {
+                        @Override
+                        public boolean isIdle() {
+                            return isAccountIdle(account);
+                        }
+                    }, new MessageRemovalListener() {
+                        @Override
+                        public void messageRemoved(Message message) {
+                            String folder = message.getFolder().getName();
+                            folders.add(folder);
+                            for (MessagingListener l : getListeners()) {
+                                l.synchronizeMailboxRemovedMessage(account, folder, message);
+                            }
+                        }
+                    });
+                    engine.apply(account, System.currentTimeMillis());
+                } catch (MessagingException e) {
+                    Log.e(K9.LOG_TAG, "Unable to apply retention policy of " + account.getDescription(), e);
+                }
+                for (String folder : folders) {
+                    for (MessagingListener l : getListeners()) {
+                        l.folderStatusChanged(account, folder);
+                    }
+                }
+            }
+        }, false);
+    }
+
+    /**
+     * @return Whether downloading data that the user didn't ask for is cheap
+     *         right now: background data is allowed and the active network
+     *         is WiFi without roaming.
+     */
+    private boolean isUnmeteredNetwork() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) mApplication.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null || !connectivityManager.getBackgroundDataSetting()) {
+            return false;
+        }
+        NetworkInfo netInfo = connectivityManager.getActiveNetworkInfo();
+        return netInfo != null && netInfo.isConnected() && !netInfo.isRoaming()
+               && netInfo.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    /**
+     * @return Whether the current command may keep using the account, i.e.
+     *         nothing else is waiting for it.
+     */
+    private boolean isAccountIdle(Account account) {
+        return mScheduler.getQueueDepth(account.getUuid()) == 0 && !isStopRequested();
+    }
+
+    private void prefetchBodiesSynchronous(final Account account) throws MessagingException {
+        if (!account.isAvailable(mApplication) || !isUnmeteredNetwork() || !isAccountIdle(account)) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "Not prefetching message bodies for " + account.getDescription());
+            return;
+        }
+
+        LocalStore localStore = account.getLocalStore();
+        if (localStore.getPrefetchedSize() >= account.getPrefetchBudget()) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "Prefetch budget of " + account.getDescription() + " is used up");
+            return;
+        }
+        List<PrefetchCandidate> candidates = localStore.getPrefetchCandidates(PREFETCH_CANDIDATES);
+        if (candidates.isEmpty()) {
+            return;
+        }
+        Set<String> frequentSenders = new HashSet<String>(localStore.getFrequentSenders(PREFETCH_FREQUENT_SENDERS));
+        List<PrefetchCandidate> ranked = PrefetchPlanner.rank(candidates, frequentSenders, System.currentTimeMillis());
+
+        Map<String, List<String>> uidsByFolder = new LinkedHashMap<String, List<String>>();
+        for (PrefetchCandidate candidate : ranked) {
+            List<String> uids = uidsByFolder.get(candidate.folderName);
+            if (uids == null) {
+                uids = new ArrayList<String>();
+                uidsByFolder.put(candidate.folderName, uids);
+            }
+            uids.add(candidate.uid);
+        }
+
+        Store remoteStore = account.getRemoteStore();
+        Map<String, Folder> remoteFolders = new HashMap<String, Folder>();
+        /*
+         * Sizes are only known remotely. Get them first, so that the budget
+         * can be spent in rank order across folders.
+         */
+        final Map<String, Message> remoteMessages = new HashMap<String, Message>();
+        for (Map.Entry<String, List<String>> entry : uidsByFolder.entrySet()) {
+            if (!isAccountIdle(account)) {
+                return;
+            }
+            String folderName = entry.getKey();
+            Folder remoteFolder = remoteStore.getFolder(folderName);
+            try {
+                remoteFolder.open(OpenMode.READ_WRITE);
+                Message[] messages = remoteFolder.getMessages(entry.getValue().toArray(EMPTY_STRING_ARRAY), null);
+                FetchProfile fp = new FetchProfile();
+                fp.add(FetchProfile.Item.ENVELOPE);
+                remoteFolder.fetch(messages, fp, new MessageRetrievalListener() {
+                    @Override
+                    public void messageStarted(String uid, int number, int ofTotal) {}
+
+                    @Override
+                    public void messageFinished(Message message, int number, int ofTotal) {
+                        remoteMessages.put(message.getFolder().getName() + ":" + message.getUid(), message);
+                    }
+
+                    @Override
+                    public void messagesFinished(int total) {}
+                });
+                remoteFolders.put(folderName, remoteFolder);
+            } catch (MessagingException e) {
+                Log.w(K9.LOG_TAG, "Unable to get message sizes of " + folderName + " for prefetching", e);
+            } finally {
+                closeFolder(remoteFolder);
+            }
+        }
+
+        // prefetched bodies that weren't read yet still count
+        long remaining = account.getPrefetchBudget() - localStore.getPrefetchedSize();
+        Map<String, List<Message>> selected = new LinkedHashMap<String, List<Message>>();
+        for (PrefetchCandidate candidate : ranked) {
+            Message message = remoteMessages.get(candidate.folderName + ":" + candidate.uid);
+            if (message == null || message.getSize() <= 0 || message.getSize() > remaining) {
+                continue;
+            }
+            remaining -= message.getSize();
+            List<Message> messages = selected.get(candidate.folderName);
+            if (messages == null) {
+                messages = new ArrayList<Message>();
+                selected.put(candidate.folderName, messages);
+            }
+            messages.add(message);
+        }
+
+        PrefetchStats stats = getPrefetchStats(account);
+        for (Map.Entry<String, List<Message>> entry : selected.entrySet()) {
+            if (!isAccountIdle(account)) {
+                return;
+            }
+            Folder remoteFolder = remoteFolders.get(entry.getKey());
+            LocalFolder localFolder = localStore.getFolder(entry.getKey());
+            try {
+                remoteFolder.open(OpenMode.READ_WRITE);
+                localFolder.open(OpenMode.READ_WRITE);
+                prefetchFolder(account, remoteFolder, localFolder, entry.getValue(), stats);
+            } catch (MessagingException e) {
+                Log.w(K9.LOG_TAG, "Unable to prefetch message bodies of " + entry.getKey(), e);
+            } finally {
+                closeFolder(remoteFolder);
+                closeFolder(localFolder);
+            }
+        }
+
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "Prefetched message bodies for " + account.getDescription() + ": " + stats);
+    }
+
+    private void prefetchFolder(final Account account, final Folder remoteFolder, final LocalFolder localFolder,
+                                final List<Message> messages, final PrefetchStats stats) throws MessagingException {
+        final String folder = localFolder.getName();
+
+        final List<Message> fetched = new ArrayList<Message>(messages.size());
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        remoteFolder.fetch(messages.toArray(EMPTY_MESSAGE_ARRAY), fp, new MessageRetrievalListener() {
+            @Override
+            public void messageStarted(String uid, int number, int ofTotal) {}
+
+            @Override
+            public void messageFinished(Message message, int number, int ofTotal) {
+                fetched.add(message);
+            }
+
+            @Override
+            public void messagesFinished(int total) {}
+        });
+
+        final List<Message> toStore = new ArrayList<Message>(fetched.size());
+        final List<Set<Flag>> localFlags = new ArrayList<Set<Flag>>(fetched.size());
+        for (Message message : fetched) {
+            Message before = localFolder.getMessage(message.getUid());
+            if (before == null || before.isSet(Flag.DELETED) || before.isSet(Flag.X_DOWNLOADED_FULL)) {
+                // changed since the candidates were selected
+                continue;
+            }
+            toStore.add(message);
+            localFlags.add(new HashSet<Flag>(Arrays.asList(before.getFlags())));
+        }
+        if (toStore.isEmpty()) {
+            return;
+        }
+
+        Flag[] downloadFlags = new Flag[toStore.size()];
+        Arrays.fill(downloadFlags, Flag.X_DOWNLOADED_FULL);
+        List<Message> localMessages = localFolder.storeMessages(toStore, downloadFlags);
+
+        for (int i = 0, count = toStore.size(); i < count; i++) {
+            Message message = toStore.get(i);
+            LocalMessage localMessage = (LocalMessage) localMessages.get(i);
+
+            /*
+             * The stored message got the flags of the server. Put back the
+             * local ones, the server may not know about them yet.
+             */
+            Set<Flag> wanted = localFlags.get(i);
+            wanted.remove(Flag.X_DOWNLOADED_PARTIAL);
+            wanted.add(Flag.X_DOWNLOADED_FULL);
+            wanted.add(Flag.X_PREFETCHED);
+            localMessage.replaceFlags(wanted);
+
+            stats.addPrefetched(message.getSize());
+            for (MessagingListener l : getListeners()) {
+                l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
+            }
+        }
+    }
 
     private void synchronizeFolder(
         final Account account,
@@ -3719,64 +5093,292 @@ public class MessagingController implements Runnable {
         final long accountInterval,
         final MessagingListener listener) {
 
+        if (isFolderSyncTooRecent(folder, ignoreLastCheckedTime, accountInterval)) {
+            return;
+        }
+        putBackground("sync" + folder.getName(), account, null, new Runnable() {
+            @Override
+            public void run() {
+                notifyFetchingMail(account, folder);
+                try {
+                    synchronizeFolderSynchronous(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                } finally {
+                    notifyFetchingMailCancel(account);
+                }
+            }
+        }
+                     );
+
+
+    }
+
+    /**
+     * Synchronize several folders of an account. Up to
+     * {@link Account#getMaxConcurrentFolderSyncs()} folders (but no more than
+     * the remote store can serve at once) are synchronized in parallel, in
+     * the order given by {@link FolderSyncPriority}.
+     *
+     * @return Whether any folder was due for synchronization.
+     */
+    private boolean synchronizeFolders(
+        final Account account,
+        final List<Folder> folders,
+        final boolean ignoreLastCheckedTime,
+        final long accountInterval,
+        final MessagingListener listener) {
+
+        final long now = System.currentTimeMillis();
+        List<FolderSyncPriority> priorities = new ArrayList<FolderSyncPriority>(folders.size());
+        for (Folder folder : folders) {
+            if (isFolderSyncTooRecent(folder, ignoreLastCheckedTime, accountInterval)) {
+                continue;
+            }
+            long lastOpened = 0;
+            double arrivalRate = -1;
+            if (folder instanceof LocalFolder) {
+                try {
+                    lastOpened = ((LocalFolder) folder).getLastOpened();
+                    arrivalRate = ((LocalFolder) folder).getArrivalRate();
+                } catch (MessagingException e) {
+                    Log.w(K9.LOG_TAG, "Unable to get sync priority of folder " + folder.getName(), e);
+                }
+            }
+            priorities.add(new FolderSyncPriority(folder, folder.getName().equals(account.getInboxFolderName()),
+                                                  folder.isInTopGroup(), lastOpened, arrivalRate, now));
+        }
+        if (priorities.isEmpty()) {
+            return false;
+        }
+        Collections.sort(priorities);
 
+        final LinkedList<Folder> queue = new LinkedList<Folder>();
+        for (FolderSyncPriority priority : priorities) {
+            queue.add(priority.folder);
+        }
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "Folder synchronization order for " + account.getDescription() + ": " + queue);
+
+        putBackground("sync " + queue.size() + " folders", account, null, new Runnable() {
+            @Override
+            public void run() {
+                final Command command = mCurrentCommand.get();
+                int concurrency = Math.min(account.getMaxConcurrentFolderSyncs(), queue.size());
+                try {
+                    /*
+                     * Every folder sync starts by sending the pending commands.
+                     * Do it once up front instead of having the parallel syncs
+                     * wait for each other.
+                     */
+                    processPendingCommandsSynchronous(account);
+                    concurrency = Math.min(concurrency, account.getRemoteStore().getMaxConcurrentFolderAccess());
+                } catch (MessagingException e) {
+                    Log.e(K9.LOG_TAG, "Unable to prepare synchronization of account " + account.getDescription(), e);
+                }
+
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Synchronizing " + queue.size() + " folders of account "
+                          + account.getDescription() + ", " + concurrency + " at a time");
+
+                final Runnable worker = new Runnable() {
+                    @Override
+                    public void run() {
+                        Folder folder;
+                        while (!command.token.isStopRequested() && (folder = pollFolder(queue)) != null) {
+                            try {
+                                synchronizeFolderSynchronous(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                            } catch (CommandCancelledException e) {
+                                // synchronized again when the command is resumed
+                                synchronized (queue) {
+                                    queue.addFirst(folder);
+                                }
+                                break;
+                            }
+                        }
+                    }
+                };
+
+                /*
+                 * Once for the whole account: the folders are synchronized
+                 * concurrently, and the notification is only cancelled when
+                 * all of them are done.
+                 */
+                synchronized (queue) {
+                    if (!queue.isEmpty()) {
+                        notifyFetchingMail(account, queue.getFirst());
+                    }
+                }
+                final CountDownLatch helpersDone = new CountDownLatch(Math.max(concurrency - 1, 0));
+                for (int i = 1; i < concurrency; i++) {
+                    threadPool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            // same command, same listeners and cancellation token
+                            mCurrentCommand.set(command);
+                            try {
+                                worker.run();
+                            } finally {
+                                mCurrentCommand.set(null);
+                                helpersDone.countDown();
+                            }
+                        }
+                    });
+                }
+                try {
+                    worker.run();
+                    helpersDone.await();
+                } catch (InterruptedException e) {
+                    Log.e(K9.LOG_TAG, "Interrupted while waiting for folder synchronization to finish", e);
+                } finally {
+                    notifyFetchingMailCancel(account);
+                }
+
+                // the remaining folders are synchronized when the command is executed again
+                command.token.throwIfStopRequested();
+            }
+        });
+        return true;
+    }
+
+    private static Folder pollFolder(LinkedList<Folder> queue) {
+        synchronized (queue) {
+            return queue.poll();
+        }
+    }
+
+    private boolean isFolderSyncTooRecent(Folder folder, boolean ignoreLastCheckedTime, long accountInterval) {
         if (K9.DEBUG)
             Log.v(K9.LOG_TAG, "Folder " + folder.getName() + " was last synced @ " +
                   new Date(folder.getLastChecked()));
 
-        if (!ignoreLastCheckedTime && folder.getLastChecked() >
-                (System.currentTimeMillis() - accountInterval)) {
+        if (ignoreLastCheckedTime) {
+            return false;
+        }
+
+        long interval = getPollInterval(folder, accountInterval);
+        if (!PollScheduler.isDue(folder.getLastChecked(), interval, System.currentTimeMillis())) {
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName()
                       + ", previously synced @ " + new Date(folder.getLastChecked())
-                      + " which would be too recent for the account period");
+                      + " which would be too recent for its poll interval of " + (interval / 1000) + "s");
 
-            return;
+            return true;
         }
-        putBackground("sync" + folder.getName(), null, new Runnable() {
-            @Override
-            public void run() {
-                LocalFolder tLocalFolder = null;
-                try {
-                    // In case multiple Commands get enqueued, don't run more than
-                    // once
-                    final LocalStore localStore = account.getLocalStore();
-                    tLocalFolder = localStore.getFolder(folder.getName());
-                    tLocalFolder.open(Folder.OpenMode.READ_WRITE);
-
-                    if (!ignoreLastCheckedTime && tLocalFolder.getLastChecked() >
-                    (System.currentTimeMillis() - accountInterval)) {
-                        if (K9.DEBUG)
-                            Log.v(K9.LOG_TAG, "Not running Command for folder " + folder.getName()
-                                  + ", previously synced @ " + new Date(folder.getLastChecked())
-                                  + " which would be too recent for the account period");
-                        return;
-                    }
-                    notifyFetchingMail(account, folder);
-                    try {
-                        synchronizeMailboxSynchronous(account, folder.getName(), listener, null);
-                    } finally {
-                        notifyFetchingMailCancel(account);
-                    }
-                } catch (Exception e) {
+        return false;
+    }
 
-                    Log.e(K9.LOG_TAG, "Exception while processing folder " +
-                          account.getDescription() + ":" + folder.getName(), e);
-                    addErrorMessage(account, null, e);
-                } finally {
-                    closeFolder(tLocalFolder);
+    /**
+     * @return Poll interval (ms) of the folder, adapted to how often new
+     *         messages arrive in it.
+     */
+    private long getPollInterval(Folder folder, long accountInterval) {
+        if (folder instanceof LocalFolder) {
+            try {
+                return PollScheduler.getPollInterval(((LocalFolder) folder).getArrivalRate(), accountInterval);
+            } catch (MessagingException e) {
+                Log.w(K9.LOG_TAG, "Unable to get arrival rate of folder " + folder.getName(), e);
+            }
+        }
+        return accountInterval;
+    }
+
+    /**
+     * Next poll time of an account, along with what it was computed from.
+     */
+    private static class NextPollTime {
+        final int pollStateVersion;
+        final long accountInterval;
+        final Account.FolderMode displayMode;
+        final Account.FolderMode syncMode;
+        final long time;
+
+        NextPollTime(int pollStateVersion, long accountInterval, Account.FolderMode displayMode,
+                     Account.FolderMode syncMode, long time) {
+            this.pollStateVersion = pollStateVersion;
+            this.accountInterval = accountInterval;
+            this.displayMode = displayMode;
+            this.syncMode = syncMode;
+            this.time = time;
+        }
+
+        boolean isValid(int pollStateVersion, long accountInterval, Account.FolderMode displayMode,
+                        Account.FolderMode syncMode) {
+            return this.pollStateVersion == pollStateVersion && this.accountInterval == accountInterval
+                   && this.displayMode == displayMode && this.syncMode == syncMode;
+        }
+    }
+
+    /**
+     * The result is cached until the folders of the account or the settings
+     * it depends on change, see {@link LocalStore#getPollStateVersion()}.
+     *
+     * @return Time at which the next folder of the account is due for polling,
+     *         -1 if the account isn't polled or has no folder to poll.
+     */
+    public long getNextPollTime(Account account) {
+        final long accountInterval = account.getAutomaticCheckIntervalMinutes() * 60 * 1000;
+        if (accountInterval <= 0 || account.getFolderSyncMode() == Account.FolderMode.NONE) {
+            return -1;
+        }
+
+        long nextPollTime = -1;
+        try {
+            LocalStore localStore = account.getLocalStore();
+            // read first, a change while computing makes the next call compute again
+            int pollStateVersion = localStore.getPollStateVersion();
+            Account.FolderMode displayMode = account.getFolderDisplayMode();
+            Account.FolderMode syncMode = account.getFolderSyncMode();
+            NextPollTime cached = nextPollTimes.get(account.getUuid());
+            if (cached != null && cached.isValid(pollStateVersion, accountInterval, displayMode, syncMode)) {
+                return cached.time;
+            }
+
+            Preferences prefs = Preferences.getPreferences(mApplication);
+            for (Folder folder : getFoldersToSync(account, prefs)) {
+                long due = folder.getLastChecked() + getPollInterval(folder, accountInterval);
+                if (nextPollTime == -1 || due < nextPollTime) {
+                    nextPollTime = due;
                 }
             }
+            nextPollTimes.put(account.getUuid(), new NextPollTime(pollStateVersion, accountInterval,
+                              displayMode, syncMode, nextPollTime));
+        } catch (MessagingException e) {
+            Log.e(K9.LOG_TAG, "Unable to compute next poll time of account " + account.getDescription(), e);
+            return System.currentTimeMillis() + accountInterval;
         }
-                     );
+        return nextPollTime;
+    }
+
+    private void synchronizeFolderSynchronous(Account account, Folder folder, boolean ignoreLastCheckedTime,
+            long accountInterval, MessagingListener listener) {
+        LocalFolder tLocalFolder = null;
+        try {
+            // In case multiple Commands get enqueued, don't run more than
+            // once
+            final LocalStore localStore = account.getLocalStore();
+            tLocalFolder = localStore.getFolder(folder.getName());
+            tLocalFolder.open(Folder.OpenMode.READ_WRITE);
 
+            if (isFolderSyncTooRecent(tLocalFolder, ignoreLastCheckedTime, accountInterval)) {
+                return;
+            }
+            synchronizeMailboxSynchronous(account, folder.getName(), listener, null);
+        } catch (CommandCancelledException e) {
+            throw e;
+        } catch (Exception e) {
 
+            Log.e(K9.LOG_TAG, "Exception while processing folder " +
+                  account.getDescription() + ":" + folder.getName(), e);
+            addErrorMessage(account, null, e);
+        } finally {
+            closeFolder(tLocalFolder);
+        }
     }
 
 
 
     public void compact(final Account account, final MessagingListener ml) {
-        putBackground("compact:" + account.getDescription(), ml, new Runnable() {
+        putCoalescing("compact", account, null, ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3784,8 +5386,8 @@ public class MessagingController implements Runnable {
                     long oldSize = localStore.getSize();
                     localStore.compact();
                     long newSize = localStore.getSize();
-                    if (ml != null) {
-                        ml.accountSizeChanged(account, oldSize, newSize);
+                    for (MessagingListener l : getCommandListeners(ml)) {
+                        l.accountSizeChanged(account, oldSize, newSize);
                     }
                     for (MessagingListener l : getListeners()) {
                         l.accountSizeChanged(account, oldSize, newSize);
@@ -3797,11 +5399,11 @@ public class MessagingController implements Runnable {
                     Log.e(K9.LOG_TAG, "Failed to compact account " + account.getDescription(), e);
                 }
             }
-        });
+        }, false);
     }
 
     public void clear(final Account account, final MessagingListener ml) {
-        putBackground("clear:" + account.getDescription(), ml, new Runnable() {
+        putBackground("clear:" + account.getDescription(), account, ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3833,7 +5435,7 @@ public class MessagingController implements Runnable {
     }
 
     public void recreate(final Account account, final MessagingListener ml) {
-        putBackground("recreate:" + account.getDescription(), ml, new Runnable() {
+        putBackground("recreate:" + account.getDescription(), account, ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4123,6 +5725,50 @@ public class MessagingController implements Runnable {
 
         int sequence = sequencing.getAndIncrement();
 
+        /**
+         * Lane the command was queued in. Set by {@link CommandScheduler}.
+         */
+        String laneId;
+
+        /**
+         * Time the command was queued at. Set by {@link CommandScheduler}.
+         */
+        long enqueueTime;
+
+        /**
+         * Time (ms) spent in the queue before execution. Set by {@link CommandScheduler}.
+         */
+        long waitTime;
+
+        /**
+         * Commands with the same (non-<code>null</code>) key are equivalent and
+         * get merged while waiting in the queue.
+         */
+        String key;
+
+        /**
+         * Listeners of the commands merged into this one, <code>null</code> if
+         * none. Populated by {@link CommandScheduler}.
+         */
+        Set<MessagingListener> mergedListeners;
+
+        /**
+         * Checked by long running commands between steps.
+         */
+        final CancellationToken token = new CancellationToken();
+
+        /**
+         * Whether queueing this command preempts the background command running
+         * in the same lane.
+         */
+        boolean preempting;
+
+        /**
+         * Number of times this command was preempted. Updated by
+         * {@link CommandScheduler}.
+         */
+        int preemptions;
+
         @Override
         public int compareTo(Command other) {
             if (other.isForeground && !isForeground) {
@@ -4294,20 +5940,22 @@ public class MessagingController implements Runnable {
 
         final CountDownLatch latch = new CountDownLatch(1);
         putBackground("Push messageArrived of account " + account.getDescription()
-        + ", folder " + remoteFolder.getName(), null, new Runnable() {
+        + ", folder " + remoteFolder.getName(), account, null, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
+                boolean requeued = false;
                 try {
                     LocalStore localStore = account.getLocalStore();
                     localFolder = localStore.getFolder(remoteFolder.getName());
                     localFolder.open(OpenMode.READ_WRITE);
 
                     account.setRingNotified(false);
-                    int newCount = downloadMessages(account, remoteFolder, localFolder, messages, flagSyncOnly);
-                    int unreadMessageCount = setLocalUnreadCountToRemote(localFolder, remoteFolder,  messages.size());
+                    int newCount = downloadMessages(account, remoteFolder, localFolder, null, messages, flagSyncOnly, null, null);
+                    int[] remoteCounts = remoteFolder.getUnreadAndFlaggedMessageCounts();
+                    int unreadMessageCount = setLocalUnreadCountToRemote(localFolder, remoteCounts[0],  messages.size());
 
-                    setLocalFlaggedCountToRemote(localFolder, remoteFolder);
+                    setLocalFlaggedCountToRemote(localFolder, remoteCounts[1]);
 
                     localFolder.setLastPush(System.currentTimeMillis());
                     localFolder.setStatus(null);
@@ -4323,6 +5971,14 @@ public class MessagingController implements Runnable {
                         l.folderStatusChanged(account, remoteFolder.getName(), unreadMessageCount);
                     }
 
+                } catch (CommandCancelledException e) {
+                    /*
+                     * A preempted command is executed again later. The pusher
+                     * must not go back to IDLE on the connection the command
+                     * will fetch on until then.
+                     */
+                    requeued = e.isPreempted();
+                    throw e;
                 } catch (Exception e) {
                     String rootMessage = getRootCauseMessage(e);
                     String errorMessage = "Push failed: " + rootMessage;
@@ -4340,7 +5996,9 @@ public class MessagingController implements Runnable {
                     addErrorMessage(account, null, e);
                 } finally {
                     closeFolder(localFolder);
-                    latch.countDown();
+                    if (!requeued) {
+                        latch.countDown();
+                    }
                 }
 
             }
@@ -10,6 +10,7 @@ import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.Part;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Defines the interface that MessagingController will use to callback to requesters. This class
@@ -149,6 +150,20 @@ public class MessagingListener {
 
     }
 
+    /**
+     * Several messages got new UIDs at once, e.g. when moved. Calls
+     * {@link #messageUidChanged(Account, String, String, String)} for each of
+     * them unless overridden.
+     *
+     * @param newUids
+     *            New UIDs by old UID.
+     */
+    public void messageUidsChanged(Account account, String folder, Map<String, String> newUids) {
+        for (Map.Entry<String, String> entry : newUids.entrySet()) {
+            messageUidChanged(account, folder, entry.getKey(), entry.getValue());
+        }
+    }
+
     public void setPushActive(Account account, String folderName, boolean enabled) {
 
     }
@@ -161,6 +176,24 @@ public class MessagingListener {
         boolean requiresDownload) {
     }
 
+    /**
+     * Called while an attachment is being downloaded in chunks.
+     *
+     * @param downloaded
+     *            Number of bytes downloaded so far, including the ones of
+     *            previous interrupted attempts.
+     * @param total
+     *            Size of the attachment on the server (bytes), -1 if unknown.
+     */
+    public void loadAttachmentProgress(
+        Account account,
+        Message message,
+        Part part,
+        Object tag,
+        long downloaded,
+        long total) {
+    }
+
     public void loadAttachmentFinished(
         Account account,
         Message message,
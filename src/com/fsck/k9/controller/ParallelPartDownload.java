@@ -0,0 +1,204 @@
+package com.fsck.k9.controller;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Folder.OpenMode;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.Store;
+
+/**
+ * Downloads several parts of a message at once, over as many connections as
+ * allowed.
+ *
+ * <p>
+ * Big parts are split in {@link ResumablePartDownload.Segment}s, every segment
+ * and every small part is a unit of work. Each connection takes the next unit
+ * until there is none left, so one big attachment is downloaded in parallel
+ * just like several small ones. The calling thread works with the folder it
+ * passed, the other connections use folder objects of their own that are
+ * opened on threads of the executor and closed when done. If the server
+ * refuses another connection, the remaining ones do the work.
+ * </p>
+ *
+ * <p>
+ * Segments of a part are decoded straight into its target file when one is
+ * given, without another copy of the part.
+ * </p>
+ */
+class ParallelPartDownload {
+    static class Job {
+        final Part part;
+        final File partialFile;
+        final File target;
+        final ResumablePartDownload.ProgressListener listener;
+
+        private List<ResumablePartDownload.Segment> mSegments;
+        private ResumablePartDownload.PartProgress mProgress;
+        private boolean mAssembled;
+
+        /**
+         * @param partialFile
+         *            See
+         *            {@link ResumablePartDownload#download(Folder, Message, Part, File, ResumablePartDownload.ProgressListener)}
+         * @param target
+         *            File the decoded part is written to, <code>null</code> to
+         *            set the body of the part instead.
+         * @param listener
+         *            May be <code>null</code>.
+         */
+        Job(Part part, File partialFile, File target, ResumablePartDownload.ProgressListener listener) {
+            this.part = part;
+            this.partialFile = partialFile;
+            this.target = target;
+            this.listener = listener;
+        }
+
+        /**
+         * @return Whether the part was written to the target file. Otherwise
+         *         the body of the part was set.
+         */
+        boolean isAssembledToTarget() {
+            return mAssembled;
+        }
+    }
+
+    private static class Unit {
+        final Job job;
+        /**
+         * <code>null</code> if the whole part is fetched at once.
+         */
+        final ResumablePartDownload.Segment segment;
+
+        Unit(Job job, ResumablePartDownload.Segment segment) {
+            this.job = job;
+            this.segment = segment;
+        }
+    }
+
+    private final Store mRemoteStore;
+    private final Folder mRemoteFolder;
+    private final Message mMessage;
+    private final int mMaxConnections;
+    private final ExecutorService mExecutor;
+
+    private final LinkedList<Unit> mUnits = new LinkedList<Unit>();
+    private MessagingException mFailure;
+
+    /**
+     * @param remoteFolder
+     *            Open folder of the message, used by the calling thread.
+     */
+    ParallelPartDownload(Store remoteStore, Folder remoteFolder, Message message, int maxConnections,
+                         ExecutorService executor) {
+        mRemoteStore = remoteStore;
+        mRemoteFolder = remoteFolder;
+        mMessage = message;
+        mMaxConnections = Math.max(1, Math.min(maxConnections, remoteStore.getMaxConcurrentFolderAccess()));
+        mExecutor = executor;
+    }
+
+    void download(List<Job> jobs) throws MessagingException {
+        for (Job job : jobs) {
+            if (ResumablePartDownload.isApplicable(mRemoteFolder, job.part)) {
+                job.mSegments = ResumablePartDownload.getSegments(job.part, job.partialFile);
+                job.mProgress = new ResumablePartDownload.PartProgress(job.mSegments, job.listener);
+                for (ResumablePartDownload.Segment segment : job.mSegments) {
+                    mUnits.add(new Unit(job, segment));
+                }
+            } else {
+                mUnits.add(new Unit(job, null));
+            }
+        }
+
+        int helpers = Math.min(mMaxConnections, mUnits.size()) - 1;
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "Downloading " + jobs.size() + " parts of message " + mMessage.getUid() + " in "
+                  + mUnits.size() + " units over " + (helpers + 1) + " connections");
+
+        final CountDownLatch done = new CountDownLatch(helpers);
+        for (int i = 0; i < helpers; i++) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        workOnUnsharedFolder();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        work(mRemoteFolder);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw new MessagingException("Interrupted while downloading parts of message " + mMessage.getUid(), e);
+        }
+
+        synchronized (this) {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+
+        for (Job job : jobs) {
+            if (job.mSegments != null) {
+                ResumablePartDownload.assemble(job.part, job.mSegments, job.target);
+                job.mAssembled = (job.target != null);
+            }
+        }
+    }
+
+    private void workOnUnsharedFolder() {
+        Folder folder = mRemoteStore.getUnsharedFolder(mRemoteFolder.getName());
+        try {
+            folder.open(OpenMode.READ_ONLY);
+        } catch (MessagingException e) {
+            // the other connections take over
+            Log.w(K9.LOG_TAG, "Unable to open another connection to " + folder.getName(), e);
+            return;
+        }
+        try {
+            work(folder);
+        } finally {
+            folder.close();
+        }
+    }
+
+    private void work(Folder folder) {
+        Unit unit;
+        while ((unit = nextUnit()) != null) {
+            try {
+                if (unit.segment != null) {
+                    ResumablePartDownload.downloadSegment(folder, mMessage, unit.segment, unit.job.mProgress);
+                } else {
+                    folder.fetchPart(mMessage, unit.job.part, null);
+                }
+            } catch (MessagingException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(new MessagingException("Unable to download part " + unit.job.part, e));
+            }
+        }
+    }
+
+    private synchronized Unit nextUnit() {
+        return (mFailure != null) ? null : mUnits.poll();
+    }
+
+    private synchronized void fail(MessagingException e) {
+        if (mFailure == null) {
+            mFailure = e;
+        }
+    }
+}
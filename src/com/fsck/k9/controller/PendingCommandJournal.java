@@ -0,0 +1,507 @@
+package com.fsck.k9.controller;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.store.LocalStore.PendingCommand;
+
+/**
+ * Typed view of the pending set-flag and move/copy commands, and coalescing of
+ * the pending command journal before it is replayed against the server.
+ *
+ * <p>
+ * {@link #coalesce(List)} merges compatible commands:
+ * <ul>
+ * <li>Flag changes of the same folder, flag and state are combined into one
+ * command.</li>
+ * <li>Setting and then clearing a flag of a message (or vice versa) cancels
+ * out.</li>
+ * <li>A message moved from A to B and then (while still carrying the local
+ * UID it got in B) from B to C is moved from A to C directly.</li>
+ * <li>A message moved from A to B and then back to A isn't moved at all. The
+ * local copy gets its server UID back, see {@link RestoredUid}, and later
+ * commands referring to its local UID are changed accordingly.</li>
+ * </ul>
+ * Commands that aren't understood act as barriers: nothing is merged across
+ * them.
+ * </p>
+ *
+ * <p>
+ * UIDs are stored as a single argument in a compact form: runs of consecutive
+ * numeric UIDs are written as IMAP-like ranges (<code>1:5,9</code>), other
+ * UIDs are URL-encoded.
+ * </p>
+ */
+class PendingCommandJournal {
+
+    static class SetFlags {
+        final String folder;
+        final Flag flag;
+        final boolean state;
+        final Set<String> uids = new LinkedHashSet<String>();
+
+        SetFlags(String folder, Flag flag, boolean state) {
+            this.folder = folder;
+            this.flag = flag;
+            this.state = state;
+        }
+
+        PendingCommand toCommand() {
+            PendingCommand command = new PendingCommand();
+            command.command = MessagingController.PENDING_COMMAND_SET_FLAGS;
+            command.arguments = new String[] {
+                folder, flag.name(), Boolean.toString(state), encodeUids(uids)
+            };
+            return command;
+        }
+    }
+
+    static class MoveOrCopy {
+        final String srcFolder;
+        final String destFolder;
+        final boolean isCopy;
+        final List<String> uids = new ArrayList<String>();
+        /**
+         * Local UIDs of the moved messages in the destination folder, in the
+         * order of {@link #uids}. <code>null</code> entries if unknown.
+         */
+        final List<String> newUids = new ArrayList<String>();
+
+        MoveOrCopy(String srcFolder, String destFolder, boolean isCopy) {
+            this.srcFolder = srcFolder;
+            this.destFolder = destFolder;
+            this.isCopy = isCopy;
+        }
+
+        void add(String uid, String newUid) {
+            uids.add(uid);
+            newUids.add(newUid);
+        }
+
+        PendingCommand toCommand() {
+            boolean newUidsKnown = false;
+            for (String newUid : newUids) {
+                if (newUid != null) {
+                    newUidsKnown = true;
+                    break;
+                }
+            }
+            String encodedNewUids = "";
+            if (newUidsKnown) {
+                List<String> list = new ArrayList<String>(newUids.size());
+                for (String newUid : newUids) {
+                    list.add(newUid == null ? "" : newUid);
+                }
+                encodedNewUids = encodeUids(list);
+            }
+
+            PendingCommand command = new PendingCommand();
+            command.command = MessagingController.PENDING_COMMAND_MOVE_OR_COPY_SET;
+            command.arguments = new String[] {
+                srcFolder, destFolder, Boolean.toString(isCopy), encodeUids(uids), encodedNewUids
+            };
+            return command;
+        }
+    }
+
+    /**
+     * A message whose moves cancelled out. Its local copy in {@link #folder}
+     * has to be renamed from {@link #localUid} to {@link #uid}, the UID it
+     * still has on the server.
+     */
+    static class RestoredUid {
+        final String folder;
+        final String localUid;
+        final String uid;
+
+        RestoredUid(String folder, String localUid, String uid) {
+            this.folder = folder;
+            this.localUid = localUid;
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * @return The typed form of a set-flag command (current or bulk format),
+     *         <code>null</code> if the command is something else.
+     */
+    static SetFlags parseSetFlags(PendingCommand command) {
+        if (MessagingController.PENDING_COMMAND_SET_FLAGS.equals(command.command)) {
+            SetFlags setFlags = new SetFlags(command.arguments[0], Flag.valueOf(command.arguments[1]),
+                                             Boolean.parseBoolean(command.arguments[2]));
+            if (command.arguments.length > 3) {
+                setFlags.uids.addAll(decodeUids(command.arguments[3]));
+            }
+            return setFlags;
+        } else if (MessagingController.PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
+            SetFlags setFlags = new SetFlags(command.arguments[0], Flag.valueOf(command.arguments[2]),
+                                             Boolean.parseBoolean(command.arguments[1]));
+            for (int i = 3; i < command.arguments.length; i++) {
+                setFlags.uids.add(command.arguments[i]);
+            }
+            return setFlags;
+        }
+        return null;
+    }
+
+    /**
+     * @return The typed form of a move/copy command (current or bulk format),
+     *         <code>null</code> if the command is something else.
+     */
+    static MoveOrCopy parseMoveOrCopy(PendingCommand command) {
+        if (MessagingController.PENDING_COMMAND_MOVE_OR_COPY_SET.equals(command.command)) {
+            MoveOrCopy moveOrCopy = new MoveOrCopy(command.arguments[0], command.arguments[1],
+                                                   Boolean.parseBoolean(command.arguments[2]));
+            List<String> uids = (command.arguments.length > 3) ?
+                                decodeUids(command.arguments[3]) : new ArrayList<String>();
+            List<String> newUids = (command.arguments.length > 4) ?
+                                   decodeUids(command.arguments[4]) : new ArrayList<String>();
+            for (int i = 0; i < uids.size(); i++) {
+                String newUid = (i < newUids.size()) ? newUids.get(i) : null;
+                moveOrCopy.add(uids.get(i), (newUid == null || newUid.length() == 0) ? null : newUid);
+            }
+            return moveOrCopy;
+        } else if (MessagingController.PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command)) {
+            MoveOrCopy moveOrCopy = new MoveOrCopy(command.arguments[0], command.arguments[1],
+                                                   Boolean.parseBoolean(command.arguments[2]));
+            for (int i = 3; i < command.arguments.length; i++) {
+                moveOrCopy.add(command.arguments[i], null);
+            }
+            return moveOrCopy;
+        }
+        return null;
+    }
+
+    /**
+     * @return Local UIDs that messages got when they were moved to the given
+     *         folder by a pending (not yet replayed) move.
+     */
+    static Set<String> getPendingMoveTargets(List<PendingCommand> commands, String folder) {
+        Set<String> result = new LinkedHashSet<String>();
+        for (PendingCommand command : commands) {
+            MoveOrCopy moveOrCopy = parseMoveOrCopy(command);
+            if (moveOrCopy != null && !moveOrCopy.isCopy && moveOrCopy.destFolder.equals(folder)) {
+                for (String newUid : moveOrCopy.newUids) {
+                    if (newUid != null) {
+                        result.add(newUid);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    static List<PendingCommand> coalesce(List<PendingCommand> commands) {
+        return coalesce(commands, null);
+    }
+
+    /**
+     * Merge compatible commands.
+     *
+     * @param commands
+     *            Pending commands in execution order.
+     * @param restoredUids
+     *            Receives the local messages that have to get their server UID
+     *            back. Can be <code>null</code>.
+     * @return The commands to execute instead, <code>null</code> if nothing
+     *         could be merged.
+     */
+    static List<PendingCommand> coalesce(List<PendingCommand> commands, List<RestoredUid> restoredUids) {
+        boolean changed = false;
+
+        // Either PendingCommand (unchanged), SetFlags or MoveOrCopy
+        List<Object> result = new ArrayList<Object>();
+
+        // Open flag groups by folder, flag and state
+        Map<String, SetFlags> flagGroups = new HashMap<String, SetFlags>();
+
+        // Pending moves by destination folder and the local UID there
+        Map<String, MoveOrCopy> moveTargets = new HashMap<String, MoveOrCopy>();
+
+        // Server UIDs by folder and the local UID of messages moved back there
+        Map<String, String> restored = new HashMap<String, String>();
+
+        for (PendingCommand command : commands) {
+            SetFlags setFlags;
+            MoveOrCopy moveOrCopy;
+            try {
+                setFlags = parseSetFlags(command);
+                moveOrCopy = (setFlags == null) ? parseMoveOrCopy(command) : null;
+            } catch (RuntimeException e) {
+                // leave malformed commands to the regular processing
+                setFlags = null;
+                moveOrCopy = null;
+            }
+            if (!restored.isEmpty()) {
+                if (setFlags != null) {
+                    List<String> uids = new ArrayList<String>(setFlags.uids);
+                    setFlags.uids.clear();
+                    setFlags.uids.addAll(restoreUids(restored, setFlags.folder, uids));
+                } else if (moveOrCopy != null) {
+                    List<String> uids = restoreUids(restored, moveOrCopy.srcFolder, moveOrCopy.uids);
+                    moveOrCopy.uids.clear();
+                    moveOrCopy.uids.addAll(uids);
+                }
+            }
+
+            if (setFlags != null) {
+                SetFlags opposite = flagGroups.get(flagKey(setFlags.folder, setFlags.flag, !setFlags.state));
+                String key = flagKey(setFlags.folder, setFlags.flag, setFlags.state);
+                SetFlags group = flagGroups.get(key);
+                if (group != null) {
+                    changed = true;
+                } else {
+                    group = setFlags;
+                    flagGroups.put(key, group);
+                    result.add(group);
+                }
+                for (Iterator<String> it = setFlags.uids.iterator(); it.hasNext();) {
+                    String uid = it.next();
+                    if (opposite != null && opposite.uids.remove(uid)) {
+                        // set and cleared again (or the other way around)
+                        changed = true;
+                        if (group == setFlags) {
+                            it.remove();
+                        }
+                    } else if (group != setFlags) {
+                        group.uids.add(uid);
+                    }
+                }
+            } else if (moveOrCopy != null) {
+                closeFlagGroups(flagGroups, moveOrCopy.srcFolder);
+                closeFlagGroups(flagGroups, moveOrCopy.destFolder);
+
+                MoveOrCopy residual = new MoveOrCopy(moveOrCopy.srcFolder, moveOrCopy.destFolder, moveOrCopy.isCopy);
+                Map<String, MoveOrCopy> folded = new LinkedHashMap<String, MoveOrCopy>();
+                for (int i = 0; i < moveOrCopy.uids.size(); i++) {
+                    String uid = moveOrCopy.uids.get(i);
+                    String newUid = moveOrCopy.newUids.get(i);
+                    MoveOrCopy previous = moveOrCopy.isCopy ? null :
+                                          moveTargets.get(moveKey(moveOrCopy.srcFolder, uid));
+                    if (previous == null) {
+                        residual.add(uid, newUid);
+                        continue;
+                    }
+
+                    // Message hasn't left the source folder of the previous move on the server yet
+                    moveTargets.remove(moveKey(moveOrCopy.srcFolder, uid));
+                    int index = previous.newUids.indexOf(uid);
+                    String origUid = previous.uids.remove(index);
+                    previous.newUids.remove(index);
+                    changed = true;
+
+                    if (previous.srcFolder.equals(moveOrCopy.destFolder)) {
+                        // Moved back, neither move is needed
+                        if (newUid != null) {
+                            restored.put(moveKey(moveOrCopy.destFolder, newUid), origUid);
+                            if (restoredUids != null) {
+                                restoredUids.add(new RestoredUid(moveOrCopy.destFolder, newUid, origUid));
+                            }
+                        }
+                        continue;
+                    }
+
+                    MoveOrCopy target = folded.get(previous.srcFolder);
+                    if (target == null) {
+                        target = new MoveOrCopy(previous.srcFolder, moveOrCopy.destFolder, false);
+                        folded.put(previous.srcFolder, target);
+                    }
+                    target.add(origUid, newUid);
+                }
+
+                for (MoveOrCopy move : folded.values()) {
+                    result.add(move);
+                    registerMoveTargets(moveTargets, move);
+                }
+                result.add(residual);
+                registerMoveTargets(moveTargets, residual);
+            } else {
+                String folder = getAffectedFolder(command);
+                if (folder == null) {
+                    flagGroups.clear();
+                    moveTargets.clear();
+                } else {
+                    closeFlagGroups(flagGroups, folder);
+                }
+                result.add(command);
+            }
+        }
+
+        if (!changed) {
+            return null;
+        }
+
+        List<PendingCommand> coalesced = new ArrayList<PendingCommand>(result.size());
+        for (Object entry : result) {
+            if (entry instanceof SetFlags) {
+                SetFlags setFlags = (SetFlags) entry;
+                if (!setFlags.uids.isEmpty()) {
+                    coalesced.add(setFlags.toCommand());
+                }
+            } else if (entry instanceof MoveOrCopy) {
+                MoveOrCopy moveOrCopy = (MoveOrCopy) entry;
+                if (!moveOrCopy.uids.isEmpty()) {
+                    coalesced.add(moveOrCopy.toCommand());
+                }
+            } else {
+                coalesced.add((PendingCommand) entry);
+            }
+        }
+        return coalesced;
+    }
+
+    /**
+     * @return The only folder the command modifies, <code>null</code> if it
+     *         isn't known.
+     */
+    private static String getAffectedFolder(PendingCommand command) {
+        if ((MessagingController.PENDING_COMMAND_APPEND.equals(command.command)
+                || MessagingController.PENDING_COMMAND_EXPUNGE.equals(command.command)
+                || MessagingController.PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command))
+                && command.arguments.length > 0) {
+            return command.arguments[0];
+        }
+        return null;
+    }
+
+    private static List<String> restoreUids(Map<String, String> restored, String folder, List<String> uids) {
+        List<String> result = new ArrayList<String>(uids.size());
+        for (String uid : uids) {
+            String origUid = restored.get(moveKey(folder, uid));
+            result.add((origUid == null) ? uid : origUid);
+        }
+        return result;
+    }
+
+    private static void closeFlagGroups(Map<String, SetFlags> flagGroups, String folder) {
+        for (Iterator<SetFlags> it = flagGroups.values().iterator(); it.hasNext();) {
+            if (it.next().folder.equals(folder)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void registerMoveTargets(Map<String, MoveOrCopy> moveTargets, MoveOrCopy move) {
+        if (move.isCopy) {
+            return;
+        }
+        for (String newUid : move.newUids) {
+            if (newUid != null) {
+                moveTargets.put(moveKey(move.destFolder, newUid), move);
+            }
+        }
+    }
+
+    private static String flagKey(String folder, Flag flag, boolean state) {
+        return folder + '\0' + flag.name() + '\0' + state;
+    }
+
+    private static String moveKey(String folder, String uid) {
+        return folder + '\0' + uid;
+    }
+
+    /**
+     * Encode UIDs into a single string. Runs of consecutive numeric UIDs are
+     * written as ranges, the order of the UIDs is preserved.
+     */
+    static String encodeUids(Collection<String> uids) {
+        StringBuilder sb = new StringBuilder();
+        long rangeStart = -1;
+        long rangeEnd = -1;
+        for (String uid : uids) {
+            long value = parseNumericUid(uid);
+            if (value >= 0 && rangeStart >= 0 && value == rangeEnd + 1) {
+                rangeEnd = value;
+                continue;
+            }
+            appendRange(sb, rangeStart, rangeEnd);
+            rangeStart = -1;
+            if (value >= 0) {
+                rangeStart = value;
+                rangeEnd = value;
+            } else {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                try {
+                    sb.append(URLEncoder.encode(uid, "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        appendRange(sb, rangeStart, rangeEnd);
+        return sb.toString();
+    }
+
+    /**
+     * Decode UIDs encoded by {@link #encodeUids(Collection)}.
+     */
+    static List<String> decodeUids(String encoded) {
+        List<String> uids = new ArrayList<String>();
+        if (encoded == null || encoded.length() == 0) {
+            return uids;
+        }
+        for (String token : encoded.split(",", -1)) {
+            int colon = token.indexOf(':');
+            if (colon > 0) {
+                long start = Long.parseLong(token.substring(0, colon));
+                long end = Long.parseLong(token.substring(colon + 1));
+                for (long value = start; value <= end; value++) {
+                    uids.add(Long.toString(value));
+                }
+            } else {
+                try {
+                    uids.add(URLDecoder.decode(token, "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return uids;
+    }
+
+    private static void appendRange(StringBuilder sb, long start, long end) {
+        if (start < 0) {
+            return;
+        }
+        if (sb.length() > 0) {
+            sb.append(',');
+        }
+        sb.append(start);
+        if (end > start) {
+            sb.append(':').append(end);
+        }
+    }
+
+    /**
+     * @return The value of a UID in canonical decimal form, -1 for any other
+     *         UID.
+     */
+    private static long parseNumericUid(String uid) {
+        int length = uid.length();
+        if (length == 0 || length > 18 || (uid.charAt(0) == '0' && length > 1)) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = uid.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,114 @@
+package com.fsck.k9.controller;
+
+/**
+ * Decides how often each folder is polled, based on how many new messages
+ * previous synchronizations found in it.
+ *
+ * <p>
+ * Every folder keeps an estimate of its arrival rate (new messages per hour,
+ * exponentially weighted so that recent syncs count more). The poll interval is
+ * the time it takes on average for one new message to arrive, bounded by
+ * fractions and multiples of the interval configured for the account: a busy
+ * mailing list folder is polled up to twice as often, a quiet archive down to
+ * eight times less often. Folders without history use the account interval.
+ * </p>
+ *
+ * <p>
+ * Folders that would be due shortly after a wake-up are polled during that
+ * wake-up already, so that the folders of an account share as few wake-ups as
+ * possible.
+ * </p>
+ */
+public class PollScheduler {
+    /**
+     * Weight of the latest observation in the arrival rate estimate.
+     */
+    static final double RATE_WEIGHT = 0.3;
+
+    /**
+     * Number of new messages a poll should find on average.
+     */
+    static final double MESSAGES_PER_POLL = 1.0;
+
+    /**
+     * The poll interval of a folder isn't shorter than the account interval
+     * divided by this.
+     */
+    static final int MIN_INTERVAL_DIVISOR = 2;
+
+    /**
+     * The poll interval of a folder isn't longer than the account interval
+     * multiplied by this.
+     */
+    static final int MAX_INTERVAL_FACTOR = 8;
+
+    /**
+     * Absolute bounds (ms) of the poll interval.
+     */
+    public static final long MIN_INTERVAL = 60 * 1000;
+    static final long MAX_INTERVAL = 24 * 60 * 60 * 1000;
+
+    /**
+     * Folders due within this fraction of their poll interval are polled along
+     * with the ones that are due.
+     */
+    static final double BATCH_FRACTION = 0.25;
+
+    private static final double HOUR = 60 * 60 * 1000;
+
+    private PollScheduler() {
+    }
+
+    /**
+     * @param previousRate
+     *            Arrival rate estimate (messages per hour), negative if none yet.
+     * @param newMessages
+     *            Number of new messages found by the latest synchronization.
+     * @param elapsed
+     *            Time (ms) since the previous synchronization.
+     * @return The updated arrival rate estimate.
+     */
+    public static double updateArrivalRate(double previousRate, int newMessages, long elapsed) {
+        if (elapsed <= 0) {
+            return previousRate;
+        }
+        double rate = newMessages / (elapsed / HOUR);
+        if (previousRate < 0) {
+            return rate;
+        }
+        return RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * previousRate;
+    }
+
+    /**
+     * @param arrivalRate
+     *            Arrival rate estimate (messages per hour), negative if unknown.
+     * @param accountInterval
+     *            Poll interval (ms) configured for the account.
+     * @return Poll interval (ms) of a folder.
+     */
+    public static long getPollInterval(double arrivalRate, long accountInterval) {
+        if (arrivalRate < 0) {
+            return accountInterval;
+        }
+        long min = Math.max(MIN_INTERVAL, accountInterval / MIN_INTERVAL_DIVISOR);
+        long max = Math.max(min, Math.min(MAX_INTERVAL, accountInterval * MAX_INTERVAL_FACTOR));
+        if (arrivalRate == 0) {
+            return max;
+        }
+        long interval = (long)(MESSAGES_PER_POLL / arrivalRate * HOUR);
+        return Math.max(min, Math.min(max, interval));
+    }
+
+    /**
+     * @param lastChecked
+     *            Time of the last synchronization of the folder.
+     * @param interval
+     *            Poll interval of the folder, see
+     *            {@link #getPollInterval(double, long)}.
+     * @return Whether the folder should be polled during a wake-up at the given
+     *         time.
+     */
+    public static boolean isDue(long lastChecked, long interval, long now) {
+        return lastChecked + interval - (long)(interval * BATCH_FRACTION) <= now;
+    }
+}
@@ -0,0 +1,87 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import com.fsck.k9.mail.store.LocalStore.PrefetchCandidate;
+
+/**
+ * Orders partially downloaded messages by how likely the user is to read them
+ * soon, so that the prefetch budget is spent on the most useful bodies first.
+ *
+ * <p>
+ * A message scores points for being unread, for being recent, for coming from
+ * someone the user often reads mail from and for being in a folder of the top
+ * group. Ties are broken by date, newest first.
+ * </p>
+ */
+class PrefetchPlanner {
+    static final int UNREAD_SCORE = 3;
+    static final int LAST_DAY_SCORE = 2;
+    static final int LAST_WEEK_SCORE = 1;
+    static final int FREQUENT_SENDER_SCORE = 2;
+    static final int TOP_GROUP_SCORE = 2;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long WEEK = 7 * DAY;
+
+    private PrefetchPlanner() {
+    }
+
+    static int score(PrefetchCandidate candidate, Set<String> frequentSenders, long now) {
+        int score = 0;
+        if (candidate.unread) {
+            score += UNREAD_SCORE;
+        }
+        long age = now - candidate.date;
+        if (candidate.date > 0 && age < DAY) {
+            score += LAST_DAY_SCORE;
+        } else if (candidate.date > 0 && age < WEEK) {
+            score += LAST_WEEK_SCORE;
+        }
+        if (candidate.senderList != null && frequentSenders.contains(candidate.senderList)) {
+            score += FREQUENT_SENDER_SCORE;
+        }
+        if (candidate.inTopGroup) {
+            score += TOP_GROUP_SCORE;
+        }
+        return score;
+    }
+
+    /**
+     * @param candidates
+     *            Never <code>null</code>, not modified.
+     * @param frequentSenders
+     *            Packed sender addresses of frequent correspondents.
+     * @return The candidates, most likely to be read first.
+     */
+    static List<PrefetchCandidate> rank(List<PrefetchCandidate> candidates,
+                                        Set<String> frequentSenders, long now) {
+        final int[] scores = new int[candidates.size()];
+        final List<Integer> order = new ArrayList<Integer>(candidates.size());
+        for (int i = 0, count = candidates.size(); i < count; i++) {
+            scores[i] = score(candidates.get(i), frequentSenders, now);
+            order.add(i);
+        }
+        final List<PrefetchCandidate> source = candidates;
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (scores[a] != scores[b]) {
+                    return scores[b] - scores[a];
+                }
+                long dateA = source.get(a).date;
+                long dateB = source.get(b).date;
+                return (dateA == dateB) ? 0 : (dateA > dateB ? -1 : 1);
+            }
+        });
+        List<PrefetchCandidate> ranked = new ArrayList<PrefetchCandidate>(order.size());
+        for (Integer i : order) {
+            ranked.add(candidates.get(i));
+        }
+        return ranked;
+    }
+}
@@ -0,0 +1,89 @@
+package com.fsck.k9.controller;
+
+/**
+ * Counters telling how useful prefetching message bodies is for an account.
+ *
+ * <p>
+ * The hit rate is the fraction of opened messages whose body was available
+ * only because it was prefetched. Messages opened without a local body are
+ * counted as opens too, so a low hit rate with many remote opens means the
+ * budget is spent on the wrong messages.
+ * </p>
+ */
+public class PrefetchStats {
+    private long mPrefetchedCount;
+    private long mPrefetchedBytes;
+    private long mOpenCount;
+    private long mLocalOpenCount;
+    private long mHitCount;
+
+    synchronized void addPrefetched(long bytes) {
+        mPrefetchedCount++;
+        mPrefetchedBytes += bytes;
+    }
+
+    /**
+     * @param local
+     *            Whether the body of the opened message was downloaded.
+     * @param prefetched
+     *            Whether it was downloaded by the prefetcher.
+     */
+    synchronized void addOpen(boolean local, boolean prefetched) {
+        mOpenCount++;
+        if (local) {
+            mLocalOpenCount++;
+        }
+        if (prefetched) {
+            mHitCount++;
+        }
+    }
+
+    /**
+     * @return Number of message bodies prefetched.
+     */
+    public synchronized long getPrefetchedCount() {
+        return mPrefetchedCount;
+    }
+
+    /**
+     * @return Approximate number of bytes downloaded by the prefetcher.
+     */
+    public synchronized long getPrefetchedBytes() {
+        return mPrefetchedBytes;
+    }
+
+    /**
+     * @return Number of messages opened.
+     */
+    public synchronized long getOpenCount() {
+        return mOpenCount;
+    }
+
+    /**
+     * @return Number of messages opened whose body was already downloaded.
+     */
+    public synchronized long getLocalOpenCount() {
+        return mLocalOpenCount;
+    }
+
+    /**
+     * @return Number of opened messages whose body was prefetched.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return Fraction of opened messages whose body was prefetched, 0 if no
+     *         message was opened yet.
+     */
+    public synchronized double getHitRate() {
+        return (mOpenCount == 0) ? 0 : (double) mHitCount / mOpenCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "prefetched = " + mPrefetchedCount + " (" + mPrefetchedBytes + " bytes), opens = "
+               + mOpenCount + ", local = " + mLocalOpenCount + ", hits = " + mHitCount;
+    }
+}
@@ -0,0 +1,42 @@
+package com.fsck.k9.controller;
+
+import android.os.SystemClock;
+
+/**
+ * Limits the rate of progress events sent to {@link MessagingListener}s.
+ *
+ * <p>
+ * Listeners usually post every event to the UI thread, so reporting progress
+ * for each of thousands of messages mostly keeps the UI busy redrawing the
+ * same progress bar. The first and the final update are always reported.
+ * </p>
+ */
+class ProgressThrottle {
+    /**
+     * Default minimum delay (ms) between two reported updates.
+     */
+    static final long DEFAULT_INTERVAL = 250;
+
+    private final long mInterval;
+    private long mLastReport = -1;
+
+    ProgressThrottle() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    ProgressThrottle(long interval) {
+        mInterval = interval;
+    }
+
+    /**
+     * @return Whether the update should be passed to the listeners.
+     */
+    synchronized boolean shouldReport(int completed, int total) {
+        long now = SystemClock.uptimeMillis();
+        if (mLastReport < 0 || completed >= total || now - mLastReport >= mInterval) {
+            mLastReport = now;
+            return true;
+        }
+        return false;
+    }
+}
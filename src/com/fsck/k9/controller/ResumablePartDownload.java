@@ -0,0 +1,263 @@
+package com.fsck.k9.controller;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.internet.MimeHeader;
+import com.fsck.k9.mail.internet.MimeUtility;
+
+/**
+ * Downloads a big part in chunks, each of them appended to a file as soon as
+ * it arrives. When the connection drops, the next attempt continues at the end
+ * of that file, so only the chunk in flight is lost.
+ *
+ * <p>
+ * The files hold the part as it is stored on the server, one per
+ * {@link Segment}. They are decoded once complete, then deleted.
+ * </p>
+ */
+class ResumablePartDownload {
+    /**
+     * Number of bytes fetched per request.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Parts are split in segments of that many bytes, which can be downloaded
+     * over different connections.
+     */
+    static final int SEGMENT_SIZE = 16 * CHUNK_SIZE;
+
+    interface ProgressListener {
+        /**
+         * @param total
+         *            -1 if unknown.
+         */
+        void bytesDownloaded(long downloaded, long total);
+    }
+
+    private ResumablePartDownload() {
+    }
+
+    /**
+     * @return Whether the part is big enough to be downloaded in chunks and
+     *         the store supports it.
+     */
+    static boolean isApplicable(Folder remoteFolder, Part part) throws MessagingException {
+        String[] storeData = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+        return remoteFolder.supportsFetchingPartRanges()
+               && storeData != null && !"TEXT".equalsIgnoreCase(storeData[0])
+               && getSize(part) > CHUNK_SIZE;
+    }
+
+    /**
+     * @return Size of the part on the server, as announced in its
+     *         Content-Disposition, -1 if unknown.
+     */
+    static long getSize(Part part) {
+        String size;
+        try {
+            size = MimeUtility.getHeaderParameter(part.getDisposition(), "size");
+        } catch (MessagingException e) {
+            return -1;
+        }
+        if (size != null) {
+            try {
+                return Long.parseLong(size);
+            } catch (NumberFormatException e) {
+                // ignore
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A byte range of a part, downloaded into a file of its own. Boundaries
+     * only depend on the size of the part, so that a later attempt finds the
+     * files of the previous one.
+     */
+    static class Segment {
+        final Part part;
+        final long start;
+        /**
+         * Exclusive, -1 for the last segment which ends with the part.
+         */
+        final long end;
+        final File file;
+
+        Segment(Part part, long start, long end, File file) {
+            this.part = part;
+            this.start = start;
+            this.end = end;
+            this.file = file;
+        }
+
+        long getDownloaded() {
+            return file.length();
+        }
+    }
+
+    /**
+     * Sums up the progress of the segments of a part, which may be downloaded
+     * by several threads.
+     */
+    static class PartProgress {
+        private final long mTotal;
+        private final ProgressListener mListener;
+        private long mDownloaded;
+
+        /**
+         * @param listener
+         *            May be <code>null</code>.
+         */
+        PartProgress(List<Segment> segments, ProgressListener listener) {
+            mTotal = segments.isEmpty() ? -1 : getSize(segments.get(0).part);
+            mListener = listener;
+            for (Segment segment : segments) {
+                mDownloaded += segment.getDownloaded();
+            }
+        }
+
+        void add(long bytes) {
+            long downloaded;
+            synchronized (this) {
+                mDownloaded += bytes;
+                downloaded = mDownloaded;
+            }
+            if (mListener != null) {
+                mListener.bytesDownloaded(downloaded, mTotal);
+            }
+        }
+    }
+
+    /**
+     * @param partialFile
+     *            Base name of the files holding the segments.
+     */
+    static List<Segment> getSegments(Part part, File partialFile) {
+        long size = getSize(part);
+        int count = (int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        List<Segment> segments = new ArrayList<Segment>(count);
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * SEGMENT_SIZE;
+            long end = (i == count - 1) ? -1 : start + SEGMENT_SIZE;
+            segments.add(new Segment(part, start, end, new File(partialFile.getPath() + "." + i)));
+        }
+        return segments;
+    }
+
+    /**
+     * Download what's missing of a segment.
+     */
+    static void downloadSegment(Folder remoteFolder, Message message, Segment segment,
+                                PartProgress progress) throws MessagingException {
+        long offset = segment.start + segment.getDownloaded();
+        if (K9.DEBUG && offset > segment.start)
+            Log.d(K9.LOG_TAG, "Resuming download of part " + segment.part + " of message " + message.getUid()
+                  + " at " + offset);
+
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(segment.file, true), CHUNK_SIZE);
+            try {
+                while (segment.end < 0 || offset < segment.end) {
+                    int length = (segment.end < 0) ? CHUNK_SIZE : (int) Math.min(CHUNK_SIZE, segment.end - offset);
+                    int fetched = remoteFolder.fetchPartRange(message, segment.part, offset, length, out);
+                    out.flush();
+                    offset += fetched;
+                    progress.add(fetched);
+                    if (fetched < length) {
+                        // the part is smaller than announced
+                        break;
+                    }
+                }
+            } finally {
+                // whatever arrived before a failure is kept for the next attempt
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Unable to download part " + segment.part + " of message "
+                                         + message.getUid(), e);
+        }
+    }
+
+    /**
+     * Decode the downloaded segments of a part, then delete them.
+     *
+     * @param target
+     *            File the decoded part is written to. If <code>null</code>,
+     *            the decoded part becomes the body of the part instead.
+     */
+    static void assemble(Part part, List<Segment> segments, File target) throws MessagingException {
+        String[] encoding = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        String contentTransferEncoding = (encoding == null) ? null : encoding[0];
+        try {
+            Vector<InputStream> streams = new Vector<InputStream>(segments.size());
+            try {
+                for (Segment segment : segments) {
+                    streams.add(new FileInputStream(segment.file));
+                }
+                InputStream in = new SequenceInputStream(streams.elements());
+                if (target == null) {
+                    part.setBody(MimeUtility.decodeBody(in, contentTransferEncoding));
+                } else {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(target), CHUNK_SIZE);
+                    try {
+                        IOUtils.copy(MimeUtility.getDecodingStream(in, contentTransferEncoding), out);
+                    } finally {
+                        out.close();
+                    }
+                }
+            } finally {
+                for (InputStream in : streams) {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Unable to decode part " + part, e);
+        }
+
+        for (Segment segment : segments) {
+            if (!segment.file.delete()) {
+                Log.w(K9.LOG_TAG, "Unable to delete " + segment.file);
+            }
+        }
+    }
+
+    /**
+     * Download what's missing of the part over a single connection, then set
+     * its decoded body.
+     *
+     * @param partialFile
+     *            Base name of the files holding what previous attempts
+     *            downloaded. Deleted once the part is complete.
+     * @param listener
+     *            May be <code>null</code>.
+     */
+    static void download(Folder remoteFolder, Message message, Part part, File partialFile,
+                         ProgressListener listener) throws MessagingException {
+        List<Segment> segments = getSegments(part, partialFile);
+        PartProgress progress = new PartProgress(segments, listener);
+        for (Segment segment : segments) {
+            downloadSegment(remoteFolder, message, segment, progress);
+        }
+        assemble(part, segments, null);
+    }
+}
@@ -0,0 +1,183 @@
+package com.fsck.k9.controller;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.LocalStore;
+import com.fsck.k9.mail.store.LocalStore.DeletedMessages;
+
+/**
+ * Deletes local copies of messages according to the retention policy of an
+ * account: messages older than {@link Account#getRetentionMaxAgeDays()}, the
+ * oldest messages of folders holding more than
+ * {@link Account#getRetentionMaxMessages()}, then the oldest messages of the
+ * account until the contents fit in {@link Account#getRetentionMaxBytes()}.
+ *
+ * <p>
+ * Messages are deleted in chunks of {@link #CHUNK_SIZE}, each in a transaction
+ * of its own, with a short pause in between so that other database users get
+ * their turn. Each chunk starts at the sent date the previous one ended at, so
+ * that the index on dates skips the messages already deleted. Attachment files are deleted by the executor, not by the thread
+ * holding the database. The engine stops as soon as the account isn't idle
+ * anymore, the next run continues where it stopped.
+ * </p>
+ *
+ * <p>
+ * Messages that only exist locally, flagged messages and placeholders of
+ * deleted messages are never deleted. Deleted messages are turned into
+ * placeholders themselves, so that synchronization doesn't download them
+ * again while they are still in the synchronized window.
+ * </p>
+ */
+class RetentionEngine {
+    static final int CHUNK_SIZE = 100;
+
+    /**
+     * Pause (ms) between two chunks.
+     */
+    static final long YIELD_DELAY = 50;
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static final String DELETABLE = "deleted = 0 AND uid NOT LIKE '" + K9.LOCAL_UID_PREFIX + "%' "
+                                            + "AND (',' || IFNULL(flags, '') || ',') NOT LIKE '%," + Flag.FLAGGED.name() + ",%'";
+
+    interface IdleCheck {
+        /**
+         * @return Whether the engine may go on deleting.
+         */
+        boolean isIdle();
+    }
+
+    private final LocalStore mLocalStore;
+    private final Executor mFileDeleter;
+    private final IdleCheck mIdleCheck;
+    private final MessageRemovalListener mRemovalListener;
+
+    /**
+     * @param removalListener
+     *            Notified of every deleted message, can be <code>null</code>.
+     */
+    RetentionEngine(LocalStore localStore, Executor fileDeleter, IdleCheck idleCheck,
+                    MessageRemovalListener removalListener) {
+        mLocalStore = localStore;
+        mFileDeleter = fileDeleter;
+        mIdleCheck = idleCheck;
+        mRemovalListener = removalListener;
+    }
+
+    /**
+     * @return Number of deleted messages.
+     */
+    int apply(Account account, long now) throws MessagingException {
+        int deleted = 0;
+
+        int maxAgeDays = account.getRetentionMaxAgeDays();
+        if (maxAgeDays > 0) {
+            long cutoff = now - maxAgeDays * DAY;
+            deleted += delete(DELETABLE + " AND date < ?", new String[] { Long.toString(cutoff) }, Integer.MAX_VALUE);
+        }
+
+        int maxMessages = account.getRetentionMaxMessages();
+        if (maxMessages > 0) {
+            Map<Long, Integer> counts = mLocalStore.countMessagesByFolder(DELETABLE, null);
+            for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+                int excess = entry.getValue() - maxMessages;
+                if (excess > 0) {
+                    deleted += delete(DELETABLE + " AND folder_id = ?", new String[] { entry.getKey().toString() },
+                                      excess);
+                }
+            }
+        }
+
+        long maxBytes = account.getRetentionMaxBytes();
+        if (maxBytes > 0) {
+            long excess = mLocalStore.getContentSize() - maxBytes;
+            long fromDate = -1;
+            while (excess > 0 && mIdleCheck.isIdle()) {
+                DeletedMessages chunk = deleteChunk(DELETABLE, null, fromDate, CHUNK_SIZE);
+                fromDate = chunk.lastDate;
+                deleted += chunk.count;
+                excess -= chunk.bytes;
+                if (chunk.count < CHUNK_SIZE) {
+                    break;
+                }
+                pause();
+            }
+        }
+
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "Retention policy of " + account.getDescription() + " deleted " + deleted + " messages");
+        return deleted;
+    }
+
+    /**
+     * Delete up to <code>max</code> matching messages, oldest first.
+     */
+    private int delete(String where, String[] args, int max) throws MessagingException {
+        int deleted = 0;
+        long fromDate = -1;
+        while (deleted < max && mIdleCheck.isIdle()) {
+            int limit = Math.min(CHUNK_SIZE, max - deleted);
+            DeletedMessages chunk = deleteChunk(where, args, fromDate, limit);
+            fromDate = chunk.lastDate;
+            deleted += chunk.count;
+            if (chunk.count < limit) {
+                break;
+            }
+            pause();
+        }
+        return deleted;
+    }
+
+    /**
+     * @param fromDate
+     *            Only delete messages sent at or after this date, -1 for no
+     *            bound. The messages already deleted at that date aren't
+     *            deletable anymore.
+     */
+    private DeletedMessages deleteChunk(String where, String[] args, long fromDate, int limit)
+    throws MessagingException {
+        if (fromDate >= 0) {
+            where += " AND date >= ?";
+            String[] boundedArgs = new String[(args == null) ? 1 : args.length + 1];
+            if (args != null) {
+                System.arraycopy(args, 0, boundedArgs, 0, args.length);
+            }
+            boundedArgs[boundedArgs.length - 1] = Long.toString(fromDate);
+            args = boundedArgs;
+        }
+        DeletedMessages chunk = mLocalStore.pruneMessages(where, args, "date ASC", limit);
+        if (!chunk.attachmentFiles.isEmpty()) {
+            final List<File> files = chunk.attachmentFiles;
+            mFileDeleter.execute(new Runnable() {
+                public void run() {
+                    LocalStore.deleteFiles(files);
+                }
+            });
+        }
+        if (mRemovalListener != null) {
+            for (Message message : chunk.messages) {
+                mRemovalListener.messageRemoved(message);
+            }
+        }
+        return chunk;
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(YIELD_DELAY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
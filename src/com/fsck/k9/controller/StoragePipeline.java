@@ -0,0 +1,211 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.MessagingException;
+
+/**
+ * Hands items from a producing thread to a storage stage running on another
+ * thread, so that downloading messages and writing them to the database
+ * overlap instead of alternating.
+ *
+ * <p>
+ * The queue between both stages is bounded: {@link #put(Object)} blocks while
+ * the storage stage is behind, which keeps the number of downloaded but not
+ * yet stored messages (and their bodies) bounded on big syncs. The storage
+ * stage takes whatever is queued, up to the batch size, and handles it as one
+ * batch.
+ * </p>
+ *
+ * <p>
+ * Typical use:
+ * </p>
+ *
+ * <pre>
+ * pipeline.start(executor);
+ * try {
+ *     // pipeline.put(...) for each item
+ * } catch (...) {
+ *     pipeline.abort();
+ *     throw ...;
+ * }
+ * pipeline.finish();
+ * </pre>
+ *
+ * @param <T>
+ *            Type of the handled items.
+ */
+class StoragePipeline<T> {
+
+    /**
+     * Storage stage of the pipeline.
+     */
+    interface BatchHandler<T> {
+        /**
+         * Called from the storage thread, one batch at a time.
+         *
+         * @param batch
+         *            Never <code>null</code> nor empty.
+         */
+        void handle(List<T> batch) throws MessagingException;
+    }
+
+    /**
+     * Marks the end of the input.
+     */
+    private static final Object END = new Object();
+
+    private final String mName;
+    private final int mBatchSize;
+    private final BatchHandler<T> mHandler;
+    private final BlockingQueue<Object> mQueue;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /**
+     * First exception thrown by the storage stage. Once set, the remaining
+     * items are drained and dropped so that producers never block forever.
+     */
+    private volatile Exception mFailure;
+    private volatile boolean mAborted = false;
+
+    /**
+     * @param name
+     *            Used for logging and as thread name.
+     * @param capacity
+     *            Number of items that may wait for the storage stage.
+     * @param batchSize
+     *            Maximum number of items handed to the storage stage at once.
+     */
+    StoragePipeline(String name, int capacity, int batchSize, BatchHandler<T> handler) {
+        mName = name;
+        mBatchSize = batchSize;
+        mHandler = handler;
+        mQueue = new ArrayBlockingQueue<Object>(capacity);
+    }
+
+    /**
+     * Start the storage stage on the given executor.
+     */
+    void start(Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String originalName = Thread.currentThread().getName();
+                Thread.currentThread().setName(mName);
+                try {
+                    drain();
+                } finally {
+                    Thread.currentThread().setName(originalName);
+                    mDone.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue an item for storage, waiting while the queue is full.
+     *
+     * @throws MessagingException
+     *             If the storage stage failed; nothing is stored anymore in
+     *             that case.
+     */
+    void put(T item) throws MessagingException {
+        checkFailure();
+        try {
+            mQueue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for " + mName, e);
+        }
+    }
+
+    /**
+     * Signal the end of the input and wait until everything queued so far is
+     * stored.
+     *
+     * @throws MessagingException
+     *             If the storage stage failed.
+     */
+    void finish() throws MessagingException {
+        end();
+        checkFailure();
+    }
+
+    /**
+     * Stop the pipeline, dropping items that aren't stored yet. Used when the
+     * producer fails. Never throws.
+     */
+    void abort() {
+        mAborted = true;
+        try {
+            end();
+        } catch (MessagingException e) {
+            Log.w(K9.LOG_TAG, "Unable to stop " + mName, e);
+        }
+    }
+
+    private void end() throws MessagingException {
+        try {
+            mQueue.put(END);
+            mDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for " + mName, e);
+        }
+    }
+
+    private void checkFailure() throws MessagingException {
+        Exception failure = mFailure;
+        if (failure instanceof MessagingException) {
+            throw (MessagingException) failure;
+        } else if (failure != null) {
+            throw new MessagingException(mName + " failed", failure);
+        }
+    }
+
+    private void drain() {
+        List<Object> drained = new ArrayList<Object>(mBatchSize);
+        List<T> batch = new ArrayList<T>(mBatchSize);
+        boolean ended = false;
+        while (!ended) {
+            try {
+                drained.add(mQueue.take());
+            } catch (InterruptedException e) {
+                Log.w(K9.LOG_TAG, mName + " interrupted", e);
+                mFailure = e;
+                // keep draining, producers must not block on a full queue
+                continue;
+            }
+            mQueue.drainTo(drained, mBatchSize - 1);
+
+            for (Object item : drained) {
+                if (item == END) {
+                    ended = true;
+                } else {
+                    @SuppressWarnings("unchecked")
+                    T typed = (T) item;
+                    batch.add(typed);
+                }
+            }
+            drained.clear();
+
+            if (!batch.isEmpty() && mFailure == null && !mAborted) {
+                try {
+                    mHandler.handle(batch);
+                } catch (Exception e) {
+                    Log.e(K9.LOG_TAG, mName + " failed", e);
+                    mFailure = e;
+                }
+            }
+            batch.clear();
+        }
+    }
+}
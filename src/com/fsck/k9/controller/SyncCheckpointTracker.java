@@ -0,0 +1,105 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+import com.fsck.k9.mail.store.SyncCheckpoint;
+import com.fsck.k9.mail.store.SyncCheckpoint.Phase;
+
+/**
+ * Keeps the {@link SyncCheckpoint} of a folder up to date while the folder is
+ * being synchronized.
+ *
+ * <p>
+ * The checkpoint is written whenever the synchronization enters a new phase
+ * and after every stored batch of messages, and removed once the
+ * synchronization completes. Batches are stored from the storage thread of a
+ * {@link StoragePipeline}, hence the synchronization.
+ * </p>
+ */
+class SyncCheckpointTracker {
+    private final LocalFolder mFolder;
+    private final SyncCheckpoint mResumedFrom;
+    private SyncCheckpoint mCheckpoint;
+    private boolean mEnvelopesImported;
+
+    /**
+     * @param resumedFrom
+     *            Checkpoint left by the interrupted synchronization this one
+     *            resumes, <code>null</code> if it starts from scratch.
+     */
+    SyncCheckpointTracker(LocalFolder folder, SyncCheckpoint resumedFrom, int windowStart, int windowEnd) {
+        mFolder = folder;
+        mResumedFrom = resumedFrom;
+        if (resumedFrom != null) {
+            mCheckpoint = resumedFrom.withWindow(windowStart, windowEnd);
+        } else {
+            mCheckpoint = new SyncCheckpoint(Phase.HEADERS, windowStart, windowEnd, null);
+        }
+    }
+
+    /**
+     * @return Whether an interrupted synchronization is being resumed.
+     */
+    boolean isResumed() {
+        return mResumedFrom != null;
+    }
+
+    /**
+     * Record that the envelopes of the new messages were stored by an
+     * {@link InitialImport}.
+     */
+    synchronized void envelopesImported() {
+        mEnvelopesImported = true;
+    }
+
+    /**
+     * @return Whether envelopes of messages to synchronize may already be
+     *         stored, so that only their bodies are missing.
+     */
+    synchronized boolean hasStoredEnvelopes() {
+        return mResumedFrom != null || mEnvelopesImported;
+    }
+
+    synchronized void start() throws MessagingException {
+        mFolder.setSyncCheckpoint(mCheckpoint);
+    }
+
+    synchronized void enterPhase(Phase phase) throws MessagingException {
+        if (mCheckpoint.getPhase() != phase) {
+            mCheckpoint = mCheckpoint.withPhase(phase);
+            mFolder.setSyncCheckpoint(mCheckpoint);
+        }
+    }
+
+    /**
+     * Record messages that were stored with their body.
+     */
+    synchronized void messagesStored(List<Message> messages) throws MessagingException {
+        List<String> uids = new ArrayList<String>(messages.size());
+        for (Message message : messages) {
+            uids.add(message.getUid());
+        }
+        SyncCheckpoint checkpoint = mCheckpoint.withStoredUids(uids);
+        if (checkpoint != mCheckpoint) {
+            mCheckpoint = checkpoint;
+            mFolder.setSyncCheckpoint(mCheckpoint);
+        }
+    }
+
+    /**
+     * Remove the checkpoint, the synchronization completed.
+     */
+    synchronized void complete() throws MessagingException {
+        mFolder.setSyncCheckpoint(null);
+        if (K9.DEBUG && mResumedFrom != null)
+            Log.d(K9.LOG_TAG, "SYNC: Completed resumed synchronization of folder " + mFolder.getName()
+                  + ", interrupted at " + mResumedFrom);
+    }
+}
@@ -54,4 +54,11 @@ public enum Flag {
      * the server (if the message is still there).
      */
     X_GOT_ALL_HEADERS,
+
+    /**
+     * Indicates that the body of a partially downloaded message was fetched
+     * ahead of time because the message was likely to be read. Cleared once
+     * the message is opened.
+     */
+    X_PREFETCHED,
 }
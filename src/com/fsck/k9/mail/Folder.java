@@ -1,6 +1,8 @@
 package com.fsck.k9.mail;
 
+import java.io.OutputStream;
 import java.util.Date;
+import java.util.List;
 
 import android.util.Log;
 import com.fsck.k9.Account;
@@ -27,6 +29,22 @@ public abstract class Folder {
         HOLDS_FOLDERS, HOLDS_MESSAGES,
     }
 
+    /**
+     * Flags to set or clear on messages, see
+     * {@link Folder#setFlags(Message[], Flag[], boolean)}.
+     */
+    public static class FlagChange {
+        public final Message[] messages;
+        public final Flag[] flags;
+        public final boolean value;
+
+        public FlagChange(Message[] messages, Flag[] flags, boolean value) {
+            this.messages = messages;
+            this.flags = flags;
+            this.value = value;
+        }
+    }
+
     protected Folder(Account account) {
         mAccount = account;
     }
@@ -39,6 +57,21 @@ public abstract class Folder {
      */
     public abstract void open(OpenMode mode) throws MessagingException;
 
+    /**
+     * Open the folder, having the server report what changed since a
+     * previous state if it can.
+     *
+     * @param knownState
+     *            State of the folder as of the last synchronization,
+     *            <code>null</code> if unknown.
+     * @return What changed since <code>knownState</code>, <code>null</code>
+     *         if the server didn't tell. The folder is opened either way.
+     */
+    public MailboxChanges open(OpenMode mode, MailboxState knownState) throws MessagingException {
+        open(mode);
+        return null;
+    }
+
     /**
      * Forces a close of the MailProvider. Any further access will attempt to
      * reopen the MailProvider.
@@ -78,6 +111,14 @@ public abstract class Folder {
     public abstract int getUnreadMessageCount() throws MessagingException;
     public abstract int getFlaggedMessageCount() throws MessagingException;
 
+    /**
+     * @return The unread message count followed by the flagged message count.
+     *         Stores able to count both at once override this.
+     */
+    public int[] getUnreadAndFlaggedMessageCounts() throws MessagingException {
+        return new int[] { getUnreadMessageCount(), getFlaggedMessageCount() };
+    }
+
     public abstract Message getMessage(String uid) throws MessagingException;
 
     public abstract Message[] getMessages(int start, int end, Date earliestDate, MessageRetrievalListener listener)
@@ -120,6 +161,16 @@ public abstract class Folder {
 
     public abstract void setFlags(Flag[] flags, boolean value) throws MessagingException;
 
+    /**
+     * Apply independent flag changes, in order. Stores able to send them at
+     * once override this.
+     */
+    public void setFlags(List<FlagChange> changes) throws MessagingException {
+        for (FlagChange change : changes) {
+            setFlags(change.messages, change.flags, change.value);
+        }
+    }
+
     public abstract String getUidFromMessageId(Message message) throws MessagingException;
 
     public void expunge() throws MessagingException
@@ -137,6 +188,32 @@ public abstract class Folder {
             Log.d(K9.LOG_TAG, "fetchPart() not implemented.");
     }
 
+    /**
+     * @return Whether {@link #fetchPartRange(Message, Part, long, int, OutputStream)}
+     *         is supported.
+     */
+    public boolean supportsFetchingPartRanges() {
+        return false;
+    }
+
+    /**
+     * Fetch a range of the content of a part, as it is stored on the server
+     * (i.e. still transfer encoded).
+     *
+     * @param offset
+     *            Offset of the first byte to fetch.
+     * @param length
+     *            Maximum number of bytes to fetch.
+     * @param out
+     *            Receives the fetched bytes.
+     * @return Number of bytes fetched. Less than <code>length</code> once the
+     *         end of the part was reached.
+     */
+    public int fetchPartRange(Message message, Part part, long offset, int length,
+                              OutputStream out) throws MessagingException {
+        throw new MessagingException("Fetching part ranges is not supported by " + getClass().getSimpleName());
+    }
+
     public abstract void delete(boolean recurse) throws MessagingException;
 
     public abstract String getName();
@@ -157,6 +234,47 @@ public abstract class Folder {
         return true;
     }//isFlagSupported
 
+    /**
+     * @return UIDVALIDITY of the folder on the server when it was opened,
+     *         -1 if unknown. The UIDs of the messages are only valid as long
+     *         as it doesn't change.
+     */
+    public long getUidValidity() {
+        return -1;
+    }
+
+    /**
+     * @return State of the folder on the server when it was opened,
+     *         <code>null</code> if the server doesn't keep track of changes.
+     */
+    public MailboxState getMailboxState() {
+        return null;
+    }
+
+    /**
+     * @param modSeq
+     *            Highest modification sequence of a previous
+     *            {@link #getMailboxState() state} of this folder.
+     * @return The messages whose flags changed since, with their flags
+     *         loaded, <code>null</code> if the server can't tell.
+     */
+    public Message[] getMessagesChangedSince(long modSeq) throws MessagingException {
+        return null;
+    }
+
+    /**
+     * @param uid
+     *            A numeric UID, all messages with a higher one are returned.
+     * @param earliestDate
+     *            Only return messages received since, <code>null</code> for
+     *            all.
+     * @return The messages, oldest first, <code>null</code> if UIDs of this
+     *         store aren't ascending.
+     */
+    public Message[] getMessagesAfterUid(long uid, Date earliestDate) throws MessagingException {
+        return null;
+    }
+
     @Override
     public String toString() {
         return getName();
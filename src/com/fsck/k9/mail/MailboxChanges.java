@@ -0,0 +1,149 @@
+package com.fsck.k9.mail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * What changed in a folder since a known {@link MailboxState}, as reported by
+ * a server supporting quick resynchronization (IMAP QRESYNC, RFC 7162) when
+ * the folder was opened: the UIDs of the messages that were expunged, and
+ * the messages whose flags changed.
+ *
+ * <p>
+ * Messages expunged while the folder stays open are added as they are
+ * reported.
+ * </p>
+ *
+ * @see Folder#open(Folder.OpenMode, MailboxState)
+ */
+public class MailboxChanges {
+    private final List<long[]> mVanished = new ArrayList<long[]>();
+    private final List<Message> mChangedMessages = new ArrayList<Message>();
+
+    /**
+     * Vanished ranges sorted and merged for lookups, <code>null</code> when
+     * ranges were added since.
+     */
+    private long[] mVanishedStarts;
+    private long[] mVanishedEnds;
+
+    /**
+     * @param uidSet
+     *            UIDs in IMAP sequence set syntax, e.g. <code>41,43:116</code>.
+     * @return Number of UIDs in the set.
+     * @throws NumberFormatException
+     *             if the set isn't valid.
+     */
+    public synchronized long addVanished(String uidSet) {
+        long count = 0;
+        for (long[] range : parseUidSet(uidSet)) {
+            mVanished.add(range);
+            count += range[1] - range[0] + 1;
+        }
+        mVanishedStarts = null;
+        mVanishedEnds = null;
+        return count;
+    }
+
+    /**
+     * @return Whether the message with the given UID was expunged. Always
+     *         <code>false</code> for UIDs that aren't numeric.
+     */
+    public synchronized boolean isVanished(String uid) {
+        long value;
+        try {
+            value = Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (mVanishedStarts == null) {
+            mergeVanished();
+        }
+        int index = Arrays.binarySearch(mVanishedStarts, value);
+        if (index < 0) {
+            // range starting before the UID, if any
+            index = -index - 2;
+        }
+        return index >= 0 && value <= mVanishedEnds[index];
+    }
+
+    private void mergeVanished() {
+        long[][] ranges = mVanished.toArray(new long[mVanished.size()][]);
+        Arrays.sort(ranges, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1);
+            }
+        });
+        long[] starts = new long[ranges.length];
+        long[] ends = new long[ranges.length];
+        int count = 0;
+        for (long[] range : ranges) {
+            if (count > 0 && range[0] <= ends[count - 1] + 1) {
+                ends[count - 1] = Math.max(ends[count - 1], range[1]);
+            } else {
+                starts[count] = range[0];
+                ends[count] = range[1];
+                count++;
+            }
+        }
+        mVanishedStarts = new long[count];
+        System.arraycopy(starts, 0, mVanishedStarts, 0, count);
+        mVanishedEnds = new long[count];
+        System.arraycopy(ends, 0, mVanishedEnds, 0, count);
+    }
+
+    /**
+     * @param message
+     *            Message with its UID and current flags.
+     */
+    public synchronized void addChangedMessage(Message message) {
+        mChangedMessages.add(message);
+    }
+
+    /**
+     * @return Messages whose flags changed, in the order they were reported.
+     */
+    public synchronized List<Message> getChangedMessages() {
+        return new ArrayList<Message>(mChangedMessages);
+    }
+
+    /**
+     * @return Number of UIDs in an IMAP sequence set.
+     * @throws NumberFormatException
+     *             if the set isn't valid.
+     */
+    public static long countUids(String uidSet) {
+        long count = 0;
+        for (long[] range : parseUidSet(uidSet)) {
+            count += range[1] - range[0] + 1;
+        }
+        return count;
+    }
+
+    private static List<long[]> parseUidSet(String uidSet) {
+        List<long[]> ranges = new ArrayList<long[]>();
+        int start = 0;
+        int length = uidSet.length();
+        while (start < length) {
+            int end = uidSet.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int colon = uidSet.indexOf(':', start);
+            long first;
+            long last;
+            if (colon >= 0 && colon < end) {
+                first = Long.parseLong(uidSet.substring(start, colon));
+                last = Long.parseLong(uidSet.substring(colon + 1, end));
+            } else {
+                first = Long.parseLong(uidSet.substring(start, end));
+                last = first;
+            }
+            ranges.add(new long[] { Math.min(first, last), Math.max(first, last) });
+            start = end + 1;
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,64 @@
+package com.fsck.k9.mail;
+
+/**
+ * What a server that keeps track of changes to messages (IMAP CONDSTORE,
+ * RFC 7162) reported about a folder when it was opened.
+ *
+ * <p>
+ * Stored after a synchronization, it allows the next one to ask only for the
+ * messages whose flags changed since. It is only meaningful as long as the
+ * UID validity stays the same.
+ * </p>
+ *
+ * @see Folder#getMailboxState()
+ * @see Folder#getMessagesChangedSince(long)
+ */
+public class MailboxState {
+    private final long mUidValidity;
+    private final long mHighestModSeq;
+    private final long mUidNext;
+
+    /**
+     * @param uidNext
+     *            UID the next message added to the folder gets at least, 0 if
+     *            unknown.
+     */
+    public MailboxState(long uidValidity, long highestModSeq, long uidNext) {
+        mUidValidity = uidValidity;
+        mHighestModSeq = highestModSeq;
+        mUidNext = Math.max(uidNext, 0);
+    }
+
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    /**
+     * @return Highest modification sequence of the messages in the folder.
+     */
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    /**
+     * @return UID the next message added to the folder gets at least, 0 if
+     *         unknown. Messages with a lower UID existed when the folder was
+     *         opened.
+     */
+    public long getUidNext() {
+        return mUidNext;
+    }
+
+    /**
+     * @return Whether the modification sequences of this state can be used
+     *         with the folder in the given state.
+     */
+    public boolean isSameMailbox(MailboxState other) {
+        return other != null && other.mUidValidity == mUidValidity;
+    }
+
+    @Override
+    public String toString() {
+        return "UIDVALIDITY " + mUidValidity + ", HIGHESTMODSEQ " + mHighestModSeq + ", UIDNEXT " + mUidNext;
+    }
+}
@@ -109,6 +109,24 @@ public abstract class Store {
         return false;
     }
 
+    /**
+     * @return Maximum number of folders of this store that may be accessed
+     *         concurrently.
+     */
+    public int getMaxConcurrentFolderAccess() {
+        return 1;
+    }
+
+    /**
+     * @return A folder object that isn't shared with {@link #getFolder(String)}
+     *         and thus may be opened concurrently with it, e.g. over another
+     *         connection. The caller closes it when done. Stores that can't
+     *         access a folder concurrently return the shared object.
+     */
+    public Folder getUnsharedFolder(String name) {
+        return getFolder(name);
+    }
+
 
     public void sendMessages(Message[] messages) throws MessagingException {
     }
@@ -1,55 +1,122 @@
-
 package com.fsck.k9.mail.filter;
 
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * A filtering InputStream that allows single byte "peeks" without consuming the byte. The
+ * A buffering InputStream that allows single byte "peeks" without consuming the byte. The
  * client of this stream can call peek() to see the next available byte in the stream
  * and a subsequent read will still return the peeked byte.
+ *
+ * <p>
+ * Parsers can also scan the buffered bytes in place, see {@link #fill()}, rather than
+ * reading them one at a time.
+ * </p>
  */
 public class PeekableInputStream extends InputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 4096;
+
     private InputStream mIn;
-    private boolean mPeeked;
-    private int mPeekedByte;
+    private final byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
 
     public PeekableInputStream(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public PeekableInputStream(InputStream in, int bufferSize) {
         this.mIn = in;
+        this.mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Make sure some bytes are buffered, reading from the underlying stream
+     * if none are. This blocks until at least one byte is available.
+     *
+     * @return Number of bytes buffered, -1 at the end of the stream.
+     */
+    public int fill() throws IOException {
+        if (mPosition == mLimit) {
+            int count = mIn.read(mBuffer, 0, mBuffer.length);
+            if (count <= 0) {
+                mPosition = 0;
+                mLimit = 0;
+                return -1;
+            }
+            mPosition = 0;
+            mLimit = count;
+        }
+        return mLimit - mPosition;
+    }
+
+    /**
+     * @return The buffer, valid from {@link #getPosition()} to
+     *         {@link #getLimit()} until the next call to {@link #fill()} or
+     *         any read.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return Position of the next byte to read in the buffer.
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return End of the buffered bytes.
+     */
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Mark buffered bytes as read.
+     */
+    public void consume(int count) {
+        if (count < 0 || count > mLimit - mPosition) {
+            throw new IllegalArgumentException("Can't consume " + count + " of " + (mLimit - mPosition)
+                                               + " buffered bytes");
+        }
+        mPosition += count;
     }
 
     @Override
     public int read() throws IOException {
-        if (!mPeeked) {
-            return mIn.read();
-        } else {
-            mPeeked = false;
-            return mPeekedByte;
+        if (fill() < 0) {
+            return -1;
         }
+        return mBuffer[mPosition++] & 0xff;
     }
 
     public int peek() throws IOException {
-        if (!mPeeked) {
-            mPeekedByte = read();
-            mPeeked = true;
+        if (fill() < 0) {
+            return -1;
         }
-        return mPeekedByte;
+        return mBuffer[mPosition] & 0xff;
     }
 
     @Override
     public int read(byte[] b, int offset, int length) throws IOException {
-        if (!mPeeked) {
-            return mIn.read(b, offset, length);
-        } else {
-            b[0] = (byte)mPeekedByte;
-            mPeeked = false;
-            int r = mIn.read(b, offset + 1, length - 1);
-            if (r == -1) {
-                return 1;
-            } else {
-                return r + 1;
+        if (length == 0) {
+            return 0;
+        }
+        if (mPosition == mLimit) {
+            // nothing worth copying twice
+            if (length >= mBuffer.length) {
+                return mIn.read(b, offset, length);
+            }
+            if (fill() < 0) {
+                return -1;
             }
         }
+        int count = Math.min(length, mLimit - mPosition);
+        System.arraycopy(mBuffer, mPosition, b, offset, count);
+        mPosition += count;
+        return count;
     }
 
     @Override
@@ -57,9 +124,28 @@ public class PeekableInputStream extends InputStream {
         return read(b, 0, b.length);
     }
 
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int buffered = mLimit - mPosition;
+        if (buffered > 0) {
+            int count = (int)Math.min(n, buffered);
+            mPosition += count;
+            return count;
+        }
+        return mIn.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mLimit - mPosition) + mIn.available();
+    }
+
     @Override
     public String toString() {
-        return String.format("PeekableInputStream(in=%s, peeked=%b, peekedByte=%d)",
-                             mIn.toString(), mPeeked, mPeekedByte);
+        return String.format("PeekableInputStream(in=%s, buffered=%d)",
+                             mIn.toString(), mLimit - mPosition);
     }
 }
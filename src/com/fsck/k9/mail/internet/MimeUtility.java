@@ -1066,22 +1066,31 @@ public class MimeUtility {
     }
 
     /**
-     * Removes any content transfer encoding from the stream and returns a Body.
+     * @return A stream removing the given content transfer encoding from the
+     *         given stream.
      */
-    public static Body decodeBody(InputStream in, String contentTransferEncoding)
-    throws IOException {
-        /*
-         * We'll remove any transfer encoding by wrapping the stream.
-         */
+    public static InputStream getDecodingStream(InputStream in, String contentTransferEncoding) {
         if (contentTransferEncoding != null) {
             contentTransferEncoding =
             MimeUtility.getHeaderParameter(contentTransferEncoding, null);
             if ("quoted-printable".equalsIgnoreCase(contentTransferEncoding)) {
-                in = new QuotedPrintableInputStream(in);
+                return new QuotedPrintableInputStream(in);
             } else if ("base64".equalsIgnoreCase(contentTransferEncoding)) {
-                in = new Base64InputStream(in);
+                return new Base64InputStream(in);
             }
         }
+        return in;
+    }
+
+    /**
+     * Removes any content transfer encoding from the stream and returns a Body.
+     */
+    public static Body decodeBody(InputStream in, String contentTransferEncoding)
+    throws IOException {
+        /*
+         * We'll remove any transfer encoding by wrapping the stream.
+         */
+        in = getDecodingStream(in, contentTransferEncoding);
 
         BinaryTempFileBody tempBody = new BinaryTempFileBody();
         OutputStream out = tempBody.getOutputStream();
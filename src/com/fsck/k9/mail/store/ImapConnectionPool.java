@@ -0,0 +1,343 @@
+package com.fsck.k9.mail.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.ImapStore.ImapConnection;
+
+/**
+ * Connections of an {@link ImapStore}, shared by all its folders.
+ *
+ * <p>
+ * At most {@link #getMaxConnections()} connections are in use or kept idle at
+ * once; a checkout beyond that waits for one to be released. A connection
+ * that was released last is handed out first, as it is the least likely to
+ * have been dropped, while idle connections expire oldest first: after
+ * {@link #MAX_IDLE_TIME} they are closed in the background, before the server
+ * or a NAT router on the way gives up on them. Only connections idle for more
+ * than {@link #HEALTH_CHECK_IDLE_TIME} are checked with a <code>NOOP</code>
+ * before being handed out.
+ * </p>
+ *
+ * <p>
+ * Connections held for a long time, like the ones used for push, don't count
+ * against the limit. Neither does a connection handed out because none was
+ * released within {@link #CHECKOUT_TIMEOUT}, so that a folder that isn't
+ * closed can't block the others forever. These connections are closed when
+ * released if the pool is full. They are never connections that QRESYNC was
+ * enabled on, since push relies on <code>EXPUNGE</code> responses.
+ * </p>
+ */
+public class ImapConnectionPool {
+    static final long HEALTH_CHECK_IDLE_TIME = 30 * 1000;
+    static final long MAX_IDLE_TIME = 3 * 60 * 1000;
+    static final long CHECKOUT_TIMEOUT = 10 * 1000;
+
+    private static final Timer sEvictionTimer = new Timer("ImapConnectionPool", true);
+
+    interface ConnectionFactory {
+        /**
+         * @return A new connection, not opened yet.
+         */
+        ImapConnection create();
+    }
+
+    /**
+     * Counters since the creation of a pool.
+     */
+    public static class Stats {
+        public final int checkouts;
+        /**
+         * Checkouts served by an idle connection.
+         */
+        public final int hits;
+        /**
+         * Checkouts served by a new connection.
+         */
+        public final int misses;
+        /**
+         * Checkouts that exceeded the limit after waiting in vain.
+         */
+        public final int overflows;
+        public final int healthChecks;
+        public final int failedHealthChecks;
+        public final int evictions;
+        public final long totalCheckoutTime;
+        public final int idle;
+        public final int inUse;
+
+        Stats(int checkouts, int hits, int misses, int overflows, int healthChecks, int failedHealthChecks,
+              int evictions, long totalCheckoutTime, int idle, int inUse) {
+            this.checkouts = checkouts;
+            this.hits = hits;
+            this.misses = misses;
+            this.overflows = overflows;
+            this.healthChecks = healthChecks;
+            this.failedHealthChecks = failedHealthChecks;
+            this.evictions = evictions;
+            this.totalCheckoutTime = totalCheckoutTime;
+            this.idle = idle;
+            this.inUse = inUse;
+        }
+
+        /**
+         * @return Number of connections opened by the pool.
+         */
+        public int getOpened() {
+            return misses;
+        }
+
+        /**
+         * @return Average time (ms) a checkout took, including waiting and
+         *         health checks.
+         */
+        public long getAverageCheckoutTime() {
+            return (checkouts == 0) ? 0 : totalCheckoutTime / checkouts;
+        }
+
+        @Override
+        public String toString() {
+            return checkouts + " checkouts (" + hits + " hits, " + misses + " misses, " + overflows + " overflows), "
+                   + "avg " + getAverageCheckoutTime() + "ms, " + healthChecks + " health checks ("
+                   + failedHealthChecks + " failed), " + evictions + " evictions, " + idle + " idle, "
+                   + inUse + " in use";
+        }
+    }
+
+    private static class IdleConnection {
+        final ImapConnection connection;
+        final long since;
+
+        IdleConnection(ImapConnection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    private final int mMaxConnections;
+    private final ConnectionFactory mFactory;
+
+    /**
+     * Oldest first.
+     */
+    private final LinkedList<IdleConnection> mIdle = new LinkedList<IdleConnection>();
+
+    /**
+     * Connections in use that count against the limit.
+     */
+    private final Set<ImapConnection> mInUse = new HashSet<ImapConnection>();
+
+    private TimerTask mEviction;
+
+    private int mCheckouts;
+    private int mHits;
+    private int mMisses;
+    private int mOverflows;
+    private int mHealthChecks;
+    private int mFailedHealthChecks;
+    private int mEvictions;
+    private long mTotalCheckoutTime;
+
+    ImapConnectionPool(int maxConnections, ConnectionFactory factory) {
+        mMaxConnections = maxConnections;
+        mFactory = factory;
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * @param dedicated
+     *            Whether the connection is going to be held for a long time,
+     *            so that it doesn't count against the limit.
+     * @return An idle connection, or a new one that isn't opened yet.
+     */
+    ImapConnection checkout(boolean dedicated) throws MessagingException {
+        long start = System.currentTimeMillis();
+        while (true) {
+            IdleConnection idle;
+            synchronized (this) {
+                idle = takeIdle(dedicated, start);
+                if (idle == null) {
+                    ImapConnection connection = mFactory.create();
+                    mMisses++;
+                    if (!dedicated && mInUse.size() + mIdle.size() < mMaxConnections) {
+                        mInUse.add(connection);
+                    } else if (!dedicated) {
+                        mOverflows++;
+                        Log.w(K9.LOG_TAG, "No IMAP connection released within " + CHECKOUT_TIMEOUT
+                              + "ms, exceeding the limit of " + mMaxConnections);
+                    }
+                    countCheckout(start);
+                    return connection;
+                }
+            }
+
+            if (!needsHealthCheck(idle) || isHealthy(idle.connection)) {
+                synchronized (this) {
+                    mHits++;
+                    countCheckout(start);
+                }
+                return idle.connection;
+            }
+            idle.connection.close();
+            synchronized (this) {
+                mInUse.remove(idle.connection);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Take the most recently released idle connection that can be used the
+     * requested way, waiting for one if the limit is reached.
+     *
+     * @return <code>null</code> if a new connection is to be created.
+     */
+    private IdleConnection takeIdle(boolean dedicated, long start) throws MessagingException {
+        while (mIdle.isEmpty() && !dedicated && mInUse.size() >= mMaxConnections) {
+            long remaining = start + CHECKOUT_TIMEOUT - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                throw new MessagingException("Interrupted while waiting for an IMAP connection", e);
+            }
+        }
+        IdleConnection idle = null;
+        for (ListIterator<IdleConnection> it = mIdle.listIterator(mIdle.size()); it.hasPrevious(); ) {
+            IdleConnection candidate = it.previous();
+            if (!dedicated || !candidate.connection.isQresyncEnabled()) {
+                it.remove();
+                idle = candidate;
+                break;
+            }
+        }
+        if (idle != null && !dedicated) {
+            mInUse.add(idle.connection);
+        }
+        return idle;
+    }
+
+    private boolean needsHealthCheck(IdleConnection idle) {
+        return System.currentTimeMillis() - idle.since > HEALTH_CHECK_IDLE_TIME;
+    }
+
+    private boolean isHealthy(ImapConnection connection) {
+        try {
+            connection.executeSimpleCommand("NOOP");
+            synchronized (this) {
+                mHealthChecks++;
+            }
+            return true;
+        } catch (IOException ioe) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "Discarding idle IMAP connection " + connection.getLogId(), ioe);
+        } catch (MessagingException me) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "Discarding idle IMAP connection " + connection.getLogId(), me);
+        }
+        synchronized (this) {
+            mHealthChecks++;
+            mFailedHealthChecks++;
+        }
+        return false;
+    }
+
+    private void countCheckout(long start) {
+        mCheckouts++;
+        mTotalCheckoutTime += System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Give back a connection obtained from {@link #checkout(boolean)}. Closed
+     * connections are dropped.
+     */
+    void release(ImapConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        boolean close = false;
+        synchronized (this) {
+            boolean counted = mInUse.remove(connection);
+            if (connection.isOpen() && !isIdle(connection)) {
+                if (counted || mInUse.size() + mIdle.size() < mMaxConnections) {
+                    mIdle.addLast(new IdleConnection(connection, System.currentTimeMillis()));
+                    scheduleEviction();
+                } else {
+                    close = true;
+                }
+            }
+            notifyAll();
+        }
+        if (close) {
+            connection.close();
+        }
+    }
+
+    private boolean isIdle(ImapConnection connection) {
+        for (IdleConnection idle : mIdle) {
+            if (idle.connection == connection) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scheduleEviction() {
+        if (mEviction != null || mIdle.isEmpty()) {
+            return;
+        }
+        mEviction = new TimerTask() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        };
+        long delay = mIdle.getFirst().since + MAX_IDLE_TIME - System.currentTimeMillis();
+        sEvictionTimer.schedule(mEviction, Math.max(0, delay));
+    }
+
+    /**
+     * Close the connections that have been idle for {@link #MAX_IDLE_TIME}.
+     */
+    void evictIdleConnections() {
+        List<ImapConnection> expired = new ArrayList<ImapConnection>();
+        synchronized (this) {
+            mEviction = null;
+            long now = System.currentTimeMillis();
+            while (!mIdle.isEmpty() && now - mIdle.getFirst().since >= MAX_IDLE_TIME) {
+                expired.add(mIdle.removeFirst().connection);
+            }
+            mEvictions += expired.size();
+            scheduleEviction();
+            if (!expired.isEmpty()) {
+                notifyAll();
+            }
+        }
+        for (ImapConnection connection : expired) {
+            connection.close();
+        }
+        if (K9.DEBUG && !expired.isEmpty())
+            Log.d(K9.LOG_TAG, "Closed " + expired.size() + " idle IMAP connections; " + getStats());
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mCheckouts, mHits, mMisses, mOverflows, mHealthChecks, mFailedHealthChecks, mEvictions,
+                         mTotalCheckoutTime, mIdle.size(), mInUse.size());
+    }
+}
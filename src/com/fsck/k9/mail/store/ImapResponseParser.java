@@ -1,5 +1,6 @@
 package com.fsck.k9.mail.store;
 
+import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
@@ -7,7 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Date;
 import java.util.Locale;
 
@@ -17,10 +18,46 @@ public class ImapResponseParser {
     private static final SimpleDateFormat badDateTimeFormat2 = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss Z", Locale.US);
     private static final SimpleDateFormat badDateTimeFormat3 = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
 
+    /**
+     * Size of the chunks token bytes are copied to.
+     */
+    private static final int ARENA_SIZE = 4096;
+
+    /**
+     * Bytes that can be part of an atom. Not in RFC 3501 terms: flags
+     * (<code>\Seen</code>) and wildcards (<code>\*</code>) are read as
+     * atoms too.
+     */
+    private static final boolean[] ATOM_CHARS = new boolean[256];
+    static {
+        for (int i = 0x20; i < 256; i++) {
+            ATOM_CHARS[i] = true;
+        }
+        ATOM_CHARS[0x7f] = false;
+        for (char ch : "(){ []\"".toCharArray()) {
+            ATOM_CHARS[ch] = false;
+        }
+    }
+
+    /**
+     * Results of {@link #parseElement(ImapList)}, besides the closing
+     * character that was found.
+     */
+    private static final int ELEMENT = 0;
+    private static final int END_OF_LINE = -1;
+
     private PeekableInputStream mIn;
     private ImapResponse mResponse;
     private Exception mException;
 
+    /**
+     * Holds the bytes of the atoms and quoted strings read so far. Tokens
+     * keep referring to it, so it is replaced rather than reused once full.
+     */
+    private byte[] mArena = new byte[ARENA_SIZE];
+    private int mArenaUsed;
+    private int mTokenStart;
+
     public ImapResponseParser(PeekableInputStream in) {
         this.mIn = in;
     }
@@ -67,17 +104,14 @@ public class ImapResponseParser {
 
     private void readTokens(ImapResponse response) throws IOException {
         response.clear();
-        Object token;
-        while ((token = readToken(response)) != null) {
-            if (!(token instanceof ImapList)) {
-                response.add(token);
-            }
-
+        while (parseElement(response) != END_OF_LINE) {
             /*
+             * Closing parentheses and brackets without a match are ignored.
+             *
              * TODO: Check for responses ("OK", "PREAUTH", "BYE", "NO", "BAD")
              * that can contain resp-text tokens. If found, hand over to a special
              * method that parses a resp-text token. There's no need to use
-             * readToken()/parseToken() on that data.
+             * parseElement() on that data.
              *
              * See RFC 3501, Section 9 Formal Syntax (resp-text)
              */
@@ -86,53 +120,46 @@ public class ImapResponseParser {
     }
 
     /**
-     * Reads the next token of the response. The token can be one of: String -
-     * for NIL, QUOTED, NUMBER, ATOM. Object - for LITERAL.
-     * ImapList - for PARENTHESIZED LIST. Can contain any of the above
-     * elements including List.
+     * Reads the next element of the response into <code>list</code>. An
+     * element can be one of: String - for NIL, QUOTED, NUMBER, ATOM, which
+     * are decoded when first accessed. Object - for LITERAL. ImapList - for
+     * PARENTHESIZED LIST. Can contain any of the above elements including
+     * List.
      *
-     * @return The next token in the response or null if there are no more
-     *         tokens.
+     * @return {@link #ELEMENT} if an element was added, the character if a
+     *         closing parenthesis or bracket was found instead, or
+     *         {@link #END_OF_LINE} if there are no more elements.
      */
-    private Object readToken(ImapResponse response) throws IOException {
-        while (true) {
-            Object token = parseToken(response);
-            if (token == null || !(token.equals(")") || token.equals("]"))) {
-                return token;
-            }
-        }
-    }
-
-    private Object parseToken(ImapList parent) throws IOException {
+    private int parseElement(ImapList list) throws IOException {
         while (true) {
             int ch = mIn.peek();
             if (ch == '(') {
-                return parseList(parent);
+                return parseList(list, '(', ')');
             } else if (ch == '[') {
-                return parseSequence(parent);
-            } else if (ch == ')') {
-                expect(')');
-                return ")";
-            } else if (ch == ']') {
-                expect(']');
-                return "]";
+                return parseList(list, '[', ']');
+            } else if (ch == ')' || ch == ']') {
+                expect((char)ch);
+                return ch;
             } else if (ch == '"') {
-                return parseQuoted();
+                parseQuoted(list);
+                return ELEMENT;
             } else if (ch == '{') {
-                return parseLiteral();
+                list.add(parseLiteral());
+                return ELEMENT;
             } else if (ch == ' ') {
                 expect(' ');
             } else if (ch == '\r') {
                 expect('\r');
                 expect('\n');
-                return null;
+                return END_OF_LINE;
             } else if (ch == '\n') {
                 expect('\n');
-                return null;
+                return END_OF_LINE;
             } else if (ch == '\t') {
                 expect('\t');
             } else {
-                return parseAtom();
+                parseAtom(list);
+                return ELEMENT;
             }
         }
     }
@@ -154,70 +181,51 @@ public class ImapResponseParser {
         return tag;
     }
 
-    private ImapList parseList(ImapList parent) throws IOException {
-        expect('(');
-        ImapList list = new ImapList();
-        parent.add(list);
-        Object token;
-        while (true) {
-            token = parseToken(list);
-            if (token == null) {
-                return null;
-            } else if (token.equals(")")) {
-                break;
-            } else if (token instanceof ImapList) {
-                // Do nothing
-            } else {
-                list.add(token);
-            }
-        }
-        return list;
-    }
-
-    private ImapList parseSequence(ImapList parent) throws IOException {
-        expect('[');
+    /**
+     * A closing character that doesn't match <code>open</code> is added to
+     * the list as a string.
+     *
+     * @return {@link #ELEMENT}, or {@link #END_OF_LINE} if the line ended
+     *         before the list.
+     */
+    private int parseList(ImapList parent, char open, char close) throws IOException {
+        expect(open);
         ImapList list = new ImapList();
         parent.add(list);
-        Object token;
         while (true) {
-            token = parseToken(list);
-            if (token == null) {
-                return null;
-            } else if (token.equals("]")) {
-                break;
-            } else if (token instanceof ImapList) {
-                // Do nothing
-            } else {
-                list.add(token);
+            int result = parseElement(list);
+            if (result == END_OF_LINE) {
+                return END_OF_LINE;
+            } else if (result == close) {
+                return ELEMENT;
+            } else if (result != ELEMENT) {
+                list.add(String.valueOf((char)result));
             }
         }
-        return list;
     }
 
-    private String parseAtom() throws IOException {
-        StringBuffer sb = new StringBuffer();
-        int ch;
+    private void parseAtom(ImapList list) throws IOException {
+        startToken();
         while (true) {
-            ch = mIn.peek();
-            if (ch == -1) {
+            if (mIn.fill() < 0) {
                 throw new IOException("parseAtom(): end of stream reached");
-            } else if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                       ch == '[' || ch == ']' ||
-                       // docs claim that flags are \ atom but atom isn't supposed to
-                       // contain
-                       // * and some falgs contain *
-                       // ch == '%' || ch == '*' ||
-//                    ch == '%' ||
-                       // TODO probably should not allow \ and should recognize
-                       // it as a flag instead
-                       // ch == '"' || ch == '\' ||
-                       ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
-                if (sb.length() == 0) {
+            }
+            byte[] buffer = mIn.getBuffer();
+            int start = mIn.getPosition();
+            int end = mIn.getLimit();
+            int i = start;
+            while (i < end && ATOM_CHARS[buffer[i] & 0xff]) {
+                i++;
+            }
+            appendToToken(buffer, start, i - start);
+            mIn.consume(i - start);
+            if (i < end) {
+                if (mArenaUsed == mTokenStart) {
+                    int ch = buffer[i] & 0xff;
                     throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
                 }
-                return sb.toString();
-            } else {
-                sb.append((char)mIn.read());
+                list.addToken(mArena, mTokenStart, mArenaUsed - mTokenStart);
+                return;
             }
         }
     }
@@ -278,35 +286,57 @@ public class ImapResponseParser {
         return new String(data, "US-ASCII");
     }
 
-    private String parseQuoted() throws IOException {
+    private void parseQuoted(ImapList list) throws IOException {
         expect('"');
-
-        StringBuffer sb = new StringBuffer();
-        int ch;
+        startToken();
         boolean escape = false;
-        while ((ch = mIn.read()) != -1) {
-            if (!escape && (ch == '\\')) {
-                // Found the escape character
-                escape = true;
-            } else if (!escape && (ch == '"')) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
-                escape = false;
+        while (true) {
+            if (mIn.fill() < 0) {
+                throw new IOException("parseQuoted(): end of stream reached");
+            }
+            byte[] buffer = mIn.getBuffer();
+            int start = mIn.getPosition();
+            int end = mIn.getLimit();
+            int runStart = start;
+            for (int i = start; i < end; i++) {
+                if (escape) {
+                    escape = false;
+                } else if (buffer[i] == '\\') {
+                    // Found the escape character
+                    appendToToken(buffer, runStart, i - runStart);
+                    runStart = i + 1;
+                    escape = true;
+                } else if (buffer[i] == '"') {
+                    appendToToken(buffer, runStart, i - runStart);
+                    mIn.consume(i + 1 - start);
+                    list.addToken(mArena, mTokenStart, mArenaUsed - mTokenStart);
+                    return;
+                }
             }
+            appendToToken(buffer, runStart, end - runStart);
+            mIn.consume(end - start);
         }
-        throw new IOException("parseQuoted(): end of stream reached");
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuffer sb = new StringBuffer();
-        int ch;
-        while ((ch = mIn.read()) != -1) {
-            if (ch == end) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
+        startToken();
+        while (mIn.fill() >= 0) {
+            byte[] buffer = mIn.getBuffer();
+            int start = mIn.getPosition();
+            int limit = mIn.getLimit();
+            int i = start;
+            while (i < limit && buffer[i] != end) {
+                i++;
+            }
+            appendToToken(buffer, start, i - start);
+            if (i < limit) {
+                mIn.consume(i + 1 - start);
+                String value = decode(mArena, mTokenStart, mArenaUsed - mTokenStart);
+                // not referenced by any token
+                mArenaUsed = mTokenStart;
+                return value;
             }
+            mIn.consume(limit - start);
         }
         throw new IOException("readStringUntil(): end of stream reached");
     }
@@ -320,12 +350,150 @@ public class ImapResponseParser {
         return d;
     }
 
+    private void startToken() {
+        mTokenStart = mArenaUsed;
+    }
+
+    /**
+     * Append bytes to the token being read, moving it to a new arena if the
+     * current one is full.
+     */
+    private void appendToToken(byte[] buffer, int offset, int length) {
+        if (mArenaUsed + length > mArena.length) {
+            int tokenLength = mArenaUsed - mTokenStart;
+            byte[] arena = new byte[Math.max(ARENA_SIZE, 2 * (tokenLength + length))];
+            System.arraycopy(mArena, mTokenStart, arena, 0, tokenLength);
+            mArena = arena;
+            mTokenStart = 0;
+            mArenaUsed = tokenLength;
+        }
+        System.arraycopy(buffer, offset, mArena, mArenaUsed, length);
+        mArenaUsed += length;
+    }
+
+    /**
+     * Bytes are mapped to the characters with the same value (ISO-8859-1).
+     */
+    @SuppressWarnings("deprecation")
+    private static String decode(byte[] bytes, int offset, int length) {
+        return new String(bytes, 0, offset, length);
+    }
+
     /**
      * Represents an IMAP list response and is also the base class for the
      * ImapResponse.
      */
-    public class ImapList extends ArrayList<Object> {
-        private static final long serialVersionUID = -4067248341419617583L;
+    public class ImapList extends AbstractList<Object> {
+        private Object[] mValues = new Object[4];
+
+        /**
+         * Where the bytes of atoms and quoted strings are, until they're
+         * decoded by {@link #get(int)}: chunk, then offset and length in
+         * <code>mSlices</code>. <code>null</code> for other elements.
+         */
+        private byte[][] mChunks = new byte[4][];
+        private int[] mSlices = new int[8];
+        private int mSize;
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public Object get(int index) {
+            checkIndex(index, mSize);
+            Object value = mValues[index];
+            if (value == null && mChunks[index] != null) {
+                value = decode(mChunks[index], mSlices[2 * index], mSlices[2 * index + 1]);
+                mValues[index] = value;
+            }
+            return value;
+        }
+
+        @Override
+        public Object set(int index, Object element) {
+            Object previous = get(index);
+            mValues[index] = element;
+            mChunks[index] = null;
+            return previous;
+        }
+
+        @Override
+        public void add(int index, Object element) {
+            insert(index);
+            mValues[index] = element;
+        }
+
+        /**
+         * Add an atom or quoted string without decoding it.
+         */
+        void addToken(byte[] chunk, int offset, int length) {
+            int index = mSize;
+            insert(index);
+            mChunks[index] = chunk;
+            mSlices[2 * index] = offset;
+            mSlices[2 * index + 1] = length;
+        }
+
+        private void insert(int index) {
+            checkIndex(index, mSize + 1);
+            if (mSize == mValues.length) {
+                int capacity = mSize * 2;
+                Object[] values = new Object[capacity];
+                System.arraycopy(mValues, 0, values, 0, mSize);
+                mValues = values;
+                byte[][] chunks = new byte[capacity][];
+                System.arraycopy(mChunks, 0, chunks, 0, mSize);
+                mChunks = chunks;
+                int[] slices = new int[2 * capacity];
+                System.arraycopy(mSlices, 0, slices, 0, 2 * mSize);
+                mSlices = slices;
+            }
+            if (index < mSize) {
+                System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+                System.arraycopy(mChunks, index, mChunks, index + 1, mSize - index);
+                System.arraycopy(mSlices, 2 * index, mSlices, 2 * index + 2, 2 * (mSize - index));
+            }
+            mValues[index] = null;
+            mChunks[index] = null;
+            mSize++;
+            modCount++;
+        }
+
+        @Override
+        public Object remove(int index) {
+            Object previous = get(index);
+            int moved = mSize - index - 1;
+            System.arraycopy(mValues, index + 1, mValues, index, moved);
+            System.arraycopy(mChunks, index + 1, mChunks, index, moved);
+            System.arraycopy(mSlices, 2 * index + 2, mSlices, 2 * index, 2 * moved);
+            mSize--;
+            mValues[mSize] = null;
+            mChunks[mSize] = null;
+            modCount++;
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            for (int i = 0; i < mSize; i++) {
+                mValues[i] = null;
+                mChunks[i] = null;
+            }
+            mSize = 0;
+            modCount++;
+        }
+
+        private void checkIndex(int index, int size) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+            }
+        }
+
+        private boolean isToken(int index) {
+            return mChunks[index] != null;
+        }
 
         public ImapList getList(int index) {
             return (ImapList)get(index);
@@ -344,9 +512,93 @@ public class ImapResponseParser {
         }
 
         public int getNumber(int index) {
+            checkIndex(index, mSize);
+            if (isToken(index)) {
+                long value = parseDigits(index);
+                if (value >= 0 && value <= Integer.MAX_VALUE) {
+                    return (int)value;
+                }
+            }
             return Integer.parseInt(getString(index));
         }
 
+        public long getLong(int index) {
+            checkIndex(index, mSize);
+            if (isToken(index)) {
+                long value = parseDigits(index);
+                if (value >= 0) {
+                    return value;
+                }
+            }
+            return Long.parseLong(getString(index));
+        }
+
+        /**
+         * @return Value of an atom made of up to 18 digits, -1 for anything
+         *         else, which is left to Integer/Long.parseXxx().
+         */
+        private long parseDigits(int index) {
+            byte[] chunk = mChunks[index];
+            int offset = mSlices[2 * index];
+            int length = mSlices[2 * index + 1];
+            if (length == 0 || length > 18) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = offset, end = offset + length; i < end; i++) {
+                int digit = chunk[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        /**
+         * @return The system flag at <code>index</code>, <code>null</code> if
+         *         the element is a keyword or a flag K-9 doesn't track on
+         *         the server.
+         */
+        public Flag getFlag(int index) {
+            if (equalsIgnoreCase(index, "\\Deleted")) {
+                return Flag.DELETED;
+            } else if (equalsIgnoreCase(index, "\\Answered")) {
+                return Flag.ANSWERED;
+            } else if (equalsIgnoreCase(index, "\\Seen")) {
+                return Flag.SEEN;
+            } else if (equalsIgnoreCase(index, "\\Flagged")) {
+                return Flag.FLAGGED;
+            }
+            return null;
+        }
+
+        /**
+         * Same as <code>ImapResponseParser.equalsIgnoreCase(get(index), value)</code>,
+         * without decoding atoms and quoted strings.
+         */
+        public boolean equalsIgnoreCase(int index, String value) {
+            checkIndex(index, mSize);
+            if (!isToken(index) || value == null) {
+                return ImapResponseParser.equalsIgnoreCase(get(index), value);
+            }
+            byte[] chunk = mChunks[index];
+            int offset = mSlices[2 * index];
+            int length = mSlices[2 * index + 1];
+            if (length != value.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                char c1 = (char)(chunk[offset + i] & 0xff);
+                char c2 = value.charAt(i);
+                if (c1 != c2 && Character.toUpperCase(c1) != Character.toUpperCase(c2)
+                        && Character.toLowerCase(c1) != Character.toLowerCase(c2)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         public Date getDate(int index) throws MessagingException {
             return getDate(getString(index));
         }
@@ -368,12 +620,8 @@ public class ImapResponseParser {
 
 
         public Object getKeyedValue(Object key) {
-            for (int i = 0, count = size(); i < count; i++) {
-                if (equalsIgnoreCase(get(i), key)) {
-                    return get(i + 1);
-                }
-            }
-            return null;
+            int index = indexOfKey(key);
+            return (index < 0) ? null : get(index + 1);
         }
 
         public ImapList getKeyedList(Object key) {
@@ -389,7 +637,11 @@ public class ImapResponseParser {
         }
 
         public int getKeyedNumber(Object key) {
-            return Integer.parseInt(getKeyedString(key));
+            int index = indexOfKey(key);
+            if (index < 0) {
+                throw new NumberFormatException("null");
+            }
+            return getNumber(index + 1);
         }
 
         public boolean containsKey(Object key) {
@@ -397,22 +649,25 @@ public class ImapResponseParser {
                 return false;
             }
 
-            for (int i = 0, count = size(); i < count; i++) {
-                if (equalsIgnoreCase(key, get(i))) {
-                    return true;
-                }
-            }
-            return false;
+            return indexOfKey(key) >= 0;
         }
 
         public int getKeyIndex(Object key) {
-            for (int i = 0, count = size(); i < count; i++) {
-                if (equalsIgnoreCase(key, get(i))) {
+            int index = indexOfKey(key);
+            if (index < 0) {
+                throw new IllegalArgumentException("getKeyIndex() only works for keys that are in the collection.");
+            }
+            return index;
+        }
+
+        private int indexOfKey(Object key) {
+            for (int i = 0; i < mSize; i++) {
+                if ((key instanceof String) ? equalsIgnoreCase(i, (String)key) :
+                        ImapResponseParser.equalsIgnoreCase(key, get(i))) {
                     return i;
                 }
             }
-
-            throw new IllegalArgumentException("getKeyIndex() only works for keys that are in the collection.");
+            return -1;
         }
 
         private Date parseDate(String value) throws ParseException {
@@ -451,10 +706,6 @@ public class ImapResponseParser {
      * continue reading the response until more returns false.
      */
     public class ImapResponse extends ImapList {
-        /**
-         *
-         */
-        private static final long serialVersionUID = 6886458551615975669L;
         private boolean mCompleted;
         private IImapResponseCallback mCallback;
 
@@ -470,7 +721,7 @@ public class ImapResponseParser {
         }
 
         public String getAlertText() {
-            if (size() > 1 && equalsIgnoreCase("[ALERT]", get(1))) {
+            if (size() > 1 && equalsIgnoreCase(1, "[ALERT]")) {
                 StringBuffer sb = new StringBuffer();
                 for (int i = 2, count = size(); i < count; i++) {
                     sb.append(get(i).toString());
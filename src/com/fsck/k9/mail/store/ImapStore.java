@@ -1,7 +1,6 @@
 
 package com.fsck.k9.mail.store;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -54,6 +53,8 @@ import android.net.NetworkInfo;
 import android.os.PowerManager;
 import android.util.Log;
 
+import org.apache.commons.io.IOUtils;
+
 import com.beetstra.jutf7.CharsetProvider;
 import com.fsck.k9.Account;
 import com.fsck.k9.K9;
@@ -69,6 +70,8 @@ import com.fsck.k9.mail.CertificateValidationException;
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.MailboxChanges;
+import com.fsck.k9.mail.MailboxState;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
@@ -109,12 +112,21 @@ public class ImapStore extends Store {
     private static final int IDLE_READ_TIMEOUT_INCREMENT = 5 * 60 * 1000;
     private static final int IDLE_FAILURE_COUNT_LIMIT = 10;
     private static int MAX_DELAY_TIME = 5 * 60 * 1000; // 5 minutes
+
+    /**
+     * Maximum number of connections used concurrently for regular (non-push)
+     * folder access.
+     */
+    private static final int MAX_CONNECTIONS = 4;
     private static int NORMAL_DELAY_TIME = 5000;
 
     private static int FETCH_WINDOW_SIZE = 100;
 
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED, Flag.SEEN };
 
+    private static final String UNREAD_CRITERIA = "UNSEEN NOT DELETED";
+    private static final String FLAGGED_CRITERIA = "FLAGGED NOT DELETED";
+
     private static final String CAPABILITY_IDLE = "IDLE";
     private static final String COMMAND_IDLE = "IDLE";
     private static final String CAPABILITY_NAMESPACE = "NAMESPACE";
@@ -126,6 +138,11 @@ public class ImapStore extends Store {
     private static final String CAPABILITY_COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
     private static final String COMMAND_COMPRESS_DEFLATE = "COMPRESS DEFLATE";
 
+    private static final String CAPABILITY_CONDSTORE = "CONDSTORE";
+    private static final String CAPABILITY_QRESYNC = "QRESYNC";
+    private static final String CAPABILITY_ESEARCH = "ESEARCH";
+    private static final String COMMAND_ENABLE_QRESYNC = "ENABLE QRESYNC";
+
     private static final Message[] EMPTY_MESSAGE_ARRAY = new Message[0];
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
@@ -211,8 +228,12 @@ public class ImapStore extends Store {
 
     private static final SimpleDateFormat RFC3501_DATE = new SimpleDateFormat("dd-MMM-yyyy", Locale.US);
 
-    private LinkedList<ImapConnection> mConnections =
-        new LinkedList<ImapConnection>();
+    private final ImapConnectionPool mConnectionPool = new ImapConnectionPool(MAX_CONNECTIONS,
+    new ImapConnectionPool.ConnectionFactory() {
+        public ImapConnection create() {
+            return new ImapConnection(new StoreImapSettings());
+        }
+    });
 
     /**
      * Charset used for converting folder names to and from UTF-7 as defined by RFC 3501.
@@ -312,6 +333,47 @@ public class ImapStore extends Store {
         return folder;
     }
 
+    /**
+     * @return The given UIDs as an IMAP sequence set, consecutive UIDs
+     *         collapsed into ranges (e.g. "1:4,7,9:10"), so that commands on
+     *         many messages stay short.
+     */
+    static String toSequenceSet(String[] uids) {
+        List<Long> numbers = new ArrayList<Long>(uids.length);
+        StringBuilder set = new StringBuilder();
+        for (String uid : uids) {
+            try {
+                numbers.add(Long.parseLong(uid));
+            } catch (NumberFormatException e) {
+                // not expected from an IMAP server, passed on as is
+                set.append(set.length() == 0 ? "" : ",").append(uid);
+            }
+        }
+        Collections.sort(numbers);
+
+        int i = 0;
+        while (i < numbers.size()) {
+            long first = numbers.get(i);
+            long last = first;
+            while (++i < numbers.size() && numbers.get(i) <= last + 1) {
+                last = numbers.get(i);
+            }
+            if (set.length() > 0) {
+                set.append(',');
+            }
+            set.append(first);
+            if (last != first) {
+                set.append(':').append(last);
+            }
+        }
+        return set.toString();
+    }
+
+    @Override
+    public Folder getUnsharedFolder(String name) {
+        return new ImapFolder(this, name);
+    }
+
     private String getCombinedPrefix() {
         if (mCombinedPrefix == null) {
             if (mPathPrefix != null) {
@@ -450,29 +512,24 @@ public class ImapStore extends Store {
      * @return
      */
     private ImapConnection getConnection() throws MessagingException {
-        synchronized (mConnections) {
-            ImapConnection connection = null;
-            while ((connection = mConnections.poll()) != null) {
-                try {
-                    connection.executeSimpleCommand("NOOP");
-                    break;
-                } catch (IOException ioe) {
-                    connection.close();
-                }
-            }
-            if (connection == null) {
-                connection = new ImapConnection(new StoreImapSettings());
-            }
-            return connection;
-        }
+        return getConnection(false);
+    }
+
+    /**
+     * @param dedicated
+     *            Whether the connection is held for a long time, see
+     *            {@link ImapConnectionPool#checkout(boolean)}.
+     */
+    private ImapConnection getConnection(boolean dedicated) throws MessagingException {
+        return mConnectionPool.checkout(dedicated);
     }
 
     private void releaseConnection(ImapConnection connection) {
-        if (connection != null && connection.isOpen()) {
-            synchronized (mConnections) {
-                mConnections.offer(connection);
-            }
-        }
+        mConnectionPool.release(connection);
+    }
+
+    public ImapConnectionPool.Stats getConnectionPoolStats() {
+        return mConnectionPool.getStats();
     }
 
     /**
@@ -545,11 +602,24 @@ public class ImapStore extends Store {
         return true;
     }
 
+    @Override
+    public int getMaxConcurrentFolderAccess() {
+        return MAX_CONNECTIONS;
+    }
+
 
     class ImapFolder extends Folder {
         private String mName;
         protected volatile int mMessageCount = -1;
         protected volatile int uidNext = -1;
+        private volatile long mUidValidity = -1;
+        private volatile long mHighestModSeq = -1;
+        private volatile long mUidNext = -1;
+        /**
+         * Changes reported since the folder was opened with QRESYNC,
+         * <code>null</code> if it wasn't.
+         */
+        private volatile MailboxChanges mChanges;
         protected volatile ImapConnection mConnection;
         private OpenMode mMode;
         private volatile boolean mExists;
@@ -599,17 +669,65 @@ public class ImapStore extends Store {
             return handleUntaggedResponses(mConnection.executeSimpleCommand(command, sensitve, untaggedHandler));
         }
 
+        /**
+         * Send independent commands without waiting for each other, so that
+         * they take a single round trip.
+         *
+         * @return The responses of each command, in the same order.
+         * @throws MessagingException
+         *             The failure of the first command that failed, once all
+         *             of them completed.
+         */
+        protected List<List<ImapResponse>> executePipelined(List<String> commands) throws MessagingException, IOException {
+            List<ImapConnection.TaggedCommand> sent = new ArrayList<ImapConnection.TaggedCommand>(commands.size());
+            for (String command : commands) {
+                sent.add(mConnection.sendCommandAsync(command, false, null));
+            }
+            List<List<ImapResponse>> responses = new ArrayList<List<ImapResponse>>(sent.size());
+            MessagingException failure = null;
+            for (ImapConnection.TaggedCommand command : sent) {
+                try {
+                    responses.add(handleUntaggedResponses(command.get()));
+                } catch (MessagingException me) {
+                    if (failure == null) {
+                        failure = me;
+                    }
+                    responses.add(null);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return responses;
+        }
+
         @Override
         public void open(OpenMode mode) throws MessagingException {
-            internalOpen(mode);
+            open(mode, null);
+        }
+
+        @Override
+        public MailboxChanges open(OpenMode mode, MailboxState knownState) throws MessagingException {
+            internalOpen(mode, knownState);
 
             if (mMessageCount == -1) {
                 throw new MessagingException(
                     "Did not find message count during open");
             }
+            return mChanges;
         }
 
         public List<ImapResponse> internalOpen(OpenMode mode) throws MessagingException {
+            return internalOpen(mode, null);
+        }
+
+        /**
+         * @param knownState
+         *            State of the folder as of the last synchronization, to
+         *            select it with QRESYNC. <code>null</code> if unknown.
+         */
+        protected List<ImapResponse> internalOpen(OpenMode mode, MailboxState knownState) throws MessagingException {
+            mChanges = null;
             if (isOpen() && mMode == mode) {
                 // Make sure the connection is valid. If it's not we'll close it down and continue
                 // on to get a new one.
@@ -622,7 +740,7 @@ public class ImapStore extends Store {
             }
             releaseConnection(mConnection);
             synchronized (this) {
-                mConnection = getConnection();
+                mConnection = getConnection(usesDedicatedConnection());
             }
             // * FLAGS (\Answered \Flagged \Deleted \Seen \Draft NonJunk
             // $MDNSent)
@@ -633,10 +751,33 @@ public class ImapStore extends Store {
             // * OK [UIDVALIDITY 1125022061] UIDs valid
             // * OK [UIDNEXT 57576] Predicted next UID
             // 2 OK [READ-WRITE] Select completed.
+            //
+            // With CONDSTORE, the server also reports
+            // * OK [HIGHESTMODSEQ 715194045007]
+            // unless the folder doesn't support modification sequences:
+            // * OK [NOMODSEQ] Sorry, this mailbox format doesn't support modsequences
+            //
+            // With QRESYNC, what changed since the known state follows:
+            // * VANISHED (EARLIER) 41,43:116,118,120:211,214:540
+            // * 49 FETCH (UID 117 FLAGS (\Seen \Answered) MODSEQ (90060115194045001))
             try {
                 msgSeqUidMap.clear();
-                String command = String.format((mode == OpenMode.READ_WRITE ? "SELECT" : "EXAMINE") + " %s",
-                                               encodeString(encodeFolderName(getPrefixedName())));
+                mUidValidity = -1;
+                mHighestModSeq = -1;
+                mUidNext = -1;
+                mConnection.open();
+                String parameters = "";
+                MailboxChanges changes = null;
+                if (knownState != null && mConnection.enableQresync()) {
+                    parameters = String.format(" (QRESYNC (%d %d))", knownState.getUidValidity(),
+                                               knownState.getHighestModSeq());
+                    changes = new MailboxChanges();
+                    mChanges = changes;
+                } else if (mConnection.hasCapability(CAPABILITY_CONDSTORE)) {
+                    parameters = " (CONDSTORE)";
+                }
+                String command = String.format((mode == OpenMode.READ_WRITE ? "SELECT" : "EXAMINE") + " %s%s",
+                                               encodeString(encodeFolderName(getPrefixedName())), parameters);
 
                 List<ImapResponse> responses = executeSimpleCommand(command);
 
@@ -666,9 +807,25 @@ public class ImapStore extends Store {
                             }
                         }
 
+                    } else if (response.mTag == null) {
+                        handlePossibleModSeqState(response);
+                        if (changes != null && response.size() > 1
+                                && response.equalsIgnoreCase(1, "FETCH")) {
+                            handleChangedMessage(changes, response);
+                        }
                     }
                 }
 
+                /*
+                 * A server ignores the known state if the UIDs were
+                 * invalidated since, there is nothing to tell then.
+                 */
+                if (changes != null && !knownState.isSameMailbox(getMailboxState())) {
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "Known state " + knownState + " is obsolete for " + getLogId());
+                    mChanges = null;
+                }
+
                 mExists = true;
                 return responses;
             } catch (IOException ioe) {
@@ -680,11 +837,142 @@ public class ImapStore extends Store {
 
         }
 
+        /**
+         * <code>VANISHED</code> replaces <code>EXPUNGE</code> once QRESYNC is
+         * enabled. <code>VANISHED (EARLIER)</code> reports messages expunged
+         * before the folder was opened.
+         */
+        private void handleVanished(ImapResponse response) {
+            boolean earlier = response.get(1) instanceof ImapList;
+            if (response.size() < (earlier ? 3 : 2)) {
+                return;
+            }
+            String uidSet = response.getString(earlier ? 2 : 1);
+            try {
+                MailboxChanges changes = mChanges;
+                long count = (changes != null) ? changes.addVanished(uidSet) : MailboxChanges.countUids(uidSet);
+                if (!earlier && mMessageCount > 0) {
+                    mMessageCount = (int)Math.max(0, mMessageCount - count);
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "Got untagged VANISHED with mMessageCount " + mMessageCount + " for " + getLogId());
+                }
+            } catch (NumberFormatException e) {
+                Log.w(K9.LOG_TAG, "Ignoring invalid VANISHED response " + response + " for " + getLogId());
+            }
+        }
+
+        private void handlePossibleModSeqState(ImapResponse response) {
+            if (response.size() < 2 || !response.equalsIgnoreCase(0, "OK")
+                    || !(response.get(1) instanceof ImapList)) {
+                return;
+            }
+            ImapList bracketed = (ImapList)response.get(1);
+            if (bracketed.size() == 0) {
+                return;
+            }
+            try {
+                if (bracketed.equalsIgnoreCase(0, "NOMODSEQ")) {
+                    mHighestModSeq = -1;
+                } else if (bracketed.size() > 1 && bracketed.equalsIgnoreCase(0, "HIGHESTMODSEQ")) {
+                    mHighestModSeq = bracketed.getLong(1);
+                } else if (bracketed.size() > 1 && bracketed.equalsIgnoreCase(0, "UIDVALIDITY")) {
+                    mUidValidity = bracketed.getLong(1);
+                } else if (bracketed.size() > 1 && bracketed.equalsIgnoreCase(0, "UIDNEXT")) {
+                    mUidNext = bracketed.getLong(1);
+                }
+            } catch (NumberFormatException e) {
+                Log.w(K9.LOG_TAG, "Ignoring invalid response code " + bracketed + " for " + getLogId());
+            }
+        }
+
+        private void handleChangedMessage(MailboxChanges changes, ImapResponse response) throws MessagingException {
+            ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+            String uid = fetchList.getKeyedString("UID");
+            if (uid != null) {
+                ImapMessage message = new ImapMessage(uid, this);
+                handleFetchResponse(message, fetchList);
+                changes.addChangedMessage(message);
+            }
+        }
+
+        @Override
+        public long getUidValidity() {
+            return mUidValidity;
+        }
+
+        @Override
+        public MailboxState getMailboxState() {
+            if (mUidValidity < 0 || mHighestModSeq <= 0) {
+                return null;
+            }
+            return new MailboxState(mUidValidity, mHighestModSeq, mUidNext);
+        }
+
+        @Override
+        public Message[] getMessagesChangedSince(long modSeq) throws MessagingException {
+            checkOpen();
+            if (getMailboxState() == null) {
+                return null;
+            }
+            List<Message> messages = new ArrayList<Message>();
+            try {
+                List<ImapResponse> responses = executeSimpleCommand(
+                                                   String.format("UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE %d)", modSeq));
+                for (ImapResponse response : responses) {
+                    if (response.mTag == null && response.equalsIgnoreCase(1, "FETCH")) {
+                        ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+                        String uid = fetchList.getKeyedString("UID");
+                        if (uid != null) {
+                            ImapMessage message = new ImapMessage(uid, this);
+                            handleFetchResponse(message, fetchList);
+                            messages.add(message);
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, messages.size() + " messages changed since modseq " + modSeq + " for " + getLogId());
+            return messages.toArray(EMPTY_MESSAGE_ARRAY);
+        }
+
+        @Override
+        public Message[] getMessagesAfterUid(final long uid, Date earliestDate) throws MessagingException {
+            final StringBuilder dateSearchString = new StringBuilder();
+            if (earliestDate != null) {
+                dateSearchString.append(" SINCE ");
+                synchronized (RFC3501_DATE) {
+                    dateSearchString.append(RFC3501_DATE.format(earliestDate));
+                }
+            }
+            ImapSearcher searcher = new ImapSearcher() {
+                public List<ImapResponse> search() throws IOException, MessagingException {
+                    return executeSimpleCommand(String.format("UID SEARCH UID %d:* NOT DELETED%s", uid + 1, dateSearchString));
+                }
+            };
+            // n:* always includes the last message, even if its UID is lower than n
+            List<Message> messages = new ArrayList<Message>();
+            for (Message message : search(searcher, null)) {
+                if (Long.parseLong(message.getUid()) > uid) {
+                    messages.add(message);
+                }
+            }
+            return messages.toArray(EMPTY_MESSAGE_ARRAY);
+        }
+
         @Override
         public boolean isOpen() {
             return mConnection != null;
         }
 
+        /**
+         * @return Whether the folder holds its connection for a long time.
+         */
+        protected boolean usesDedicatedConnection() {
+            return false;
+        }
+
         @Override
         public OpenMode getMode() {
             return mMode;
@@ -695,6 +983,7 @@ public class ImapStore extends Store {
             if (mMessageCount != -1) {
                 mMessageCount = -1;
             }
+            mChanges = null;
             if (!isOpen()) {
                 return;
             }
@@ -827,7 +1116,7 @@ public class ImapStore extends Store {
 
                 if (exists(remoteDestName)) {
                     executeSimpleCommand(String.format("UID COPY %s %s",
-                                                       Utility.combine(uids, ','),
+                                                       toSequenceSet(uids),
                                                        remoteDestName));
                 } else {
                     throw new MessagingException("IMAPMessage.copyMessages: remote destination folder " + folder.getName()
@@ -889,16 +1178,7 @@ public class ImapStore extends Store {
         private int getRemoteMessageCount(String criteria) throws MessagingException {
             checkOpen();
             try {
-                int count = 0;
-                int start = 1;
-
-                List<ImapResponse> responses = executeSimpleCommand(String.format("SEARCH %d:* " + criteria, start));
-                for (ImapResponse response : responses) {
-                    if (ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
-                        count += response.size() - 1;
-                    }
-                }
-                return count;
+                return countSearchResults(executeSimpleCommand(getCountCommand(criteria)));
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
             }
@@ -906,14 +1186,80 @@ public class ImapStore extends Store {
 
         }
 
+        private String getCountCommand(String criteria) {
+            return String.format("SEARCH %d:* " + criteria, 1);
+        }
+
+        private int countSearchResults(List<ImapResponse> responses) {
+            int count = 0;
+            for (ImapResponse response : responses) {
+                if (response.equalsIgnoreCase(0, "SEARCH")) {
+                    count += response.size() - 1;
+                }
+            }
+            return count;
+        }
+
         @Override
         public int getUnreadMessageCount() throws MessagingException {
-            return getRemoteMessageCount("UNSEEN NOT DELETED");
+            return getRemoteMessageCount(UNREAD_CRITERIA);
         }
 
         @Override
         public int getFlaggedMessageCount() throws MessagingException {
-            return getRemoteMessageCount("FLAGGED NOT DELETED");
+            return getRemoteMessageCount(FLAGGED_CRITERIA);
+        }
+
+        /**
+         * The two searches are only pipelined if the server supports ESEARCH
+         * (RFC 4731). Plain SEARCH responses aren't tagged, and the server may
+         * run pipelined searches in any order (RFC 3501, section 5.5), so
+         * there would be no telling which count is which.
+         */
+        @Override
+        public int[] getUnreadAndFlaggedMessageCounts() throws MessagingException {
+            checkOpen();
+            if (!mConnection.hasCapability(CAPABILITY_ESEARCH)) {
+                return super.getUnreadAndFlaggedMessageCounts();
+            }
+            try {
+                ImapConnection.TaggedCommand unread = mConnection.sendCommandAsync(
+                        getEsearchCountCommand(UNREAD_CRITERIA), false, null);
+                ImapConnection.TaggedCommand flagged = mConnection.sendCommandAsync(
+                        getEsearchCountCommand(FLAGGED_CRITERIA), false, null);
+                // either command may get the responses of both
+                List<ImapResponse> responses = new ArrayList<ImapResponse>();
+                responses.addAll(handleUntaggedResponses(unread.get()));
+                responses.addAll(handleUntaggedResponses(flagged.get()));
+                return new int[] { getEsearchCount(responses, unread.getTag()),
+                                   getEsearchCount(responses, flagged.getTag())
+                                 };
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+        }
+
+        private String getEsearchCountCommand(String criteria) {
+            return "SEARCH RETURN (COUNT) 1:* " + criteria;
+        }
+
+        /**
+         * @return Count of the ESEARCH response to the command with the given
+         *         tag, e.g. <code>* ESEARCH (TAG "12") COUNT 5</code>.
+         */
+        private int getEsearchCount(List<ImapResponse> responses, String tag) {
+            for (ImapResponse response : responses) {
+                if (response.size() < 2 || !response.equalsIgnoreCase(0, "ESEARCH")
+                        || !(response.get(1) instanceof ImapList)) {
+                    continue;
+                }
+                ImapList correlator = response.getList(1);
+                if (correlator.size() == 2 && correlator.equalsIgnoreCase(0, "TAG")
+                        && correlator.equalsIgnoreCase(1, tag)) {
+                    return response.containsKey("COUNT") ? response.getKeyedNumber("COUNT") : 0;
+                }
+            }
+            return 0;
         }
 
         protected int getHighestUid() {
@@ -1004,9 +1350,9 @@ public class ImapStore extends Store {
                 List<ImapResponse> responses = searcher.search(); //
                 for (ImapResponse response : responses) {
                     if (response.mTag == null) {
-                        if (ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
+                        if (response.equalsIgnoreCase(0, "SEARCH")) {
                             for (int i = 1, count = response.size(); i < count; i++) {
-                                uids.add(Integer.parseInt(response.getString(i)));
+                                uids.add(response.getNumber(i));
                             }
                         }
                     }
@@ -1046,7 +1392,7 @@ public class ImapStore extends Store {
                     List<ImapResponse> responses = executeSimpleCommand("UID SEARCH 1:* NOT DELETED");
                     ArrayList<String> tempUids = new ArrayList<String>();
                     for (ImapResponse response : responses) {
-                        if (ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
+                        if (response.equalsIgnoreCase(0, "SEARCH")) {
                             for (int i = 1, count = response.size(); i < count; i++) {
                                 tempUids.add(response.getString(i));
                             }
@@ -1134,7 +1480,7 @@ public class ImapStore extends Store {
                     do {
                         response = mConnection.readResponse(callback);
 
-                        if (response.mTag == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        if (response.mTag == null && response.equalsIgnoreCase(1, "FETCH")) {
                             ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
                             String uid = fetchList.getKeyedString("UID");
                             int msgSeq = response.getNumber(0);
@@ -1227,7 +1573,7 @@ public class ImapStore extends Store {
                     response = mConnection.readResponse(callback);
 
                     if ((response.mTag == null) &&
-                            (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH"))) {
+                            (response.equalsIgnoreCase(1, "FETCH"))) {
                         ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
                         String uid = fetchList.getKeyedString("UID");
 
@@ -1278,6 +1624,67 @@ public class ImapStore extends Store {
             }
         }
 
+        @Override
+        public boolean supportsFetchingPartRanges() {
+            return true;
+        }
+
+        @Override
+        public int fetchPartRange(Message message, Part part, long offset, int length, OutputStream out)
+        throws MessagingException {
+            checkOpen();
+
+            String[] parts = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            if (parts == null || "TEXT".equalsIgnoreCase(parts[0])) {
+                throw new MessagingException("Can't fetch a range of part " + part + " for " + getLogId());
+            }
+            String fetch = String.format("BODY.PEEK[%s]<%d.%d>", parts[0], offset, length);
+
+            int fetched = 0;
+            try {
+                mConnection.sendCommand(
+                    String.format("UID FETCH %s (UID %s)", message.getUid(), fetch),
+                    false);
+
+                ImapResponse response;
+                ImapResponseParser.IImapResponseCallback callback = new FetchRangeCallback(out);
+
+                do {
+                    response = mConnection.readResponse(callback);
+
+                    if ((response.mTag == null) &&
+                            (response.equalsIgnoreCase(1, "FETCH"))) {
+                        ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+                        String uid = fetchList.getKeyedString("UID");
+
+                        if (!message.getUid().equals(uid)) {
+                            handleUntaggedResponse(response);
+                            continue;
+                        }
+
+                        Object literal = handleFetchResponse((ImapMessage) message, fetchList);
+                        if (literal instanceof Integer) {
+                            // written by FetchRangeCallback.foundLiteral()
+                            fetched = (Integer) literal;
+                        } else if (literal instanceof String && !"NIL".equalsIgnoreCase((String) literal)) {
+                            // small ranges may come as a quoted string
+                            byte[] bytes = ((String) literal).getBytes();
+                            out.write(bytes);
+                            fetched = bytes.length;
+                        }
+                    } else {
+                        handleUntaggedResponse(response);
+                    }
+
+                    while (response.more());
+
+                } while (response.mTag == null);
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+            return fetched;
+        }
+
         // Returns value of body field
         private Object handleFetchResponse(ImapMessage message, ImapList fetchList) throws MessagingException {
             Object result = null;
@@ -1285,15 +1692,9 @@ public class ImapStore extends Store {
                 ImapList flags = fetchList.getKeyedList("FLAGS");
                 if (flags != null) {
                     for (int i = 0, count = flags.size(); i < count; i++) {
-                        String flag = flags.getString(i);
-                        if (flag.equalsIgnoreCase("\\Deleted")) {
-                            message.setFlagInternal(Flag.DELETED, true);
-                        } else if (flag.equalsIgnoreCase("\\Answered")) {
-                            message.setFlagInternal(Flag.ANSWERED, true);
-                        } else if (flag.equalsIgnoreCase("\\Seen")) {
-                            message.setFlagInternal(Flag.SEEN, true);
-                        } else if (flag.equalsIgnoreCase("\\Flagged")) {
-                            message.setFlagInternal(Flag.FLAGGED, true);
+                        Flag flag = flags.getFlag(i);
+                        if (flag != null) {
+                            message.setFlagInternal(flag, true);
                         }
                     }
                 }
@@ -1355,7 +1756,7 @@ public class ImapStore extends Store {
         }
 
         protected void handlePossibleUidNext(ImapResponse response) {
-            if (ImapResponseParser.equalsIgnoreCase(response.get(0), "OK") && response.size() > 1) {
+            if (response.equalsIgnoreCase(0, "OK") && response.size() > 1) {
                 Object bracketedObj = response.get(1);
                 if (bracketedObj instanceof ImapList) {
                     ImapList bracketed = (ImapList)bracketedObj;
@@ -1383,18 +1784,21 @@ public class ImapStore extends Store {
          */
         protected void handleUntaggedResponse(ImapResponse response) {
             if (response.mTag == null && response.size() > 1) {
-                if (ImapResponseParser.equalsIgnoreCase(response.get(1), "EXISTS")) {
+                if (response.equalsIgnoreCase(1, "EXISTS")) {
                     mMessageCount = response.getNumber(0);
                     if (K9.DEBUG)
                         Log.d(K9.LOG_TAG, "Got untagged EXISTS with value " + mMessageCount + " for " + getLogId());
                 }
                 handlePossibleUidNext(response);
 
-                if (ImapResponseParser.equalsIgnoreCase(response.get(1), "EXPUNGE") && mMessageCount > 0) {
+                if (response.equalsIgnoreCase(1, "EXPUNGE") && mMessageCount > 0) {
                     mMessageCount--;
                     if (K9.DEBUG)
                         Log.d(K9.LOG_TAG, "Got untagged EXPUNGE with mMessageCount " + mMessageCount + " for " + getLogId());
                 }
+                if (response.equalsIgnoreCase(0, "VANISHED")) {
+                    handleVanished(response);
+                }
 //            if (response.size() > 1) {
 //                Object bracketedObj = response.get(1);
 //                if (bracketedObj instanceof ImapList)
@@ -1729,6 +2133,28 @@ public class ImapStore extends Store {
         public void setFlags(Message[] messages, Flag[] flags, boolean value)
         throws MessagingException {
             checkOpen();
+            try {
+                executeSimpleCommand(getStoreCommand(messages, flags, value));
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+        }
+
+        @Override
+        public void setFlags(List<FlagChange> changes) throws MessagingException {
+            checkOpen();
+            List<String> commands = new ArrayList<String>(changes.size());
+            for (FlagChange change : changes) {
+                commands.add(getStoreCommand(change.messages, change.flags, change.value));
+            }
+            try {
+                executePipelined(commands);
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+        }
+
+        private String getStoreCommand(Message[] messages, Flag[] flags, boolean value) {
             String[] uids = new String[messages.length];
             for (int i = 0, count = messages.length; i < count; i++) {
                 uids[i] = messages[i].getUid();
@@ -1745,14 +2171,10 @@ public class ImapStore extends Store {
                     flagNames.add("\\Flagged");
                 }
             }
-            try {
-                executeSimpleCommand(String.format("UID STORE %s %sFLAGS.SILENT (%s)",
-                                                   Utility.combine(uids, ','),
-                                                   value ? "+" : "-",
-                                                   Utility.combine(flagNames.toArray(new String[flagNames.size()]), ' ')));
-            } catch (IOException ioe) {
-                throw ioExceptionHandler(mConnection, ioe);
-            }
+            return String.format("UID STORE %s %sFLAGS.SILENT (%s)",
+                                 toSequenceSet(uids),
+                                 value ? "+" : "-",
+                                 Utility.combine(flagNames.toArray(new String[flagNames.size()]), ' '));
         }
 
         private void checkOpen() throws MessagingException {
@@ -1807,6 +2229,24 @@ public class ImapStore extends Store {
         protected int mNextCommandTag;
         protected Set<String> capabilities = new HashSet<String>();
 
+        /**
+         * Whether the server was told to use QRESYNC for the session. It then
+         * reports expunged messages with <code>VANISHED</code> rather than
+         * <code>EXPUNGE</code> responses.
+         */
+        private volatile boolean mQresyncEnabled;
+
+        /**
+         * Commands sent by {@link #sendCommandAsync(String, boolean, UntaggedHandler)}
+         * that didn't complete yet, oldest first.
+         */
+        private final LinkedList<TaggedCommand> mInFlight = new LinkedList<TaggedCommand>();
+
+        /**
+         * Whether commands were written but not flushed yet.
+         */
+        private boolean mUnflushed;
+
         private ImapSettings mSettings;
 
         public ImapConnection(final ImapSettings settings) {
@@ -1820,7 +2260,7 @@ public class ImapStore extends Store {
         private List<ImapResponse> receiveCapabilities(List<ImapResponse> responses) {
             for (ImapResponse response : responses) {
                 ImapList capabilityList = null;
-                if (response.size() > 0 && ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
+                if (response.size() > 0 && response.equalsIgnoreCase(0, "OK")) {
                     for (Object thisPart : response) {
                         if (thisPart instanceof ImapList) {
                             ImapList thisList = (ImapList)thisPart;
@@ -1901,12 +2341,12 @@ public class ImapStore extends Store {
 
                 setReadTimeout(Store.SOCKET_READ_TIMEOUT);
 
-                mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(),
-                                              1024));
+                mIn = new PeekableInputStream(mSocket.getInputStream());
                 mParser = new ImapResponseParser(mIn);
                 mOut = mSocket.getOutputStream();
 
                 capabilities.clear();
+                mQresyncEnabled = false;
                 ImapResponse nullResponse = mParser.readResponse();
                 if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP)
                     Log.v(K9.LOG_TAG, getLogId() + "<<<" + nullResponse);
@@ -1939,8 +2379,7 @@ public class ImapStore extends Store {
                         mSocket = sslContext.getSocketFactory().createSocket(mSocket, mSettings.getHost(), mSettings.getPort(),
                                   true);
                         mSocket.setSoTimeout(Store.SOCKET_READ_TIMEOUT);
-                        mIn = new PeekableInputStream(new BufferedInputStream(mSocket
-                                                      .getInputStream(), 1024));
+                        mIn = new PeekableInputStream(mSocket.getInputStream());
                         mParser = new ImapResponseParser(mIn);
                         mOut = mSocket.getOutputStream();
                     } else if (mSettings.getConnectionSecurity() == CONNECTION_SECURITY_TLS_REQUIRED) {
@@ -2001,7 +2440,7 @@ public class ImapStore extends Store {
                             executeSimpleCommand(COMMAND_COMPRESS_DEFLATE);
                             Inflater inf = new Inflater(true);
                             InflaterInputStream zInputStream = new InflaterInputStream(mSocket.getInputStream(), inf);
-                            mIn = new PeekableInputStream(new BufferedInputStream(zInputStream, 1024));
+                            mIn = new PeekableInputStream(zInputStream);
                             mParser = new ImapResponseParser(mIn);
                             ZOutputStream zOutputStream = new ZOutputStream(mSocket.getOutputStream(), JZlib.Z_BEST_SPEED, true);
                             mOut = new BufferedOutputStream(zOutputStream, 1024);
@@ -2061,7 +2500,7 @@ public class ImapStore extends Store {
                         List<ImapResponse> nameResponses =
                             executeSimpleCommand(String.format("LIST \"\" \"\""));
                         for (ImapResponse response : nameResponses) {
-                            if (ImapResponseParser.equalsIgnoreCase(response.get(0), "LIST")) {
+                            if (response.equalsIgnoreCase(0, "LIST")) {
                                 mSettings.setPathDelimeter(response.getString(2));
                                 mSettings.setCombinedPrefix(null);
                                 if (K9.DEBUG)
@@ -2158,6 +2597,25 @@ public class ImapStore extends Store {
             return capabilities.contains(capability.toUpperCase());
         }
 
+        /**
+         * Enable QRESYNC for the rest of the session if the server supports
+         * it, see RFC 7162.
+         *
+         * @return Whether QRESYNC is enabled.
+         */
+        protected boolean enableQresync() throws IOException, MessagingException {
+            open();
+            if (!mQresyncEnabled && hasCapability(CAPABILITY_QRESYNC)) {
+                executeSimpleCommand(COMMAND_ENABLE_QRESYNC);
+                mQresyncEnabled = true;
+            }
+            return mQresyncEnabled;
+        }
+
+        public boolean isQresyncEnabled() {
+            return mQresyncEnabled;
+        }
+
         public boolean isOpen() {
             return (mIn != null && mOut != null && mSocket != null && mSocket.isConnected() && !mSocket.isClosed());
         }
@@ -2188,6 +2646,7 @@ public class ImapStore extends Store {
             mIn = null;
             mOut = null;
             mSocket = null;
+            failInFlight(new IOException("Connection closed"));
         }
 
         public ImapResponse readResponse() throws IOException, MessagingException {
@@ -2218,7 +2677,37 @@ public class ImapStore extends Store {
 
         }
 
+        /**
+         * Send a command whose responses are read by the caller. Commands
+         * still in flight are completed first, so that their responses
+         * don't get in the way.
+         */
         public String sendCommand(String command, boolean sensitive)
+        throws MessagingException, IOException {
+            completeInFlight();
+            return writeCommand(command, sensitive, true);
+        }
+
+        /**
+         * Send a command without waiting for the completion of the commands
+         * sent before it, nor for its own. Responses are read when
+         * {@link TaggedCommand#get()} is called on this command or on one sent
+         * later.
+         *
+         * @param untaggedHandler
+         *            Gets the responses of the command as they arrive. May be
+         *            <code>null</code>.
+         */
+        public TaggedCommand sendCommandAsync(String command, boolean sensitive, UntaggedHandler untaggedHandler)
+        throws MessagingException, IOException {
+            String tag = writeCommand(command, sensitive, false);
+            String commandToLog = (sensitive && !K9.DEBUG_SENSITIVE) ? "*sensitive*" : command;
+            TaggedCommand taggedCommand = new TaggedCommand(tag, commandToLog, untaggedHandler);
+            mInFlight.add(taggedCommand);
+            return taggedCommand;
+        }
+
+        private String writeCommand(String command, boolean sensitive, boolean flush)
         throws MessagingException, IOException {
             try {
                 open();
@@ -2227,7 +2716,12 @@ public class ImapStore extends Store {
                 mOut.write(commandToSend.getBytes());
                 mOut.write('\r');
                 mOut.write('\n');
-                mOut.flush();
+                if (flush) {
+                    mOut.flush();
+                    mUnflushed = false;
+                } else {
+                    mUnflushed = true;
+                }
 
                 if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP) {
                     if (sensitive && !K9.DEBUG_SENSITIVE) {
@@ -2263,48 +2757,124 @@ public class ImapStore extends Store {
 
         public List<ImapResponse> executeSimpleCommand(String command, boolean sensitive, UntaggedHandler untaggedHandler)
         throws IOException, ImapException, MessagingException {
-            String commandToLog = command;
-            if (sensitive && !K9.DEBUG_SENSITIVE) {
-                commandToLog = "*sensitive*";
-            }
-
-
-            //if (K9.DEBUG)
-            //    Log.v(K9.LOG_TAG, "Sending IMAP command " + commandToLog + " on connection " + getLogId());
+            return sendCommandAsync(command, sensitive, untaggedHandler).get();
+        }
 
-            String tag = sendCommand(command, sensitive);
-            //if (K9.DEBUG)
-            //    Log.v(K9.LOG_TAG, "Sent IMAP command " + commandToLog + " with tag " + tag + " for " + getLogId());
+        private void completeInFlight() throws IOException, MessagingException {
+            while (!mInFlight.isEmpty()) {
+                readInFlightResponse();
+            }
+        }
 
-            ArrayList<ImapResponse> responses = new ArrayList<ImapResponse>();
+        /**
+         * Read the next response and hand it to the command it belongs to.
+         * Untagged responses belong to the oldest command in flight, as the
+         * server answers commands in order.
+         */
+        private void readInFlightResponse() throws IOException, MessagingException {
+            TaggedCommand current = mInFlight.getFirst();
             ImapResponse response;
-            do {
+            try {
+                if (mUnflushed) {
+                    mUnflushed = false;
+                    mOut.flush();
+                }
                 response = mParser.readResponse();
-                if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP)
-                    Log.v(K9.LOG_TAG, getLogId() + "<<<" + response);
+            } catch (IOException ioe) {
+                failInFlight(ioe);
+                throw ioe;
+            }
+            if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP)
+                Log.v(K9.LOG_TAG, getLogId() + "<<<" + response);
 
-                if (response.mTag != null && !response.mTag.equalsIgnoreCase(tag)) {
-                    Log.w(K9.LOG_TAG, "After sending tag " + tag + ", got tag response from previous command " + response + " for " + getLogId());
-                    Iterator<ImapResponse> iter = responses.iterator();
-                    while (iter.hasNext()) {
-                        ImapResponse delResponse = iter.next();
-                        if (delResponse.mTag != null || delResponse.size() < 2
-                                || (!ImapResponseParser.equalsIgnoreCase(delResponse.get(1), "EXISTS") && !ImapResponseParser.equalsIgnoreCase(delResponse.get(1), "EXPUNGE"))) {
-                            iter.remove();
-                        }
+            if (response.mTag == null) {
+                current.received(response);
+                return;
+            }
+
+            TaggedCommand completed = null;
+            for (TaggedCommand command : mInFlight) {
+                if (response.mTag.equalsIgnoreCase(command.mTag)) {
+                    completed = command;
+                    break;
+                }
+            }
+            if (completed == null) {
+                Log.w(K9.LOG_TAG, "After sending tag " + current.mTag + ", got tag response from previous command " + response + " for " + getLogId());
+                Iterator<ImapResponse> iter = current.mResponses.iterator();
+                while (iter.hasNext()) {
+                    ImapResponse delResponse = iter.next();
+                    if (delResponse.mTag != null || delResponse.size() < 2
+                            || (!delResponse.equalsIgnoreCase(1, "EXISTS") && !delResponse.equalsIgnoreCase(1, "EXPUNGE"))) {
+                        iter.remove();
                     }
-                    response.mTag = null;
-                    continue;
                 }
-                if (untaggedHandler != null) {
-                    untaggedHandler.handleAsyncUntaggedResponse(response);
+                return;
+            }
+            completed.received(response);
+            completed.mCompletion = response;
+            mInFlight.remove(completed);
+        }
+
+        private void failInFlight(IOException failure) {
+            for (TaggedCommand command : mInFlight) {
+                command.mFailure = failure;
+            }
+            mInFlight.clear();
+        }
+
+        /**
+         * Command sent by {@link ImapConnection#sendCommandAsync(String, boolean, UntaggedHandler)}.
+         */
+        public class TaggedCommand {
+            private final String mTag;
+            private final String mCommandToLog;
+            private final UntaggedHandler mUntaggedHandler;
+            private final List<ImapResponse> mResponses = new ArrayList<ImapResponse>();
+            private ImapResponse mCompletion;
+            private IOException mFailure;
+
+            TaggedCommand(String tag, String commandToLog, UntaggedHandler untaggedHandler) {
+                mTag = tag;
+                mCommandToLog = commandToLog;
+                mUntaggedHandler = untaggedHandler;
+            }
+
+            private void received(ImapResponse response) {
+                if (mUntaggedHandler != null) {
+                    mUntaggedHandler.handleAsyncUntaggedResponse(response);
                 }
-                responses.add(response);
-            } while (response.mTag == null);
-            if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
-                throw new ImapException("Command: " + commandToLog + "; response: " + response.toString(), response.getAlertText());
+                mResponses.add(response);
+            }
+
+            public String getTag() {
+                return mTag;
+            }
+
+            public boolean isDone() {
+                return mCompletion != null || mFailure != null;
+            }
+
+            /**
+             * Wait for the completion of the command, reading the responses
+             * to the commands sent before it on the way.
+             *
+             * @return The responses of the command, the tagged one last.
+             * @throws ImapException
+             *             If the command didn't complete with OK.
+             */
+            public List<ImapResponse> get() throws IOException, MessagingException {
+                while (!isDone()) {
+                    readInFlightResponse();
+                }
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+                if (mCompletion.size() < 1 || !ImapResponseParser.equalsIgnoreCase(mCompletion.get(0), "OK")) {
+                    throw new ImapException("Command: " + mCommandToLog + "; response: " + mCompletion.toString(), mCompletion.getAlertText());
+                }
+                return mResponses;
             }
-            return responses;
         }
     }
 
@@ -2393,6 +2963,12 @@ public class ImapStore extends Store {
             wakeLock.setReferenceCounted(false);
 
         }
+
+        @Override
+        protected boolean usesDedicatedConnection() {
+            return true;
+        }
+
         public void refresh() throws IOException, MessagingException {
             if (idling.get()) {
                 wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
@@ -2978,7 +3554,7 @@ public class ImapStore extends Store {
         public Object foundLiteral(ImapResponse response,
                                    FixedLengthInputStream literal) throws IOException, Exception {
             if (response.mTag == null &&
-                    ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                    response.equalsIgnoreCase(1, "FETCH")) {
                 ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
                 String uid = fetchList.getKeyedString("UID");
 
@@ -2992,6 +3568,24 @@ public class ImapStore extends Store {
         }
     }
 
+    private static class FetchRangeCallback implements ImapResponseParser.IImapResponseCallback {
+        private OutputStream mOut;
+
+        FetchRangeCallback(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public Object foundLiteral(ImapResponse response,
+                                   FixedLengthInputStream literal) throws IOException, Exception {
+            if (response.mTag == null &&
+                    response.equalsIgnoreCase(1, "FETCH")) {
+                return IOUtils.copy(literal, mOut);
+            }
+            return null;
+        }
+    }
+
     private static class FetchPartCallback implements ImapResponseParser.IImapResponseCallback {
         private Part mPart;
 
@@ -3003,7 +3597,7 @@ public class ImapStore extends Store {
         public Object foundLiteral(ImapResponse response,
                                    FixedLengthInputStream literal) throws IOException, Exception {
             if (response.mTag == null &&
-                    ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                    response.equalsIgnoreCase(1, "FETCH")) {
                 //TODO: check for correct UID
 
                 String contentTransferEncoding = mPart.getHeader(
@@ -3,8 +3,11 @@ package com.fsck.k9.mail.store;
 
 import java.io.*;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,6 +30,7 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.Log;
 
@@ -43,6 +47,7 @@ import com.fsck.k9.mail.BodyPart;
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.MailboxState;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.Message.RecipientType;
 import com.fsck.k9.mail.MessagingException;
@@ -71,6 +76,9 @@ public class LocalStore extends Store implements Serializable {
 
     private static final Message[] EMPTY_MESSAGE_ARRAY = new Message[0];
 
+    private static final int SEEN_MASK = UidIndex.toMask(Flag.SEEN);
+    private static final int FLAGGED_MASK = UidIndex.toMask(Flag.FLAGGED);
+
     /**
      * Immutable empty {@link String} array
      */
@@ -99,10 +107,31 @@ public class LocalStore extends Store implements Serializable {
         + "bcc_list, reply_to_list, attachment_count, internal_date, message_id, folder_id, preview ";
 
 
-    static private String GET_FOLDER_COLS = "id, name, unread_count, visible_limit, last_updated, status, push_state, last_pushed, flagged_count, integrate, top_group, poll_class, push_class, display_class";
+    static private String GET_FOLDER_COLS = "id, name, unread_count, visible_limit, last_updated, status, push_state, last_pushed, flagged_count, integrate, top_group, poll_class, push_class, display_class, arrival_rate, last_opened";
+
+
+    protected static final int DB_VERSION = 49;
+
+    /**
+     * Maximum number of message IDs listed in a single bulk statement.
+     */
+    private static final int BULK_CHUNK_SIZE = 500;
 
+    /**
+     * Indexes that are not needed to store messages, dropped while messages
+     * are imported in bulk (see {@link #beginBulkImport()}). Same order as
+     * {@link #DEFERRABLE_INDEX_DEFINITIONS}.
+     */
+    private static final String[] DEFERRABLE_INDEX_NAMES = {
+        "msg_folder_id_deleted_date", "header_folder", "msg_sent_date", "msg_folder_id_sent_date"
+    };
 
-    protected static final int DB_VERSION = 42;
+    private static final String[] DEFERRABLE_INDEX_DEFINITIONS = {
+        "messages (folder_id,deleted,internal_date)",
+        "headers (message_id)",
+        "messages (date)",
+        "messages (folder_id,date)"
+    };
 
     protected String uUid = null;
 
@@ -110,6 +139,32 @@ public class LocalStore extends Store implements Serializable {
 
     private LockableDatabase database;
 
+    /**
+     * Number of bulk imports in progress.
+     */
+    private int mBulkImports = 0;
+
+    /**
+     * Incremented whenever something the poll schedule of the account
+     * depends on changes, see {@link #getPollStateVersion()}.
+     */
+    private volatile int mPollStateVersion = 0;
+
+    /**
+     * Senders are counted among that many of the most recently stored
+     * messages, see {@link #getFrequentSenders(int)}.
+     */
+    private static final int FREQUENT_SENDERS_MESSAGES = 2000;
+
+    /**
+     * How long (ms) the result of {@link #getFrequentSenders(int)} is reused.
+     */
+    private static final long FREQUENT_SENDERS_MAX_AGE = 6 * 60 * 60 * 1000L;
+
+    private List<String> mFrequentSenders;
+    private int mFrequentSendersLimit;
+    private long mFrequentSendersTime;
+
     /**
      * local://localhost/path/to/database/uuid.db
      * This constructor is only used by {@link Store#getLocalInstance(Account, Application)}
@@ -126,6 +181,9 @@ public class LocalStore extends Store implements Serializable {
         uUid = account.getUuid();
 
         database.open();
+
+        // an import may have been killed before it restored them
+        createDeferrableIndexes();
     }
 
     public void switchLocalStorage(final String newStorageProviderId) throws MessagingException {
@@ -159,7 +217,11 @@ public class LocalStore extends Store implements Serializable {
                     db.execSQL("CREATE TABLE folders (id INTEGER PRIMARY KEY, name TEXT, "
                                + "last_updated INTEGER, unread_count INTEGER, visible_limit INTEGER, status TEXT, "
                                + "push_state TEXT, last_pushed INTEGER, flagged_count INTEGER default 0, "
-                               + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT"
+                               + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT, "
+                               + "arrival_rate REAL, sync_phase TEXT, sync_window_start INTEGER, "
+                               + "sync_window_end INTEGER, sync_last_uid TEXT, last_opened INTEGER, uid_validity INTEGER, "
+                               + "highest_mod_seq INTEGER, sync_visible_limit INTEGER, sync_earliest_date INTEGER, "
+                               + "uid_next INTEGER"
                                + ")");
 
                     db.execSQL("CREATE INDEX IF NOT EXISTS folder_name ON folders (name)");
@@ -167,7 +229,7 @@ public class LocalStore extends Store implements Serializable {
                     db.execSQL("CREATE TABLE messages (id INTEGER PRIMARY KEY, deleted INTEGER default 0, folder_id INTEGER, uid TEXT, subject TEXT, "
                                + "date INTEGER, flags TEXT, sender_list TEXT, to_list TEXT, cc_list TEXT, bcc_list TEXT, reply_to_list TEXT, "
                                + "html_content TEXT, text_content TEXT, attachment_count INTEGER, internal_date INTEGER, message_id TEXT, preview TEXT, "
-                               + "mime_type TEXT)");
+                               + "mime_type TEXT, size INTEGER)");
 
                     db.execSQL("DROP TABLE IF EXISTS headers");
                     db.execSQL("CREATE TABLE headers (id INTEGER PRIMARY KEY, message_id INTEGER, name TEXT, value TEXT)");
@@ -177,6 +239,8 @@ public class LocalStore extends Store implements Serializable {
                     db.execSQL("DROP INDEX IF EXISTS msg_folder_id");
                     db.execSQL("DROP INDEX IF EXISTS msg_folder_id_date");
                     db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_deleted_date ON messages (folder_id,deleted,internal_date)");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS msg_sent_date ON messages (date)");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_sent_date ON messages (folder_id,date)");
                     db.execSQL("DROP TABLE IF EXISTS attachments");
                     db.execSQL("CREATE TABLE attachments (id INTEGER PRIMARY KEY, message_id INTEGER,"
                                + "store_data TEXT, content_uri TEXT, size INTEGER, name TEXT,"
@@ -330,6 +394,71 @@ public class LocalStore extends Store implements Serializable {
                             Log.e(K9.LOG_TAG, "Could not replace Preferences in upgrade from DB_VERSION 41", e);
                         }
                     }
+                    if (db.getVersion() < 43) {
+                        try {
+                            db.execSQL("ALTER TABLE folders ADD arrival_rate REAL");
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                    }
+                    if (db.getVersion() < 44) {
+                        try {
+                            db.execSQL("ALTER TABLE folders ADD sync_phase TEXT");
+                            db.execSQL("ALTER TABLE folders ADD sync_window_start INTEGER");
+                            db.execSQL("ALTER TABLE folders ADD sync_window_end INTEGER");
+                            db.execSQL("ALTER TABLE folders ADD sync_last_uid TEXT");
+                            db.execSQL("ALTER TABLE messages ADD size INTEGER");
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                    }
+                    if (db.getVersion() < 45) {
+                        try {
+                            db.execSQL("ALTER TABLE folders ADD last_opened INTEGER");
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                    }
+                    if (db.getVersion() < 46) {
+                        try {
+                            db.execSQL("ALTER TABLE folders ADD uid_validity INTEGER");
+                            db.execSQL("ALTER TABLE folders ADD highest_mod_seq INTEGER");
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                    }
+                    if (db.getVersion() < 47) {
+                        try {
+                            db.execSQL("ALTER TABLE folders ADD sync_visible_limit INTEGER");
+                            db.execSQL("ALTER TABLE folders ADD sync_earliest_date INTEGER");
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                    }
+                    if (db.getVersion() < 48) {
+                        try {
+                            db.execSQL("ALTER TABLE folders ADD uid_next INTEGER");
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                    }
+                    if (db.getVersion() < 49) {
+                        // oldest messages first, see pruneMessages()
+                        db.execSQL("CREATE INDEX IF NOT EXISTS msg_sent_date ON messages (date)");
+                        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_sent_date ON messages (folder_id,date)");
+                    }
                 }
             }
 
@@ -426,6 +555,119 @@ public class LocalStore extends Store implements Serializable {
         });
     }
 
+    /**
+     * @param uidValidity
+     *            UIDVALIDITY of the remote folder, -1 if unknown. Downloads
+     *            started before it changed aren't resumed.
+     * @param partId
+     *            Identifier of the part on the server, see
+     *            {@link MimeHeader#HEADER_ANDROID_ATTACHMENT_STORE_DATA}.
+     * @return File holding the content of a part whose download didn't
+     *         complete yet, still transfer encoded. Not necessarily existing,
+     *         its directory is created.
+     */
+    public File getPartialDownloadFile(String folderName, long uidValidity, String uid, String partId) {
+        File messageDirectory = getPartialDownloadDirectory(folderName, uid);
+        if (!messageDirectory.isDirectory() && !messageDirectory.mkdirs()) {
+            Log.w(K9.LOG_TAG, "Unable to create " + messageDirectory);
+        }
+        return new File(messageDirectory, Math.max(uidValidity, 0) + "-" + md5Hex(partId));
+    }
+
+    /**
+     * Delete the files of the partial downloads of a folder, see
+     * {@link #getPartialDownloadFile(String, long, String, String)}.
+     *
+     * @param uids
+     *            Only delete the files of these messages, <code>null</code>
+     *            for all messages of the folder.
+     */
+    public void deletePartialDownloadFiles(String folderName, Collection<String> uids) {
+        if (uids == null) {
+            deletePartialDownloadFiles(getPartialDownloadDirectory(folderName, null), -1);
+            return;
+        }
+        for (String uid : uids) {
+            deletePartialDownloadFiles(getPartialDownloadDirectory(folderName, uid), -1);
+        }
+    }
+
+    /**
+     * Delete the files of the partial downloads of a folder that were
+     * started with a different UIDVALIDITY. They can't be resumed.
+     *
+     * @param uidValidity
+     *            Current UIDVALIDITY of the remote folder.
+     */
+    public void deleteStalePartialDownloadFiles(String folderName, long uidValidity) {
+        deletePartialDownloadFiles(getPartialDownloadDirectory(folderName, null), Math.max(uidValidity, 0));
+    }
+
+    /**
+     * Files are kept in a directory per message, inside a directory per
+     * folder, so that the ones of a message are deleted without listing the
+     * others.
+     *
+     * @param uid
+     *            <code>null</code> for the directory of the folder.
+     */
+    private File getPartialDownloadDirectory(String folderName, String uid) {
+        final File attachmentDirectory = StorageManager.getInstance(mApplication).getAttachmentDirectory(uUid,
+                                         database.getStorageProviderId());
+        File folderDirectory = new File(attachmentDirectory, "partial-" + md5Hex(folderName));
+        return (uid == null) ? folderDirectory : new File(folderDirectory, md5Hex(uid));
+    }
+
+    /**
+     * Recursively delete the content of a directory, and the directory
+     * itself if it ends up empty.
+     *
+     * @param keptUidValidity
+     *            Keep the files of the downloads started with this
+     *            UIDVALIDITY, -1 to delete them all.
+     */
+    private void deletePartialDownloadFiles(File directory, long keptUidValidity) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // <UIDVALIDITY>-<hash of part>[.<segment>]
+        String kept = (keptUidValidity < 0) ? null : keptUidValidity + "-";
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deletePartialDownloadFiles(file, keptUidValidity);
+            } else if ((kept == null || !file.getName().startsWith(kept)) && !file.delete()) {
+                Log.w(K9.LOG_TAG, "Unable to delete " + file);
+            }
+        }
+        // only succeeds once empty
+        directory.delete();
+    }
+
+    private static String md5Hex(String value) {
+        StringBuilder hex = new StringBuilder(32);
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+        } catch (Exception e) {
+            // MD5 and UTF-8 are always available
+            throw new RuntimeException(e);
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return File in the attachment directory holding the content of the
+     *         given attachment once it is downloaded.
+     */
+    public File getAttachmentFile(long attachmentId) {
+        final File attachmentDirectory = StorageManager.getInstance(mApplication).getAttachmentDirectory(uUid,
+                                         database.getStorageProviderId());
+        return new File(attachmentDirectory, Long.toString(attachmentId));
+    }
+
     public void compact() throws MessagingException {
         if (K9.DEBUG)
             Log.i(K9.LOG_TAG, "Before compaction size = " + getSize());
@@ -441,6 +683,53 @@ public class LocalStore extends Store implements Serializable {
             Log.i(K9.LOG_TAG, "After compaction size = " + getSize());
     }
 
+    /**
+     * Drop the indexes that slow down storing many messages and aren't needed
+     * for it. Queries listing the messages of a folder still work, just slower,
+     * until {@link #endBulkImport()} is called. Imports may overlap, the
+     * indexes come back when the last one ends.
+     */
+    public synchronized void beginBulkImport() throws UnavailableStorageException {
+        if (mBulkImports++ > 0) {
+            return;
+        }
+        database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                for (String name : DEFERRABLE_INDEX_NAMES) {
+                    db.execSQL("DROP INDEX IF EXISTS " + name);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Rebuild the indexes dropped by {@link #beginBulkImport()}, each in a
+     * single pass over its table.
+     */
+    public synchronized void endBulkImport() throws UnavailableStorageException {
+        if (--mBulkImports > 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        createDeferrableIndexes();
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "Rebuilt indexes of " + uUid + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void createDeferrableIndexes() throws UnavailableStorageException {
+        database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                for (int i = 0; i < DEFERRABLE_INDEX_NAMES.length; i++) {
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + DEFERRABLE_INDEX_NAMES[i] + " ON "
+                               + DEFERRABLE_INDEX_DEFINITIONS[i]);
+                }
+                return null;
+            }
+        });
+    }
 
     public void clear() throws MessagingException {
         if (K9.DEBUG)
@@ -458,10 +747,15 @@ public class LocalStore extends Store implements Serializable {
         // don't delete messages that are Local, since there is no copy on the server.
         // Don't delete deleted messages.  They are essentially placeholders for UIDs of messages that have
         // been deleted locally.  They take up insignificant space
+        DeletedMessages deleted;
+        do {
+            // in chunks, so that other database users get their turn in between
+            deleted = deleteMessages("deleted = 0 and uid not like 'Local%'", null, "id", BULK_CHUNK_SIZE);
+            deleteFiles(deleted.attachmentFiles);
+        } while (deleted.count == BULK_CHUNK_SIZE);
         database.execute(false, new DbCallback<Void>() {
             @Override
             public Void doDbWork(final SQLiteDatabase db) {
-                db.execSQL("DELETE FROM messages WHERE deleted = 0 and uid not like 'Local%'");
                 db.execSQL("update folders set flagged_count = 0, unread_count = 0");
                 return null;
             }
@@ -613,7 +907,7 @@ public class LocalStore extends Store implements Serializable {
                         cursor = db.rawQuery("SELECT " + GET_FOLDER_COLS + " FROM folders ORDER BY name ASC", null);
                         while (cursor.moveToNext()) {
                             LocalFolder folder = new LocalFolder(cursor.getString(1));
-                            folder.open(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3), cursor.getLong(4), cursor.getString(5), cursor.getString(6), cursor.getLong(7), cursor.getInt(8), cursor.getInt(9), cursor.getInt(10), cursor.getString(11), cursor.getString(12), cursor.getString(13));
+                            folder.open(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3), cursor.getLong(4), cursor.getString(5), cursor.getString(6), cursor.getLong(7), cursor.getInt(8), cursor.getInt(9), cursor.getInt(10), cursor.getString(11), cursor.getString(12), cursor.getString(13), cursor.isNull(14) ? -1 : cursor.getDouble(14), cursor.getLong(15));
 
                             folders.add(folder);
                         }
@@ -639,10 +933,25 @@ public class LocalStore extends Store implements Serializable {
 
     public void delete() throws UnavailableStorageException {
         database.delete();
+        pollStateChanged();
     }
 
     public void recreate() throws UnavailableStorageException {
         database.recreate();
+        pollStateChanged();
+    }
+
+    /**
+     * @return Number that changes whenever folders are created or deleted,
+     *         change their display or sync class, or are checked. Lets callers
+     *         cache what they derive from these, e.g. the next poll time.
+     */
+    public int getPollStateVersion() {
+        return mPollStateVersion;
+    }
+
+    private void pollStateChanged() {
+        mPollStateVersion++;
     }
 
     public void pruneCachedAttachments() throws MessagingException {
@@ -769,20 +1078,75 @@ public class LocalStore extends Store implements Serializable {
     }
 
     public void addPendingCommand(PendingCommand command) throws UnavailableStorageException {
-        try {
-            for (int i = 0; i < command.arguments.length; i++) {
-                command.arguments[i] = URLEncoder.encode(command.arguments[i], "UTF-8");
+        final ContentValues cv = getPendingCommandValues(command);
+        database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                db.insert("pending_commands", "command", cv);
+                return null;
             }
-            final ContentValues cv = new ContentValues();
-            cv.put("command", command.command);
-            cv.put("arguments", Utility.combine(command.arguments, ','));
-            database.execute(false, new DbCallback<Void>() {
-                @Override
-                public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+        });
+    }
+
+    /**
+     * Replace pending commands by an equivalent (e.g. coalesced) list of
+     * commands. Commands added after <code>oldCommands</code> were read are
+     * kept and stay behind the replacement.
+     *
+     * @param oldCommands
+     *            All pending commands as returned by {@link #getPendingCommands()}.
+     * @param newCommands
+     *            Replacement, in execution order. Their IDs are updated.
+     */
+    public void replacePendingCommands(final List<PendingCommand> oldCommands, final List<PendingCommand> newCommands)
+    throws UnavailableStorageException {
+        long maxId = -1;
+        for (PendingCommand command : oldCommands) {
+            maxId = Math.max(maxId, command.mId);
+        }
+        final String maxIdArg = Long.toString(maxId);
+        database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                List<ContentValues> laterCommands = new ArrayList<ContentValues>();
+                Cursor cursor = null;
+                try {
+                    cursor = db.query("pending_commands", new String[] { "command", "arguments" },
+                                      "id > ?", new String[] { maxIdArg }, null, null, "id ASC");
+                    while (cursor.moveToNext()) {
+                        ContentValues cv = new ContentValues();
+                        cv.put("command", cursor.getString(0));
+                        cv.put("arguments", cursor.getString(1));
+                        laterCommands.add(cv);
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+
+                db.delete("pending_commands", null, null);
+                for (PendingCommand command : newCommands) {
+                    command.mId = db.insert("pending_commands", "command", getPendingCommandValues(command));
+                }
+                for (ContentValues cv : laterCommands) {
                     db.insert("pending_commands", "command", cv);
-                    return null;
                 }
-            });
+                return null;
+            }
+        });
+    }
+
+    private static ContentValues getPendingCommandValues(PendingCommand command) {
+        try {
+            String[] arguments = new String[command.arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = URLEncoder.encode(command.arguments[i], "UTF-8");
+            }
+            ContentValues cv = new ContentValues();
+            cv.put("command", command.command);
+            cv.put("arguments", Utility.combine(arguments, ','));
+            return cv;
         } catch (UnsupportedEncodingException usee) {
             throw new Error("Aparently UTF-8 has been lost to the annals of history.");
         }
@@ -1030,69 +1394,478 @@ public class LocalStore extends Store implements Serializable {
         public String type;
     }
 
-    public void createFolders(final List<LocalFolder> foldersToCreate, final int visibleLimit) throws UnavailableStorageException {
-        database.execute(true, new DbCallback<Void>() {
-            @Override
-            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
-                for (LocalFolder folder : foldersToCreate) {
-                    String name = folder.getName();
-                    final  LocalFolder.PreferencesHolder prefHolder = folder.new PreferencesHolder();
-
-                    // When created, special folders should always be displayed
-                    // inbox should be integrated
-                    // and the inbox and drafts folders should be syncced by default
-                    if (mAccount.isSpecialFolder(name)) {
-                        prefHolder.inTopGroup = true;
-                        prefHolder.displayClass = LocalFolder.FolderClass.FIRST_CLASS;
-                        if (name.equalsIgnoreCase(mAccount.getInboxFolderName())) {
-                            prefHolder.integrate = true;
-                            prefHolder.pushClass = LocalFolder.FolderClass.FIRST_CLASS;
-                        } else {
-                            prefHolder.pushClass = LocalFolder.FolderClass.INHERITED;
+    /**
+     * Partially downloaded message whose body may be fetched ahead of time.
+     */
+    public static class PrefetchCandidate {
+        public String folderName;
+        public boolean inTopGroup;
+        public String uid;
+        public boolean unread;
+        /**
+         * Milliseconds since the epoch, 0 if unknown.
+         */
+        public long date;
+        /**
+         * Packed sender addresses, see {@link Address#pack(Address[])}.
+         */
+        public String senderList;
+    }
 
-                        }
-                        if (name.equalsIgnoreCase(mAccount.getInboxFolderName()) ||
-                                name.equalsIgnoreCase(mAccount.getDraftsFolderName())) {
-                            prefHolder.syncClass = LocalFolder.FolderClass.FIRST_CLASS;
-                        } else {
-                            prefHolder.syncClass = LocalFolder.FolderClass.NO_CLASS;
-                        }
+    /**
+     * @param limit
+     *            Maximum number of candidates returned.
+     * @return The most recent partially downloaded messages of the account,
+     *         newest first. Never <code>null</code>.
+     */
+    public List<PrefetchCandidate> getPrefetchCandidates(final int limit) throws UnavailableStorageException {
+        return database.execute(false, new DbCallback<List<PrefetchCandidate>>() {
+            @Override
+            public List<PrefetchCandidate> doDbWork(final SQLiteDatabase db) throws WrappedException {
+                List<PrefetchCandidate> candidates = new ArrayList<PrefetchCandidate>();
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT folders.name, folders.top_group, messages.uid, messages.flags, "
+                                         + "messages.date, messages.sender_list FROM messages "
+                                         + "JOIN folders ON messages.folder_id = folders.id "
+                                         + "WHERE messages.deleted = 0 AND messages.flags LIKE '%X_DOWNLOADED_PARTIAL%' "
+                                         + "AND messages.uid NOT LIKE ? ORDER BY messages.date DESC LIMIT " + limit,
+                                         new String[] { K9.LOCAL_UID_PREFIX + "%" });
+                    while (cursor.moveToNext()) {
+                        PrefetchCandidate candidate = new PrefetchCandidate();
+                        candidate.folderName = cursor.getString(0);
+                        candidate.inTopGroup = cursor.getInt(1) == 1;
+                        candidate.uid = cursor.getString(2);
+                        String flags = cursor.getString(3);
+                        candidate.unread = flags == null || !flags.contains(Flag.SEEN.name());
+                        candidate.date = cursor.getLong(4);
+                        candidate.senderList = cursor.getString(5);
+                        candidates.add(candidate);
                     }
-                    folder.refresh(name, prefHolder);   // Recover settings from Preferences
-
-                    db.execSQL("INSERT INTO folders (name, visible_limit, top_group, display_class, poll_class, push_class, integrate) VALUES (?, ?, ?, ?, ?, ?, ?)", new Object[] {
-                                   name,
-                                   visibleLimit,
-                                   prefHolder.inTopGroup ? 1 : 0,
-                                   prefHolder.displayClass.name(),
-                                   prefHolder.syncClass.name(),
-                                   prefHolder.pushClass.name(),
-                                   prefHolder.integrate ? 1 : 0,
-                               });
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                return candidates;
+            }
+        });
+    }
 
+    /**
+     * @return Number of bytes of the message bodies downloaded ahead of time
+     *         and not read yet, see {@link Flag#X_PREFETCHED}.
+     */
+    public long getPrefetchedSize() throws UnavailableStorageException {
+        return database.execute(false, new DbCallback<Long>() {
+            @Override
+            public Long doDbWork(final SQLiteDatabase db) throws WrappedException {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT SUM(IFNULL(size, 0)) FROM messages WHERE deleted = 0 "
+                                         + "AND flags LIKE '%X_PREFETCHED%'", null);
+                    return cursor.moveToFirst() ? cursor.getLong(0) : 0L;
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
                 }
-                return null;
             }
         });
     }
 
-    public class LocalFolder extends Folder implements Serializable {
-        /**
-         *
-         */
-        private static final long serialVersionUID = -1973296520918624767L;
-        private String mName = null;
-        private long mFolderId = -1;
-        private int mUnreadMessageCount = -1;
-        private int mFlaggedMessageCount = -1;
-        private int mVisibleLimit = -1;
-        private String prefId = null;
-        private FolderClass mDisplayClass = FolderClass.NO_CLASS;
-        private FolderClass mSyncClass = FolderClass.INHERITED;
-        private FolderClass mPushClass = FolderClass.SECOND_CLASS;
+    /**
+     * Only the most recently stored messages are looked at, and the result is
+     * reused for a while: who the user reads doesn't change quickly.
+     *
+     * @param limit
+     *            Maximum number of senders returned.
+     * @return Packed sender addresses of the messages the user read the most,
+     *         most frequent first. Never <code>null</code>.
+     */
+    public synchronized List<String> getFrequentSenders(final int limit) throws UnavailableStorageException {
+        long now = System.currentTimeMillis();
+        if (mFrequentSenders != null && mFrequentSendersLimit == limit
+                && now - mFrequentSendersTime < FREQUENT_SENDERS_MAX_AGE) {
+            return mFrequentSenders;
+        }
+        mFrequentSenders = Collections.unmodifiableList(database.execute(false, new DbCallback<List<String>>() {
+            @Override
+            public List<String> doDbWork(final SQLiteDatabase db) throws WrappedException {
+                List<String> senders = new ArrayList<String>();
+                Cursor cursor = null;
+                try {
+                    // a range of the primary key, no full table scan
+                    cursor = db.rawQuery("SELECT sender_list FROM messages WHERE "
+                                         + "id > (SELECT IFNULL(MAX(id), 0) FROM messages) - " + FREQUENT_SENDERS_MESSAGES
+                                         + " AND deleted = 0 AND sender_list IS NOT NULL AND flags LIKE '%SEEN%' "
+                                         + "GROUP BY sender_list ORDER BY COUNT(*) DESC LIMIT " + limit, null);
+                    while (cursor.moveToNext()) {
+                        senders.add(cursor.getString(0));
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                return senders;
+            }
+        }));
+        mFrequentSendersLimit = limit;
+        mFrequentSendersTime = now;
+        return mFrequentSenders;
+    }
+
+    /**
+     * Result of {@link LocalStore#deleteMessages(String, String[], String, int)}.
+     */
+    public static class DeletedMessages {
+        public int count;
+        public int unread;
+        public int flagged;
+        /**
+         * Approximate number of bytes freed: message contents and downloaded
+         * attachments.
+         */
+        public long bytes;
+        /**
+         * Files of the downloaded attachments of the deleted messages. They
+         * still exist, see {@link LocalStore#deleteFiles(List)}.
+         */
+        public List<File> attachmentFiles = new ArrayList<File>();
+        /**
+         * The messages, with their UID and folder only. Only filled in by
+         * {@link LocalStore#pruneMessages(String, String[], String, int)}.
+         */
+        public List<Message> messages = new ArrayList<Message>();
+        /**
+         * Sent date of the last deleted message in the requested order, -1
+         * if none or unknown. Lets callers deleting the oldest messages
+         * chunk by chunk resume from there.
+         */
+        public long lastDate = -1;
+    }
+
+    /**
+     * Delete up to <code>limit</code> messages in a single short transaction,
+     * so that other database users don't wait long. The unread and flagged
+     * counts of the affected folders are updated in the database; open
+     * {@link LocalFolder} objects keep their previous counts.
+     *
+     * @param where
+     *            Condition on the messages table.
+     * @param orderBy
+     *            Which of the matching messages are deleted first.
+     * @param limit
+     *            At most {@link #BULK_CHUNK_SIZE}.
+     * @return What was deleted, fewer than <code>limit</code> messages when
+     *         none are left to delete. Never <code>null</code>.
+     */
+    public DeletedMessages deleteMessages(final String where, final String[] args, final String orderBy,
+                                          final int limit) throws UnavailableStorageException {
+        return deleteMessages(where, args, orderBy, limit, false);
+    }
+
+    /**
+     * Like {@link #deleteMessages(String, String[], String, int)}, but the
+     * rows of the messages are kept as placeholders, the way messages deleted
+     * by the user are. Synchronization skips them instead of downloading the
+     * messages again while they're still on the server. Sent dates are kept,
+     * so that the placeholders are removed once their messages are out of the
+     * synchronized window.
+     */
+    public DeletedMessages pruneMessages(final String where, final String[] args, final String orderBy,
+                                         final int limit) throws UnavailableStorageException {
+        return deleteMessages(where, args, orderBy, limit, true);
+    }
+
+    private DeletedMessages deleteMessages(final String where, final String[] args, final String orderBy,
+                                           final int limit, final boolean keepPlaceholders)
+    throws UnavailableStorageException {
+        final File attachmentDirectory = StorageManager.getInstance(mApplication).getAttachmentDirectory(uUid,
+                                         database.getStorageProviderId());
+        // UIDs of the messages with attachments by folder name
+        final Map<String, List<String>> partialDownloads = new HashMap<String, List<String>>();
+        DeletedMessages result = database.execute(true, new DbCallback<DeletedMessages>() {
+            @Override
+            public DeletedMessages doDbWork(final SQLiteDatabase db) throws WrappedException {
+                DeletedMessages deleted = new DeletedMessages();
+                List<Long> ids = new ArrayList<Long>();
+                // unread and flagged counts by folder
+                Map<Long, int[]> counts = new HashMap<Long, int[]>();
+                Map<Long, List<String>> uidsByFolderId = new HashMap<Long, List<String>>();
+                Map<Long, List<String>> attachmentUidsByFolderId = new HashMap<Long, List<String>>();
+                Cursor cursor = db.rawQuery("SELECT id, folder_id, flags, deleted, "
+                                            + "IFNULL(LENGTH(text_content), 0) + IFNULL(LENGTH(html_content), 0), uid, "
+                                            + "attachment_count, date FROM messages WHERE " + where + " ORDER BY " + orderBy
+                                            + " LIMIT " + Math.min(limit, BULK_CHUNK_SIZE), args);
+                try {
+                    while (cursor.moveToNext()) {
+                        ids.add(cursor.getLong(0));
+                        deleted.bytes += cursor.getLong(4);
+                        deleted.lastDate = cursor.isNull(7) ? -1 : cursor.getLong(7);
+                        if (keepPlaceholders) {
+                            addUid(uidsByFolderId, cursor.getLong(1), cursor.getString(5));
+                        }
+                        if (cursor.getInt(6) > 0) {
+                            addUid(attachmentUidsByFolderId, cursor.getLong(1), cursor.getString(5));
+                        }
+                        if (cursor.getInt(3) != 0) {
+                            continue;
+                        }
+                        String flags = "," + cursor.getString(2) + ",";
+                        int[] folderCounts = counts.get(cursor.getLong(1));
+                        if (folderCounts == null) {
+                            folderCounts = new int[2];
+                            counts.put(cursor.getLong(1), folderCounts);
+                        }
+                        if (!flags.contains("," + Flag.SEEN.name() + ",")) {
+                            folderCounts[0]++;
+                            deleted.unread++;
+                        }
+                        if (flags.contains("," + Flag.FLAGGED.name() + ",")) {
+                            folderCounts[1]++;
+                            deleted.flagged++;
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                deleted.count = ids.size();
+                if (ids.isEmpty()) {
+                    return deleted;
+                }
+
+                String idList = Utility.combine(ids.toArray(), ',');
+                cursor = db.rawQuery("SELECT id, size, content_uri FROM attachments WHERE message_id IN ("
+                                     + idList + ")", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        if (!cursor.isNull(2)) {
+                            deleted.attachmentFiles.add(new File(attachmentDirectory, Long.toString(cursor.getLong(0))));
+                            deleted.bytes += cursor.getLong(1);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                if (keepPlaceholders) {
+                    db.execSQL("DELETE FROM attachments WHERE message_id IN (" + idList + ")");
+                    db.execSQL("DELETE FROM headers WHERE message_id IN (" + idList + ")");
+                    db.execSQL("UPDATE messages SET deleted = 1, subject = NULL, "
+                               + "sender_list = NULL, to_list = NULL, "
+                               + "cc_list = NULL, bcc_list = NULL, preview = NULL, "
+                               + "html_content = NULL, text_content = NULL, "
+                               + "reply_to_list = NULL, " + getAddFlagAssignment(Flag.DELETED)
+                               + " WHERE id IN (" + idList + ")");
+                } else {
+                    // the delete_message trigger removes the attachment and header rows
+                    db.execSQL("DELETE FROM messages WHERE id IN (" + idList + ")");
+                }
+
+                if (!uidsByFolderId.isEmpty() || !attachmentUidsByFolderId.isEmpty()) {
+                    Set<Long> folderIds = new HashSet<Long>(uidsByFolderId.keySet());
+                    folderIds.addAll(attachmentUidsByFolderId.keySet());
+                    cursor = db.rawQuery("SELECT id, name FROM folders WHERE id IN ("
+                                         + Utility.combine(folderIds.toArray(), ',') + ")", null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            String name = cursor.getString(1);
+                            List<String> uids = uidsByFolderId.get(cursor.getLong(0));
+                            if (uids != null) {
+                                LocalFolder folder = getFolder(name);
+                                for (String uid : uids) {
+                                    deleted.messages.add(new LocalMessage(uid, folder));
+                                }
+                            }
+                            uids = attachmentUidsByFolderId.get(cursor.getLong(0));
+                            if (uids != null) {
+                                partialDownloads.put(name, uids);
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+                    db.execSQL("UPDATE folders SET unread_count = MAX(0, unread_count - ?), "
+                               + "flagged_count = MAX(0, flagged_count - ?) WHERE id = ?",
+                               new Object[] { entry.getValue()[0], entry.getValue()[1], entry.getKey() });
+                }
+                return deleted;
+            }
+        });
+        for (Map.Entry<String, List<String>> entry : partialDownloads.entrySet()) {
+            deletePartialDownloadFiles(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private static void addUid(Map<Long, List<String>> uidsByFolderId, long folderId, String uid) {
+        List<String> uids = uidsByFolderId.get(folderId);
+        if (uids == null) {
+            uids = new ArrayList<String>();
+            uidsByFolderId.put(folderId, uids);
+        }
+        uids.add(uid);
+    }
+
+    /**
+     * @return SQL assignment adding the given flag to the flags column, if
+     *         it isn't there yet.
+     */
+    private static String getAddFlagAssignment(Flag flag) {
+        return "flags = CASE WHEN flags IS NULL OR flags = '' THEN '" + flag.name() + "' "
+               + "WHEN (',' || flags || ',') LIKE '%," + flag.name() + ",%' THEN flags "
+               + "ELSE flags || '," + flag.name() + "' END";
+    }
+
+    /**
+     * @return SQL assignment removing the given flag from the flags column.
+     */
+    private static String getRemoveFlagAssignment(Flag flag) {
+        return "flags = TRIM(REPLACE(',' || flags || ',', '," + flag.name() + ",', ','), ',')";
+    }
+
+    /**
+     * @param where
+     *            Condition on the messages table.
+     * @return Number of matching messages by folder ID. Never
+     *         <code>null</code>.
+     */
+    public Map<Long, Integer> countMessagesByFolder(final String where, final String[] args)
+    throws UnavailableStorageException {
+        return database.execute(false, new DbCallback<Map<Long, Integer>>() {
+            @Override
+            public Map<Long, Integer> doDbWork(final SQLiteDatabase db) {
+                Map<Long, Integer> counts = new HashMap<Long, Integer>();
+                Cursor cursor = db.rawQuery("SELECT folder_id, COUNT(*) FROM messages WHERE " + where
+                                            + " GROUP BY folder_id", args);
+                try {
+                    while (cursor.moveToNext()) {
+                        counts.put(cursor.getLong(0), cursor.getInt(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return counts;
+            }
+        });
+    }
+
+    /**
+     * Delete files of attachments that are no longer referenced, see
+     * {@link DeletedMessages#attachmentFiles}.
+     */
+    public static void deleteFiles(List<File> files) {
+        for (File file : files) {
+            if (file.exists() && !file.delete()) {
+                Log.w(K9.LOG_TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * @return Approximate number of bytes used by the contents of the messages
+     *         and their downloaded attachments. Unlike {@link #getSize()},
+     *         this shrinks as soon as messages are deleted.
+     */
+    public long getContentSize() throws UnavailableStorageException {
+        return database.execute(false, new DbCallback<Long>() {
+            @Override
+            public Long doDbWork(final SQLiteDatabase db) {
+                long size = 0;
+                Cursor cursor = db.rawQuery("SELECT SUM(IFNULL(LENGTH(text_content), 0) "
+                                            + "+ IFNULL(LENGTH(html_content), 0)) FROM messages", null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        size += cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                cursor = db.rawQuery("SELECT SUM(size) FROM attachments WHERE content_uri IS NOT NULL", null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        size += cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return size;
+            }
+        });
+    }
+
+    public void createFolders(final List<LocalFolder> foldersToCreate, final int visibleLimit) throws UnavailableStorageException {
+        pollStateChanged();
+        database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                for (LocalFolder folder : foldersToCreate) {
+                    String name = folder.getName();
+                    final  LocalFolder.PreferencesHolder prefHolder = folder.new PreferencesHolder();
+
+                    // When created, special folders should always be displayed
+                    // inbox should be integrated
+                    // and the inbox and drafts folders should be syncced by default
+                    if (mAccount.isSpecialFolder(name)) {
+                        prefHolder.inTopGroup = true;
+                        prefHolder.displayClass = LocalFolder.FolderClass.FIRST_CLASS;
+                        if (name.equalsIgnoreCase(mAccount.getInboxFolderName())) {
+                            prefHolder.integrate = true;
+                            prefHolder.pushClass = LocalFolder.FolderClass.FIRST_CLASS;
+                        } else {
+                            prefHolder.pushClass = LocalFolder.FolderClass.INHERITED;
+
+                        }
+                        if (name.equalsIgnoreCase(mAccount.getInboxFolderName()) ||
+                                name.equalsIgnoreCase(mAccount.getDraftsFolderName())) {
+                            prefHolder.syncClass = LocalFolder.FolderClass.FIRST_CLASS;
+                        } else {
+                            prefHolder.syncClass = LocalFolder.FolderClass.NO_CLASS;
+                        }
+                    }
+                    folder.refresh(name, prefHolder);   // Recover settings from Preferences
+
+                    db.execSQL("INSERT INTO folders (name, visible_limit, top_group, display_class, poll_class, push_class, integrate) VALUES (?, ?, ?, ?, ?, ?, ?)", new Object[] {
+                                   name,
+                                   visibleLimit,
+                                   prefHolder.inTopGroup ? 1 : 0,
+                                   prefHolder.displayClass.name(),
+                                   prefHolder.syncClass.name(),
+                                   prefHolder.pushClass.name(),
+                                   prefHolder.integrate ? 1 : 0,
+                               });
+
+                }
+                return null;
+            }
+        });
+    }
+
+    public class LocalFolder extends Folder implements Serializable {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -1973296520918624767L;
+        private String mName = null;
+        private long mFolderId = -1;
+        private int mUnreadMessageCount = -1;
+        private int mFlaggedMessageCount = -1;
+        private int mVisibleLimit = -1;
+        private String prefId = null;
+        private FolderClass mDisplayClass = FolderClass.NO_CLASS;
+        private FolderClass mSyncClass = FolderClass.INHERITED;
+        private FolderClass mPushClass = FolderClass.SECOND_CLASS;
         private boolean mInTopGroup = false;
         private String mPushState = null;
         private boolean mIntegrate = false;
+        // Estimated number of new messages per hour, negative if unknown
+        private double mArrivalRate = -1;
+        // Time the user last opened the folder, 0 if never
+        private long mLastOpened = 0;
         // mLastUid is used during syncs. It holds the highest UID within the local folder so we
         // know whether or not an unread message added to the local folder is actually "new" or not.
         private Integer mLastUid = null;
@@ -1142,7 +1915,7 @@ public class LocalStore extends Store implements Serializable {
                             if (cursor.moveToFirst()) {
                                 int folderId = cursor.getInt(0);
                                 if (folderId > 0) {
-                                    open(folderId, cursor.getString(1), cursor.getInt(2), cursor.getInt(3), cursor.getLong(4), cursor.getString(5), cursor.getString(6), cursor.getLong(7), cursor.getInt(8), cursor.getInt(9), cursor.getInt(10), cursor.getString(11), cursor.getString(12), cursor.getString(13));
+                                    open(folderId, cursor.getString(1), cursor.getInt(2), cursor.getInt(3), cursor.getLong(4), cursor.getString(5), cursor.getString(6), cursor.getLong(7), cursor.getInt(8), cursor.getInt(9), cursor.getInt(10), cursor.getString(11), cursor.getString(12), cursor.getString(13), cursor.isNull(14) ? -1 : cursor.getDouble(14), cursor.getLong(15));
                                 }
                             } else {
                                 Log.w(K9.LOG_TAG, "Creating folder " + getName() + " with existing id " + getId());
@@ -1164,8 +1937,10 @@ public class LocalStore extends Store implements Serializable {
             }
         }
 
-        private void open(int id, String name, int unreadCount, int visibleLimit, long lastChecked, String status, String pushState, long lastPushed, int flaggedCount, int integrate, int topGroup, String syncClass, String pushClass, String displayClass) throws MessagingException {
+        private void open(int id, String name, int unreadCount, int visibleLimit, long lastChecked, String status, String pushState, long lastPushed, int flaggedCount, int integrate, int topGroup, String syncClass, String pushClass, String displayClass, double arrivalRate, long lastOpened) throws MessagingException {
             mFolderId = id;
+            mArrivalRate = arrivalRate;
+            mLastOpened = lastOpened;
             mName = name;
             mUnreadMessageCount = unreadCount;
             mVisibleLimit = visibleLimit;
@@ -1318,6 +2093,7 @@ public class LocalStore extends Store implements Serializable {
                 throw new WrappedException(e);
             }
             updateFolderColumn("last_updated", lastChecked);
+            pollStateChanged();
         }
 
         @Override
@@ -1388,6 +2164,216 @@ public class LocalStore extends Store implements Serializable {
         public String getPushState() {
             return mPushState;
         }
+
+        /**
+         * @return Progress of the synchronization of this folder that didn't
+         *         complete, <code>null</code> if none.
+         */
+        public SyncCheckpoint getSyncCheckpoint() throws MessagingException {
+            try {
+                return database.execute(false, new DbCallback<SyncCheckpoint>() {
+                    @Override
+                    public SyncCheckpoint doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        try {
+                            open(OpenMode.READ_WRITE);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.rawQuery("SELECT sync_phase, sync_window_start, sync_window_end, sync_last_uid "
+                                                 + "FROM folders WHERE id = ?", new String[] { Long.toString(mFolderId) });
+                            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                                return null;
+                            }
+                            SyncCheckpoint.Phase phase;
+                            try {
+                                phase = SyncCheckpoint.Phase.valueOf(cursor.getString(0));
+                            } catch (IllegalArgumentException e) {
+                                Log.w(K9.LOG_TAG, "Ignoring unknown synchronization phase " + cursor.getString(0));
+                                return null;
+                            }
+                            return new SyncCheckpoint(phase, cursor.getInt(1), cursor.getInt(2), cursor.getString(3));
+                        } finally {
+                            if (cursor != null) {
+                                cursor.close();
+                            }
+                        }
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
+        /**
+         * @param checkpoint
+         *            <code>null</code> once the synchronization completed.
+         */
+        public void setSyncCheckpoint(final SyncCheckpoint checkpoint) throws MessagingException {
+            try {
+                database.execute(false, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        try {
+                            open(OpenMode.READ_WRITE);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        if (checkpoint == null) {
+                            db.execSQL("UPDATE folders SET sync_phase = NULL, sync_window_start = NULL, "
+                                       + "sync_window_end = NULL, sync_last_uid = NULL WHERE id = ?",
+                                       new Object[] { mFolderId });
+                        } else {
+                            db.execSQL("UPDATE folders SET sync_phase = ?, sync_window_start = ?, "
+                                       + "sync_window_end = ?, sync_last_uid = ? WHERE id = ?",
+                                       new Object[] { checkpoint.getPhase().name(), checkpoint.getWindowStart(),
+                                                      checkpoint.getWindowEnd(), checkpoint.getLastUid(), mFolderId });
+                        }
+                        return null;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
+        /**
+         * @return State of the remote folder as of the last complete
+         *         synchronization, <code>null</code> if unknown.
+         */
+        public MailboxState getRemoteMailboxState() throws MessagingException {
+            try {
+                return database.execute(false, new DbCallback<MailboxState>() {
+                    @Override
+                    public MailboxState doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        try {
+                            open(OpenMode.READ_WRITE);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.rawQuery("SELECT uid_validity, highest_mod_seq, uid_next FROM folders WHERE id = ?",
+                                                 new String[] { Long.toString(mFolderId) });
+                            if (!cursor.moveToFirst() || cursor.isNull(0) || cursor.isNull(1)) {
+                                return null;
+                            }
+                            return new MailboxState(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+                        } finally {
+                            if (cursor != null) {
+                                cursor.close();
+                            }
+                        }
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
+        /**
+         * @return Window of the last complete synchronization, stored with
+         *         {@link #getRemoteMailboxState()}. <code>null</code> if unknown.
+         */
+        public SyncWindow getRemoteSyncWindow() throws MessagingException {
+            try {
+                return database.execute(false, new DbCallback<SyncWindow>() {
+                    @Override
+                    public SyncWindow doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        try {
+                            open(OpenMode.READ_WRITE);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.rawQuery("SELECT sync_visible_limit, sync_earliest_date FROM folders WHERE id = ?",
+                                                 new String[] { Long.toString(mFolderId) });
+                            if (!cursor.moveToFirst() || cursor.isNull(0) || cursor.isNull(1)) {
+                                return null;
+                            }
+                            return new SyncWindow(cursor.getInt(0), cursor.getLong(1));
+                        } finally {
+                            if (cursor != null) {
+                                cursor.close();
+                            }
+                        }
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
+        /**
+         * @param state
+         *            <code>null</code> to forget about the remote folder,
+         *            e.g. when its UIDs were invalidated.
+         * @param window
+         *            Window that was synchronized, <code>null</code> if
+         *            unknown.
+         */
+        public void setRemoteMailboxState(final MailboxState state, final SyncWindow window) throws MessagingException {
+            try {
+                database.execute(false, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        try {
+                            open(OpenMode.READ_WRITE);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        if (state == null) {
+                            db.execSQL("UPDATE folders SET uid_validity = NULL, highest_mod_seq = NULL, uid_next = NULL, "
+                                       + "sync_visible_limit = NULL, sync_earliest_date = NULL WHERE id = ?",
+                                       new Object[] { mFolderId });
+                        } else {
+                            db.execSQL("UPDATE folders SET uid_validity = ?, highest_mod_seq = ?, uid_next = ?, "
+                                       + "sync_visible_limit = ?, sync_earliest_date = ? WHERE id = ?",
+                                       new Object[] { state.getUidValidity(), state.getHighestModSeq(),
+                                                      (state.getUidNext() > 0) ? state.getUidNext() : null,
+                                                      (window == null) ? null : window.getVisibleLimit(),
+                                                      (window == null) ? null : window.getEarliestDate(), mFolderId });
+                        }
+                        return null;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
+        /**
+         * @return Estimated number of new messages per hour, negative if there's
+         *         no estimate yet.
+         * @see com.fsck.k9.controller.PollScheduler
+         */
+        public double getArrivalRate() throws MessagingException {
+            open(OpenMode.READ_WRITE);
+            return mArrivalRate;
+        }
+
+        public void setArrivalRate(final double arrivalRate) throws MessagingException {
+            mArrivalRate = arrivalRate;
+            updateFolderColumn("arrival_rate", arrivalRate);
+            pollStateChanged();
+        }
+
+        /**
+         * @return Time the user last displayed the messages of this folder, 0
+         *         if never.
+         */
+        public long getLastOpened() throws MessagingException {
+            open(OpenMode.READ_WRITE);
+            return mLastOpened;
+        }
+
+        public void setLastOpened(final long lastOpened) throws MessagingException {
+            mLastOpened = lastOpened;
+            updateFolderColumn("last_opened", lastOpened);
+        }
+
         @Override
         public FolderClass getDisplayClass() {
             return mDisplayClass;
@@ -1424,12 +2410,14 @@ public class LocalStore extends Store implements Serializable {
         public void setDisplayClass(FolderClass displayClass) throws MessagingException {
             mDisplayClass = displayClass;
             updateFolderColumn("display_class", mDisplayClass.name());
+            pollStateChanged();
 
         }
 
         public void setSyncClass(FolderClass syncClass) throws MessagingException {
             mSyncClass = syncClass;
             updateFolderColumn("poll_class", mSyncClass.name());
+            pollStateChanged();
         }
         public void setPushClass(FolderClass pushClass) throws MessagingException {
             mPushClass = pushClass;
@@ -1479,6 +2467,7 @@ public class LocalStore extends Store implements Serializable {
         }
 
         public void save(SharedPreferences.Editor editor) throws MessagingException {
+            pollStateChanged();
             String id = getPrefId();
 
             // there can be a lot of folders.  For the defaults, let's not save prefs, saving space, except for INBOX
@@ -1835,6 +2824,48 @@ public class LocalStore extends Store implements Serializable {
             }
         }
 
+        /**
+         * Load UID, flags and dates of every message in this folder (including
+         * the ones marked as deleted) without building {@link LocalMessage}s.
+         *
+         * @return Never <code>null</code>.
+         */
+        public UidIndex getUidIndex() throws MessagingException {
+            try {
+                return database.execute(false, new DbCallback<UidIndex>() {
+                    @Override
+                    public UidIndex doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        try {
+                            open(OpenMode.READ_WRITE);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.rawQuery("SELECT uid, flags, date, internal_date, size FROM messages "
+                                                 + "WHERE folder_id = ? ORDER BY uid",
+                                                 new String[] { Long.toString(mFolderId) });
+                            UidIndex.Builder builder = new UidIndex.Builder(cursor.getCount());
+                            while (cursor.moveToNext()) {
+                                String uid = cursor.getString(0);
+                                if (uid != null) {
+                                    builder.add(uid, UidIndex.parseFlags(cursor.getString(1)),
+                                                cursor.getLong(2), cursor.getLong(3), cursor.getInt(4));
+                                }
+                            }
+                            return builder.build();
+                        } finally {
+                            if (cursor != null) {
+                                cursor.close();
+                            }
+                        }
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
         @Override
         public Message[] getMessages(MessageRetrievalListener listener) throws MessagingException {
             return getMessages(listener, true);
@@ -1904,80 +2935,283 @@ public class LocalStore extends Store implements Serializable {
             final LocalFolder lDestFolder = (LocalFolder)destFolder;
 
             try {
-                database.execute(false, new DbCallback<Void>() {
+                database.execute(true, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        try {
+                            lDestFolder.open(OpenMode.READ_WRITE);
+                            if (K9.DEBUG)
+                                Log.d(K9.LOG_TAG, "Moving " + msgs.length + " messages from folder " + getName()
+                                      + " to folder " + lDestFolder.getName());
+
+                            int unread = 0;
+                            int flagged = 0;
+                            Map<Long, Message> messagesById = new HashMap<Long, Message>();
+                            Message[] placeHolders = new Message[msgs.length];
+                            for (int i = 0; i < msgs.length; i++) {
+                                Message message = msgs[i];
+                                if (!message.isSet(Flag.SEEN)) {
+                                    unread++;
+                                }
+                                if (message.isSet(Flag.FLAGGED)) {
+                                    flagged++;
+                                }
+                                messagesById.put(((LocalMessage) message).getId(), message);
+
+                                LocalMessage placeHolder = new LocalMessage(message.getUid(), LocalFolder.this);
+                                placeHolder.setFlagInternal(Flag.DELETED, true);
+                                placeHolder.setFlagInternal(Flag.SEEN, true);
+                                placeHolders[i] = placeHolder;
+                            }
+
+                            /*
+                             * Every moved message gets a new random local UID
+                             * until the server tells its real one.
+                             */
+                            List<Long> ids = new ArrayList<Long>(messagesById.keySet());
+                            for (int start = 0; start < ids.size(); start += BULK_CHUNK_SIZE) {
+                                String idList = Utility.combine(ids.subList(start,
+                                                                Math.min(ids.size(), start + BULK_CHUNK_SIZE)).toArray(), ',');
+                                db.execSQL("UPDATE messages SET folder_id = ?, uid = '" + K9.LOCAL_UID_PREFIX
+                                           + "' || lower(hex(randomblob(16))) WHERE id IN (" + idList + ")",
+                                           new Object[] { lDestFolder.getId() });
+                                Cursor cursor = db.rawQuery("SELECT id, uid FROM messages WHERE id IN (" + idList + ")", null);
+                                try {
+                                    while (cursor.moveToNext()) {
+                                        messagesById.get(cursor.getLong(0)).setUid(cursor.getString(1));
+                                    }
+                                } finally {
+                                    cursor.close();
+                                }
+                            }
+
+                            appendMessages(placeHolders);
+
+                            if (unread > 0) {
+                                setUnreadMessageCount(getUnreadMessageCount() - unread);
+                                lDestFolder.setUnreadMessageCount(lDestFolder.getUnreadMessageCount() + unread);
+                            }
+                            if (flagged > 0) {
+                                setFlaggedMessageCount(getFlaggedMessageCount() - flagged);
+                                lDestFolder.setFlaggedMessageCount(lDestFolder.getFlaggedMessageCount() + flagged);
+                            }
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        return null;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+
+        }
+
+        /**
+         * Convenience transaction wrapper for storing a message and set it as fully downloaded. Implemented mainly to speed up DB transaction commit.
+         *
+         * @param message Message to store. Never <code>null</code>.
+         * @param runnable What to do before setting {@link Flag#X_DOWNLOADED_FULL}. Never <code>null</code>.
+         * @return The local version of the message. Never <code>null</code>.
+         * @throws MessagingException
+         */
+        public Message storeSmallMessage(final Message message, final Runnable runnable) throws MessagingException {
+            return database.execute(true, new DbCallback<Message>() {
+                @Override
+                public Message doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    try {
+                        appendMessages(new Message[] { message });
+                        final String uid = message.getUid();
+                        final Message result = getMessage(uid);
+                        runnable.run();
+                        // Set a flag indicating this message has now be fully downloaded
+                        result.setFlag(Flag.X_DOWNLOADED_FULL, true);
+                        return result;
+                    } catch (MessagingException e) {
+                        throw new WrappedException(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Store downloaded messages, including their headers, bodies and
+         * attachment rows, in a single transaction. The unread and flagged
+         * counters of the folder are updated once for the whole batch. Nothing
+         * is stored if one of the messages fails.
+         *
+         * @param messages Messages to store. Never <code>null</code>.
+         * @param downloadFlags Flag telling how much of each message was downloaded
+         *            ({@link Flag#X_DOWNLOADED_FULL} or {@link Flag#X_DOWNLOADED_PARTIAL}),
+         *            same order as <code>messages</code>, <code>null</code> entries
+         *            for none. May be <code>null</code>.
+         * @return The local versions of the messages, in the same order. Never <code>null</code>.
+         * @throws MessagingException
+         */
+        public List<Message> storeMessages(final List<Message> messages, final Flag[] downloadFlags) throws MessagingException {
+            try {
+                return database.execute(true, new DbCallback<List<Message>>() {
+                    @Override
+                    public List<Message> doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        try {
+                            appendMessages(messages.toArray(EMPTY_MESSAGE_ARRAY), false, downloadFlags);
+                            List<Message> result = new ArrayList<Message>(messages.size());
+                            for (Message message : messages) {
+                                result.add(getMessage(message.getUid()));
+                            }
+                            return result;
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
+        /**
+         * Same as {@link #storeSmallMessage(Message, Runnable)} for several
+         * messages, in a single transaction.
+         *
+         * @param messages Messages to store. Never <code>null</code>.
+         * @return The local versions of the messages, in the same order. Never <code>null</code>.
+         * @throws MessagingException
+         * @see #storeMessages(List, Flag[])
+         */
+        public List<Message> storeSmallMessages(final List<Message> messages) throws MessagingException {
+            Flag[] downloadFlags = new Flag[messages.size()];
+            Arrays.fill(downloadFlags, Flag.X_DOWNLOADED_FULL);
+            return storeMessages(messages, downloadFlags);
+        }
+
+        /**
+         * Store messages of which only the envelope was fetched, for the
+         * initial import of a folder, in a single transaction. Unlike
+         * {@link #appendMessages(Message[])} this doesn't look for stored
+         * copies of the messages, and there is no body to extract text and a
+         * preview from: these are computed when the bodies are downloaded.
+         * Rows are written with precompiled statements.
+         *
+         * @param messages Messages not stored in this folder yet. Never <code>null</code>.
+         * @return The local versions of the messages, in the same order. Never <code>null</code>.
+         * @throws MessagingException
+         */
+        public List<Message> importEnvelopes(final List<Message> messages) throws MessagingException {
+            open(OpenMode.READ_WRITE);
+            try {
+                return database.execute(true, new DbCallback<List<Message>>() {
                     @Override
-                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    public List<Message> doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        SQLiteStatement insertMessage = db.compileStatement(
+                            "INSERT INTO messages (folder_id, uid, subject, sender_list, date, flags, deleted, "
+                            + "to_list, cc_list, bcc_list, reply_to_list, attachment_count, internal_date, "
+                            + "mime_type, size, message_id) VALUES (?, ?, ?, ?, ?, ?, 0, ?, ?, ?, ?, 0, ?, ?, ?, ?)");
+                        SQLiteStatement insertHeader = db.compileStatement(
+                            "INSERT INTO headers (message_id, name, value) VALUES (?, ?, ?)");
+                        boolean saveAllHeaders = mAccount.saveAllHeaders();
+                        long firstId = -1;
+                        long lastId = -1;
+                        int unread = 0;
+                        int flagged = 0;
                         try {
-                            lDestFolder.open(OpenMode.READ_WRITE);
-                            for (Message message : msgs) {
-                                LocalMessage lMessage = (LocalMessage)message;
+                            for (Message message : messages) {
+                                List<Flag> flags = new ArrayList<Flag>(Arrays.asList(message.getFlags()));
+                                boolean gotAdditionalHeaders = false;
+                                if (!saveAllHeaders) {
+                                    for (String name : message.getHeaderNames()) {
+                                        if (!HEADERS_TO_SAVE.contains(name)) {
+                                            gotAdditionalHeaders = true;
+                                            break;
+                                        }
+                                    }
+                                }
+                                if (!gotAdditionalHeaders) {
+                                    flags.add(Flag.X_GOT_ALL_HEADERS);
+                                }
 
-                                if (!message.isSet(Flag.SEEN)) {
-                                    setUnreadMessageCount(getUnreadMessageCount() - 1);
-                                    lDestFolder.setUnreadMessageCount(lDestFolder.getUnreadMessageCount() + 1);
+                                long now = System.currentTimeMillis();
+                                insertMessage.bindLong(1, mFolderId);
+                                insertMessage.bindString(2, message.getUid());
+                                bindOptional(insertMessage, 3, message.getSubject());
+                                bindOptional(insertMessage, 4, Address.pack(message.getFrom()));
+                                insertMessage.bindLong(5, message.getSentDate() == null ? now : message.getSentDate().getTime());
+                                insertMessage.bindString(6, Utility.combine(flags.toArray(), ',').toUpperCase());
+                                bindOptional(insertMessage, 7, Address.pack(message.getRecipients(RecipientType.TO)));
+                                bindOptional(insertMessage, 8, Address.pack(message.getRecipients(RecipientType.CC)));
+                                bindOptional(insertMessage, 9, Address.pack(message.getRecipients(RecipientType.BCC)));
+                                bindOptional(insertMessage, 10, Address.pack(message.getReplyTo()));
+                                insertMessage.bindLong(11, message.getInternalDate() == null ? now : message.getInternalDate().getTime());
+                                bindOptional(insertMessage, 12, message.getMimeType());
+                                if (message.getSize() > 0) {
+                                    insertMessage.bindLong(13, message.getSize());
+                                } else {
+                                    insertMessage.bindNull(13);
+                                }
+                                bindOptional(insertMessage, 14, message.getMessageId());
+                                long id = insertMessage.executeInsert();
+                                if (firstId == -1) {
+                                    firstId = id;
+                                }
+                                lastId = id;
+
+                                for (String name : message.getHeaderNames()) {
+                                    if (saveAllHeaders || HEADERS_TO_SAVE.contains(name)) {
+                                        for (String value : message.getHeader(name)) {
+                                            insertHeader.bindLong(1, id);
+                                            insertHeader.bindString(2, name);
+                                            bindOptional(insertHeader, 3, value);
+                                            insertHeader.executeInsert();
+                                        }
+                                    }
                                 }
 
+                                if (!message.isSet(Flag.SEEN)) {
+                                    unread++;
+                                }
                                 if (message.isSet(Flag.FLAGGED)) {
-                                    setFlaggedMessageCount(getFlaggedMessageCount() - 1);
-                                    lDestFolder.setFlaggedMessageCount(lDestFolder.getFlaggedMessageCount() + 1);
+                                    flagged++;
                                 }
-
-                                String oldUID = message.getUid();
-
-                                if (K9.DEBUG)
-                                    Log.d(K9.LOG_TAG, "Updating folder_id to " + lDestFolder.getId() + " for message with UID "
-                                          + message.getUid() + ", id " + lMessage.getId() + " currently in folder " + getName());
-
-                                message.setUid(K9.LOCAL_UID_PREFIX + UUID.randomUUID().toString());
-
-                                db.execSQL("UPDATE messages " + "SET folder_id = ?, uid = ? " + "WHERE id = ?", new Object[] {
-                                               lDestFolder.getId(),
-                                               message.getUid(),
-                                               lMessage.getId()
-                                           });
-
-                                LocalMessage placeHolder = new LocalMessage(oldUID, LocalFolder.this);
-                                placeHolder.setFlagInternal(Flag.DELETED, true);
-                                placeHolder.setFlagInternal(Flag.SEEN, true);
-                                appendMessages(new Message[] { placeHolder });
+                            }
+                            if (unread != 0) {
+                                setUnreadMessageCount(getUnreadMessageCount() + unread);
+                            }
+                            if (flagged != 0) {
+                                setFlaggedMessageCount(getFlaggedMessageCount() + flagged);
                             }
                         } catch (MessagingException e) {
                             throw new WrappedException(e);
+                        } finally {
+                            insertMessage.close();
+                            insertHeader.close();
+                        }
+
+                        if (firstId == -1) {
+                            return new ArrayList<Message>();
+                        }
+                        try {
+                            // rows of the transaction are numbered in a row
+                            Message[] stored = LocalStore.this.getMessages(null, LocalFolder.this,
+                                               "SELECT " + GET_MESSAGES_COLS + "FROM messages "
+                                               + "WHERE folder_id = ? AND id BETWEEN ? AND ? ORDER BY id",
+                                               new String[] { Long.toString(mFolderId), Long.toString(firstId), Long.toString(lastId) });
+                            return Arrays.asList(stored);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
                         }
-                        return null;
                     }
                 });
             } catch (WrappedException e) {
                 throw(MessagingException) e.getCause();
             }
-
         }
 
-        /**
-         * Convenience transaction wrapper for storing a message and set it as fully downloaded. Implemented mainly to speed up DB transaction commit.
-         *
-         * @param message Message to store. Never <code>null</code>.
-         * @param runnable What to do before setting {@link Flag#X_DOWNLOADED_FULL}. Never <code>null</code>.
-         * @return The local version of the message. Never <code>null</code>.
-         * @throws MessagingException
-         */
-        public Message storeSmallMessage(final Message message, final Runnable runnable) throws MessagingException {
-            return database.execute(true, new DbCallback<Message>() {
-                @Override
-                public Message doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                    try {
-                        appendMessages(new Message[] { message });
-                        final String uid = message.getUid();
-                        final Message result = getMessage(uid);
-                        runnable.run();
-                        // Set a flag indicating this message has now be fully downloaded
-                        result.setFlag(Flag.X_DOWNLOADED_FULL, true);
-                        return result;
-                    } catch (MessagingException e) {
-                        throw new WrappedException(e);
-                    }
-                }
-            });
+        private void bindOptional(SQLiteStatement statement, int index, String value) {
+            if (value == null) {
+                statement.bindNull(index);
+            } else {
+                statement.bindString(index, value);
+            }
         }
 
         /**
@@ -2031,30 +3265,49 @@ public class LocalStore extends Store implements Serializable {
          * @param copy
          */
         private void appendMessages(final Message[] messages, final boolean copy) throws MessagingException {
+            appendMessages(messages, copy, null);
+        }
+
+        /**
+         * All messages are written in a single transaction and the unread and
+         * flagged counters of the folder are updated once at the end.
+         *
+         * @param messages
+         * @param copy
+         * @param extraFlags
+         *            Flags to store in addition to the flags of the messages, same
+         *            order as <code>messages</code>, <code>null</code> entries for
+         *            none. May be <code>null</code>.
+         */
+        private void appendMessages(final Message[] messages, final boolean copy, final Flag[] extraFlags) throws MessagingException {
             open(OpenMode.READ_WRITE);
             try {
                 database.execute(true, new DbCallback<Void>() {
                     @Override
                     public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        int unreadDelta = 0;
+                        int flaggedDelta = 0;
                         try {
-                            for (Message message : messages) {
+                            for (int i = 0; i < messages.length; i++) {
+                                Message message = messages[i];
                                 if (!(message instanceof MimeMessage)) {
                                     throw new Error("LocalStore can only store Messages that extend MimeMessage");
                                 }
 
                                 String uid = message.getUid();
+                                StoredMessage stored = null;
                                 if (uid == null || copy) {
                                     uid = K9.LOCAL_UID_PREFIX + UUID.randomUUID().toString();
                                     if (!copy) {
                                         message.setUid(uid);
                                     }
                                 } else {
-                                    Message oldMessage = getMessage(uid);
-                                    if (oldMessage != null && !oldMessage.isSet(Flag.SEEN)) {
-                                        setUnreadMessageCount(getUnreadMessageCount() - 1);
+                                    stored = getStoredMessage(db, uid);
+                                    if (stored != null && (stored.flags & SEEN_MASK) == 0) {
+                                        unreadDelta--;
                                     }
-                                    if (oldMessage != null && oldMessage.isSet(Flag.FLAGGED)) {
-                                        setFlaggedMessageCount(getFlaggedMessageCount() - 1);
+                                    if (stored != null && (stored.flags & FLAGGED_MASK) != 0) {
+                                        flaggedDelta--;
                                     }
                                     /*
                                      * The message may already exist in this Folder, so delete it first.
@@ -2103,7 +3356,15 @@ public class LocalStore extends Store implements Serializable {
                                     cv.put("sender_list", Address.pack(message.getFrom()));
                                     cv.put("date", message.getSentDate() == null
                                            ? System.currentTimeMillis() : message.getSentDate().getTime());
-                                    cv.put("flags", Utility.combine(message.getFlags(), ',').toUpperCase());
+                                    Flag extraFlag = (extraFlags == null) ? null : extraFlags[i];
+                                    Flag[] flags = message.getFlags();
+                                    if (extraFlag != null && !message.isSet(extraFlag)) {
+                                        Flag[] withExtra = new Flag[flags.length + 1];
+                                        System.arraycopy(flags, 0, withExtra, 0, flags.length);
+                                        withExtra[flags.length] = extraFlag;
+                                        flags = withExtra;
+                                    }
+                                    cv.put("flags", Utility.combine(flags, ',').toUpperCase());
                                     cv.put("deleted", message.isSet(Flag.DELETED) ? 1 : 0);
                                     cv.put("folder_id", mFolderId);
                                     cv.put("to_list", Address.pack(message.getRecipients(RecipientType.TO)));
@@ -2114,9 +3375,23 @@ public class LocalStore extends Store implements Serializable {
                                     cv.put("preview", preview.length() > 0 ? preview : null);
                                     cv.put("reply_to_list", Address.pack(message.getReplyTo()));
                                     cv.put("attachment_count", attachments.size());
-                                    cv.put("internal_date",  message.getInternalDate() == null
-                                           ? System.currentTimeMillis() : message.getInternalDate().getTime());
+                                    /*
+                                     * Bodies downloaded for stored envelopes come without
+                                     * INTERNALDATE and RFC822.SIZE, keep the stored ones.
+                                     */
+                                    if (message.getInternalDate() != null) {
+                                        cv.put("internal_date", message.getInternalDate().getTime());
+                                    } else if (stored != null && stored.internalDate > 0) {
+                                        cv.put("internal_date", stored.internalDate);
+                                    } else {
+                                        cv.put("internal_date", System.currentTimeMillis());
+                                    }
                                     cv.put("mime_type", message.getMimeType());
+                                    if (message.getSize() > 0) {
+                                        cv.put("size", message.getSize());
+                                    } else if (stored != null && stored.size > 0) {
+                                        cv.put("size", stored.size);
+                                    }
 
                                     String messageId = message.getMessageId();
                                     if (messageId != null) {
@@ -2129,15 +3404,21 @@ public class LocalStore extends Store implements Serializable {
                                     }
                                     saveHeaders(messageUid, (MimeMessage)message);
                                     if (!message.isSet(Flag.SEEN)) {
-                                        setUnreadMessageCount(getUnreadMessageCount() + 1);
+                                        unreadDelta++;
                                     }
                                     if (message.isSet(Flag.FLAGGED)) {
-                                        setFlaggedMessageCount(getFlaggedMessageCount() + 1);
+                                        flaggedDelta++;
                                     }
                                 } catch (Exception e) {
                                     throw new MessagingException("Error appending message", e);
                                 }
                             }
+                            if (unreadDelta != 0) {
+                                setUnreadMessageCount(getUnreadMessageCount() + unreadDelta);
+                            }
+                            if (flaggedDelta != 0) {
+                                setFlaggedMessageCount(getFlaggedMessageCount() + flaggedDelta);
+                            }
                         } catch (MessagingException e) {
                             throw new WrappedException(e);
                         }
@@ -2149,6 +3430,48 @@ public class LocalStore extends Store implements Serializable {
             }
         }
 
+        private class StoredMessage {
+            /**
+             * Bit mask, see {@link UidIndex#toMask(Flag...)}.
+             */
+            final int flags;
+            /**
+             * 0 if unknown.
+             */
+            final long internalDate;
+            /**
+             * 0 if unknown.
+             */
+            final int size;
+
+            StoredMessage(int flags, long internalDate, int size) {
+                this.flags = flags;
+                this.internalDate = internalDate;
+                this.size = size;
+            }
+        }
+
+        /**
+         * @return What {@link #appendMessages(Message[], boolean, Flag[])}
+         *         needs to know of the stored message with the given UID,
+         *         <code>null</code> if there is no such message.
+         */
+        private StoredMessage getStoredMessage(final SQLiteDatabase db, final String uid) {
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery("SELECT flags, internal_date, size FROM messages WHERE folder_id = ? AND uid = ?",
+                                     new String[] { Long.toString(mFolderId), uid });
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                return new StoredMessage(UidIndex.parseFlags(cursor.getString(0)), cursor.getLong(1), cursor.getInt(2));
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
         /**
          * Update the given message in the LocalStore without first deleting the existing
          * message (contrast with appendMessages). This method is used to store changes
@@ -2333,6 +3656,13 @@ public class LocalStore extends Store implements Serializable {
                                 Body body = attachment.getBody();
                                 if (body instanceof LocalAttachmentBody) {
                                     contentUri = ((LocalAttachmentBody) body).getContentUri();
+                                    if (attachmentId != -1) {
+                                        // the content may have been written to the attachment file directly
+                                        File attachmentFile = new File(attachmentDirectory, Long.toString(attachmentId));
+                                        if (attachmentFile.exists()) {
+                                            size = (int) attachmentFile.length();
+                                        }
+                                    }
                                 } else {
                                     /*
                                      * If the attachment has a body we're expected to save it into the local store
@@ -2484,13 +3814,202 @@ public class LocalStore extends Store implements Serializable {
             });
         }
 
+        /**
+         * Flags other than {@link Flag#DELETED} and {@link Flag#X_DESTROYED}
+         * are changed with one statement per flag and chunk of messages, and
+         * the counts of the folder are updated once, like
+         * {@link #markAllMessagesRead()}. Deleting messages also removes their
+         * contents, message by message.
+         */
         @Override
-        public void setFlags(Message[] messages, Flag[] flags, boolean value)
+        public void setFlags(final Message[] messages, final Flag[] flags, final boolean value)
         throws MessagingException {
             open(OpenMode.READ_WRITE);
+            boolean bulk = true;
+            for (Flag flag : flags) {
+                bulk &= (flag != Flag.DELETED && flag != Flag.X_DESTROYED);
+            }
             for (Message message : messages) {
-                message.setFlags(flags, value);
+                bulk &= (message instanceof LocalMessage);
+            }
+            if (!bulk) {
+                try {
+                    // one transaction instead of one per message
+                    database.execute(true, new DbCallback<Void>() {
+                        @Override
+                        public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                            try {
+                                for (Message message : messages) {
+                                    message.setFlags(flags, value);
+                                }
+                            } catch (MessagingException e) {
+                                throw new WrappedException(e);
+                            }
+                            return null;
+                        }
+                    });
+                } catch (WrappedException e) {
+                    throw(MessagingException) e.getCause();
+                }
+                return;
+            }
+
+            int unreadDelta = 0;
+            int flaggedDelta = 0;
+            final Map<Flag, List<LocalMessage>> changed = new HashMap<Flag, List<LocalMessage>>();
+            for (Flag flag : flags) {
+                List<LocalMessage> changedMessages = new ArrayList<LocalMessage>();
+                for (Message message : messages) {
+                    LocalMessage localMessage = (LocalMessage) message;
+                    if (localMessage.isSet(flag) == value) {
+                        continue;
+                    }
+                    if (!localMessage.isSet(Flag.DELETED)) {
+                        if (flag == Flag.SEEN) {
+                            unreadDelta += value ? -1 : 1;
+                        } else if (flag == Flag.FLAGGED) {
+                            flaggedDelta += value ? 1 : -1;
+                        }
+                    }
+                    changedMessages.add(localMessage);
+                }
+                if (!changedMessages.isEmpty()) {
+                    changed.put(flag, changedMessages);
+                }
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+            final int unread = unreadDelta;
+            final int flagged = flaggedDelta;
+            try {
+                database.execute(true, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        for (Map.Entry<Flag, List<LocalMessage>> entry : changed.entrySet()) {
+                            String assignment = value ? getAddFlagAssignment(entry.getKey())
+                                                : getRemoveFlagAssignment(entry.getKey());
+                            List<Long> ids = new ArrayList<Long>(entry.getValue().size());
+                            for (LocalMessage message : entry.getValue()) {
+                                ids.add(message.mId);
+                            }
+                            for (int start = 0; start < ids.size(); start += BULK_CHUNK_SIZE) {
+                                String idList = Utility.combine(ids.subList(start,
+                                                                Math.min(start + BULK_CHUNK_SIZE, ids.size())).toArray(), ',');
+                                db.execSQL("UPDATE messages SET " + assignment + " WHERE id IN (" + idList + ")");
+                            }
+                        }
+                        try {
+                            if (unread != 0) {
+                                setUnreadMessageCount(mUnreadMessageCount + unread);
+                            }
+                            if (flagged != 0) {
+                                setFlaggedMessageCount(mFlaggedMessageCount + flagged);
+                            }
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        return null;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+            for (Map.Entry<Flag, List<LocalMessage>> entry : changed.entrySet()) {
+                for (LocalMessage message : entry.getValue()) {
+                    message.setCachedFlag(entry.getKey(), value);
+                }
+            }
+        }
+
+        /**
+         * Mark all messages of this folder as read, with a single statement.
+         * The unread count is reset once.
+         *
+         * @return Number of messages that were unread.
+         */
+        public int markAllMessagesRead() throws MessagingException {
+            open(OpenMode.READ_WRITE);
+            final String where = "folder_id = ? AND deleted = 0 AND " + getFlagNotSetCondition(Flag.SEEN);
+            final String[] args = new String[] { Long.toString(mFolderId) };
+            int count;
+            try {
+                count = database.execute(true, new DbCallback<Integer>() {
+                    @Override
+                    public Integer doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM messages WHERE " + where, args);
+                        int count = 0;
+                        try {
+                            if (cursor.moveToFirst()) {
+                                count = cursor.getInt(0);
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                        if (count > 0) {
+                            db.execSQL("UPDATE messages SET " + getAddFlagAssignment(Flag.SEEN) + " WHERE " + where, args);
+                        }
+                        return count;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
             }
+            setUnreadMessageCount(0);
+            return count;
+        }
+
+        /**
+         * Same as setting {@link Flag#DELETED} on every message of this folder,
+         * with a few statements for the whole folder: the contents, headers and
+         * attachments of the messages are removed, the rows are kept for
+         * synchronization. The counts are reset once.
+         */
+        public void markAllMessagesDeleted() throws MessagingException {
+            open(OpenMode.READ_WRITE);
+            final String[] args = new String[] { Long.toString(mFolderId) };
+            // deleted once the rows are, a rollback must not lose them
+            final List<File> attachmentFiles = new ArrayList<File>();
+            database.execute(true, new DbCallback<Void>() {
+                @Override
+                public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    final File attachmentDirectory = StorageManager.getInstance(mApplication)
+                                                     .getAttachmentDirectory(uUid, database.getStorageProviderId());
+                    Cursor cursor = db.rawQuery("SELECT attachments.id FROM attachments "
+                                                + "JOIN messages ON (attachments.message_id = messages.id) "
+                                                + "WHERE messages.folder_id = ?", args);
+                    try {
+                        while (cursor.moveToNext()) {
+                            attachmentFiles.add(new File(attachmentDirectory, Long.toString(cursor.getLong(0))));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    db.execSQL("DELETE FROM attachments WHERE message_id IN "
+                               + "(SELECT id FROM messages WHERE folder_id = ?)", args);
+                    db.execSQL("DELETE FROM headers WHERE message_id IN "
+                               + "(SELECT id FROM messages WHERE folder_id = ?)", args);
+                    db.execSQL("UPDATE messages SET deleted = 1, subject = NULL, "
+                               + "sender_list = NULL, date = NULL, to_list = NULL, "
+                               + "cc_list = NULL, bcc_list = NULL, preview = NULL, "
+                               + "html_content = NULL, text_content = NULL, "
+                               + "reply_to_list = NULL, " + getAddFlagAssignment(Flag.DELETED)
+                               + " WHERE folder_id = ? AND deleted = 0", args);
+                    return null;
+                }
+            });
+            deleteFiles(attachmentFiles);
+            setUnreadMessageCount(0);
+            setFlaggedMessageCount(0);
+            deletePartialDownloadFiles(mName, null);
+        }
+
+        /**
+         * @return SQL condition matching the messages whose flags column
+         *         doesn't contain the given flag.
+         */
+        private String getFlagNotSetCondition(Flag flag) {
+            return "(',' || IFNULL(flags, '') || ',') NOT LIKE '%," + flag.name() + ",%'";
         }
 
         @Override
@@ -2509,23 +4028,14 @@ public class LocalStore extends Store implements Serializable {
 
         private void clearMessagesWhere(final String whereClause, final String[] params)  throws MessagingException {
             open(OpenMode.READ_ONLY);
-            Message[] messages  = LocalStore.this.getMessages(
-                                      null,
-                                      this,
-                                      "SELECT " + GET_MESSAGES_COLS + "FROM messages WHERE " + whereClause,
-                                      params);
-
-            for (Message message : messages) {
-                deleteAttachments(message.getUid());
-            }
-            database.execute(false, new DbCallback<Void>() {
-                @Override
-                public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                    db.execSQL("DELETE FROM messages WHERE " + whereClause, params);
-                    return null;
-                }
-            });
-            resetUnreadAndFlaggedCounts();
+            DeletedMessages deleted;
+            do {
+                deleted = deleteMessages(whereClause, params, "id", BULK_CHUNK_SIZE);
+                deleteFiles(deleted.attachmentFiles);
+                // the counts in the database are already updated
+                mUnreadMessageCount = Math.max(0, mUnreadMessageCount - deleted.unread);
+                mFlaggedMessageCount = Math.max(0, mFlaggedMessageCount - deleted.flagged);
+            } while (deleted.count == BULK_CHUNK_SIZE);
         }
 
         public void clearMessagesOlderThan(long cutoff) throws MessagingException {
@@ -2547,34 +4057,16 @@ public class LocalStore extends Store implements Serializable {
 
 
             clearMessagesWhere(where, params);
+            deletePartialDownloadFiles(mName, null);
             setPushState(null);
             setLastPush(0);
             setLastChecked(0);
+            setRemoteMailboxState(null, null);
         }
 
-        private void resetUnreadAndFlaggedCounts() {
-            try {
-                int newUnread = 0;
-                int newFlagged = 0;
-                Message[] messages = getMessages(null);
-                for (Message message : messages) {
-                    if (!message.isSet(Flag.SEEN)) {
-                        newUnread++;
-                    }
-                    if (message.isSet(Flag.FLAGGED)) {
-                        newFlagged++;
-                    }
-                }
-                setUnreadMessageCount(newUnread);
-                setFlaggedMessageCount(newFlagged);
-            } catch (Exception e) {
-                Log.e(K9.LOG_TAG, "Unable to fetch all messages from LocalStore", e);
-            }
-        }
-
-
         @Override
         public void delete(final boolean recurse) throws MessagingException {
+            pollStateChanged();
             try {
                 database.execute(false, new DbCallback<Void>() {
                     @Override
@@ -2597,6 +4089,7 @@ public class LocalStore extends Store implements Serializable {
             } catch (WrappedException e) {
                 throw(MessagingException) e.getCause();
             }
+            deletePartialDownloadFiles(mName, null);
         }
 
         @Override
@@ -3138,6 +4631,51 @@ public class LocalStore extends Store implements Serializable {
 
         }
 
+        /**
+         * Replace the flags of the message, writing them to the database only
+         * once instead of once per changed flag.
+         *
+         * @param flags The complete new set of flags. Never <code>null</code>.
+         * @throws MessagingException
+         */
+        public void replaceFlags(final Set<Flag> flags) throws MessagingException {
+            final Set<Flag> current = new HashSet<Flag>(Arrays.asList(getFlags()));
+            if (current.equals(flags)) {
+                return;
+            }
+            try {
+                database.execute(true, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                        try {
+                            for (Flag flag : current) {
+                                if (!flags.contains(flag)) {
+                                    updateFolderCountsOnFlag(flag, false);
+                                    LocalMessage.super.setFlag(flag, false);
+                                }
+                            }
+                            for (Flag flag : flags) {
+                                if (!current.contains(flag)) {
+                                    if (flag == Flag.DELETED) {
+                                        delete();
+                                    }
+                                    updateFolderCountsOnFlag(flag, true);
+                                    LocalMessage.super.setFlag(flag, true);
+                                }
+                            }
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        db.execSQL("UPDATE messages " + "SET flags = ? " + " WHERE id = ?", new Object[]
+                                   { Utility.combine(getFlags(), ',').toUpperCase(), mId });
+                        return null;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
         /*
          * If a message is being marked as deleted we want to clear out it's content
          * and attachments as well. Delete will not actually remove the row since we need
@@ -3178,6 +4716,7 @@ public class LocalStore extends Store implements Serializable {
                 throw(MessagingException) e.getCause();
             }
             ((LocalFolder)mFolder).deleteHeaders(mId);
+            deletePartialDownloadFiles();
 
 
         }
@@ -3205,9 +4744,28 @@ public class LocalStore extends Store implements Serializable {
             } catch (WrappedException e) {
                 throw(MessagingException) e.getCause();
             }
+            deletePartialDownloadFiles();
+        }
+
+        /**
+         * Delete what was downloaded of the attachments that are still
+         * missing, only messages with attachments can have some.
+         */
+        private void deletePartialDownloadFiles() {
+            if (mAttachmentCount > 0) {
+                LocalStore.this.deletePartialDownloadFiles(mFolder.getName(), Collections.singletonList(mUid));
+            }
+        }
+
+        /**
+         * Change the flag of this object only, for changes written to the
+         * database by the folder.
+         */
+        private void setCachedFlag(Flag flag, boolean set) throws MessagingException {
+            super.setFlag(flag, set);
         }
 
-        private void updateFolderCountsOnFlag(Flag flag, boolean set) {
+                private void updateFolderCountsOnFlag(Flag flag, boolean set) {
             /*
              * Update the unread count on the folder.
              */
@@ -0,0 +1,127 @@
+package com.fsck.k9.mail.store;
+
+/**
+ * Progress of a folder synchronization, persisted with the local folder so
+ * that a synchronization interrupted by a dropped connection or by the process
+ * being killed can resume where it stopped.
+ *
+ * <p>
+ * A checkpoint exists from the moment the remote message list was retrieved
+ * until the synchronization completes. Finding one when a synchronization
+ * starts means the previous one didn't finish.
+ * </p>
+ *
+ * @see LocalStore.LocalFolder#getSyncCheckpoint()
+ */
+public class SyncCheckpoint {
+    /**
+     * Steps of a synchronization, in the order they are executed.
+     */
+    public enum Phase {
+        /**
+         * Envelopes of new messages are being fetched and stored.
+         */
+        HEADERS,
+
+        /**
+         * Bodies of the messages smaller than the auto download size are being
+         * fetched.
+         */
+        SMALL_BODIES,
+
+        /**
+         * Structure and text parts of the other messages are being fetched.
+         */
+        LARGE_BODIES
+    }
+
+    private final Phase mPhase;
+    private final int mWindowStart;
+    private final int mWindowEnd;
+    private final String mLastUid;
+
+    /**
+     * @param windowStart
+     *            First remote message number of the synchronized window.
+     * @param windowEnd
+     *            Last remote message number of the synchronized window.
+     * @param lastUid
+     *            Highest UID stored with its body by this synchronization,
+     *            <code>null</code> if none yet.
+     */
+    public SyncCheckpoint(Phase phase, int windowStart, int windowEnd, String lastUid) {
+        mPhase = phase;
+        mWindowStart = windowStart;
+        mWindowEnd = windowEnd;
+        mLastUid = lastUid;
+    }
+
+    public Phase getPhase() {
+        return mPhase;
+    }
+
+    public int getWindowStart() {
+        return mWindowStart;
+    }
+
+    public int getWindowEnd() {
+        return mWindowEnd;
+    }
+
+    /**
+     * @return Highest UID stored with its body, <code>null</code> if none.
+     */
+    public String getLastUid() {
+        return mLastUid;
+    }
+
+    /**
+     * @return Whether the synchronized window lies within the given one, i.e.
+     *         the messages the synchronization was working on are still part
+     *         of the messages to synchronize.
+     */
+    public boolean isWindowWithin(int windowStart, int windowEnd) {
+        return mWindowStart >= windowStart && mWindowEnd <= windowEnd;
+    }
+
+    public SyncCheckpoint withPhase(Phase phase) {
+        return new SyncCheckpoint(phase, mWindowStart, mWindowEnd, mLastUid);
+    }
+
+    public SyncCheckpoint withWindow(int windowStart, int windowEnd) {
+        return new SyncCheckpoint(mPhase, windowStart, windowEnd, mLastUid);
+    }
+
+    /**
+     * @return A checkpoint whose last UID is the highest of the current one
+     *         and the given ones.
+     */
+    public SyncCheckpoint withStoredUids(Iterable<String> uids) {
+        String lastUid = mLastUid;
+        for (String uid : uids) {
+            if (lastUid == null || compareUids(uid, lastUid) > 0) {
+                lastUid = uid;
+            }
+        }
+        return (lastUid == mLastUid) ? this : new SyncCheckpoint(mPhase, mWindowStart, mWindowEnd, lastUid);
+    }
+
+    /**
+     * Compare UIDs numerically when both are numbers (IMAP), as strings
+     * otherwise.
+     */
+    static int compareUids(String a, String b) {
+        try {
+            long numberA = Long.parseLong(a);
+            long numberB = Long.parseLong(b);
+            return (numberA == numberB) ? 0 : (numberA < numberB ? -1 : 1);
+        } catch (NumberFormatException e) {
+            return a.compareTo(b);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mPhase + " [" + mWindowStart + ".." + mWindowEnd + "], last uid " + mLastUid;
+    }
+}
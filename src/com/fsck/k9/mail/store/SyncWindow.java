@@ -0,0 +1,62 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Date;
+
+/**
+ * Remote messages a folder synchronization looks at: the newest
+ * <code>visibleLimit</code> messages, restricted to those received since an
+ * earliest date.
+ *
+ * <p>
+ * Stored with the {@link com.fsck.k9.mail.MailboxState} of the last complete
+ * synchronization. Only the messages that arrived since have to be listed by
+ * the next one, as long as its window isn't any wider.
+ * </p>
+ *
+ * @see LocalStore.LocalFolder#getRemoteSyncWindow()
+ */
+public class SyncWindow {
+    private final int mVisibleLimit;
+    private final long mEarliestDate;
+
+    /**
+     * @param visibleLimit
+     *            Maximum number of messages, 0 for all of them.
+     * @param earliestDate
+     *            Time (ms) of the oldest message, 0 for no limit.
+     */
+    public SyncWindow(int visibleLimit, long earliestDate) {
+        mVisibleLimit = Math.max(visibleLimit, 0);
+        mEarliestDate = Math.max(earliestDate, 0);
+    }
+
+    /**
+     * @param earliestDate
+     *            <code>null</code> for no limit.
+     */
+    public SyncWindow(int visibleLimit, Date earliestDate) {
+        this(visibleLimit, (earliestDate == null) ? 0 : earliestDate.getTime());
+    }
+
+    public int getVisibleLimit() {
+        return mVisibleLimit;
+    }
+
+    public long getEarliestDate() {
+        return mEarliestDate;
+    }
+
+    /**
+     * @return Whether every message of the given window is in this one too.
+     */
+    public boolean contains(SyncWindow other) {
+        boolean limitCovers = mVisibleLimit == 0
+                              || (other.mVisibleLimit != 0 && other.mVisibleLimit <= mVisibleLimit);
+        return limitCovers && mEarliestDate <= other.mEarliestDate;
+    }
+
+    @Override
+    public String toString() {
+        return "limit " + mVisibleLimit + ", since " + mEarliestDate;
+    }
+}
@@ -0,0 +1,222 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+import com.fsck.k9.mail.Flag;
+
+/**
+ * Compact, read-only snapshot of the messages of a local folder: UID, flags,
+ * sent date, internal date and size per message, kept in parallel arrays
+ * sorted by UID.
+ *
+ * <p>
+ * Used when synchronizing a folder, where only these values are needed for
+ * every message and building a full {@link LocalStore.LocalMessage} for each
+ * of them would be wasteful.
+ * </p>
+ *
+ * @see LocalStore.LocalFolder#getUidIndex()
+ */
+public class UidIndex {
+    private final String[] mUids;
+    private final int[] mFlags;
+    private final long[] mDates;
+    private final long[] mInternalDates;
+    private final int[] mSizes;
+
+    /**
+     * Collects the entries of an index. Entries may be added in any order.
+     */
+    static class Builder {
+        private String[] mUids;
+        private int[] mFlags;
+        private long[] mDates;
+        private long[] mInternalDates;
+        private int[] mSizes;
+        private int mSize = 0;
+        private boolean mSorted = true;
+
+        Builder(int expectedSize) {
+            int capacity = Math.max(expectedSize, 16);
+            mUids = new String[capacity];
+            mFlags = new int[capacity];
+            mDates = new long[capacity];
+            mInternalDates = new long[capacity];
+            mSizes = new int[capacity];
+        }
+
+        void add(String uid, int flags, long date, long internalDate, int size) {
+            if (mSize == mUids.length) {
+                resize(mSize * 2);
+            }
+            if (mSize > 0 && mUids[mSize - 1].compareTo(uid) > 0) {
+                mSorted = false;
+            }
+            mUids[mSize] = uid;
+            mFlags[mSize] = flags;
+            mDates[mSize] = date;
+            mInternalDates[mSize] = internalDate;
+            mSizes[mSize] = size;
+            mSize++;
+        }
+
+        private void resize(int capacity) {
+            String[] uids = new String[capacity];
+            System.arraycopy(mUids, 0, uids, 0, mSize);
+            mUids = uids;
+            int[] flags = new int[capacity];
+            System.arraycopy(mFlags, 0, flags, 0, mSize);
+            mFlags = flags;
+            long[] dates = new long[capacity];
+            System.arraycopy(mDates, 0, dates, 0, mSize);
+            mDates = dates;
+            long[] internalDates = new long[capacity];
+            System.arraycopy(mInternalDates, 0, internalDates, 0, mSize);
+            mInternalDates = internalDates;
+            int[] sizes = new int[capacity];
+            System.arraycopy(mSizes, 0, sizes, 0, mSize);
+            mSizes = sizes;
+        }
+
+        UidIndex build() {
+            if (mSorted) {
+                if (mSize != mUids.length) {
+                    resize(mSize);
+                }
+                return new UidIndex(mUids, mFlags, mDates, mInternalDates, mSizes);
+            }
+
+            // Rows didn't come sorted the way String.compareTo() sorts them
+            Integer[] order = new Integer[mSize];
+            for (int i = 0; i < mSize; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return mUids[a].compareTo(mUids[b]);
+                }
+            });
+            String[] uids = new String[mSize];
+            int[] flags = new int[mSize];
+            long[] dates = new long[mSize];
+            long[] internalDates = new long[mSize];
+            int[] sizes = new int[mSize];
+            for (int i = 0; i < mSize; i++) {
+                int from = order[i];
+                uids[i] = mUids[from];
+                flags[i] = mFlags[from];
+                dates[i] = mDates[from];
+                internalDates[i] = mInternalDates[from];
+                sizes[i] = mSizes[from];
+            }
+            return new UidIndex(uids, flags, dates, internalDates, sizes);
+        }
+    }
+
+    private UidIndex(String[] uids, int[] flags, long[] dates, long[] internalDates, int[] sizes) {
+        mUids = uids;
+        mFlags = flags;
+        mDates = dates;
+        mInternalDates = internalDates;
+        mSizes = sizes;
+    }
+
+    /**
+     * @return Bit mask of the given flags, as used by {@link #getFlags(int)}.
+     */
+    public static int toMask(Flag... flags) {
+        int mask = 0;
+        for (Flag flag : flags) {
+            mask |= 1 << flag.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * Parse the <code>flags</code> column of the <code>messages</code> table.
+     */
+    static int parseFlags(String flagList) {
+        int mask = 0;
+        if (flagList == null || flagList.length() == 0) {
+            return mask;
+        }
+        int start = 0;
+        int length = flagList.length();
+        while (start < length) {
+            int end = flagList.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                try {
+                    mask |= 1 << Flag.valueOf(flagList.substring(start, end)).ordinal();
+                } catch (IllegalArgumentException e) {
+                    // unknown flag (e.g. X_BAD_FLAG), ignore like LocalMessage does
+                }
+            }
+            start = end + 1;
+        }
+        return mask;
+    }
+
+    public int size() {
+        return mUids.length;
+    }
+
+    /**
+     * @return Position of the message with the given UID, a negative value if
+     *         there is none.
+     */
+    public int indexOf(String uid) {
+        int index = Arrays.binarySearch(mUids, uid);
+        return (index < 0) ? -1 : index;
+    }
+
+    public boolean contains(String uid) {
+        return indexOf(uid) >= 0;
+    }
+
+    public String getUid(int index) {
+        return mUids[index];
+    }
+
+    /**
+     * @return Bit mask of the flags, see {@link #toMask(Flag...)}.
+     */
+    public int getFlags(int index) {
+        return mFlags[index];
+    }
+
+    public boolean isSet(int index, Flag flag) {
+        return (mFlags[index] & (1 << flag.ordinal())) != 0;
+    }
+
+    /**
+     * @return Sent date (ms) as stored in the <code>date</code> column.
+     */
+    public long getDate(int index) {
+        return mDates[index];
+    }
+
+    public long getInternalDate(int index) {
+        return mInternalDates[index];
+    }
+
+    /**
+     * @return Size (bytes) of the message on the server, 0 if unknown.
+     */
+    public int getSize(int index) {
+        return mSizes[index];
+    }
+
+    /**
+     * Same check as {@link com.fsck.k9.mail.Message#olderThan(Date)} for a
+     * message loaded from the local store.
+     */
+    public boolean olderThan(int index, Date earliestDate) {
+        return earliestDate != null && mDates[index] < earliestDate.getTime();
+    }
+}
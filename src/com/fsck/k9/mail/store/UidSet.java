@@ -0,0 +1,211 @@
+package com.fsck.k9.mail.store;
+
+/**
+ * Compact set of message UIDs for fast membership checks.
+ *
+ * <p>
+ * Every UID is reduced to a 64 bit hash computed straight from its characters.
+ * A small Bloom filter over these hashes answers most lookups of absent UIDs
+ * without touching the table. The table itself holds the hashes in a
+ * <code>long</code> array with open addressing, next to the UIDs, which are
+ * only compared when the hashes match, so answers are always exact.
+ * </p>
+ *
+ * <p>
+ * The Bloom filter can't forget removed UIDs. It is rebuilt when enough of
+ * them accumulated to make it useless. Not thread-safe.
+ * </p>
+ */
+public class UidSet {
+    /**
+     * Bloom filter bits per table slot. The table is at most half full, so
+     * there are at least 8 bits per UID, with 2 probes that's about 5% of
+     * absent UIDs reaching the table.
+     */
+    private static final int BLOOM_BITS_PER_SLOT = 4;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long[] mHashes;
+    private String[] mUids;
+    private long[] mBloom;
+    private int mSize;
+    private int mRemovedSinceRebuild;
+
+    public UidSet() {
+        this(16);
+    }
+
+    public UidSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return 64 bit FNV-1a hash of the UID, never 0 (which marks empty slots).
+     */
+    static long hash(String uid) {
+        long hash = FNV_OFFSET;
+        for (int i = 0, length = uid.length(); i < length; i++) {
+            hash ^= uid.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return (hash == 0) ? 1 : hash;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(String uid) {
+        if (mSize == 0) {
+            return false;
+        }
+        long hash = hash(uid);
+        return mightContain(hash) && find(hash, uid) >= 0;
+    }
+
+    /**
+     * @return Whether the UID wasn't in the set yet.
+     */
+    public boolean add(String uid) {
+        long hash = hash(uid);
+        if (mightContain(hash) && find(hash, uid) >= 0) {
+            return false;
+        }
+        if ((mSize + 1) * 2 > mHashes.length) {
+            rehash(mHashes.length * 2);
+        }
+        insert(hash, uid);
+        mSize++;
+        return true;
+    }
+
+    /**
+     * @return Whether the UID was in the set.
+     */
+    public boolean remove(String uid) {
+        if (mSize == 0) {
+            return false;
+        }
+        long hash = hash(uid);
+        int index = mightContain(hash) ? find(hash, uid) : -1;
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        mSize--;
+        if (++mRemovedSinceRebuild > mSize + 16) {
+            rebuildBloom();
+        }
+        return true;
+    }
+
+    public void clear() {
+        allocate(16);
+        mSize = 0;
+    }
+
+    private void allocate(int capacity) {
+        mHashes = new long[capacity];
+        mUids = new String[capacity];
+        mBloom = new long[capacity * BLOOM_BITS_PER_SLOT / 64 + 1];
+        mRemovedSinceRebuild = 0;
+    }
+
+    private int slot(long hash) {
+        int mixed = (int)(hash ^ (hash >>> 32));
+        return mixed & (mHashes.length - 1);
+    }
+
+    private int find(long hash, String uid) {
+        int mask = mHashes.length - 1;
+        for (int i = slot(hash); mHashes[i] != 0; i = (i + 1) & mask) {
+            if (mHashes[i] == hash && mUids[i].equals(uid)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long hash, String uid) {
+        int mask = mHashes.length - 1;
+        int i = slot(hash);
+        while (mHashes[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        mHashes[i] = hash;
+        mUids[i] = uid;
+        addToBloom(hash);
+    }
+
+    /**
+     * Remove the entry at the given slot, moving back the entries that
+     * follow it in its probe sequence.
+     */
+    private void removeAt(int hole) {
+        int mask = mHashes.length - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (mHashes[i] == 0) {
+                break;
+            }
+            int home = slot(mHashes[i]);
+            // the entry may move to the hole unless its home is in (hole, i]
+            boolean homeBetween = (hole <= i) ? (home > hole && home <= i) : (home > hole || home <= i);
+            if (!homeBetween) {
+                mHashes[hole] = mHashes[i];
+                mUids[hole] = mUids[i];
+                hole = i;
+            }
+        }
+        mHashes[hole] = 0;
+        mUids[hole] = null;
+    }
+
+    private void rehash(int capacity) {
+        long[] hashes = mHashes;
+        String[] uids = mUids;
+        allocate(capacity);
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != 0) {
+                insert(hashes[i], uids[i]);
+            }
+        }
+    }
+
+    private void rebuildBloom() {
+        mBloom = new long[mBloom.length];
+        for (long hash : mHashes) {
+            if (hash != 0) {
+                addToBloom(hash);
+            }
+        }
+        mRemovedSinceRebuild = 0;
+    }
+
+    private void addToBloom(long hash) {
+        int bits = mBloom.length * 64;
+        int first = (int)((hash & 0x7fffffffL) % bits);
+        int second = (int)(((hash >>> 32) & 0x7fffffffL) % bits);
+        mBloom[first >>> 6] |= 1L << (first & 63);
+        mBloom[second >>> 6] |= 1L << (second & 63);
+    }
+
+    private boolean mightContain(long hash) {
+        int bits = mBloom.length * 64;
+        int first = (int)((hash & 0x7fffffffL) % bits);
+        int second = (int)(((hash >>> 32) & 0x7fffffffL) % bits);
+        return (mBloom[first >>> 6] & (1L << (first & 63))) != 0
+               && (mBloom[second >>> 6] & (1L << (second & 63))) != 0;
+    }
+}
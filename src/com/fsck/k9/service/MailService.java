@@ -18,6 +18,7 @@ import com.fsck.k9.K9;
 import com.fsck.k9.Preferences;
 import com.fsck.k9.Account.FolderMode;
 import com.fsck.k9.controller.MessagingController;
+import com.fsck.k9.controller.PollScheduler;
 import com.fsck.k9.helper.AutoSyncHelper;
 import com.fsck.k9.mail.Pusher;
 
@@ -270,6 +271,17 @@ public class MailService extends CoreService {
                         long delay = (shortestInterval * (60 * 1000));
                         long base = (previousInterval == -1 || lastCheckEnd == -1 || !considerLastCheckEnd ? System.currentTimeMillis() : lastCheckEnd);
                         long nextTime = base + delay;
+                        if (considerLastCheckEnd) {
+                            /*
+                             * Wake up when the first folder is due according to its own
+                             * poll interval. Not while a check is about to start, the
+                             * folders it synchronizes aren't up to date yet.
+                             */
+                            long nextPollTime = getNextPollTime(prefs);
+                            if (nextPollTime != -1) {
+                                nextTime = Math.max(nextPollTime, System.currentTimeMillis() + PollScheduler.MIN_INTERVAL);
+                            }
+                        }
                         if (K9.DEBUG)
                             Log.i(K9.LOG_TAG,
                                   "previousInterval = " + previousInterval
@@ -303,6 +315,22 @@ public class MailService extends CoreService {
         }
     }
 
+    /**
+     * @return Time at which the first folder of any account is due for
+     *         polling, -1 if there is none.
+     */
+    private long getNextPollTime(Preferences prefs) {
+        MessagingController controller = MessagingController.getInstance(getApplication());
+        long nextPollTime = -1;
+        for (Account account : prefs.getAccounts()) {
+            long accountPollTime = controller.getNextPollTime(account);
+            if (accountPollTime != -1 && (nextPollTime == -1 || accountPollTime < nextPollTime)) {
+                nextPollTime = accountPollTime;
+            }
+        }
+        return nextPollTime;
+    }
+
     public static boolean isSyncDisabled() {
         return  syncBlocked || (!pollingRequested && !pushingRequested);
     }
@@ -0,0 +1,123 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.store.LocalStore.PendingCommand;
+import junit.framework.TestCase;
+
+public class PendingCommandJournalTest extends TestCase
+{
+    public void testUidEncoding()
+    {
+        List<String> uids = Arrays.asList("1", "2", "3", "7", "9", "10", "K9LOCAL:a,b", "007", "11");
+        String encoded = PendingCommandJournal.encodeUids(uids);
+
+        assertEquals("1:3,7,9:10,K9LOCAL%3Aa%2Cb,007,11", encoded);
+        assertEquals(uids, PendingCommandJournal.decodeUids(encoded));
+    }
+
+    public void testFlagChangesAreMerged()
+    {
+        List<PendingCommand> commands = new ArrayList<PendingCommand>();
+        commands.add(setFlags("INBOX", Flag.SEEN, true, "1", "2"));
+        commands.add(setFlags("INBOX", Flag.SEEN, true, "3"));
+        commands.add(setFlags("Other", Flag.SEEN, true, "4"));
+        commands.add(setFlags("INBOX", Flag.SEEN, true, "5"));
+
+        List<PendingCommand> result = PendingCommandJournal.coalesce(commands);
+
+        assertEquals(2, result.size());
+        PendingCommandJournal.SetFlags inbox = PendingCommandJournal.parseSetFlags(result.get(0));
+        assertEquals("INBOX", inbox.folder);
+        assertEquals(Arrays.asList("1", "2", "3", "5"), new ArrayList<String>(inbox.uids));
+        assertEquals("Other", PendingCommandJournal.parseSetFlags(result.get(1)).folder);
+    }
+
+    public void testSetAndClearCancelOut()
+    {
+        List<PendingCommand> commands = new ArrayList<PendingCommand>();
+        commands.add(setFlags("INBOX", Flag.SEEN, true, "1", "2"));
+        commands.add(setFlags("INBOX", Flag.SEEN, false, "2"));
+
+        List<PendingCommand> result = PendingCommandJournal.coalesce(commands);
+
+        assertEquals(1, result.size());
+        PendingCommandJournal.SetFlags setFlags = PendingCommandJournal.parseSetFlags(result.get(0));
+        assertTrue(setFlags.state);
+        assertEquals(Arrays.asList("1"), new ArrayList<String>(setFlags.uids));
+    }
+
+    public void testMoveChainIsFolded()
+    {
+        PendingCommandJournal.MoveOrCopy first = new PendingCommandJournal.MoveOrCopy("A", "B", false);
+        first.add("1", "K9LOCAL:x");
+        first.add("2", "K9LOCAL:y");
+        PendingCommandJournal.MoveOrCopy second = new PendingCommandJournal.MoveOrCopy("B", "C", false);
+        second.add("K9LOCAL:x", "K9LOCAL:z");
+
+        List<PendingCommand> commands = new ArrayList<PendingCommand>();
+        commands.add(first.toCommand());
+        commands.add(second.toCommand());
+
+        List<PendingCommand> result = PendingCommandJournal.coalesce(commands);
+
+        assertEquals(2, result.size());
+        PendingCommandJournal.MoveOrCopy remaining = PendingCommandJournal.parseMoveOrCopy(result.get(0));
+        assertEquals("B", remaining.destFolder);
+        assertEquals(Arrays.asList("2"), remaining.uids);
+        PendingCommandJournal.MoveOrCopy folded = PendingCommandJournal.parseMoveOrCopy(result.get(1));
+        assertEquals("A", folded.srcFolder);
+        assertEquals("C", folded.destFolder);
+        assertEquals(Arrays.asList("1"), folded.uids);
+        assertEquals(Arrays.asList("K9LOCAL:z"), folded.newUids);
+    }
+
+    public void testMoveBackCancelsOut()
+    {
+        PendingCommandJournal.MoveOrCopy first = new PendingCommandJournal.MoveOrCopy("A", "B", false);
+        first.add("1", "K9LOCAL:x");
+        first.add("2", "K9LOCAL:y");
+        PendingCommandJournal.MoveOrCopy second = new PendingCommandJournal.MoveOrCopy("B", "A", false);
+        second.add("K9LOCAL:x", "K9LOCAL:z");
+
+        List<PendingCommand> commands = new ArrayList<PendingCommand>();
+        commands.add(first.toCommand());
+        commands.add(second.toCommand());
+        commands.add(setFlags("A", Flag.SEEN, true, "K9LOCAL:z"));
+
+        List<PendingCommandJournal.RestoredUid> restoredUids = new ArrayList<PendingCommandJournal.RestoredUid>();
+        List<PendingCommand> result = PendingCommandJournal.coalesce(commands, restoredUids);
+
+        assertEquals(2, result.size());
+        PendingCommandJournal.MoveOrCopy remaining = PendingCommandJournal.parseMoveOrCopy(result.get(0));
+        assertEquals("A", remaining.srcFolder);
+        assertEquals("B", remaining.destFolder);
+        assertEquals(Arrays.asList("2"), remaining.uids);
+        PendingCommandJournal.SetFlags setFlags = PendingCommandJournal.parseSetFlags(result.get(1));
+        assertEquals(Arrays.asList("1"), new ArrayList<String>(setFlags.uids));
+
+        assertEquals(1, restoredUids.size());
+        assertEquals("A", restoredUids.get(0).folder);
+        assertEquals("K9LOCAL:z", restoredUids.get(0).localUid);
+        assertEquals("1", restoredUids.get(0).uid);
+    }
+
+    public void testNothingToMerge()
+    {
+        List<PendingCommand> commands = new ArrayList<PendingCommand>();
+        commands.add(setFlags("INBOX", Flag.SEEN, true, "1"));
+        commands.add(setFlags("INBOX", Flag.FLAGGED, true, "1"));
+
+        assertNull(PendingCommandJournal.coalesce(commands));
+    }
+
+    private static PendingCommand setFlags(String folder, Flag flag, boolean state, String... uids)
+    {
+        PendingCommandJournal.SetFlags setFlags = new PendingCommandJournal.SetFlags(folder, flag, state);
+        setFlags.uids.addAll(Arrays.asList(uids));
+        return setFlags.toCommand();
+    }
+}
@@ -0,0 +1,41 @@
+package com.fsck.k9.mail;
+
+import junit.framework.TestCase;
+
+public class MailboxChangesTest extends TestCase
+{
+    public void testVanishedRanges()
+    {
+        MailboxChanges changes = new MailboxChanges();
+        assertEquals(76, changes.addVanished("41,43:116,118"));
+        assertEquals(3, changes.addVanished("300:298"));
+
+        assertTrue(changes.isVanished("41"));
+        assertFalse(changes.isVanished("42"));
+        assertTrue(changes.isVanished("43"));
+        assertTrue(changes.isVanished("80"));
+        assertTrue(changes.isVanished("116"));
+        assertFalse(changes.isVanished("117"));
+        assertTrue(changes.isVanished("299"));
+        assertFalse(changes.isVanished("301"));
+        assertFalse(changes.isVanished("K9LOCAL:1"));
+
+        changes.addVanished("117");
+        assertTrue(changes.isVanished("117"));
+    }
+
+    public void testCountUids()
+    {
+        assertEquals(1, MailboxChanges.countUids("7"));
+        assertEquals(5, MailboxChanges.countUids("1:3,9,10"));
+        try
+        {
+            MailboxChanges.countUids("1:*");
+            fail();
+        }
+        catch (NumberFormatException e)
+        {
+            // expected
+        }
+    }
+}
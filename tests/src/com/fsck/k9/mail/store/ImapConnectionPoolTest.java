@@ -0,0 +1,112 @@
+package com.fsck.k9.mail.store;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.ImapStore.ImapConnection;
+
+public class ImapConnectionPoolTest extends TestCase
+{
+    private static class FakeConnection extends ImapConnection
+    {
+        boolean open = true;
+        boolean qresync = false;
+        int noops = 0;
+
+        FakeConnection()
+        {
+            super(null);
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        @Override
+        public void close()
+        {
+            open = false;
+        }
+
+        @Override
+        public boolean isQresyncEnabled()
+        {
+            return qresync;
+        }
+
+        @Override
+        public List<ImapResponse> executeSimpleCommand(String command)
+        {
+            noops++;
+            return null;
+        }
+    }
+
+    private final ImapConnectionPool.ConnectionFactory mFactory = new ImapConnectionPool.ConnectionFactory()
+    {
+        public ImapConnection create()
+        {
+            return new FakeConnection();
+        }
+    };
+
+    public void testReusesLastReleasedConnection() throws Exception
+    {
+        ImapConnectionPool pool = new ImapConnectionPool(4, mFactory);
+        ImapConnection first = pool.checkout(false);
+        ImapConnection second = pool.checkout(false);
+        pool.release(first);
+        pool.release(second);
+
+        assertSame(second, pool.checkout(false));
+        assertSame(first, pool.checkout(false));
+        assertEquals(0, ((FakeConnection) first).noops);
+
+        ImapConnectionPool.Stats stats = pool.getStats();
+        assertEquals(4, stats.checkouts);
+        assertEquals(2, stats.hits);
+        assertEquals(2, stats.getOpened());
+        assertEquals(2, stats.inUse);
+    }
+
+    public void testDropsClosedConnections() throws Exception
+    {
+        ImapConnectionPool pool = new ImapConnectionPool(4, mFactory);
+        ImapConnection connection = pool.checkout(false);
+        connection.close();
+        pool.release(connection);
+
+        assertNotSame(connection, pool.checkout(false));
+        assertEquals(0, pool.getStats().idle);
+    }
+
+    public void testDedicatedConnectionsDontCount() throws Exception
+    {
+        ImapConnectionPool pool = new ImapConnectionPool(1, mFactory);
+        ImapConnection pushing = pool.checkout(true);
+        ImapConnection regular = pool.checkout(false);
+        assertEquals(1, pool.getStats().inUse);
+        assertEquals(0, pool.getStats().overflows);
+
+        // the pool is full, the dedicated connection isn't kept
+        pool.release(pushing);
+        assertFalse(pushing.isOpen());
+        pool.release(regular);
+        assertEquals(1, pool.getStats().idle);
+    }
+
+    public void testDedicatedConnectionsSkipQresync() throws Exception
+    {
+        ImapConnectionPool pool = new ImapConnectionPool(4, mFactory);
+        FakeConnection resynced = (FakeConnection) pool.checkout(false);
+        resynced.qresync = true;
+        pool.release(resynced);
+
+        assertNotSame(resynced, pool.checkout(true));
+        assertSame(resynced, pool.checkout(false));
+    }
+}
@@ -0,0 +1,175 @@
+package com.fsck.k9.mail.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.filter.FixedLengthInputStream;
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+
+public class ImapResponseParserTest extends TestCase
+{
+    /**
+     * Responses and how they are parsed, as printed by
+     * {@link ImapResponse#toString()}.
+     */
+    private static final String[][] CORPUS =
+    {
+        {
+            "* OK [CAPABILITY IMAP4rev1 LITERAL+ SASL-IR ID ENABLE IDLE AUTH=PLAIN] Dovecot ready.\r\n",
+            "#null# [OK, [CAPABILITY, IMAP4rev1, LITERAL+, SASL-IR, ID, ENABLE, IDLE, AUTH=PLAIN], Dovecot, ready.]"
+        },
+        {
+            "* 23 EXISTS\r\n",
+            "#null# [23, EXISTS]"
+        },
+        {
+            "* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft NonJunk $MDNSent)\r\n",
+            "#null# [FLAGS, [\\Answered, \\Flagged, \\Deleted, \\Seen, \\Draft, NonJunk, $MDNSent]]"
+        },
+        {
+            "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft NonJunk $MDNSent \\*)] Flags permitted.\r\n",
+            "#null# [OK, [PERMANENTFLAGS, [\\Answered, \\Flagged, \\Deleted, \\Seen, \\Draft, NonJunk, $MDNSent, \\*]], Flags, permitted.]"
+        },
+        {
+            "2 OK [READ-WRITE] Select completed.\r\n",
+            "#2# [OK, [READ-WRITE], Select, completed.]"
+        },
+        {
+            "* 12 FETCH (UID 345 FLAGS (\\Seen \\Flagged) INTERNALDATE \"17-Jul-1996 02:44:25 -0700\" RFC822.SIZE 4286)\r\n",
+            "#null# [12, FETCH, [UID, 345, FLAGS, [\\Seen, \\Flagged], INTERNALDATE, 17-Jul-1996 02:44:25 -0700, RFC822.SIZE, 4286]]"
+        },
+        {
+            "* 3 FETCH (UID 9 BODY[HEADER.FIELDS (DATE SUBJECT)] {24}\r\nSubject: test\r\nDate: x\r\n)\r\n",
+            "#null# [3, FETCH, [UID, 9, BODY, [HEADER.FIELDS, [DATE, SUBJECT]], Subject: test\r\nDate: x\r\n]]"
+        },
+        {
+            "* SEARCH 1 5 9 1024\r\n",
+            "#null# [SEARCH, 1, 5, 9, 1024]"
+        },
+        {
+            "+ Ready for literal data\r\n",
+            "#+# [Ready, for, literal, data]"
+        },
+        {
+            "* LIST (\\HasNoChildren) \"/\" \"INBOX/With \\\"quotes\\\" and \\\\ backslash\"\r\n",
+            "#null# [LIST, [\\HasNoChildren], /, INBOX/With \"quotes\" and \\ backslash]"
+        },
+        {
+            "* VANISHED (EARLIER) 41,43:116\r\n",
+            "#null# [VANISHED, [EARLIER], 41,43:116]"
+        },
+        {
+            "* 1 FETCH (BODYSTRUCTURE (\"TEXT\" \"PLAIN\" (\"CHARSET\" \"us-ascii\") NIL NIL \"7BIT\" 3028 92))\r\n",
+            "#null# [1, FETCH, [BODYSTRUCTURE, [TEXT, PLAIN, [CHARSET, us-ascii], NIL, NIL, 7BIT, 3028, 92]]]"
+        },
+        {
+            "* 4 FETCH (BODY[] {0}\r\n)\r\n",
+            "#null# [4, FETCH, [BODY, [], ]]"
+        },
+        {
+            "5 NO [ALERT] Quota exceeded\r\n",
+            "#5# [NO, [ALERT], Quota, exceeded]"
+        },
+        {
+            "* 2 EXPUNGE\n",
+            "#null# [2, EXPUNGE]"
+        },
+        {
+            "* OK ]odd) text\r\n",
+            "#null# [OK, odd, text]"
+        },
+        {
+            "* OK caf\u00e9 \"na\u00efve\"\r\n",
+            "#null# [OK, caf\u00e9, na\u00efve]"
+        },
+        {
+            "* 7 FETCH (FLAGS () UID 8)\r\n",
+            "#null# [7, FETCH, [FLAGS, [], UID, 8]]"
+        },
+        {
+            "* OK [HIGHESTMODSEQ 715194045007]\r\n",
+            "#null# [OK, [HIGHESTMODSEQ, 715194045007]]"
+        },
+    };
+
+    private static ImapResponseParser createParser(String responses) throws IOException
+    {
+        return new ImapResponseParser(new PeekableInputStream(
+                                          new ByteArrayInputStream(responses.getBytes("ISO-8859-1"))));
+    }
+
+    public void testCorpus() throws Exception
+    {
+        for (String[] entry : CORPUS)
+        {
+            assertEquals(entry[1], createParser(entry[0]).readResponse().toString());
+        }
+    }
+
+    public void testConsecutiveResponses() throws Exception
+    {
+        StringBuilder all = new StringBuilder();
+        for (String[] entry : CORPUS)
+        {
+            all.append(entry[0]);
+        }
+        ImapResponseParser parser = createParser(all.toString());
+        for (String[] entry : CORPUS)
+        {
+            assertEquals(entry[1], parser.readResponse().toString());
+        }
+    }
+
+    public void testLiteralCallback() throws Exception
+    {
+        ImapResponseParser parser = createParser("* 3 FETCH (BODY[TEXT] {5}\r\nhello UID 9)\r\n4 OK done\r\n");
+        ImapResponse response = parser.readResponse(new ImapResponseParser.IImapResponseCallback()
+        {
+            public Object foundLiteral(ImapResponse response, FixedLengthInputStream literal) throws IOException
+            {
+                assertTrue(response.equalsIgnoreCase(1, "FETCH"));
+                assertEquals('h', literal.read());
+                return Integer.valueOf(1);
+            }
+        });
+
+        ImapList fetchList = response.getKeyedList("FETCH");
+        assertEquals(Integer.valueOf(1), fetchList.getObject(2));
+        assertEquals(9, fetchList.getKeyedNumber("UID"));
+        assertEquals("4", parser.readResponse().mTag);
+    }
+
+    public void testTypedAccessors() throws Exception
+    {
+        ImapResponse response = createParser("* 12 FETCH (UID 345 FLAGS (\\Seen \\flagged $Junk) MODSEQ (715194045007))\r\n")
+                                .readResponse();
+        assertEquals(12, response.getNumber(0));
+        assertTrue(response.equalsIgnoreCase(1, "fetch"));
+        assertFalse(response.equalsIgnoreCase(1, "FETCHED"));
+
+        ImapList fetchList = response.getKeyedList("FETCH");
+        assertEquals(345, fetchList.getKeyedNumber("uid"));
+        assertEquals(715194045007L, fetchList.getKeyedList("MODSEQ").getLong(0));
+
+        ImapList flags = fetchList.getKeyedList("FLAGS");
+        assertEquals(Flag.SEEN, flags.getFlag(0));
+        assertEquals(Flag.FLAGGED, flags.getFlag(1));
+        assertNull(flags.getFlag(2));
+        assertEquals("$Junk", flags.getString(2));
+
+        try
+        {
+            fetchList.getNumber(0);
+            fail();
+        }
+        catch (NumberFormatException e)
+        {
+            // expected
+        }
+    }
+}
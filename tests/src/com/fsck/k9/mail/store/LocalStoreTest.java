@@ -0,0 +1,113 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Collections;
+import java.util.Date;
+
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Folder.OpenMode;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+
+/**
+ * Runs on a device, like the other {@link AndroidTestCase}s:
+ * adb shell am instrument -w \
+ * -e class com.fsck.k9.mail.store.LocalStoreTest \
+ * com.fsck.k9.tests/android.test.InstrumentationTestRunner
+ */
+public class LocalStoreTest extends AndroidTestCase
+{
+    private static final Date INTERNAL_DATE = new Date(1300000000000L);
+    private static final int SIZE = 12345;
+
+    private LocalStore mStore;
+    private LocalFolder mFolder;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        Account account = Preferences.getPreferences(getContext()).newAccount();
+        mStore = account.getLocalStore();
+        mFolder = mStore.getFolder("INBOX");
+        mFolder.create(FolderType.HOLDS_MESSAGES);
+        mFolder.open(OpenMode.READ_WRITE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mFolder.close();
+        mStore.delete();
+        super.tearDown();
+    }
+
+    /**
+     * A resumed synchronization downloads the body of a message whose
+     * envelope was stored by the interrupted one, without its INTERNALDATE
+     * and RFC822.SIZE.
+     */
+    public void testResumedBodyKeepsInternalDateAndSize() throws Exception
+    {
+        mFolder.storeMessages(Collections.<Message>singletonList(envelope("1")), null);
+        mFolder.storeSmallMessages(Collections.<Message>singletonList(body("1")));
+
+        assertEnvelopeKept("1");
+    }
+
+    /**
+     * Bodies of the messages of an initial import are downloaded the same
+     * way.
+     */
+    public void testImportedEnvelopeKeepsInternalDateAndSize() throws Exception
+    {
+        mFolder.importEnvelopes(Collections.<Message>singletonList(envelope("2")));
+        mFolder.storeSmallMessages(Collections.<Message>singletonList(body("2")));
+
+        assertEnvelopeKept("2");
+    }
+
+    private void assertEnvelopeKept(String uid) throws Exception
+    {
+        UidIndex index = mFolder.getUidIndex();
+        int position = index.indexOf(uid);
+        assertTrue(position >= 0);
+        assertEquals(INTERNAL_DATE.getTime(), index.getInternalDate(position));
+        assertEquals(SIZE, index.getSize(position));
+    }
+
+    private static Message envelope(String uid) throws Exception
+    {
+        TestMessage message = new TestMessage(uid);
+        message.setInternalDate(INTERNAL_DATE);
+        message.setSize(SIZE);
+        return message;
+    }
+
+    private static Message body(String uid) throws Exception
+    {
+        TestMessage message = new TestMessage(uid);
+        message.setBody(new TextBody("body of " + uid));
+        return message;
+    }
+
+    private static class TestMessage extends MimeMessage
+    {
+        TestMessage(String uid) throws Exception
+        {
+            setUid(uid);
+            setSubject("message " + uid);
+            setSentDate(INTERNAL_DATE);
+        }
+
+        void setSize(int size)
+        {
+            mSize = size;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class SyncWindowTest extends TestCase
+{
+    public void testSameOrNarrowerWindowIsContained()
+    {
+        SyncWindow known = new SyncWindow(25, 1000L);
+
+        assertTrue(known.contains(new SyncWindow(25, 1000L)));
+        assertTrue(known.contains(new SyncWindow(10, 1000L)));
+        // earliest poll date moves forward with time
+        assertTrue(known.contains(new SyncWindow(25, 5000L)));
+    }
+
+    public void testMoreMessagesAreNotContained()
+    {
+        SyncWindow known = new SyncWindow(25, (Date) null);
+
+        // loadMoreMessages()
+        assertFalse(known.contains(new SyncWindow(50, (Date) null)));
+        assertFalse(known.contains(new SyncWindow(0, (Date) null)));
+        assertTrue(new SyncWindow(0, (Date) null).contains(new SyncWindow(50, (Date) null)));
+    }
+
+    public void testEarlierPollDateIsNotContained()
+    {
+        SyncWindow known = new SyncWindow(25, new Date(1000L));
+
+        assertFalse(known.contains(new SyncWindow(25, new Date(500L))));
+        assertFalse(known.contains(new SyncWindow(25, (Date) null)));
+    }
+}
@@ -0,0 +1,52 @@
+package com.fsck.k9.mail.store;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class UidSetTest extends TestCase
+{
+    public void testAddContainsRemove()
+    {
+        UidSet uids = new UidSet();
+        assertTrue(uids.add("42"));
+        assertFalse(uids.add("42"));
+        assertTrue(uids.add("K9LOCAL:abc"));
+
+        assertTrue(uids.contains("42"));
+        assertTrue(uids.contains("K9LOCAL:abc"));
+        assertFalse(uids.contains("43"));
+        assertEquals(2, uids.size());
+
+        assertTrue(uids.remove("42"));
+        assertFalse(uids.remove("42"));
+        assertFalse(uids.contains("42"));
+        assertEquals(1, uids.size());
+    }
+
+    public void testMatchesHashSet()
+    {
+        Random random = new Random(1);
+        UidSet uids = new UidSet();
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < 20000; i++)
+        {
+            String uid = Integer.toString(random.nextInt(5000));
+            switch (random.nextInt(3))
+            {
+                case 0:
+                    assertEquals(expected.add(uid), uids.add(uid));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(uid), uids.remove(uid));
+                    break;
+                default:
+                    assertEquals(expected.contains(uid), uids.contains(uid));
+                    break;
+            }
+            assertEquals(expected.size(), uids.size());
+        }
+    }
+}